@@ -0,0 +1,216 @@
+package com.marklogic.spring.reactive.http;
+
+import org.apache.http.auth.Credentials;
+import org.springframework.http.HttpMethod;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Holds the last basic or digest challenge received from each MarkLogic app server for each user, so that requests
+ * can be sent with an Authorization header instead of waiting for a 401. WebClient has no support for digest
+ * authentication, so MarkLogicAuthenticationFilter uses this to answer challenges as well.
+ * <p>
+ * As with PrincipalHttpContextCache, state is kept per user, and up to maxSize users are cached; the cache is cleared
+ * when it's full. The digest nonce count is incremented atomically, so concurrent requests never send the same count.
+ * <p>
+ * A digest nonce expires on the app server after some time, after which a request using it is challenged with
+ * stale=true. The lifetime of a nonce is learned from the age of the challenges that have been reported as stale, or
+ * can be set via setNonceLifetimeMillis, so that isExpired can tell a request that can't be retried to obtain a new
+ * nonce first.
+ */
+public class ChallengeCache {
+
+	private final static Pattern PARAM = Pattern.compile("(\\w+)=(?:\"([^\"]*)\"|([^,\\s]*))");
+
+	private final int maxSize;
+	private final ConcurrentMap<String, Challenge> challenges = new ConcurrentHashMap<>();
+	private volatile long nonceLifetimeMillis;
+
+	public ChallengeCache() {
+		this(10000);
+	}
+
+	public ChallengeCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param method
+	 * @param uri
+	 * @param credentials
+	 * @return the value of the Authorization header for the request, or null if no challenge has been received from
+	 * the app server for the user
+	 */
+	public String authorize(HttpMethod method, URI uri, Credentials credentials) {
+		Challenge challenge = challenges.get(buildKey(uri, credentials));
+		return challenge != null ? challenge.authorize(method, uri, credentials) : null;
+	}
+
+	/**
+	 * @param uri
+	 * @param credentials
+	 * @param wwwAuthenticate the WWW-Authenticate header of a 401 from the app server
+	 * @return true if the challenge was for basic or digest authentication and has been recorded
+	 */
+	public boolean update(URI uri, Credentials credentials, String wwwAuthenticate) {
+		Challenge challenge = Challenge.parse(wwwAuthenticate);
+		if (challenge == null) {
+			return false;
+		}
+		if (challenges.size() >= maxSize) {
+			challenges.clear();
+		}
+		Challenge previous = challenges.put(buildKey(uri, credentials), challenge);
+		if (previous != null && previous.digest && isStale(wwwAuthenticate)) {
+			long age = challenge.receivedMillis - previous.receivedMillis;
+			long lifetime = nonceLifetimeMillis;
+			if (lifetime <= 0 || age < lifetime) {
+				nonceLifetimeMillis = age;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param uri
+	 * @param credentials
+	 * @return true if the digest challenge cached for the user is at least as old as the nonce lifetime, in which case
+	 * the app server is likely to reject its nonce as stale; false if the lifetime isn't known yet
+	 */
+	public boolean isExpired(URI uri, Credentials credentials) {
+		Challenge challenge = challenges.get(buildKey(uri, credentials));
+		long lifetime = nonceLifetimeMillis;
+		return challenge != null && challenge.digest && lifetime > 0
+			&& System.currentTimeMillis() - challenge.receivedMillis >= lifetime;
+	}
+
+	/**
+	 * @param wwwAuthenticate
+	 * @return true if the challenge says that the nonce was stale, in which case the credentials were correct
+	 */
+	public static boolean isStale(String wwwAuthenticate) {
+		return wwwAuthenticate != null && wwwAuthenticate.toLowerCase().contains("stale=true");
+	}
+
+	public void clear() {
+		challenges.clear();
+	}
+
+	public int size() {
+		return challenges.size();
+	}
+
+	public long getNonceLifetimeMillis() {
+		return nonceLifetimeMillis;
+	}
+
+	/**
+	 * @param nonceLifetimeMillis how long the app server accepts a digest nonce for; if not set, it's learned from
+	 *                            stale challenges
+	 */
+	public void setNonceLifetimeMillis(long nonceLifetimeMillis) {
+		this.nonceLifetimeMillis = nonceLifetimeMillis;
+	}
+
+	protected String buildKey(URI uri, Credentials credentials) {
+		return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort() + "|" +
+			credentials.getUserPrincipal().getName();
+	}
+
+	private static class Challenge {
+
+		final boolean digest;
+		final String realm;
+		final String nonce;
+		final String opaque;
+		final boolean qopAuth;
+		final String cnonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		final AtomicInteger nonceCount = new AtomicInteger();
+		final long receivedMillis = System.currentTimeMillis();
+
+		Challenge(boolean digest, Map<String, String> params) {
+			this.digest = digest;
+			this.realm = params.get("realm");
+			this.nonce = params.get("nonce");
+			this.opaque = params.get("opaque");
+			String qop = params.get("qop");
+			this.qopAuth = qop != null && qop.matches("(?i)(.*,\\s*)?auth(\\s*,.*)?");
+		}
+
+		static Challenge parse(String wwwAuthenticate) {
+			if (wwwAuthenticate == null) {
+				return null;
+			}
+			String value = wwwAuthenticate.trim();
+			int space = value.indexOf(' ');
+			String scheme = space > 0 ? value.substring(0, space) : value;
+			boolean digest = "Digest".equalsIgnoreCase(scheme);
+			if (!digest && !"Basic".equalsIgnoreCase(scheme)) {
+				return null;
+			}
+			Map<String, String> params = new HashMap<>();
+			Matcher matcher = PARAM.matcher(space > 0 ? value.substring(space + 1) : "");
+			while (matcher.find()) {
+				params.put(matcher.group(1).toLowerCase(), matcher.group(2) != null ? matcher.group(2) : matcher.group(3));
+			}
+			if (digest && params.get("nonce") == null) {
+				return null;
+			}
+			return new Challenge(digest, params);
+		}
+
+		String authorize(HttpMethod method, URI uri, Credentials credentials) {
+			String username = credentials.getUserPrincipal().getName();
+			String password = credentials.getPassword() != null ? credentials.getPassword() : "";
+			if (!digest) {
+				String token = username + ":" + password;
+				return "Basic " + Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.ISO_8859_1));
+			}
+
+			String digestUri = uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+			String ha1 = md5(username + ":" + realm + ":" + password);
+			String ha2 = md5(method.name() + ":" + digestUri);
+			StringBuilder header = new StringBuilder("Digest username=\"").append(username)
+				.append("\", realm=\"").append(realm)
+				.append("\", nonce=\"").append(nonce)
+				.append("\", uri=\"").append(digestUri).append("\", response=\"");
+			if (qopAuth) {
+				String nc = String.format("%08x", nonceCount.incrementAndGet());
+				header.append(md5(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2))
+					.append("\", qop=auth, nc=").append(nc).append(", cnonce=\"").append(cnonce).append('"');
+			} else {
+				header.append(md5(ha1 + ":" + nonce + ":" + ha2)).append('"');
+			}
+			header.append(", algorithm=MD5");
+			if (opaque != null) {
+				header.append(", opaque=\"").append(opaque).append('"');
+			}
+			return header.toString();
+		}
+
+		private static String md5(String value) {
+			try {
+				byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.ISO_8859_1));
+				StringBuilder hex = new StringBuilder(32);
+				for (byte b : digest) {
+					hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+				}
+				return hex.toString();
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("Unable to compute digest, cause: " + ex.getMessage(), ex);
+			}
+		}
+	}
+}
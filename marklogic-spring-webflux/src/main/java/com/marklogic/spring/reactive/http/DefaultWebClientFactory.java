@@ -0,0 +1,152 @@
+package com.marklogic.spring.reactive.http;
+
+import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.http.SslContextFactory;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.ipc.netty.resources.PoolResources;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Reactive counterpart of DefaultRestOperationsFactory. Builds WebClients that connect to MarkLogic through a single
+ * Reactor Netty connection pool, sized by RestConfig.getMaxConnectionsTotal, and that authenticate via a
+ * MarkLogicAuthenticationFilter sharing a single ChallengeCache. All WebClients built by one factory share the pool
+ * and the event loop, which is what lets a reactive proxy hold far more client connections than it has threads.
+ * <p>
+ * TLS is configured from the same RestConfig settings, via SslContextFactory, as the blocking clients, including
+ * hostname verification unless sslHostnameVerificationEnabled is false. As with DefaultRestOperationsFactory, destroy
+ * should be called - or the factory declared as a Spring bean - so that the connection pool is closed.
+ */
+public class DefaultWebClientFactory implements DisposableBean {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private SslContextFactory sslContextFactory = new SslContextFactory();
+	private ChallengeCache challengeCache = new ChallengeCache();
+	private PoolResources poolResources;
+	private ReactorClientHttpConnector connector;
+
+	/**
+	 * @param restConfig
+	 * @param credentialsProvider may be null if every request sets MarkLogicAuthenticationFilter.CREDENTIALS_ATTRIBUTE
+	 * @return a builder with the shared connector, the base URL of the app server, and the authentication filter
+	 * already applied, so that further filters and defaults can be added
+	 */
+	public WebClient.Builder newWebClientBuilder(RestConfig restConfig, ReactiveCredentialsProvider credentialsProvider) {
+		return WebClient.builder()
+			.clientConnector(getConnector(restConfig))
+			.baseUrl(restConfig.getScheme() + "://" + restConfig.getHost() + ":" + restConfig.getRestPort())
+			.filter(new MarkLogicAuthenticationFilter(credentialsProvider, challengeCache));
+	}
+
+	public WebClient newWebClient(RestConfig restConfig, ReactiveCredentialsProvider credentialsProvider) {
+		return newWebClientBuilder(restConfig, credentialsProvider).build();
+	}
+
+	/**
+	 * The connector is created for the first RestConfig passed in, which determines the pool size and TLS settings
+	 * for every WebClient built by this factory; use one factory per distinct configuration.
+	 */
+	protected synchronized ReactorClientHttpConnector getConnector(RestConfig restConfig) {
+		if (connector == null) {
+			poolResources = newPoolResources(restConfig);
+			connector = new ReactorClientHttpConnector(options -> {
+				options.poolResources(poolResources).compression(false);
+				Integer connectTimeout = restConfig.getConnectTimeoutMillis();
+				if (connectTimeout != null && connectTimeout >= 0) {
+					options.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+				}
+				if ("https".equalsIgnoreCase(restConfig.getScheme())) {
+					SslContext nettySslContext = null;
+					if (SslContextFactory.isConfigured(restConfig)) {
+						SSLContext sslContext = sslContextFactory.newSslContext(restConfig);
+						nettySslContext = new JdkSslContext(sslContext, true, ClientAuth.NONE);
+						options.sslContext(nettySslContext);
+					} else {
+						options.sslSupport();
+					}
+					SslContext handlerSslContext = nettySslContext;
+					boolean verifyHostname = !Boolean.FALSE.equals(restConfig.isSslHostnameVerificationEnabled());
+					options.afterChannelInit(channel ->
+						configureHostnameVerification(channel, handlerSslContext, verifyHostname));
+				}
+			});
+		}
+		return connector;
+	}
+
+	/**
+	 * As with the HostnameVerifier used by the blocking clients, the SSLEngine checks during the handshake that the
+	 * server's certificate matches the host it connected to. Reactor Netty enables this on every engine it creates,
+	 * and an engine won't let it be turned off; so when hostname verification is disabled, the SslHandler is replaced
+	 * with one whose engine is created directly from the SslContext.
+	 *
+	 * @param channel
+	 * @param sslContext the SslContext built from the RestConfig; always set when hostname verification is disabled
+	 * @param verifyHostname
+	 */
+	protected void configureHostnameVerification(Channel channel, SslContext sslContext, boolean verifyHostname) {
+		ChannelPipeline pipeline = channel.pipeline();
+		SslHandler sslHandler = pipeline.get(SslHandler.class);
+		if (sslHandler == null) {
+			return;
+		}
+		SSLEngine engine = sslHandler.engine();
+		if (verifyHostname) {
+			SSLParameters parameters = engine.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(parameters);
+		} else if (sslContext != null) {
+			SslHandler replacement = sslContext.newHandler(channel.alloc(), engine.getPeerHost(), engine.getPeerPort());
+			replacement.setHandshakeTimeoutMillis(sslHandler.getHandshakeTimeoutMillis());
+			replacement.setCloseNotifyFlushTimeoutMillis(sslHandler.getCloseNotifyFlushTimeoutMillis());
+			replacement.setCloseNotifyReadTimeoutMillis(sslHandler.getCloseNotifyReadTimeoutMillis());
+			pipeline.replace(sslHandler, pipeline.context(sslHandler).name(), replacement);
+		}
+	}
+
+	protected PoolResources newPoolResources(RestConfig restConfig) {
+		Integer maxConnections = restConfig.getMaxConnectionsTotal();
+		if (maxConnections == null || maxConnections <= 0) {
+			return PoolResources.elastic("marklogic");
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Creating connection pool for MarkLogic with up to " + maxConnections + " connections");
+		}
+		return PoolResources.fixed("marklogic", maxConnections);
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (poolResources != null) {
+			poolResources.dispose();
+			poolResources = null;
+			connector = null;
+		}
+	}
+
+	public ChallengeCache getChallengeCache() {
+		return challengeCache;
+	}
+
+	public void setChallengeCache(ChallengeCache challengeCache) {
+		this.challengeCache = challengeCache;
+	}
+
+	public void setSslContextFactory(SslContextFactory sslContextFactory) {
+		this.sslContextFactory = sslContextFactory;
+	}
+}
@@ -0,0 +1,114 @@
+package com.marklogic.spring.reactive.http;
+
+import org.apache.http.auth.Credentials;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+
+/**
+ * Authenticates WebClient requests against MarkLogic with basic or digest authentication. Credentials are taken from
+ * the CREDENTIALS_ATTRIBUTE request attribute if present, and otherwise from the ReactiveCredentialsProvider; if
+ * neither yields credentials, the request is sent as-is.
+ * <p>
+ * Once a challenge has been received for a user, every request sends an Authorization header up front, so that -
+ * as with digest caching in DefaultRestOperationsFactory - a request normally takes one round trip. A request whose
+ * body can't be replayed, such as a streamed PUT, can't be retried after a 401; so if no challenge is cached for it,
+ * or its digest nonce has likely expired - see ChallengeCache.isExpired - an unauthenticated HEAD is sent first to
+ * obtain a new one.
+ */
+public class MarkLogicAuthenticationFilter implements ExchangeFilterFunction {
+
+	public final static String CREDENTIALS_ATTRIBUTE = MarkLogicAuthenticationFilter.class.getName() + ".credentials";
+
+	private ReactiveCredentialsProvider credentialsProvider;
+	private ChallengeCache challengeCache;
+
+	public MarkLogicAuthenticationFilter(ReactiveCredentialsProvider credentialsProvider, ChallengeCache challengeCache) {
+		this.credentialsProvider = credentialsProvider;
+		this.challengeCache = challengeCache;
+	}
+
+	@Override
+	public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+		Mono<Credentials> credentials = request.attribute(CREDENTIALS_ATTRIBUTE)
+			.map(value -> Mono.just((Credentials) value))
+			.orElseGet(() -> credentialsProvider != null ? credentialsProvider.getCredentials() : Mono.empty());
+		return credentials
+			.flatMap(creds -> authenticate(request, creds, next))
+			.switchIfEmpty(Mono.defer(() -> next.exchange(request)));
+	}
+
+	protected Mono<ClientResponse> authenticate(ClientRequest request, Credentials credentials, ExchangeFunction next) {
+		String authorization = challengeCache.authorize(request.method(), request.url(), credentials);
+		if (!isReplayable(request.method())
+			&& (authorization == null || challengeCache.isExpired(request.url(), credentials))) {
+			return primeChallenge(request.url(), credentials, next)
+				.then(Mono.defer(() -> next.exchange(withAuthorization(request,
+					challengeCache.authorize(request.method(), request.url(), credentials)))));
+		}
+		return next.exchange(withAuthorization(request, authorization))
+			.flatMap(response -> {
+				if (response.statusCode() != HttpStatus.UNAUTHORIZED) {
+					return Mono.just(response);
+				}
+				// Recorded even if the request can't be retried, so that the next request uses the new nonce
+				String challenge = response.headers().asHttpHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE);
+				boolean retry = challengeCache.update(request.url(), credentials, challenge)
+					&& isReplayable(request.method())
+					&& (authorization == null || ChallengeCache.isStale(challenge));
+				if (!retry) {
+					return Mono.just(response);
+				}
+				return response.bodyToMono(Void.class).then(Mono.defer(() -> next.exchange(withAuthorization(request,
+					challengeCache.authorize(request.method(), request.url(), credentials)))));
+			});
+	}
+
+	/**
+	 * Sends an unauthenticated HEAD request to the root of the app server and records the challenge, if any.
+	 */
+	protected Mono<Void> primeChallenge(URI url, Credentials credentials, ExchangeFunction next) {
+		URI root = URI.create(url.getScheme() + "://" + url.getRawAuthority() + "/");
+		return next.exchange(ClientRequest.create(HttpMethod.HEAD, root).build())
+			.flatMap(response -> {
+				if (response.statusCode() == HttpStatus.UNAUTHORIZED) {
+					challengeCache.update(url, credentials,
+						response.headers().asHttpHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE));
+				}
+				return response.bodyToMono(Void.class);
+			});
+	}
+
+	protected ClientRequest withAuthorization(ClientRequest request, String authorization) {
+		if (authorization == null) {
+			return request;
+		}
+		return ClientRequest.from(request).headers(headers -> headers.set(HttpHeaders.AUTHORIZATION, authorization))
+			.build();
+	}
+
+	/**
+	 * @param method
+	 * @return true if the request can be sent again after a 401; only requests without a body qualify, since a
+	 * streamed body can only be subscribed to once
+	 */
+	protected boolean isReplayable(HttpMethod method) {
+		return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.DELETE.equals(method)
+			|| HttpMethod.OPTIONS.equals(method);
+	}
+
+	public void setCredentialsProvider(ReactiveCredentialsProvider credentialsProvider) {
+		this.credentialsProvider = credentialsProvider;
+	}
+
+	public void setChallengeCache(ChallengeCache challengeCache) {
+		this.challengeCache = challengeCache;
+	}
+}
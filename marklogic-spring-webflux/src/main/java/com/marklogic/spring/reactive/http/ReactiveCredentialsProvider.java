@@ -0,0 +1,17 @@
+package com.marklogic.spring.reactive.http;
+
+import org.apache.http.auth.Credentials;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive counterpart of HttpClient's CredentialsProvider. The credentials are resolved when a request is subscribed
+ * to, so an implementation can read them from the Reactor context - see ReactiveSpringSecurityCredentialsProvider.
+ */
+@FunctionalInterface
+public interface ReactiveCredentialsProvider {
+
+	/**
+	 * @return the credentials to authenticate with MarkLogic; empty to send the request without credentials
+	 */
+	Mono<Credentials> getCredentials();
+}
@@ -0,0 +1,203 @@
+package com.marklogic.spring.reactive.http.proxy;
+
+import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.http.RestUriBuilder;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import com.marklogic.spring.reactive.http.DefaultWebClientFactory;
+import com.marklogic.spring.reactive.http.ReactiveCredentialsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reactive counterpart of HttpProxy for Spring WebFlux applications. Request and response bodies are streamed as
+ * DataBuffers from one connection to the other without being aggregated, and demand from the client propagates back to
+ * MarkLogic, so a slow client slows the read from MarkLogic rather than the proxy buffering the response. No thread is
+ * held while waiting on MarkLogic, so the number of concurrent requests is bounded by the connection pool of the
+ * DefaultWebClientFactory rather than by a thread pool.
+ * <p>
+ * Headers are copied in both directions except for hop-by-hop headers and - on requests - Host and Authorization, the
+ * same defaults as HeaderPolicy. Credentials come from the ReactiveCredentialsProvider, typically a
+ * ReactiveSpringSecurityCredentialsProvider so that each request is sent as the logged-in user.
+ */
+public class ReactiveHttpProxy {
+
+	private final static String[] HOP_BY_HOP_HEADERS = {"Connection", "Keep-Alive", "Proxy-Authenticate",
+		"Proxy-Authorization", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade"};
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final RestConfig restConfig;
+	private final WebClient webClient;
+	private final RestUriBuilder restUriBuilder;
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+
+	public ReactiveHttpProxy(RestConfig restConfig, ReactiveCredentialsProvider credentialsProvider,
+	                         DefaultWebClientFactory webClientFactory) {
+		this(restConfig, webClientFactory.newWebClient(restConfig, credentialsProvider));
+	}
+
+	/**
+	 * @param restConfig
+	 * @param webClient expected to authenticate with MarkLogic itself, e.g. via a MarkLogicAuthenticationFilter
+	 */
+	public ReactiveHttpProxy(RestConfig restConfig, WebClient webClient) {
+		this.restConfig = restConfig;
+		this.webClient = webClient;
+		this.restUriBuilder = new RestUriBuilder(restConfig);
+	}
+
+	/**
+	 * Proxies the request to the same path on MarkLogic.
+	 *
+	 * @param exchange
+	 * @return
+	 */
+	public Mono<Void> proxy(ServerWebExchange exchange) {
+		return proxy(exchange.getRequest().getURI().getRawPath(), exchange);
+	}
+
+	/**
+	 * @param path the path on MarkLogic; the querystring of the request is appended to it
+	 * @param exchange
+	 * @return completes once the response from MarkLogic has been written to the client
+	 */
+	public Mono<Void> proxy(String path, ServerWebExchange exchange) {
+		ServerHttpRequest request = exchange.getRequest();
+		ServerHttpResponse response = exchange.getResponse();
+		URI uri = buildUri(path, request.getURI().getRawQuery());
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Proxying to URI: %s", uri));
+		}
+		HttpMethod method = request.getMethod();
+
+		WebClient.RequestBodySpec spec = webClient.method(method).uri(uri)
+			.headers(headers -> copyHeaders(request.getHeaders(), headers, true));
+		if (hasBody(request.getHeaders())) {
+			spec.body(BodyInserters.fromDataBuffers(request.getBody()));
+		}
+
+		long startNanos = System.nanoTime();
+		AtomicInteger status = new AtomicInteger();
+		Mono<ClientResponse> exchangeResult = spec.exchange();
+		Integer socketTimeout = restConfig.getSocketTimeoutMillis();
+		if (socketTimeout != null && socketTimeout > 0) {
+			// Bounds the wait for MarkLogic to start responding; a long streamed body isn't cut off
+			exchangeResult = exchangeResult.timeout(Duration.ofMillis(socketTimeout));
+		}
+		Mono<Void> result = exchangeResult
+			.flatMap(clientResponse -> {
+				status.set(clientResponse.statusCode().value());
+				response.setStatusCode(clientResponse.statusCode());
+				copyHeaders(clientResponse.headers().asHttpHeaders(), response.getHeaders(), false);
+				return response.writeWith(clientResponse.body(BodyExtractors.toDataBuffers()));
+			});
+		if (metrics != MarkLogicMetrics.NOOP) {
+			String methodName = request.getMethodValue();
+			result = result.doFinally(signal -> metrics.recordProxyRequest(methodName, toPathTemplate(path),
+				status.get(), System.nanoTime() - startNanos, -1, -1));
+		}
+		return result;
+	}
+
+	protected URI buildUri(String path, String rawQuery) {
+		try {
+			URI uri = restUriBuilder.build(path, rawQuery);
+			if (uri != null) {
+				return uri;
+			}
+			String query = rawQuery != null ? URLDecoder.decode(rawQuery, "UTF-8") : null;
+			return new URI(restConfig.getScheme(), null, restConfig.getHost(), restConfig.getRestPort(), path, query,
+				null);
+		} catch (Exception ex) {
+			throw new RuntimeException("Unable to build URI, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Copies every header except hop-by-hop headers, any header named by the Connection header, and - on requests -
+	 * Host and Authorization. Content-Length is kept so that MarkLogic and the client don't need chunked encoding when
+	 * the length is known.
+	 */
+	protected void copyHeaders(HttpHeaders from, HttpHeaders to, boolean request) {
+		List<String> connectionTokens = from.getConnection();
+		for (Map.Entry<String, List<String>> entry : from.entrySet()) {
+			String name = entry.getKey();
+			if (isHopByHop(name) || containsIgnoreCase(connectionTokens, name)) {
+				continue;
+			}
+			if (request && (HttpHeaders.HOST.equalsIgnoreCase(name) || HttpHeaders.AUTHORIZATION.equalsIgnoreCase(name))) {
+				continue;
+			}
+			to.put(name, entry.getValue());
+		}
+	}
+
+	protected boolean hasBody(HttpHeaders headers) {
+		return headers.getContentLength() > 0 || headers.containsKey(HttpHeaders.TRANSFER_ENCODING);
+	}
+
+	/**
+	 * Same as HttpProxy.toPathTemplate: keeps the first two segments and replaces the rest with "*".
+	 *
+	 * @param path
+	 * @return
+	 */
+	protected String toPathTemplate(String path) {
+		if (path == null || path.isEmpty()) {
+			return "/";
+		}
+		int slashes = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/' && i > 0 && ++slashes == 2) {
+				return i == path.length() - 1 ? path.substring(0, i) : path.substring(0, i) + "/*";
+			}
+		}
+		return path;
+	}
+
+	private static boolean isHopByHop(String name) {
+		for (String header : HOP_BY_HOP_HEADERS) {
+			if (header.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsIgnoreCase(List<String> values, String name) {
+		for (String value : values) {
+			if (value.trim().equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public MarkLogicMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param metrics records the duration and status of each proxied request; defaults to no-op
+	 */
+	public void setMetrics(MarkLogicMetrics metrics) {
+		this.metrics = metrics != null ? metrics : MarkLogicMetrics.NOOP;
+	}
+}
@@ -0,0 +1,203 @@
+package com.marklogic.spring.reactive.security.authentication;
+
+import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.metrics.LoginOutcome;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import com.marklogic.spring.reactive.http.DefaultWebClientFactory;
+import com.marklogic.spring.reactive.http.MarkLogicAuthenticationFilter;
+import com.marklogic.spring.security.authentication.CredentialVerificationCache;
+import com.marklogic.spring.security.authentication.MarkLogicUsernamePasswordAuthentication;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reactive counterpart of MarkLogicAuthenticationManager, for use with Spring Security's WebFlux support. Verifies
+ * credentials by sending a HEAD request to MarkLogic and checking for a 401, without blocking a thread while waiting.
+ * <p>
+ * As with MarkLogicAuthenticationManager, every verification is sent over a single WebClient, concurrent
+ * authentications with the same username and password result in a single request to MarkLogic, and an optional
+ * CredentialVerificationCache avoids making a request at all for credentials that were recently verified or rejected.
+ */
+public class ReactiveMarkLogicAuthenticationManager implements ReactiveAuthenticationManager {
+
+	private final WebClient webClient;
+
+	private String pathToAuthenticateAgainst = "/";
+
+	private CredentialVerificationCache verificationCache;
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+
+	private final ConcurrentMap<String, Mono<Boolean>> verificationsInProgress = new ConcurrentHashMap<>();
+	private final byte[] salt = new byte[16];
+
+	/**
+	 * Use a shared DefaultWebClientFactory so that verifications use the same connection pool as other clients.
+	 *
+	 * @param restConfig
+	 * @param webClientFactory
+	 */
+	public ReactiveMarkLogicAuthenticationManager(RestConfig restConfig, DefaultWebClientFactory webClientFactory) {
+		this(webClientFactory.newWebClient(restConfig, null));
+	}
+
+	/**
+	 * @param webClient must authenticate via a MarkLogicAuthenticationFilter, as the credentials being verified are
+	 *                  passed to it as a request attribute
+	 */
+	public ReactiveMarkLogicAuthenticationManager(WebClient webClient) {
+		this.webClient = webClient;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	@Override
+	public Mono<Authentication> authenticate(Authentication authentication) {
+		if (!(authentication instanceof UsernamePasswordAuthenticationToken)) {
+			return Mono.error(new IllegalArgumentException(
+				getClass().getName() + " only supports " + UsernamePasswordAuthenticationToken.class.getName()));
+		}
+
+		UsernamePasswordAuthenticationToken token = (UsernamePasswordAuthenticationToken) authentication;
+		String username = token.getPrincipal().toString();
+		String password = token.getCredentials().toString();
+
+		long startNanos = System.nanoTime();
+		String key = buildKey(username, password);
+		Boolean cachedResult = verificationCache != null ? verificationCache.get(key) : null;
+		boolean cached = cachedResult != null;
+		Mono<Boolean> valid = cached ? Mono.just(cachedResult) : verifyOnce(key, username, password)
+			.doOnError(ex -> metrics.recordLogin(LoginOutcome.ERROR, false, System.nanoTime() - startNanos));
+
+		return valid.flatMap(result -> {
+			metrics.recordLogin(result ? LoginOutcome.SUCCESS : LoginOutcome.BAD_CREDENTIALS, cached,
+				System.nanoTime() - startNanos);
+			return result ? Mono.just(buildAuthenticationToReturn(token)) :
+				Mono.error(new BadCredentialsException("Invalid credentials"));
+		});
+	}
+
+	/**
+	 * Ensures that only one request is made to MarkLogic for a given username and password at a time; any other
+	 * subscriber verifying the same credentials receives the result of that request.
+	 *
+	 * @param key
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	protected Mono<Boolean> verifyOnce(String key, String username, String password) {
+		return Mono.defer(() -> {
+			AtomicReference<Mono<Boolean>> verification = new AtomicReference<>();
+			verification.set(verify(username, password)
+				.doOnNext(valid -> {
+					if (verificationCache != null) {
+						verificationCache.put(key, valid);
+					}
+				})
+				.doFinally(signal -> verificationsInProgress.remove(key, verification.get()))
+				.cache());
+			Mono<Boolean> existing = verificationsInProgress.putIfAbsent(key, verification.get());
+			return existing != null ? existing : verification.get();
+		});
+	}
+
+	/**
+	 * Makes the request to MarkLogic to verify the given credentials.
+	 *
+	 * @param username
+	 * @param password
+	 * @return true if the credentials were accepted, false if MarkLogic returned a 401
+	 */
+	protected Mono<Boolean> verify(String username, String password) {
+		return webClient.head().uri(pathToAuthenticateAgainst)
+			.attribute(MarkLogicAuthenticationFilter.CREDENTIALS_ATTRIBUTE,
+				new UsernamePasswordCredentials(username, password))
+			.exchange()
+			.flatMap(response -> {
+				HttpStatus status = response.statusCode();
+				Mono<Void> drain = response.bodyToMono(Void.class);
+				if (status.is2xxSuccessful() || HttpStatus.NOT_FOUND.equals(status)) {
+					// A 404 means authenticated, but the path wasn't found - that's okay
+					return drain.then(Mono.just(true));
+				} else if (HttpStatus.UNAUTHORIZED.equals(status)) {
+					return drain.then(Mono.just(false));
+				}
+				return drain.then(Mono.error(new WebClientResponseException("Unable to verify credentials",
+					status.value(), status.getReasonPhrase(), response.headers().asHttpHeaders(), null, null)));
+			});
+	}
+
+	/**
+	 * Same as MarkLogicAuthenticationManager.buildKey.
+	 *
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	protected String buildKey(String username, String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			digest.update(username.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return Base64.getEncoder().encodeToString(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("Unable to hash credentials, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * See the comments on MarkLogicUsernamePasswordAuthentication to understand why an instance of that class is
+	 * returned.
+	 *
+	 * @param token
+	 * @return
+	 */
+	protected Authentication buildAuthenticationToReturn(UsernamePasswordAuthenticationToken token) {
+		return new MarkLogicUsernamePasswordAuthentication(token.getPrincipal(), token.getCredentials(),
+			token.getAuthorities());
+	}
+
+	public void setPathToAuthenticateAgainst(String pathToAuthenticateAgainst) {
+		this.pathToAuthenticateAgainst = pathToAuthenticateAgainst;
+	}
+
+	/**
+	 * Enables caching of verification results; the cache is disabled by default.
+	 *
+	 * @param verificationCache
+	 */
+	public void setVerificationCache(CredentialVerificationCache verificationCache) {
+		this.verificationCache = verificationCache;
+	}
+
+	public CredentialVerificationCache getVerificationCache() {
+		return verificationCache;
+	}
+
+	/**
+	 * @param metrics records the duration and outcome of each authentication; defaults to no-op
+	 */
+	public void setMetrics(MarkLogicMetrics metrics) {
+		this.metrics = metrics != null ? metrics : MarkLogicMetrics.NOOP;
+	}
+
+	public MarkLogicMetrics getMetrics() {
+		return metrics;
+	}
+}
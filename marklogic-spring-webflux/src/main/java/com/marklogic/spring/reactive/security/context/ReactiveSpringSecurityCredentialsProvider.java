@@ -0,0 +1,44 @@
+package com.marklogic.spring.reactive.security.context;
+
+import com.marklogic.spring.reactive.http.ReactiveCredentialsProvider;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive counterpart of SpringSecurityCredentialsProvider. Reads the Authentication from the Reactor context that
+ * Spring Security's WebFlux support populates for each request, rather than from a ThreadLocal, since a reactive
+ * request isn't tied to a thread. The same requirements apply: the Authentication must be a
+ * UsernamePasswordAuthenticationToken whose credentials have not been erased.
+ */
+public class ReactiveSpringSecurityCredentialsProvider implements ReactiveCredentialsProvider {
+
+	@Override
+	public Mono<Credentials> getCredentials() {
+		return ReactiveSecurityContextHolder.getContext()
+			.map(SecurityContext::getAuthentication)
+			.switchIfEmpty(Mono.defer(() -> Mono.error(newNotSupportedException())))
+			.map(this::toCredentials);
+	}
+
+	protected Credentials toCredentials(Authentication auth) {
+		if (!(auth instanceof UsernamePasswordAuthenticationToken)) {
+			throw newNotSupportedException();
+		}
+		UsernamePasswordAuthenticationToken token = (UsernamePasswordAuthenticationToken) auth;
+		if (token.getCredentials() == null) {
+			throw new IllegalArgumentException("The credentials were erased on this token; please ensure that " +
+				"Spring Security is not configured to erase authentication credentials");
+		}
+		return new UsernamePasswordCredentials(token.getPrincipal().toString(), token.getCredentials().toString());
+	}
+
+	private IllegalStateException newNotSupportedException() {
+		return new IllegalStateException("The Spring Security Authentication must be an instance of "
+			+ UsernamePasswordAuthenticationToken.class.getName());
+	}
+}
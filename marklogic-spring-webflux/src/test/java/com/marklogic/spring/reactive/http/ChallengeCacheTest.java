@@ -0,0 +1,123 @@
+package com.marklogic.spring.reactive.http;
+
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ChallengeCacheTest extends Assert {
+
+	private final static String DIGEST_CHALLENGE = "Digest realm=\"testrealm@host.com\", qop=\"auth,auth-int\", " +
+		"nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", opaque=\"5ccc069c403ebaf9f0171e9517f40e41\"";
+
+	private ChallengeCache cache = new ChallengeCache();
+	private UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("Mufasa", "Circle Of Life");
+	private URI uri = URI.create("http://localhost:8000/dir/index.html");
+
+	@Test
+	public void noChallengeYet() {
+		assertNull(cache.authorize(HttpMethod.GET, uri, credentials));
+	}
+
+	@Test
+	public void basic() {
+		assertTrue(cache.update(uri, credentials, "Basic realm=\"public\""));
+		assertEquals("Basic TXVmYXNhOkNpcmNsZSBPZiBMaWZl", cache.authorize(HttpMethod.GET, uri, credentials));
+	}
+
+	/**
+	 * Uses the example from RFC 2617, section 3.5, with the cnonce taken from the header since it's random.
+	 */
+	@Test
+	public void digest() throws Exception {
+		assertTrue(cache.update(uri, credentials, DIGEST_CHALLENGE));
+
+		String header = cache.authorize(HttpMethod.GET, uri, credentials);
+		assertTrue(header.startsWith("Digest username=\"Mufasa\", realm=\"testrealm@host.com\""));
+		assertEquals("/dir/index.html", param(header, "uri"));
+		assertEquals("auth", param(header, "qop"));
+		assertEquals("00000001", param(header, "nc"));
+		assertEquals("5ccc069c403ebaf9f0171e9517f40e41", param(header, "opaque"));
+
+		String cnonce = param(header, "cnonce");
+		String ha1 = md5("Mufasa:testrealm@host.com:Circle Of Life");
+		String ha2 = md5("GET:/dir/index.html");
+		assertEquals(md5(ha1 + ":dcd98b7102dd2f0e8b11d0f600bfb0c093:00000001:" + cnonce + ":auth:" + ha2),
+			param(header, "response"));
+
+		assertEquals("The nonce count is incremented on each request", "00000002",
+			param(cache.authorize(HttpMethod.GET, uri, credentials), "nc"));
+	}
+
+	@Test
+	public void separateUsersAndHosts() {
+		cache.update(uri, credentials, DIGEST_CHALLENGE);
+		assertNull(cache.authorize(HttpMethod.GET, uri, new UsernamePasswordCredentials("someone-else", "password")));
+		assertNull(cache.authorize(HttpMethod.GET, URI.create("http://localhost:8001/dir/index.html"), credentials));
+	}
+
+	@Test
+	public void unsupportedChallenge() {
+		assertFalse(cache.update(uri, credentials, "Negotiate"));
+		assertFalse(cache.update(uri, credentials, null));
+		assertFalse("A digest challenge requires a nonce", cache.update(uri, credentials, "Digest realm=\"public\""));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void clearedWhenFull() {
+		cache = new ChallengeCache(2);
+		cache.update(uri, new UsernamePasswordCredentials("user1", "password"), DIGEST_CHALLENGE);
+		cache.update(uri, new UsernamePasswordCredentials("user2", "password"), DIGEST_CHALLENGE);
+		cache.update(uri, new UsernamePasswordCredentials("user3", "password"), DIGEST_CHALLENGE);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void stale() {
+		assertTrue(ChallengeCache.isStale("Digest realm=\"public\", nonce=\"abc\", stale=true"));
+		assertFalse(ChallengeCache.isStale(DIGEST_CHALLENGE));
+		assertFalse(ChallengeCache.isStale(null));
+	}
+
+	@Test
+	public void expired() throws Exception {
+		cache.update(uri, credentials, DIGEST_CHALLENGE);
+		assertFalse("The nonce lifetime isn't known yet", cache.isExpired(uri, credentials));
+
+		Thread.sleep(20);
+		cache.update(uri, credentials, "Digest realm=\"public\", nonce=\"abc\", stale=true");
+		long lifetime = cache.getNonceLifetimeMillis();
+		assertTrue("The lifetime is learned from the age of the stale nonce", lifetime >= 20);
+		assertFalse(cache.isExpired(uri, credentials));
+
+		cache.setNonceLifetimeMillis(1);
+		Thread.sleep(5);
+		assertTrue(cache.isExpired(uri, credentials));
+		UsernamePasswordCredentials other = new UsernamePasswordCredentials("other", "password");
+		cache.update(uri, other, "Basic realm=\"public\"");
+		Thread.sleep(5);
+		assertFalse("Basic challenges don't expire", cache.isExpired(uri, other));
+	}
+
+	private static String param(String header, String name) {
+		Matcher matcher = Pattern.compile("[ ,]" + name + "=\"?([^\",]*)").matcher(header);
+		assertTrue("Missing " + name + " in " + header, matcher.find());
+		return matcher.group(1);
+	}
+
+	private static String md5(String value) throws Exception {
+		byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.ISO_8859_1));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
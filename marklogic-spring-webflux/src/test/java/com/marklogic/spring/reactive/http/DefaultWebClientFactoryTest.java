@@ -0,0 +1,75 @@
+package com.marklogic.spring.reactive.http;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import com.marklogic.spring.http.TlsStubServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.time.Duration;
+
+public class DefaultWebClientFactoryTest extends Assert {
+
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private TlsStubServer server;
+	private DefaultWebClientFactory factory;
+
+	@Before
+	public void setup() {
+		server = new TlsStubServer().start();
+		factory = new DefaultWebClientFactory();
+	}
+
+	@After
+	public void teardown() {
+		factory.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void hostnameMatchesCertificate() {
+		assertEquals("OK", get(server.newRestConfig()));
+	}
+
+	/**
+	 * The certificate is for localhost and 127.0.0.1, so connecting via another loopback address must fail.
+	 */
+	@Test
+	public void hostnameIsVerified() {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setHost("127.0.0.2");
+		try {
+			get(config);
+			fail("The certificate doesn't match the host, so the handshake should have failed");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.toString(), hasCause(ex, SSLHandshakeException.class));
+		}
+	}
+
+	@Test
+	public void hostnameVerificationDisabled() {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setHost("127.0.0.2");
+		config.setSslHostnameVerificationEnabled(false);
+		assertEquals("OK", get(config));
+	}
+
+	private String get(SimpleRestConfig config) {
+		WebClient webClient = factory.newWebClient(config, Mono::empty);
+		return webClient.get().uri("/").retrieve().bodyToMono(String.class).block(TIMEOUT);
+	}
+
+	private static boolean hasCause(Throwable ex, Class<? extends Throwable> type) {
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (type.isInstance(cause)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
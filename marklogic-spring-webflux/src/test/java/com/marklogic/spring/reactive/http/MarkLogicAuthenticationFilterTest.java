@@ -0,0 +1,119 @@
+package com.marklogic.spring.reactive.http;
+
+import com.marklogic.spring.http.MarkLogicStubServer;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+public class MarkLogicAuthenticationFilterTest extends Assert {
+
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private MarkLogicStubServer server;
+	private DefaultWebClientFactory factory;
+	private WebClient webClient;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		factory = new DefaultWebClientFactory();
+		webClient = factory.newWebClient(server.newRestConfig(),
+			() -> Mono.just(new UsernamePasswordCredentials("admin", "admin")));
+	}
+
+	@After
+	public void teardown() {
+		factory.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void replayableRequestIsRetriedOnce() {
+		assertEquals(200, get());
+		assertEquals("The unauthenticated request is challenged and then retried", 2, server.getRequests());
+		assertEquals(1, server.getChallenges());
+
+		server.resetCounts();
+		assertEquals(200, get());
+		assertEquals(1, server.getRequests());
+		assertEquals(0, server.getChallenges());
+	}
+
+	@Test
+	public void nonReplayableRequestIsPrimed() {
+		assertEquals(201, put("/first.json"));
+		assertEquals("A HEAD request obtains the challenge before the body is sent", 2, server.getRequests());
+		assertEquals(1, server.getChallenges());
+
+		server.resetCounts();
+		assertEquals(201, put("/second.json"));
+		assertEquals(1, server.getRequests());
+	}
+
+	@Test
+	public void staleChallengeIsCachedAndLearned() throws Exception {
+		server.setNonceTimeoutMillis(200);
+		ChallengeCache challengeCache = factory.getChallengeCache();
+		assertEquals(200, get());
+		Thread.sleep(300);
+
+		assertEquals("A request with a body can't be retried after a stale nonce", 401, put("/first.json"));
+		assertTrue("The nonce lifetime is learned from the stale challenge", challengeCache.getNonceLifetimeMillis() > 0);
+
+		server.resetCounts();
+		assertEquals("The new nonce from the stale challenge is used", 201, put("/first.json"));
+		assertEquals(1, server.getRequests());
+
+		Thread.sleep(challengeCache.getNonceLifetimeMillis() + 100);
+		server.resetCounts();
+		assertEquals("The expired nonce is replaced before sending the body", 201, put("/second.json"));
+		assertEquals(2, server.getRequests());
+		assertEquals(1, server.getChallenges());
+
+		Thread.sleep(challengeCache.getNonceLifetimeMillis() + 100);
+		server.resetCounts();
+		assertEquals("A GET is retried with the new nonce", 200, get());
+		assertEquals(2, server.getRequests());
+	}
+
+	@Test
+	public void credentialsAttributeTakesPrecedence() {
+		ClientResponse response = webClient.get().uri("/v1/search?q=test")
+			.attribute(MarkLogicAuthenticationFilter.CREDENTIALS_ATTRIBUTE,
+				new UsernamePasswordCredentials("admin", "wrong"))
+			.exchange().block(TIMEOUT);
+		response.bodyToMono(Void.class).block(TIMEOUT);
+		assertEquals(401, response.statusCode().value());
+		assertEquals(200, get());
+	}
+
+	@Test
+	public void noCredentials() {
+		webClient = factory.newWebClient(server.newRestConfig(), Mono::empty);
+		assertEquals("The request is sent as-is", 401, get());
+		assertEquals(1, server.getRequests());
+	}
+
+	private int get() {
+		ClientResponse response = webClient.get().uri("/v1/search?q=test").exchange().block(TIMEOUT);
+		response.bodyToMono(Void.class).block(TIMEOUT);
+		return response.statusCode().value();
+	}
+
+	private int put(String uri) {
+		ClientResponse response = webClient.put().uri("/v1/documents?uri=" + uri)
+			.contentType(MediaType.APPLICATION_JSON)
+			.syncBody("{\"hello\":\"world\"}")
+			.exchange().block(TIMEOUT);
+		response.bodyToMono(Void.class).block(TIMEOUT);
+		return response.statusCode().value();
+	}
+}
@@ -0,0 +1,127 @@
+package com.marklogic.spring.reactive.http.proxy;
+
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import com.marklogic.spring.reactive.http.DefaultWebClientFactory;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ReactiveHttpProxyTest extends Assert {
+
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private MarkLogicStubServer server;
+	private DefaultWebClientFactory factory;
+	private ReactiveHttpProxy proxy;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		factory = new DefaultWebClientFactory();
+		proxy = new ReactiveHttpProxy(server.newRestConfig(),
+			() -> Mono.just(new UsernamePasswordCredentials("admin", "admin")), factory);
+	}
+
+	@After
+	public void teardown() {
+		factory.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void get() {
+		MockServerWebExchange exchange = proxy(MockServerHttpRequest.get("/v1/search?q=test").build());
+		assertEquals(200, exchange.getResponse().getStatusCode().value());
+		assertEquals(MediaType.APPLICATION_JSON, exchange.getResponse().getHeaders().getContentType());
+		assertTrue(exchange.getResponse().getBodyAsString().block(TIMEOUT).contains("test"));
+
+		server.resetCounts();
+		proxy(MockServerHttpRequest.get("/v1/search?q=test").build());
+		assertEquals("The cached challenge should be answered up front", 1, server.getRequests());
+		assertEquals(0, server.getChallenges());
+	}
+
+	@Test
+	public void putStreamsBody() {
+		String json = "{\"hello\":\"world\"}";
+		MockServerWebExchange exchange = proxy(MockServerHttpRequest.put("/v1/documents?uri=/test.json")
+			.contentType(MediaType.APPLICATION_JSON)
+			.contentLength(json.getBytes(StandardCharsets.UTF_8).length)
+			.body(json));
+		assertEquals(201, exchange.getResponse().getStatusCode().value());
+
+		exchange = proxy(MockServerHttpRequest.get("/v1/documents?uri=/test.json").build());
+		assertEquals(200, exchange.getResponse().getStatusCode().value());
+		assertEquals(json, exchange.getResponse().getBodyAsString().block(TIMEOUT));
+	}
+
+	@Test
+	public void errorStatusAndMetrics() throws Exception {
+		List<String> recorded = new CopyOnWriteArrayList<>();
+		proxy.setMetrics(new MarkLogicMetrics() {
+			@Override
+			public void recordProxyRequest(String method, String pathTemplate, int status, long durationNanos,
+			                               long bytesIn, long bytesOut) {
+				recorded.add(method + " " + pathTemplate + " " + status);
+			}
+		});
+
+		MockServerWebExchange exchange = proxy(MockServerHttpRequest.get("/v1/missing").build());
+		assertEquals(404, exchange.getResponse().getStatusCode().value());
+		proxy(MockServerHttpRequest.get("/v1/search?q=test").build());
+		// Metrics are recorded once the response is done, which can be just after the subscriber is notified
+		for (int i = 0; i < 100 && recorded.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals("[GET /v1/missing 404, GET /v1/search 200]", recorded.toString());
+	}
+
+	@Test
+	public void copyHeaders() {
+		HttpHeaders from = new HttpHeaders();
+		from.add(HttpHeaders.HOST, "example.org");
+		from.add(HttpHeaders.AUTHORIZATION, "Basic abc");
+		from.add(HttpHeaders.CONNECTION, "keep-alive, X-Hop");
+		from.add("Keep-Alive", "timeout=5");
+		from.add("X-Hop", "1");
+		from.add(HttpHeaders.ACCEPT, "application/json");
+		from.add(HttpHeaders.CONTENT_LENGTH, "2");
+
+		HttpHeaders to = new HttpHeaders();
+		proxy.copyHeaders(from, to, true);
+		assertEquals(2, to.size());
+		assertEquals("application/json", to.getFirst(HttpHeaders.ACCEPT));
+		assertEquals(2, to.getContentLength());
+
+		to = new HttpHeaders();
+		proxy.copyHeaders(from, to, false);
+		assertEquals("Host and Authorization are only dropped from requests", 4, to.size());
+	}
+
+	@Test
+	public void toPathTemplate() {
+		assertEquals("/", proxy.toPathTemplate(""));
+		assertEquals("/v1/search", proxy.toPathTemplate("/v1/search"));
+		assertEquals("/v1/search", proxy.toPathTemplate("/v1/search/"));
+		assertEquals("/v1/resources/*", proxy.toPathTemplate("/v1/resources/example"));
+	}
+
+	private MockServerWebExchange proxy(MockServerHttpRequest request) {
+		MockServerWebExchange exchange = MockServerWebExchange.from(request);
+		proxy.proxy(exchange).block(TIMEOUT);
+		return exchange;
+	}
+}
@@ -0,0 +1,109 @@
+package com.marklogic.spring.reactive.security.authentication;
+
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.metrics.LoginOutcome;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import com.marklogic.spring.reactive.http.DefaultWebClientFactory;
+import com.marklogic.spring.security.authentication.CredentialVerificationCache;
+import com.marklogic.spring.security.authentication.MarkLogicUsernamePasswordAuthentication;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReactiveMarkLogicAuthenticationManagerTest extends Assert {
+
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private MarkLogicStubServer server;
+	private DefaultWebClientFactory factory;
+	private ReactiveMarkLogicAuthenticationManager manager;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		factory = new DefaultWebClientFactory();
+		manager = new ReactiveMarkLogicAuthenticationManager(server.newRestConfig(), factory);
+	}
+
+	@After
+	public void teardown() {
+		factory.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void validCredentials() {
+		Authentication auth = manager.authenticate(token("admin", "admin")).block(TIMEOUT);
+		assertTrue(auth instanceof MarkLogicUsernamePasswordAuthentication);
+		assertEquals("admin", auth.getPrincipal());
+		assertEquals("admin", auth.getCredentials());
+	}
+
+	@Test
+	public void invalidCredentials() {
+		StepVerifier.create(manager.authenticate(token("admin", "wrong")))
+			.expectError(BadCredentialsException.class)
+			.verify(TIMEOUT);
+	}
+
+	@Test
+	public void unsupportedAuthentication() {
+		StepVerifier.create(manager.authenticate(new TestingAuthenticationToken("admin", "admin")))
+			.expectError(IllegalArgumentException.class)
+			.verify(TIMEOUT);
+	}
+
+	@Test
+	public void verificationCache() {
+		List<String> outcomes = new ArrayList<>();
+		manager.setMetrics(new MarkLogicMetrics() {
+			@Override
+			public void recordLogin(LoginOutcome outcome, boolean cached, long durationNanos) {
+				outcomes.add(outcome + (cached ? " cached" : ""));
+			}
+		});
+		manager.setVerificationCache(new CredentialVerificationCache());
+
+		manager.authenticate(token("admin", "admin")).block(TIMEOUT);
+		long requests = server.getRequests();
+		manager.authenticate(token("admin", "admin")).block(TIMEOUT);
+		assertEquals("The cached result should have been used", requests, server.getRequests());
+
+		StepVerifier.create(manager.authenticate(token("admin", "wrong")))
+			.expectError(BadCredentialsException.class)
+			.verify(TIMEOUT);
+		StepVerifier.create(manager.authenticate(token("admin", "wrong")))
+			.expectError(BadCredentialsException.class)
+			.verify(TIMEOUT);
+		assertEquals("[SUCCESS, SUCCESS cached, BAD_CREDENTIALS, BAD_CREDENTIALS cached]", outcomes.toString());
+	}
+
+	@Test
+	public void concurrentVerificationsShareOneRequest() {
+		server.setLatencyMillis(200);
+		List<Authentication> results = Mono.zip(manager.authenticate(token("admin", "admin")),
+			manager.authenticate(token("admin", "admin")), (first, second) -> {
+				List<Authentication> list = new ArrayList<>();
+				list.add(first);
+				list.add(second);
+				return list;
+			}).block(TIMEOUT);
+		assertEquals(2, results.size());
+		assertEquals("One request is challenged and then retried", 2, server.getRequests());
+	}
+
+	private static UsernamePasswordAuthenticationToken token(String username, String password) {
+		return new UsernamePasswordAuthenticationToken(username, password);
+	}
+}
@@ -0,0 +1,33 @@
+package com.marklogic.spring.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+
+/**
+ * Measures building the URI of each proxied request via RestUriBuilder, which decodes and quotes the querystring in a
+ * single pass and caches the quoted path, with a plain querystring and one full of escape sequences.
+ */
+@State(Scope.Benchmark)
+public class RestClientBenchmark {
+
+	@Param({"uri=/test.json", "q=cat%20AND%20dog&format=json&structuredQuery=%7B%22query%22%3A%7B%22and-query%22%3A%5B%5D%7D%7D"})
+	public String queryString;
+
+	private RestClient restClient;
+
+	@Setup
+	public void setup() {
+		restClient = new RestClient(new SimpleRestConfig("localhost", 8000), new RestTemplate());
+	}
+
+	@Benchmark
+	public URI buildUri() {
+		return restClient.buildUri("/v1/search", queryString);
+	}
+}
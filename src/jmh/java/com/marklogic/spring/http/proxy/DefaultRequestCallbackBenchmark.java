@@ -0,0 +1,38 @@
+package com.marklogic.spring.http.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.net.URI;
+
+/**
+ * Measures copying headers from a servlet request to a client request.
+ */
+@State(Scope.Thread)
+public class DefaultRequestCallbackBenchmark {
+
+	private MockHttpServletRequest httpRequest;
+	private DefaultRequestCallback callback;
+	private URI uri = URI.create("http://localhost:8000/v1/documents?uri=/test.json");
+
+	@Setup
+	public void setup() {
+		httpRequest = new MockHttpServletRequest("GET", "/v1/documents");
+		httpRequest.addHeader("Accept", "application/json");
+		httpRequest.addHeader("Content-Type", "application/json");
+		httpRequest.addHeader("If-None-Match", "\"12345\"");
+		callback = new DefaultRequestCallback(httpRequest, "Accept", "Content-Type", "If-None-Match", "X-Missing");
+	}
+
+	@Benchmark
+	public MockClientHttpRequest copyHeaders() {
+		MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.GET, uri);
+		callback.copyHeaders(httpRequest, request);
+		return request;
+	}
+}
@@ -0,0 +1,38 @@
+package com.marklogic.spring.http.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+import java.io.IOException;
+
+/**
+ * Measures writing a client response to a servlet response, across payload sizes.
+ */
+@State(Scope.Thread)
+public class DefaultResponseExtractorBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int payloadSize;
+
+	private byte[] payload;
+
+	@Setup
+	public void setup() {
+		payload = new byte[payloadSize];
+	}
+
+	@Benchmark
+	public DiscardingHttpServletResponse extractData() throws IOException {
+		MockClientHttpResponse response = new MockClientHttpResponse(payload, HttpStatus.OK);
+		response.getHeaders().set("Content-Type", "application/json");
+		response.getHeaders().setContentLength(payloadSize);
+		DiscardingHttpServletResponse httpResponse = new DiscardingHttpServletResponse();
+		new DefaultResponseExtractor(httpResponse, "Content-Type").extractData(response);
+		return httpResponse;
+	}
+}
@@ -0,0 +1,37 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Servlet response whose body is discarded, so that benchmarks measure the cost of proxying a response rather than the
+ * cost of buffering it in a mock response.
+ */
+public class DiscardingHttpServletResponse extends MockHttpServletResponse {
+
+	private final ServletOutputStream outputStream = new ServletOutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+	};
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		return outputStream;
+	}
+}
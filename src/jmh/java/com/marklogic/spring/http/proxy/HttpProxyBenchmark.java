@@ -0,0 +1,103 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.SimpleRestConfig;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput and latency of proxying a request end-to-end to an in-process stub HTTP server, across payload
+ * sizes and thread counts. The stub doesn't require authentication, so the results reflect the cost of the proxy and
+ * HTTP client rather than of authenticating.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpProxyBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int payloadSize;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private DefaultRestOperationsFactory restOperationsFactory;
+	private HttpProxy proxy;
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception {
+		final byte[] payload = new byte[payloadSize];
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+		server.createContext("/", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				while (in.read() != -1) {
+				}
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(200, payload.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(payload);
+			}
+		});
+		serverExecutor = Executors.newFixedThreadPool(32);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		SimpleRestConfig restConfig = new SimpleRestConfig("localhost", server.getAddress().getPort());
+		restConfig.setDigestCachingEnabled(false);
+		restConfig.setMaxConnectionsPerRoute(32);
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("user", "password"));
+		restOperationsFactory = new DefaultRestOperationsFactory();
+		proxy = new HttpProxy(restConfig, provider, restOperationsFactory);
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() {
+		restOperationsFactory.destroy();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public DiscardingHttpServletResponse proxySingleThread() {
+		return proxy();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public DiscardingHttpServletResponse proxyConcurrent() {
+		return proxy();
+	}
+
+	private DiscardingHttpServletResponse proxy() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/documents");
+		request.setServletPath("/v1/documents");
+		request.setQueryString("uri=/test.json");
+		request.addHeader("Accept", "application/json");
+		DiscardingHttpServletResponse response = new DiscardingHttpServletResponse();
+		proxy.proxy(request, response, "Accept", "Content-Type");
+		return response;
+	}
+}
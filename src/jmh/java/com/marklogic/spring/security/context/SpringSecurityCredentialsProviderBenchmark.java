@@ -0,0 +1,37 @@
+package com.marklogic.spring.security.context;
+
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Measures getting the credentials of the current user, which happens at least once per proxied request. The state is
+ * per thread because the security context is thread-bound.
+ */
+@State(Scope.Thread)
+public class SpringSecurityCredentialsProviderBenchmark {
+
+	private SpringSecurityCredentialsProvider provider = new SpringSecurityCredentialsProvider();
+	private AuthScope authScope = new AuthScope("localhost", 8000);
+
+	@Setup
+	public void setup() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("user", "password"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Benchmark
+	public Credentials getCredentials() {
+		return provider.getCredentials(authScope);
+	}
+}
@@ -0,0 +1,35 @@
+package com.marklogic.spring.security.web.util.matcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Measures the CSRF matcher that's evaluated for every request, for both an allowed method and an API path.
+ */
+@State(Scope.Benchmark)
+public class CorsRequestMatcherBenchmark {
+
+	private CorsRequestMatcher matcher = new CorsRequestMatcher();
+	private MockHttpServletRequest getRequest;
+	private MockHttpServletRequest putRequest;
+
+	@Setup
+	public void setup() {
+		getRequest = new MockHttpServletRequest("GET", "/v1/documents");
+		putRequest = new MockHttpServletRequest("PUT", "/v1/documents");
+		putRequest.setServletPath("/v1/documents");
+	}
+
+	@Benchmark
+	public boolean matchesGet() {
+		return matcher.matches(getRequest);
+	}
+
+	@Benchmark
+	public boolean matchesPut() {
+		return matcher.matches(putRequest);
+	}
+}
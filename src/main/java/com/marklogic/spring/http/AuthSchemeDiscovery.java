@@ -0,0 +1,298 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AuthOption;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.AuthenticationStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Determines which authentication scheme - e.g. digest or basic - a MarkLogic app server uses, by sending an
+ * unauthenticated HEAD request and inspecting the WWW-Authenticate header of the response. The result is cached per
+ * scheme, host, and port, so that it's determined once per app server instead of once per RestClient.
+ * <p>
+ * Discovery runs on a background thread with strict timeouts so that callers never wait on MarkLogic; until it
+ * completes, getIfDiscovered returns null. If discovery fails, it's tried again on the next call after
+ * retryIntervalMillis. If MarkLogic later challenges a request with a different scheme - e.g. because the app server
+ * was reconfigured - an AuthenticationStrategy from newAuthenticationStrategy records the new scheme.
+ */
+public class AuthSchemeDiscovery implements DisposableBean {
+
+	private final static AuthSchemeDiscovery DEFAULT = new AuthSchemeDiscovery();
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Map<String, Discovery> discoveries = new ConcurrentHashMap<>();
+	private final ExecutorService executor;
+
+	private int timeoutMillis = 5000;
+	private long retryIntervalMillis = 30000;
+	private volatile CloseableHttpClient httpClient;
+	private LayeredConnectionSocketFactory sslSocketFactory;
+
+	public AuthSchemeDiscovery() {
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "marklogic-auth-scheme-discovery");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the instance shared by every DefaultRestOperationsFactory that isn't given its own
+	 */
+	public static AuthSchemeDiscovery getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @return the discovered scheme, or null if it hasn't been discovered yet; in that case, discovery is started if it
+	 * isn't already running
+	 */
+	public DiscoveredAuthScheme getIfDiscovered(String scheme, String host, int port) {
+		CompletableFuture<DiscoveredAuthScheme> future = discover(scheme, host, port);
+		return future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+	}
+
+	/**
+	 * Starts discovery in the background unless it's already running or has completed.
+	 *
+	 * @param scheme
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public CompletableFuture<DiscoveredAuthScheme> discover(String scheme, String host, int port) {
+		final HttpHost target = new HttpHost(host, normalizePort(scheme, port), scheme);
+		String key = target.toURI();
+		Discovery discovery = discoveries.get(key);
+		if (discovery != null && !discovery.isRetryDue()) {
+			return discovery.future;
+		}
+		Discovery newDiscovery = new Discovery();
+		boolean started = discovery == null ? discoveries.putIfAbsent(key, newDiscovery) == null :
+			discoveries.replace(key, discovery, newDiscovery);
+		if (!started) {
+			return discoveries.get(key).future;
+		}
+		executor.execute(() -> {
+			try {
+				newDiscovery.future.complete(probe(target));
+			} catch (Exception ex) {
+				logger.warn("Unable to discover authentication scheme for " + target + ", cause: " + ex.getMessage());
+				newDiscovery.failedAt = System.nanoTime();
+				newDiscovery.future.completeExceptionally(ex);
+			}
+		});
+		return newDiscovery.future;
+	}
+
+	/**
+	 * Records the scheme for an app server, replacing whatever was discovered before.
+	 *
+	 * @param target
+	 * @param authScheme
+	 */
+	public void update(HttpHost target, DiscoveredAuthScheme authScheme) {
+		HttpHost normalized = new HttpHost(target.getHostName(), normalizePort(target.getSchemeName(),
+			target.getPort()), target.getSchemeName());
+		Discovery discovery = new Discovery();
+		discovery.future.complete(authScheme);
+		discoveries.put(normalized.toURI(), discovery);
+	}
+
+	public void clear() {
+		discoveries.clear();
+	}
+
+	/**
+	 * Sends an unauthenticated HEAD request and closes the response.
+	 *
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	protected DiscoveredAuthScheme probe(HttpHost target) throws IOException {
+		try (CloseableHttpResponse response = getHttpClient().execute(target, new HttpHead("/"))) {
+			EntityUtils.consume(response.getEntity());
+			DiscoveredAuthScheme authScheme = extractAuthScheme(response);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Discovered authentication scheme for " + target + ": " + authScheme);
+			}
+			return authScheme;
+		}
+	}
+
+	/**
+	 * @param response
+	 * @return the scheme and realm in the WWW-Authenticate header, or "none" if the response isn't a challenge
+	 */
+	protected DiscoveredAuthScheme extractAuthScheme(HttpResponse response) {
+		Header header = response.getFirstHeader("WWW-Authenticate");
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED || header == null) {
+			return new DiscoveredAuthScheme(DiscoveredAuthScheme.NONE, null);
+		}
+		String value = header.getValue().trim();
+		int space = value.indexOf(' ');
+		String scheme = space > 0 ? value.substring(0, space) : value;
+		String realm = null;
+		for (HeaderElement element : header.getElements()) {
+			if (element.getName().toLowerCase().endsWith("realm")) {
+				realm = element.getValue();
+				break;
+			}
+		}
+		return new DiscoveredAuthScheme(scheme.toLowerCase(), realm);
+	}
+
+	protected CloseableHttpClient getHttpClient() {
+		if (httpClient == null) {
+			synchronized (this) {
+				if (httpClient == null) {
+					RequestConfig requestConfig = RequestConfig.custom()
+						.setConnectTimeout(timeoutMillis)
+						.setSocketTimeout(timeoutMillis)
+						.setConnectionRequestTimeout(timeoutMillis)
+						.build();
+					HttpClientBuilder builder = HttpClientBuilder.create()
+						.setDefaultRequestConfig(requestConfig)
+						.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE)
+						.disableAutomaticRetries()
+						.useSystemProperties();
+					if (sslSocketFactory != null) {
+						builder.setSSLSocketFactory(sslSocketFactory);
+					}
+					httpClient = builder.build();
+				}
+			}
+		}
+		return httpClient;
+	}
+
+	/**
+	 * @param delegate
+	 * @return a strategy that passes through to the given one, and records the scheme of any challenge that differs
+	 * from the discovered one
+	 */
+	public AuthenticationStrategy newAuthenticationStrategy(AuthenticationStrategy delegate) {
+		return new AuthenticationStrategy() {
+			@Override
+			public boolean isAuthenticationRequested(HttpHost authhost, HttpResponse response, HttpContext context) {
+				boolean requested = delegate.isAuthenticationRequested(authhost, response, context);
+				if (requested) {
+					DiscoveredAuthScheme challenge = extractAuthScheme(response);
+					DiscoveredAuthScheme known = getIfDiscovered(authhost.getSchemeName(), authhost.getHostName(),
+						authhost.getPort());
+					if (known != null && !known.getScheme().equalsIgnoreCase(challenge.getScheme())) {
+						logger.info("Authentication scheme for " + authhost + " changed from " + known + " to " + challenge);
+						update(authhost, challenge);
+					}
+				}
+				return requested;
+			}
+
+			@Override
+			public Map<String, Header> getChallenges(HttpHost authhost, HttpResponse response, HttpContext context)
+				throws MalformedChallengeException {
+				return delegate.getChallenges(authhost, response, context);
+			}
+
+			@Override
+			public Queue<AuthOption> select(Map<String, Header> challenges, HttpHost authhost,
+			                                                    HttpResponse response, HttpContext context)
+				throws MalformedChallengeException {
+				return delegate.select(challenges, authhost, response, context);
+			}
+
+			@Override
+			public void authSucceeded(HttpHost authhost, AuthScheme authScheme, HttpContext context) {
+				delegate.authSucceeded(authhost, authScheme, context);
+			}
+
+			@Override
+			public void authFailed(HttpHost authhost, AuthScheme authScheme, HttpContext context) {
+				delegate.authFailed(authhost, authScheme, context);
+			}
+		};
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		executor.shutdownNow();
+		if (httpClient != null) {
+			httpClient.close();
+		}
+	}
+
+	private static int normalizePort(String scheme, int port) {
+		if (port >= 0) {
+			return port;
+		}
+		return "https".equalsIgnoreCase(scheme) ? 443 : 80;
+	}
+
+	public int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @param timeoutMillis applies to connecting, waiting for the response, and leasing a connection; must be set
+	 *                      before the first discovery
+	 */
+	public void setTimeoutMillis(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public long getRetryIntervalMillis() {
+		return retryIntervalMillis;
+	}
+
+	public void setRetryIntervalMillis(long retryIntervalMillis) {
+		this.retryIntervalMillis = retryIntervalMillis;
+	}
+
+	/**
+	 * @param sslSocketFactory used to probe "https" app servers instead of the JVM's default; must be set before the
+	 *                         first discovery
+	 */
+	public void setSslSocketFactory(LayeredConnectionSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	private class Discovery {
+
+		final CompletableFuture<DiscoveredAuthScheme> future = new CompletableFuture<>();
+		volatile long failedAt;
+
+		boolean isRetryDue() {
+			return future.isCompletedExceptionally() && System.nanoTime() - failedAt > retryIntervalMillis * 1000000L;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.marklogic.spring.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A document read by DocumentBatcher, along with the headers of the part of the multipart response it was read from.
+ */
+public class BatchedDocument {
+
+	private final String uri;
+	private final HttpHeaders headers;
+	private final byte[] content;
+
+	public BatchedDocument(String uri, HttpHeaders headers, byte[] content) {
+		this.uri = uri;
+		this.headers = headers;
+		this.content = content;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public HttpHeaders getHeaders() {
+		return headers;
+	}
+
+	public MediaType getContentType() {
+		return headers.getContentType();
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @return the content decoded with the charset of its content type, or UTF-8 if it doesn't have one
+	 */
+	public String getContentAsString() {
+		MediaType contentType = getContentType();
+		Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() :
+			StandardCharsets.UTF_8;
+		return new String(content, charset);
+	}
+}
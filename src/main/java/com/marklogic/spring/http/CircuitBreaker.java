@@ -0,0 +1,91 @@
+package com.marklogic.spring.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks failures for a single MarkLogic host. After failureThreshold consecutive failures, the circuit opens and
+ * requests to the host fail immediately for openMillis; a single request is then let through to test the host, and
+ * the circuit closes if that request succeeds or opens again if it fails.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String host;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInFlight;
+	private long rejected;
+
+	public CircuitBreaker(String host, int failureThreshold, long openMillis) {
+		this.host = host;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return true if a request may be sent to the host; a request that's allowed must be followed by a call to
+	 * recordSuccess or recordFailure
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+			state = State.HALF_OPEN;
+			trialInFlight = false;
+		}
+		if (state == State.CLOSED) {
+			return true;
+		}
+		if (state == State.HALF_OPEN && !trialInFlight) {
+			trialInFlight = true;
+			return true;
+		}
+		rejected++;
+		return false;
+	}
+
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED && logger.isInfoEnabled()) {
+			logger.info("Closing circuit for host " + host);
+		}
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format("Opening circuit for host %s for %d ms after %d consecutive failures", host,
+					openMillis, consecutiveFailures));
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			trialInFlight = false;
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return how many requests have failed immediately because the circuit was open
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+}
@@ -0,0 +1,23 @@
+package com.marklogic.spring.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host whose CircuitBreaker is open. It's an IOException so that it's
+ * reported the same way as the connection failures that opened the circuit.
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String host;
+
+	public CircuitBreakerOpenException(String host) {
+		super("Circuit is open for host " + host + ", so not sending request");
+		this.host = host;
+	}
+
+	public String getHost() {
+		return host;
+	}
+}
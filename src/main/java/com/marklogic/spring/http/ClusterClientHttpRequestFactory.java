@@ -0,0 +1,192 @@
+package com.marklogic.spring.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Decorates a ClientHttpRequestFactory so that requests built against the primary host of a cluster - which is what
+ * RestClient.buildUri uses - are sent to the host chosen by a HostSelector instead. The selector is told when each
+ * request starts and when its response is closed, along with whether the host failed to respond or responded with a
+ * 502, 503, or 504, so that it can track requests in flight, latency, and failures per host.
+ * <p>
+ * Requests to any other host or port are passed through untouched.
+ */
+public class ClusterClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+	private final ClientHttpRequestFactory requestFactory;
+	private final HostSelector hostSelector;
+	private final String primaryHost;
+	private final int port;
+
+	public ClusterClientHttpRequestFactory(ClientHttpRequestFactory requestFactory, HostSelector hostSelector,
+	                                       String primaryHost, int port) {
+		this.requestFactory = requestFactory;
+		this.hostSelector = hostSelector;
+		this.primaryHost = primaryHost;
+		this.port = port;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		if (!primaryHost.equalsIgnoreCase(uri.getHost()) || uri.getPort() != port) {
+			return requestFactory.createRequest(uri, httpMethod);
+		}
+		String host = hostSelector.select();
+		ClientHttpRequest request = requestFactory.createRequest(replaceHost(uri, host), httpMethod);
+		return request instanceof StreamingHttpOutputMessage ?
+			new StreamingClusterClientHttpRequest(request, host) : new ClusterClientHttpRequest(request, host);
+	}
+
+	/**
+	 * Uses the raw components of the URI so that its encoding is preserved.
+	 */
+	protected URI replaceHost(URI uri, String host) {
+		StringBuilder sb = new StringBuilder(uri.getScheme()).append("://");
+		if (uri.getRawUserInfo() != null) {
+			sb.append(uri.getRawUserInfo()).append('@');
+		}
+		sb.append(host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host);
+		sb.append(':').append(uri.getPort());
+		if (uri.getRawPath() != null) {
+			sb.append(uri.getRawPath());
+		}
+		if (uri.getRawQuery() != null) {
+			sb.append('?').append(uri.getRawQuery());
+		}
+		if (uri.getRawFragment() != null) {
+			sb.append('#').append(uri.getRawFragment());
+		}
+		return URI.create(sb.toString());
+	}
+
+	protected boolean isHostFailure(int statusCode) {
+		return statusCode == HttpStatus.BAD_GATEWAY.value() || statusCode == HttpStatus.SERVICE_UNAVAILABLE.value()
+			|| statusCode == HttpStatus.GATEWAY_TIMEOUT.value();
+	}
+
+	private class ClusterClientHttpRequest implements ClientHttpRequest {
+
+		final ClientHttpRequest request;
+		final String host;
+
+		ClusterClientHttpRequest(ClientHttpRequest request, String host) {
+			this.request = request;
+			this.host = host;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			hostSelector.requestStarted(host);
+			long start = System.nanoTime();
+			ClientHttpResponse response;
+			try {
+				response = request.execute();
+			} catch (IOException | RuntimeException ex) {
+				hostSelector.requestCompleted(host, System.nanoTime() - start, false);
+				throw ex;
+			}
+			return new ClusterClientHttpResponse(response, host, System.nanoTime() - start);
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			return request.getBody();
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return request.getMethod();
+		}
+
+		@Override
+		public URI getURI() {
+			return request.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return request.getHeaders();
+		}
+	}
+
+	private class StreamingClusterClientHttpRequest extends ClusterClientHttpRequest
+		implements StreamingHttpOutputMessage {
+
+		StreamingClusterClientHttpRequest(ClientHttpRequest request, String host) {
+			super(request, host);
+		}
+
+		@Override
+		public void setBody(Body body) {
+			((StreamingHttpOutputMessage) request).setBody(body);
+		}
+	}
+
+	private class ClusterClientHttpResponse implements ClientHttpResponse {
+
+		private final ClientHttpResponse response;
+		private final String host;
+		private final long latencyNanos;
+		private boolean closed;
+
+		ClusterClientHttpResponse(ClientHttpResponse response, String host, long latencyNanos) {
+			this.response = response;
+			this.host = host;
+			this.latencyNanos = latencyNanos;
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return response.getStatusCode();
+		}
+
+		@Override
+		public int getRawStatusCode() throws IOException {
+			return response.getRawStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return response.getStatusText();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return response.getHeaders();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			return response.getBody();
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			boolean success;
+			try {
+				success = !isHostFailure(response.getRawStatusCode());
+			} catch (IOException ex) {
+				success = false;
+			}
+			try {
+				response.close();
+			} finally {
+				hostSelector.requestCompleted(host, latencyNanos, success);
+			}
+		}
+	}
+}
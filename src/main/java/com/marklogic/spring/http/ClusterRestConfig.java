@@ -0,0 +1,104 @@
+package com.marklogic.spring.http;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Config class for a MarkLogic cluster, where every host has the same REST server on the same port. Requests are
+ * spread across the hosts in mlHosts - a comma-delimited list - based on mlHostSelectionStrategy, and hosts that fail
+ * are ejected and retried later. getHost returns the first host, which is the one that URIs are built against before
+ * being re-targeted to the selected host.
+ */
+public class ClusterRestConfig extends SimpleRestConfig {
+
+    private List<String> hosts = new ArrayList<>();
+
+    @Value("${mlHostSelectionStrategy:ROUND_ROBIN}")
+    private HostSelectionStrategy hostSelectionStrategy = HostSelectionStrategy.ROUND_ROBIN;
+
+    @Value("${mlHostFailureThreshold:3}")
+    private Integer hostFailureThreshold = 3;
+
+    @Value("${mlHostEjectionMillis:10000}")
+    private Long hostEjectionMillis = 10000L;
+
+    @Value("${mlHealthCheckIntervalMillis:10000}")
+    private Long healthCheckIntervalMillis = 10000L;
+
+    public ClusterRestConfig() {
+    }
+
+    public ClusterRestConfig(Integer restPort, String... hosts) {
+        super(hosts.length > 0 ? hosts[0] : null, restPort);
+        setHosts(Arrays.asList(hosts));
+    }
+
+    @Override
+    public String getHost() {
+        return hosts.isEmpty() ? super.getHost() : hosts.get(0);
+    }
+
+    @Override
+    public List<String> getHosts() {
+        return hosts.isEmpty() ? super.getHosts() : hosts;
+    }
+
+    public void setHosts(List<String> hosts) {
+        this.hosts = new ArrayList<>(hosts);
+    }
+
+    /**
+     * @param hosts comma-delimited list of hosts
+     */
+    @Value("${mlHosts:}")
+    public void setHostList(String hosts) {
+        List<String> list = new ArrayList<>();
+        if (hosts != null) {
+            for (String host : hosts.split(",")) {
+                if (host.trim().length() > 0) {
+                    list.add(host.trim());
+                }
+            }
+        }
+        this.hosts = list;
+    }
+
+    @Override
+    public HostSelectionStrategy getHostSelectionStrategy() {
+        return hostSelectionStrategy;
+    }
+
+    public void setHostSelectionStrategy(HostSelectionStrategy hostSelectionStrategy) {
+        this.hostSelectionStrategy = hostSelectionStrategy;
+    }
+
+    @Override
+    public Integer getHostFailureThreshold() {
+        return hostFailureThreshold;
+    }
+
+    public void setHostFailureThreshold(Integer hostFailureThreshold) {
+        this.hostFailureThreshold = hostFailureThreshold;
+    }
+
+    @Override
+    public Long getHostEjectionMillis() {
+        return hostEjectionMillis;
+    }
+
+    public void setHostEjectionMillis(Long hostEjectionMillis) {
+        this.hostEjectionMillis = hostEjectionMillis;
+    }
+
+    @Override
+    public Long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    public void setHealthCheckIntervalMillis(Long healthCheckIntervalMillis) {
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
+}
@@ -1,133 +1,758 @@
 package com.marklogic.spring.http;
 
-import org.apache.http.Header;
-import org.apache.http.HeaderElement;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.AuthCache;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpHead;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.impl.auth.DigestScheme;
-import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
+import javax.net.ssl.SSLContext;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * Default implementation that supports digest caching. If that's enabled in the given RestConfig object, then this
- * class will make a HEAD request to MarkLogic so it can analyze the authentication header in the response to
- * determine if digest authentication is being used. If so, then this class constructs a RestTemplate that supports
- * digest caching.
+ * class uses an AuthSchemeDiscovery to determine - in the background, and once per app server - if digest
+ * authentication is being used. Requests to app servers that use digest then reuse the digest state of the current
+ * user.
+ * <p>
+ * Every RestOperations created by an instance of this class shares a single pooled connection manager, which is
+ * created and sized based on the first RestConfig passed in. A background thread closes idle and expired connections
+ * in that pool. To share the pool across RestClient instances, define an instance of this class as a Spring bean and
+ * pass it to each RestClient - Spring will then call destroy() to shut the pool down with the application context.
+ * <p>
+ * If the RestConfig has more than one host - see ClusterRestConfig - requests are spread across them, and hosts that
+ * fail are ejected until they recover.
+ * <p>
+ * For "https", every connection - pooled or not - is created from a single SSLContext, so that new connections to a
+ * host resume a cached TLS session instead of performing a full handshake. The SSLContext is built by an
+ * SslContextFactory from the TLS settings in the first RestConfig, or can be supplied via setSslContext.
+ * <p>
+ * The pooled connection manager and request executor add to the RequestTimeline bound to the current thread, if any,
+ * so that a caller such as HttpProxy can break a request down into pool lease, connect, authentication challenge,
+ * and time to first byte.
  */
-public class DefaultRestOperationsFactory implements RestOperationsFactory {
+public class DefaultRestOperationsFactory implements RestOperationsFactory, DisposableBean {
+
+	private final static PoolStats EMPTY_POOL_STATS = new PoolStats(0, 0, 0, 0);
 
 	protected Logger logger = LoggerFactory.getLogger(getClass());
 
+	private PoolingHttpClientConnectionManager connectionManager;
+	private IdleConnectionEvictor connectionEvictor;
+	private PrincipalHttpContextCache principalHttpContextCache;
+	private PreemptiveBasicAuth preemptiveBasicAuth;
+	private AuthSchemeDiscovery authSchemeDiscovery;
+	private boolean ownsAuthSchemeDiscovery;
+	private SslContextFactory sslContextFactory = new SslContextFactory();
+	private SSLContext sslContext;
+	private LayeredConnectionSocketFactory sslSocketFactory;
+	private final Map<String, HostSelector> hostSelectors = new HashMap<>();
+	private final List<CloseableHttpClient> healthCheckClients = new ArrayList<>();
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+	private RetryBudget retryBudget;
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
 	@Override
 	public RestOperations newRestOperations(RestConfig restConfig, CredentialsProvider credentialsProvider) {
-		if (!restConfig.isDigestCachingEnabled()) {
-			return newRestOperations(credentialsProvider);
-		}
-
-		HttpResponse response = getHeadResponse(restConfig);
-		AuthenticationHeader header = extractAuthenticationHeader(response);
-
-		if (!"digest".equalsIgnoreCase(header.getValue())) {
-			return newRestOperations(credentialsProvider);
+		if (!Boolean.TRUE.equals(restConfig.isDigestCachingEnabled())
+			&& !Boolean.TRUE.equals(restConfig.isPreemptiveBasicAuth())) {
+			return newRestTemplate(restConfig, credentialsProvider);
 		}
 
-		return prepareDigestTemplate(restConfig, credentialsProvider, header.getRealm());
+		configureAuthSchemeDiscovery(restConfig);
+		// Start discovering the scheme now so that it's likely known by the first request, but don't wait on it
+		getAuthSchemeDiscovery().discover(restConfig.getScheme(), restConfig.getHost(), restConfig.getRestPort());
+		return prepareDigestTemplate(restConfig, credentialsProvider);
 	}
 
+	/**
+	 * @deprecated the connection pool, timeouts, and authentication now depend on the RestConfig, so this is no longer
+	 * called by newRestOperations; override newRestTemplate(RestConfig, CredentialsProvider) instead. It still builds
+	 * a RestTemplate on its own unpooled HttpClient, as it always has.
+	 */
+	@Deprecated
 	protected RestOperations newRestOperations(CredentialsProvider credentialsProvider) {
 		return new RestTemplate(new HttpComponentsClientHttpRequestFactory(newHttpClient(credentialsProvider)));
 	}
 
+	/**
+	 * @deprecated no longer called by this class; override newHttpClientBuilder(RestConfig, CredentialsProvider)
+	 * instead, which every HttpClient built by this class - pooled or not - goes through.
+	 */
+	@Deprecated
 	protected HttpClient newHttpClient(CredentialsProvider provider) {
 		return HttpClientBuilder.create().setDefaultCredentialsProvider(provider).useSystemProperties().build();
 	}
 
+	protected RestTemplate newRestTemplate(RestConfig restConfig, CredentialsProvider credentialsProvider) {
+		HttpComponentsClientHttpRequestFactory requestFactory =
+			new HttpComponentsClientHttpRequestFactory(newHttpClient(restConfig, credentialsProvider));
+		configureRequestFactory(requestFactory, restConfig);
+		return new RestTemplate(decorateRequestFactory(requestFactory, restConfig));
+	}
+
+	/**
+	 * When request bodies are streamed, the request factory must not buffer them; a callback then writes the body via
+	 * StreamingHttpOutputMessage, as DefaultRequestCallback does.
+	 *
+	 * @param requestFactory
+	 * @param restConfig
+	 */
+	protected void configureRequestFactory(HttpComponentsClientHttpRequestFactory requestFactory, RestConfig restConfig) {
+		requestFactory.setBufferRequestBody(!Boolean.TRUE.equals(restConfig.isStreamRequestBody()));
+	}
+
 	/**
-	 * Sends a HEAD request so that the headers in the response can be analyzed.
+	 * When the RestConfig has more than one host, requests are spread across them via a HostSelector.
 	 *
-	 * @param config
+	 * @param requestFactory
+	 * @param restConfig
 	 * @return
 	 */
-	protected HttpResponse getHeadResponse(RestConfig config) {
-		URI uri;
-		try {
-			uri = new URI(config.getScheme(), null, config.getHost(), config.getRestPort(), "/",
-				"", null);
-		} catch (URISyntaxException ex) {
-			throw new RuntimeException("Unable to build URI, cause: " + ex.getMessage(), ex);
+	protected ClientHttpRequestFactory decorateRequestFactory(ClientHttpRequestFactory requestFactory,
+	                                                          RestConfig restConfig) {
+		List<String> hosts = restConfig.getHosts();
+		if (hosts == null || hosts.size() < 2) {
+			return requestFactory;
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Spreading requests across hosts " + hosts + " via " + restConfig.getHostSelectionStrategy());
 		}
+		return new ClusterClientHttpRequestFactory(requestFactory, getHostSelector(restConfig), restConfig.getHost(),
+			restConfig.getRestPort());
+	}
 
-		try {
-			return HttpClientBuilder.create().build().execute(new HttpHead(uri));
-		} catch (IOException ex) {
-			throw new RuntimeException("Unable to reach endpoint, cause: " + ex.getMessage(), ex);
+	/**
+	 * Every RestOperations for the same hosts shares one HostSelector - and thus one view of which hosts are healthy,
+	 * and one health check thread - which is created based on the first RestConfig with those hosts.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected HostSelector getHostSelector(RestConfig restConfig) {
+		String key = restConfig.getScheme() + "://" + String.join(",", restConfig.getHosts()) + ":" +
+			restConfig.getRestPort();
+		synchronized (hostSelectors) {
+			HostSelector hostSelector = hostSelectors.get(key);
+			if (hostSelector == null) {
+				hostSelector = newHostSelector(restConfig);
+				hostSelectors.put(key, hostSelector);
+			}
+			return hostSelector;
 		}
 	}
 
-	protected AuthenticationHeader extractAuthenticationHeader(HttpResponse response) {
-		Header header = response.getFirstHeader("WWW-Authenticate");
-		HeaderElement headerElement = header.getElements()[0];
-		if (logger.isDebugEnabled()) {
-			logger.debug("Extracting authentication from header: " + header);
+	protected HostSelector newHostSelector(RestConfig restConfig) {
+		HostSelector hostSelector = new HostSelector(restConfig.getHosts(), restConfig.getHostSelectionStrategy());
+		hostSelector.setFailureThreshold(restConfig.getHostFailureThreshold());
+		hostSelector.setEjectionMillis(restConfig.getHostEjectionMillis());
+		long interval = restConfig.getHealthCheckIntervalMillis();
+		if (interval > 0) {
+			hostSelector.startHealthChecks(newHealthCheck(restConfig, interval), interval);
 		}
-		String value = header.toString().split(" ")[1];
-		String realm = headerElement.getValue();
-		if (logger.isDebugEnabled()) {
-			logger.debug("Extracted value: " + value + "; realm: " + realm);
+		return hostSelector;
+	}
+
+	/**
+	 * The health check is an unauthenticated HEAD request to the REST server; any response other than a 5xx means the
+	 * host is up, as MarkLogic will typically respond with a 401. Each check uses a new connection, rather than one
+	 * from the pool, so that it tests whether the host can be connected to. The HttpClient that sends the checks is
+	 * closed by destroy().
+	 *
+	 * @param restConfig
+	 * @param intervalMillis
+	 * @return
+	 */
+	protected Predicate<String> newHealthCheck(RestConfig restConfig, long intervalMillis) {
+		final CloseableHttpClient httpClient = newHealthCheckClient(restConfig, intervalMillis);
+		synchronized (healthCheckClients) {
+			healthCheckClients.add(httpClient);
 		}
-		return new AuthenticationHeader(value, realm);
+		final String scheme = restConfig.getScheme();
+		final int port = restConfig.getRestPort();
+		return host -> {
+			try {
+				HttpResponse response = httpClient.execute(new HttpHead(scheme + "://" + host + ":" + port + "/"));
+				EntityUtils.consumeQuietly(response.getEntity());
+				return response.getStatusLine().getStatusCode() < 500;
+			} catch (IOException ex) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Health check failed for host " + host + ", cause: " + ex.getMessage());
+				}
+				return false;
+			}
+		};
 	}
 
 	/**
-	 * Constructs a RestTemplate with digest caching enabled.
+	 * @param restConfig
+	 * @param intervalMillis
+	 * @return an unpooled client whose timeouts don't exceed the health check interval
+	 */
+	protected CloseableHttpClient newHealthCheckClient(RestConfig restConfig, long intervalMillis) {
+		int timeout = (int) Math.min(intervalMillis, 5000);
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(timeout)
+			.setSocketTimeout(timeout)
+			.setConnectionRequestTimeout(timeout)
+			.build();
+		return HttpClientBuilder.create()
+			.setConnectionManager(new BasicHttpClientConnectionManager(newSocketFactoryRegistry(restConfig)))
+			.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE)
+			.setDefaultRequestConfig(requestConfig)
+			.disableAutomaticRetries()
+			.useSystemProperties()
+			.build();
+	}
+
+	/**
+	 * Builds an HttpClient that uses the shared connection manager. The connection manager is marked as shared so that
+	 * it's not shut down if a RestTemplate using this client is destroyed; destroy() on this class handles that.
 	 *
 	 * @param restConfig
 	 * @param provider
-	 * @param realm
 	 * @return
 	 */
-	protected RestTemplate prepareDigestTemplate(RestConfig restConfig, CredentialsProvider provider, String realm) {
-		final HttpClient httpClient = newHttpClient(provider);
-		final HttpHost host = new HttpHost(restConfig.getHost(), restConfig.getRestPort(), restConfig.getScheme());
+	protected HttpClient newHttpClient(RestConfig restConfig, CredentialsProvider provider) {
+		return newHttpClientBuilder(restConfig, provider).build();
+	}
+
+	protected HttpClientBuilder newHttpClientBuilder(RestConfig restConfig, CredentialsProvider provider) {
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectionRequestTimeout(restConfig.getConnectionRequestTimeoutMillis())
+			.setConnectTimeout(restConfig.getConnectTimeoutMillis())
+			.setSocketTimeout(restConfig.getSocketTimeoutMillis())
+			.setExpectContinueEnabled(Boolean.TRUE.equals(restConfig.isStreamRequestBody()))
+			.build();
+
+		HttpClientBuilder builder = newDecoratedHttpClientBuilder(restConfig);
+		if (restConfig.getMaxRetries() != null && restConfig.getMaxRetries() > 0) {
+			// ResilientExec retries instead; with only a circuit breaker, the HttpClient's own retries are kept
+			builder.disableAutomaticRetries();
+		}
+		if (Boolean.TRUE.equals(restConfig.isCompressionPassThrough())) {
+			builder.disableContentCompression();
+		}
+
+		return builder
+			.setDefaultCredentialsProvider(provider)
+			.setConnectionManager(new TimedConnectionManager(getConnectionManager(restConfig)))
+			.setConnectionManagerShared(true)
+			.setKeepAliveStrategy(newKeepAliveStrategy(restConfig))
+			.setRequestExecutor(new TimedRequestExecutor())
+			.setDefaultRequestConfig(requestConfig)
+			.useSystemProperties();
+	}
+
+	/**
+	 * Creates a builder whose clients record streamed request bodies - on the heap up to a threshold, and in a
+	 * temporary file beyond that - so that they can be resent after an authentication challenge, and that retry
+	 * idempotent requests and use a circuit breaker per host, depending on the RestConfig.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected HttpClientBuilder newDecoratedHttpClientBuilder(RestConfig restConfig) {
+		final boolean replay = Boolean.TRUE.equals(restConfig.isRequestBodyReplayEnabled());
+		final boolean resilient = isResilienceEnabled(restConfig);
+		if (!replay && !resilient) {
+			return HttpClientBuilder.create();
+		}
+		final int memoryThreshold = restConfig.getRequestBodyReplayMemoryThreshold();
+		final File directory = restConfig.getRequestBodyReplayDirectory() != null ?
+			new File(restConfig.getRequestBodyReplayDirectory()) : null;
+		final int maxRetries = restConfig.getMaxRetries() != null ? restConfig.getMaxRetries() : 0;
+		final int failureThreshold = restConfig.getCircuitBreakerFailureThreshold() != null ?
+			restConfig.getCircuitBreakerFailureThreshold() : 0;
+		final long openMillis = restConfig.getCircuitBreakerOpenMillis();
+		final long backoffMillis = restConfig.getRetryBackoffMillis();
+		final long maxBackoffMillis = restConfig.getMaxRetryBackoffMillis();
+		final RetryBudget budget = getRetryBudget(restConfig);
+		return new HttpClientBuilder() {
+			@Override
+			protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+				return replay ? new RequestBodyReplayExec(mainExec, memoryThreshold, directory) : mainExec;
+			}
+
+			@Override
+			protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+				return resilient ? new ResilientExec(protocolExec, maxRetries, backoffMillis, maxBackoffMillis, budget,
+					host -> failureThreshold > 0 ? getCircuitBreaker(host, failureThreshold, openMillis) : null) :
+					protocolExec;
+			}
+		};
+	}
+
+	protected boolean isResilienceEnabled(RestConfig restConfig) {
+		Integer maxRetries = restConfig.getMaxRetries();
+		Integer failureThreshold = restConfig.getCircuitBreakerFailureThreshold();
+		return (maxRetries != null && maxRetries > 0) || (failureThreshold != null && failureThreshold > 0);
+	}
+
+	/**
+	 * The retry budget is shared by every RestOperations created by this class, so that retries are limited relative
+	 * to all of the requests sent to MarkLogic. It's created based on the first RestConfig that needs it.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected synchronized RetryBudget getRetryBudget(RestConfig restConfig) {
+		if (retryBudget == null) {
+			retryBudget = new RetryBudget(restConfig.getRetryBudgetRatio());
+		}
+		return retryBudget;
+	}
+
+	/**
+	 * @param host
+	 * @return the circuit breaker for the host - in the form "host:port" - or null if no request has been sent to it
+	 * with circuit breaking enabled
+	 */
+	public CircuitBreaker getCircuitBreaker(String host) {
+		return circuitBreakers.get(host);
+	}
+
+	protected CircuitBreaker getCircuitBreaker(String host, int failureThreshold, long openMillis) {
+		return circuitBreakers.computeIfAbsent(host, key -> new CircuitBreaker(key, failureThreshold, openMillis));
+	}
+
+	/**
+	 * Lazily creates the connection manager shared by every HttpClient built by this factory, along with the
+	 * background thread that closes idle and expired connections.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected synchronized PoolingHttpClientConnectionManager getConnectionManager(RestConfig restConfig) {
+		if (connectionManager == null) {
+			connectionManager = newConnectionManager(restConfig);
+			connectionEvictor = new IdleConnectionEvictor(connectionManager,
+				restConfig.getConnectionReaperIntervalMillis(), TimeUnit.MILLISECONDS,
+				restConfig.getIdleConnectionTimeoutMillis(), TimeUnit.MILLISECONDS);
+			connectionEvictor.start();
+		}
+		return connectionManager;
+	}
+
+	protected PoolingHttpClientConnectionManager newConnectionManager(RestConfig restConfig) {
+		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(newSocketFactoryRegistry(restConfig));
+		manager.setDefaultMaxPerRoute(restConfig.getMaxConnectionsPerRoute());
+		manager.setMaxTotal(restConfig.getMaxConnectionsTotal());
+		manager.setValidateAfterInactivity(restConfig.getValidateAfterInactivityMillis());
+		if (logger.isDebugEnabled()) {
+			logger.debug("Created connection pool; max per route: " + manager.getDefaultMaxPerRoute() +
+				"; max total: " + manager.getMaxTotal());
+		}
+		return manager;
+	}
+
+	/**
+	 * HttpClientBuilder only applies system properties to connection managers that it creates itself, so the SSL
+	 * socket factory here is based on system properties to preserve that behavior, unless the RestConfig has TLS
+	 * settings.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected Registry<ConnectionSocketFactory> newSocketFactoryRegistry(RestConfig restConfig) {
+		return RegistryBuilder.<ConnectionSocketFactory>create()
+			.register("http", PlainConnectionSocketFactory.getSocketFactory())
+			.register("https", getSslSocketFactory(restConfig))
+			.build();
+	}
+
+	/**
+	 * Lazily creates the TLS socket factory shared by the connection pool, health checks, and auth scheme discovery.
+	 * Without TLS settings or a supplied SSLContext, this is the system socket factory, whose SSLContext is the JVM's
+	 * default and is thus already shared.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected synchronized LayeredConnectionSocketFactory getSslSocketFactory(RestConfig restConfig) {
+		if (sslSocketFactory == null) {
+			if (sslContext != null) {
+				sslContextFactory.configureSessionContext(sslContext, restConfig);
+			} else if (SslContextFactory.isConfigured(restConfig)) {
+				sslContext = sslContextFactory.newSslContext(restConfig);
+			}
+			sslSocketFactory = sslContext != null ?
+				new SSLConnectionSocketFactory(sslContext, sslContextFactory.newHostnameVerifier(restConfig)) :
+				SSLConnectionSocketFactory.getSystemSocketFactory();
+		}
+		return sslSocketFactory;
+	}
+
+	/**
+	 * The shared AuthSchemeDiscovery probes app servers with the JVM's default TLS settings, so it can't connect to an
+	 * app server whose certificate is only trusted via the RestConfig. In that case, this class gets its own discovery
+	 * that uses the same TLS socket factory as the connection pool.
+	 *
+	 * @param restConfig
+	 */
+	protected synchronized void configureAuthSchemeDiscovery(RestConfig restConfig) {
+		if (authSchemeDiscovery == null && "https".equalsIgnoreCase(restConfig.getScheme())
+			&& (sslContext != null || SslContextFactory.isConfigured(restConfig))) {
+			authSchemeDiscovery = new AuthSchemeDiscovery();
+			authSchemeDiscovery.setSslSocketFactory(getSslSocketFactory(restConfig));
+			ownsAuthSchemeDiscovery = true;
+		}
+	}
+
+	/**
+	 * Honors the timeout in a Keep-Alive header from MarkLogic, and otherwise falls back to the keep-alive duration
+	 * in the RestConfig instead of keeping connections alive indefinitely.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected ConnectionKeepAliveStrategy newKeepAliveStrategy(RestConfig restConfig) {
+		final long defaultKeepAlive = restConfig.getKeepAliveMillis();
+		return (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? duration : defaultKeepAlive;
+		};
+	}
 
-		// Create AuthCache instance
-		final AuthCache authCache = new BasicAuthCache();
+	/**
+	 * Stops the background reaper and closes every pooled connection.
+	 */
+	@Override
+	public synchronized void destroy() {
+		synchronized (hostSelectors) {
+			for (HostSelector hostSelector : hostSelectors.values()) {
+				hostSelector.stop();
+			}
+			hostSelectors.clear();
+		}
+		synchronized (healthCheckClients) {
+			for (CloseableHttpClient healthCheckClient : healthCheckClients) {
+				try {
+					healthCheckClient.close();
+				} catch (IOException ex) {
+					logger.warn("Unable to close health check client, cause: " + ex.getMessage());
+				}
+			}
+			healthCheckClients.clear();
+		}
+		if (connectionEvictor != null) {
+			connectionEvictor.shutdown();
+			connectionEvictor = null;
+		}
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+		if (principalHttpContextCache != null) {
+			principalHttpContextCache.clear();
+		}
+		if (preemptiveBasicAuth != null) {
+			preemptiveBasicAuth.clear();
+		}
+		if (ownsAuthSchemeDiscovery) {
+			try {
+				authSchemeDiscovery.destroy();
+			} catch (IOException ex) {
+				logger.warn("Unable to close auth scheme discovery client, cause: " + ex.getMessage());
+			}
+			authSchemeDiscovery = null;
+			ownsAuthSchemeDiscovery = false;
+		}
+	}
 
-		final DigestScheme digestAuth = new DigestScheme();
-		digestAuth.overrideParamter("realm", realm);
-		authCache.put(host, digestAuth);
+	/**
+	 * Constructs a RestTemplate with digest caching and/or preemptive Basic authentication enabled. Digest state is
+	 * cached per principal via this class's PrincipalHttpContextCache, as a single digest scheme shared by every user
+	 * would have the wrong nonce count for most of them. The cached state is only used for hosts that
+	 * AuthSchemeDiscovery has determined to use digest, and Basic credentials are only sent preemptively - via this
+	 * class's PreemptiveBasicAuth - to hosts it has determined to use basic; requests to other hosts, or sent before
+	 * discovery completes, are authenticated as usual.
+	 *
+	 * @param restConfig
+	 * @param provider
+	 * @return
+	 */
+	protected RestTemplate prepareDigestTemplate(RestConfig restConfig, final CredentialsProvider provider) {
+		final PrincipalHttpContextCache contextCache = getPrincipalHttpContextCache();
+		final PreemptiveBasicAuth preemptiveBasicAuth = getPreemptiveBasicAuth();
+		final AuthSchemeDiscovery discovery = getAuthSchemeDiscovery();
+		final boolean digestCaching = Boolean.TRUE.equals(restConfig.isDigestCachingEnabled());
+		final boolean preemptiveBasic = Boolean.TRUE.equals(restConfig.isPreemptiveBasicAuth());
+		final HttpClient httpClient = newHttpClientBuilder(restConfig, provider)
+			.setTargetAuthenticationStrategy(discovery.newAuthenticationStrategy(contextCache.newAuthenticationStrategy()))
+			.build();
 
-		// create a RestTemplate wired with a custom request factory using the above AuthCache with Digest Scheme
-		return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient) {
+		// create a RestTemplate wired with a custom request factory that uses the cached state of the current principal
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient) {
 			@Override
 			protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
-				// Add AuthCache to the execution context
-				BasicHttpContext context = new BasicHttpContext();
-				context.setAttribute(HttpClientContext.AUTH_CACHE, authCache);
-				return context;
+				HttpHost host = URIUtils.extractHost(uri);
+				DiscoveredAuthScheme authScheme = discovery.getIfDiscovered(host.getSchemeName(), host.getHostName(),
+					host.getPort());
+				if (authScheme == null) {
+					return null;
+				}
+				if (digestCaching && authScheme.isDigest()) {
+					return contextCache.newContext(determinePrincipal(provider, host), host);
+				}
+				if (preemptiveBasic && authScheme.isBasic() && determinePrincipal(provider, host) != null) {
+					return preemptiveBasicAuth.newContext(host);
+				}
+				return null;
 			}
+		};
+		configureRequestFactory(requestFactory, restConfig);
+		return new RestTemplate(decorateRequestFactory(requestFactory, restConfig));
+	}
+
+	/**
+	 * @deprecated newRestOperations no longer sends a HEAD request itself; the authentication scheme of each app server
+	 * is found by AuthSchemeDiscovery instead - override AuthSchemeDiscovery.probe to change how. This still sends an
+	 * unauthenticated HEAD request, via the AuthSchemeDiscovery's client, with the response body consumed.
+	 */
+	@Deprecated
+	protected HttpResponse getHeadResponse(RestConfig config) {
+		configureAuthSchemeDiscovery(config);
+		HttpHost target = new HttpHost(config.getHost(), config.getRestPort(), config.getScheme());
+		try {
+			HttpResponse response = getAuthSchemeDiscovery().getHttpClient().execute(target, new HttpHead("/"));
+			EntityUtils.consumeQuietly(response.getEntity());
+			return response;
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to reach endpoint, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @deprecated no longer called by this class; use AuthSchemeDiscovery.extractAuthScheme, which this delegates to.
+	 * The value is now the scheme in lower case, e.g. "digest".
+	 */
+	@Deprecated
+	protected AuthenticationHeader extractAuthenticationHeader(HttpResponse response) {
+		DiscoveredAuthScheme authScheme = getAuthSchemeDiscovery().extractAuthScheme(response);
+		return new AuthenticationHeader(authScheme.getScheme(), authScheme.getRealm());
+	}
+
+	/**
+	 * @deprecated the realm is now determined per app server by AuthSchemeDiscovery; override
+	 * prepareDigestTemplate(RestConfig, CredentialsProvider) instead, which this delegates to, ignoring the realm.
+	 */
+	@Deprecated
+	protected RestTemplate prepareDigestTemplate(RestConfig restConfig, CredentialsProvider provider, String realm) {
+		return prepareDigestTemplate(restConfig, provider);
+	}
+
+	/**
+	 * @param provider
+	 * @param host
+	 * @return the name of the user that a request is being sent on behalf of, or null if it can't be determined
+	 */
+	protected String determinePrincipal(CredentialsProvider provider, HttpHost host) {
+		try {
+			Credentials credentials = provider.getCredentials(new AuthScope(host));
+			if (credentials != null && credentials.getUserPrincipal() != null) {
+				return credentials.getUserPrincipal().getName();
+			}
+		} catch (RuntimeException ex) {
+			// SpringSecurityCredentialsProvider, for example, throws an exception when no user is authenticated; the
+			// request is then sent without any cached authentication state
+			if (logger.isDebugEnabled()) {
+				logger.debug("Unable to determine principal for " + host + ", so not using cached authentication " +
+					"state; cause: " + ex.getMessage(), ex);
+			}
+		}
+		return null;
+	}
+
+	public synchronized AuthSchemeDiscovery getAuthSchemeDiscovery() {
+		if (authSchemeDiscovery == null) {
+			authSchemeDiscovery = AuthSchemeDiscovery.getDefault();
+		}
+		return authSchemeDiscovery;
+	}
+
+	/**
+	 * By default, the discovered schemes are shared with every other instance of this class.
+	 *
+	 * @param authSchemeDiscovery
+	 */
+	public synchronized void setAuthSchemeDiscovery(AuthSchemeDiscovery authSchemeDiscovery) {
+		this.authSchemeDiscovery = authSchemeDiscovery;
+		this.ownsAuthSchemeDiscovery = false;
+	}
+
+	/**
+	 * @return the SSLContext shared by every connection to MarkLogic, or null if the JVM's default is used
+	 */
+	public synchronized SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Like getSslContext, but builds the shared SSLContext from the RestConfig if that hasn't happened yet, so that
+	 * a client with its own connection pool - such as AsyncHttpProxy's - can resume the same TLS sessions.
+	 *
+	 * @param restConfig
+	 * @return the shared SSLContext, or null if the JVM's default is used
+	 */
+	public synchronized SSLContext getSslContext(RestConfig restConfig) {
+		getSslSocketFactory(restConfig);
+		return sslContext;
+	}
+
+	/**
+	 * Supplies the SSLContext to use instead of building one from the RestConfig; the session cache settings in the
+	 * RestConfig are still applied to it. Must be called before the first RestOperations is created.
+	 *
+	 * @param sslContext
+	 */
+	public synchronized void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		this.sslSocketFactory = null;
+	}
+
+	/**
+	 * Allows for customizing how the SSLContext is built, e.g. to load a truststore from the classpath.
+	 *
+	 * @param sslContextFactory
+	 */
+	public synchronized void setSslContextFactory(SslContextFactory sslContextFactory) {
+		this.sslContextFactory = sslContextFactory;
+	}
+
+	public synchronized SslContextFactory getSslContextFactory() {
+		return sslContextFactory;
+	}
+
+	public synchronized PrincipalHttpContextCache getPrincipalHttpContextCache() {
+		if (principalHttpContextCache == null) {
+			principalHttpContextCache = new PrincipalHttpContextCache();
+		}
+		return principalHttpContextCache;
+	}
+
+	/**
+	 * Allows for customizing the size and expiration of the per-principal state used when digest caching is enabled.
+	 *
+	 * @param principalHttpContextCache
+	 */
+	public synchronized void setPrincipalHttpContextCache(PrincipalHttpContextCache principalHttpContextCache) {
+		this.principalHttpContextCache = principalHttpContextCache;
+	}
+
+	public synchronized PreemptiveBasicAuth getPreemptiveBasicAuth() {
+		if (preemptiveBasicAuth == null) {
+			preemptiveBasicAuth = new PreemptiveBasicAuth();
+		}
+		return preemptiveBasicAuth;
+	}
+
+	/**
+	 * Allows for customizing the number of cached header values and the charset used when preemptive Basic
+	 * authentication is enabled.
+	 *
+	 * @param preemptiveBasicAuth
+	 */
+	public synchronized void setPreemptiveBasicAuth(PreemptiveBasicAuth preemptiveBasicAuth) {
+		this.preemptiveBasicAuth = preemptiveBasicAuth;
+	}
+
+	public synchronized MarkLogicMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers gauges for the connection pool - marklogic.pool.leased, available, pending, and max - and counters for
+	 * authentication - marklogic.auth.challenges, marklogic.auth.challenges.avoided, and
+	 * marklogic.auth.basic.preemptive - and for retries - marklogic.retries and marklogic.retries.exhausted. The values
+	 * are read when the metrics are collected, so nothing is recorded per request. Setting the same metrics again has
+	 * no effect.
+	 *
+	 * @param metrics
+	 */
+	public synchronized void setMetrics(MarkLogicMetrics metrics) {
+		MarkLogicMetrics newMetrics = metrics != null ? metrics : MarkLogicMetrics.NOOP;
+		if (newMetrics == this.metrics) {
+			return;
+		}
+		this.metrics = newMetrics;
+		this.metrics.registerGauge("marklogic.pool.leased", () -> getPoolStats().getLeased());
+		this.metrics.registerGauge("marklogic.pool.available", () -> getPoolStats().getAvailable());
+		this.metrics.registerGauge("marklogic.pool.pending", () -> getPoolStats().getPending());
+		this.metrics.registerGauge("marklogic.pool.max", () -> getPoolStats().getMax());
+		this.metrics.registerCounter("marklogic.auth.challenges", () -> getPrincipalHttpContextCache().getChallenges());
+		this.metrics.registerCounter("marklogic.auth.challenges.avoided",
+			() -> getPrincipalHttpContextCache().getChallengesAvoided());
+		this.metrics.registerCounter("marklogic.auth.basic.preemptive",
+			() -> getPreemptiveBasicAuth().getPreemptiveRequests());
+		this.metrics.registerCounter("marklogic.retries", () -> {
+			RetryBudget budget = getRetryBudget();
+			return budget != null ? budget.getRetries() : 0;
+		});
+		this.metrics.registerCounter("marklogic.retries.exhausted", () -> {
+			RetryBudget budget = getRetryBudget();
+			return budget != null ? budget.getExhausted() : 0;
 		});
 	}
 
+	/**
+	 * @return the retry budget shared by this class's RestOperations, or null if none of them retry requests
+	 */
+	public synchronized RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	private synchronized PoolStats getPoolStats() {
+		return connectionManager != null ? connectionManager.getTotalStats() : EMPTY_POOL_STATS;
+	}
 }
 
+/**
+ * @deprecated only returned by the deprecated DefaultRestOperationsFactory.extractAuthenticationHeader; use
+ * DiscoveredAuthScheme instead.
+ */
+@Deprecated
 class AuthenticationHeader {
 
 	private String value;
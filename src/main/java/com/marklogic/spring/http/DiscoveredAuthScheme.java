@@ -0,0 +1,39 @@
+package com.marklogic.spring.http;
+
+/**
+ * The authentication scheme and realm that a MarkLogic app server challenges requests with, as determined by
+ * AuthSchemeDiscovery. The scheme is "none" if the app server doesn't require authentication.
+ */
+public class DiscoveredAuthScheme {
+
+	public final static String NONE = "none";
+
+	private final String scheme;
+	private final String realm;
+
+	public DiscoveredAuthScheme(String scheme, String realm) {
+		this.scheme = scheme;
+		this.realm = realm;
+	}
+
+	public boolean isDigest() {
+		return "digest".equalsIgnoreCase(scheme);
+	}
+
+	public boolean isBasic() {
+		return "basic".equalsIgnoreCase(scheme);
+	}
+
+	public String getScheme() {
+		return scheme;
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	@Override
+	public String toString() {
+		return scheme + (realm != null ? " realm=" + realm : "");
+	}
+}
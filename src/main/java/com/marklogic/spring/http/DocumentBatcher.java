@@ -0,0 +1,364 @@
+package com.marklogic.spring.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads many documents with as few requests to MarkLogic as possible, using a single multi-URI GET /v1/documents with
+ * a multipart/mixed response for up to maxBatchSize documents at a time.
+ * <p>
+ * readDocuments reads a known set of URIs. read instead returns a future and collects the URIs of concurrent calls,
+ * sending them once maxBatchSize URIs have been collected or maxWaitMillis has passed since the first one, whichever
+ * comes first. Since the RestClient's CredentialsProvider typically depends on the current user, URIs are only batched
+ * with those read by the same user, and the batch is sent with that user's Spring Security context.
+ * <p>
+ * A document that doesn't exist, or that the user can't read, is absent from the map returned by readDocuments and
+ * completes the future returned by read with null. maxBatchSize also bounds the length of the request URL, so it
+ * should be lowered if document URIs are long.
+ * <p>
+ * The maxWaitMillis timers run on a single scheduler thread that only hands batches off, so a slow request never
+ * delays another batch's timer; batches are sent on threadCount worker threads. Once destroyed, read can no longer
+ * be called.
+ */
+public class DocumentBatcher implements DisposableBean {
+
+	private final static MediaType MULTIPART_MIXED = MediaType.parseMediaType("multipart/mixed");
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final RestClient restClient;
+
+	private int maxBatchSize = 100;
+	private long maxWaitMillis = 5;
+	private int threadCount = 4;
+	private String path = "/v1/documents";
+
+	private final Map<String, Batch> pendingBatches = new LinkedHashMap<>();
+	private ScheduledExecutorService scheduler;
+	private ExecutorService executor;
+	private boolean destroyed;
+
+	public DocumentBatcher(RestClient restClient) {
+		this.restClient = restClient;
+	}
+
+	/**
+	 * Reads the given documents, sending one request per maxBatchSize URIs.
+	 *
+	 * @param uris
+	 * @return the documents that were found, in the order of the given URIs
+	 */
+	public Map<String, BatchedDocument> readDocuments(Collection<String> uris) {
+		List<String> distinctUris = new ArrayList<>(new LinkedHashSet<>(uris));
+		Map<String, BatchedDocument> documents = new LinkedHashMap<>();
+		for (int i = 0; i < distinctUris.size(); i += maxBatchSize) {
+			documents.putAll(readBatch(distinctUris.subList(i, Math.min(i + maxBatchSize, distinctUris.size()))));
+		}
+		return documents;
+	}
+
+	/**
+	 * Reads the given document as part of a batch with other concurrent calls by the same user.
+	 *
+	 * @param uri
+	 * @return a future that completes with the document, or with null if it wasn't found
+	 */
+	public CompletableFuture<BatchedDocument> read(String uri) {
+		ScheduledExecutorService scheduler = getScheduler();
+		SecurityContext context = SecurityContextHolder.getContext();
+		String scope = determineScope(context);
+		CompletableFuture<BatchedDocument> future = new CompletableFuture<>();
+		Batch fullBatch = null;
+		synchronized (pendingBatches) {
+			Batch batch = pendingBatches.get(scope);
+			if (batch == null) {
+				batch = new Batch(context);
+				pendingBatches.put(scope, batch);
+				final Batch scheduledBatch = batch;
+				scheduler.schedule(() -> flush(scope, scheduledBatch), maxWaitMillis, TimeUnit.MILLISECONDS);
+			}
+			batch.add(uri, future);
+			if (batch.size() >= maxBatchSize) {
+				pendingBatches.remove(scope);
+				fullBatch = batch;
+			}
+		}
+		if (fullBatch != null) {
+			submit(fullBatch);
+		}
+		return future;
+	}
+
+	protected String determineScope(SecurityContext context) {
+		Authentication authentication = context.getAuthentication();
+		return authentication != null ? authentication.getName() : "";
+	}
+
+	private void flush(String scope, Batch batch) {
+		synchronized (pendingBatches) {
+			if (pendingBatches.get(scope) != batch) {
+				// Already sent because it filled up
+				return;
+			}
+			pendingBatches.remove(scope);
+		}
+		submit(batch);
+	}
+
+	/**
+	 * Hands the batch to a worker thread, or fails it if this has been destroyed in the meantime.
+	 */
+	private void submit(Batch batch) {
+		try {
+			getExecutor().execute(() -> send(batch));
+		} catch (IllegalStateException | RejectedExecutionException ex) {
+			fail(batch, ex);
+		}
+	}
+
+	private void send(Batch batch) {
+		SecurityContextHolder.setContext(batch.context);
+		try {
+			Map<String, BatchedDocument> documents = readBatch(new ArrayList<>(batch.futures.keySet()));
+			for (Map.Entry<String, List<CompletableFuture<BatchedDocument>>> entry : batch.futures.entrySet()) {
+				BatchedDocument document = documents.get(entry.getKey());
+				for (CompletableFuture<BatchedDocument> future : entry.getValue()) {
+					future.complete(document);
+				}
+			}
+		} catch (RuntimeException ex) {
+			fail(batch, ex);
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+	private void fail(Batch batch, RuntimeException ex) {
+		for (List<CompletableFuture<BatchedDocument>> futures : batch.futures.values()) {
+			for (CompletableFuture<BatchedDocument> future : futures) {
+				future.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * Sends a single multi-URI request for the given URIs.
+	 *
+	 * @param uris
+	 * @return
+	 */
+	protected Map<String, BatchedDocument> readBatch(List<String> uris) {
+		if (uris.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		URI uri = buildBatchUri(uris);
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Reading %d documents in one request", uris.size()));
+		}
+		Map<String, BatchedDocument> documents;
+		try {
+			documents = restClient.getRestOperations().execute(uri, HttpMethod.GET,
+				request -> request.getHeaders().setAccept(Collections.singletonList(MULTIPART_MIXED)),
+				response -> readDocuments(response.getHeaders(), response.getBody(), uris));
+		} catch (HttpClientErrorException ex) {
+			if (HttpStatus.NOT_FOUND.equals(ex.getStatusCode())) {
+				return Collections.emptyMap();
+			}
+			throw ex;
+		}
+
+		Map<String, BatchedDocument> orderedDocuments = new LinkedHashMap<>();
+		for (String documentUri : uris) {
+			BatchedDocument document = documents.get(documentUri);
+			if (document != null) {
+				orderedDocuments.put(documentUri, document);
+			}
+		}
+		return orderedDocuments;
+	}
+
+	protected URI buildBatchUri(List<String> uris) {
+		String encoding = restClient.getEncoding();
+		StringBuilder query = new StringBuilder(uris.size() * 32);
+		try {
+			for (String uri : uris) {
+				if (query.length() > 0) {
+					query.append('&');
+				}
+				// URLEncoder encodes spaces for forms; MarkLogic expects them percent-encoded
+				query.append("uri=").append(URLEncoder.encode(uri, encoding).replace("+", "%20"));
+			}
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException("Unable to encode document URI, cause: " + ex.getMessage(), ex);
+		}
+		return URI.create(restClient.buildUri(path, null).toString() + "?" + query);
+	}
+
+	private Map<String, BatchedDocument> readDocuments(HttpHeaders headers, InputStream body, List<String> uris)
+		throws IOException {
+		Map<String, BatchedDocument> documents = new HashMap<>();
+		if (body == null) {
+			return documents;
+		}
+		String boundary = MultipartReader.extractBoundary(headers.getContentType());
+		if (boundary == null) {
+			// A single document may be returned as is rather than as a multipart response
+			if (uris.size() == 1) {
+				documents.put(uris.get(0), new BatchedDocument(uris.get(0), headers, StreamUtils.copyToByteArray(body)));
+			}
+			return documents;
+		}
+		MultipartReader reader = new MultipartReader(body, boundary);
+		MultipartReader.Part part;
+		while ((part = reader.next()) != null) {
+			String uri = part.getFileName();
+			if (uri != null) {
+				documents.put(uri, new BatchedDocument(uri, part.getHeaders(), StreamUtils.copyToByteArray(part.getBody())));
+			}
+		}
+		return documents;
+	}
+
+	/**
+	 * @return the executor that runs the maxWaitMillis timers
+	 * @throws IllegalStateException if this has been destroyed
+	 */
+	protected synchronized ScheduledExecutorService getScheduler() {
+		checkNotDestroyed();
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "marklogic-document-batcher-timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return the executor that sends batches to MarkLogic
+	 * @throws IllegalStateException if this has been destroyed
+	 */
+	protected synchronized ExecutorService getExecutor() {
+		checkNotDestroyed();
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+				Thread thread = new Thread(runnable, "marklogic-document-batcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	private void checkNotDestroyed() {
+		if (destroyed) {
+			throw new IllegalStateException("DocumentBatcher has been destroyed");
+		}
+	}
+
+	/**
+	 * Stops both executors; any batch that's still waiting to be sent fails with an IllegalStateException.
+	 */
+	@Override
+	public synchronized void destroy() {
+		destroyed = true;
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	/**
+	 * @param maxWaitMillis how long read waits for other URIs to batch with before sending a request
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @param threadCount the number of threads that send batches for read; must be set before read is first called
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * The URIs collected for a single user, each with the futures of the calls that asked for it.
+	 */
+	private static class Batch {
+
+		final SecurityContext context;
+		final Map<String, List<CompletableFuture<BatchedDocument>>> futures = new LinkedHashMap<>();
+
+		Batch(SecurityContext context) {
+			this.context = context;
+		}
+
+		void add(String uri, CompletableFuture<BatchedDocument> future) {
+			futures.computeIfAbsent(uri, key -> new ArrayList<>(1)).add(future);
+		}
+
+		int size() {
+			return futures.size();
+		}
+	}
+}
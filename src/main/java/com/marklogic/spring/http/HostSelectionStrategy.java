@@ -0,0 +1,22 @@
+package com.marklogic.spring.http;
+
+/**
+ * How HostSelector chooses a host for each request.
+ */
+public enum HostSelectionStrategy {
+
+	/**
+	 * Cycle through the available hosts.
+	 */
+	ROUND_ROBIN,
+
+	/**
+	 * Choose the available host with the fewest requests in flight.
+	 */
+	LEAST_IN_FLIGHT,
+
+	/**
+	 * Choose the better of two random available hosts, based on recent response latency and requests in flight.
+	 */
+	LATENCY_WEIGHTED
+}
@@ -0,0 +1,256 @@
+package com.marklogic.spring.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Chooses which host of a MarkLogic cluster each request is sent to, and tracks the health of each host. A host is
+ * ejected after a number of consecutive failed requests - or a failed health check - and becomes available again once
+ * its ejection period ends, at which point the next request to it serves as a trial. Each further ejection doubles the
+ * period, up to 5 minutes. If every host is ejected, the one whose ejection ends first is chosen rather than failing
+ * outright.
+ */
+public class HostSelector {
+
+	private final static long MAX_EJECTION_MILLIS = 5 * 60 * 1000;
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final List<HostState> hostStates;
+	private final Map<String, HostState> hostStatesByName = new LinkedHashMap<>();
+	private final HostSelectionStrategy strategy;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	private int failureThreshold = 3;
+	private long ejectionMillis = 10000;
+	private ScheduledExecutorService healthCheckExecutor;
+
+	public HostSelector(List<String> hosts, HostSelectionStrategy strategy) {
+		if (hosts == null || hosts.isEmpty()) {
+			throw new IllegalArgumentException("At least one host is required");
+		}
+		List<HostState> states = new ArrayList<>();
+		for (String host : hosts) {
+			HostState state = new HostState(host);
+			states.add(state);
+			hostStatesByName.put(host, state);
+		}
+		this.hostStates = Collections.unmodifiableList(states);
+		this.strategy = strategy != null ? strategy : HostSelectionStrategy.ROUND_ROBIN;
+	}
+
+	/**
+	 * @return the host that the next request should be sent to
+	 */
+	public String select() {
+		long now = System.nanoTime();
+		List<HostState> available = new ArrayList<>(hostStates.size());
+		for (HostState state : hostStates) {
+			if (state.isAvailable(now)) {
+				available.add(state);
+			}
+		}
+		if (available.isEmpty()) {
+			HostState soonest = hostStates.get(0);
+			for (HostState state : hostStates) {
+				if (state.ejectedUntilNanos - soonest.ejectedUntilNanos < 0) {
+					soonest = state;
+				}
+			}
+			return soonest.host;
+		}
+		if (available.size() == 1) {
+			return available.get(0).host;
+		}
+
+		switch (strategy) {
+			case LEAST_IN_FLIGHT:
+				// Start at a rotating index so that ties don't all go to the first host
+				int start = Math.abs(nextIndex.getAndIncrement() % available.size());
+				HostState least = available.get(start);
+				for (int i = 1; i < available.size(); i++) {
+					HostState state = available.get((start + i) % available.size());
+					if (state.inFlight.get() < least.inFlight.get()) {
+						least = state;
+					}
+				}
+				return least.host;
+			case LATENCY_WEIGHTED:
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int first = random.nextInt(available.size());
+				int second = random.nextInt(available.size() - 1);
+				if (second >= first) {
+					second++;
+				}
+				HostState a = available.get(first);
+				HostState b = available.get(second);
+				return a.cost() <= b.cost() ? a.host : b.host;
+			default:
+				return available.get(Math.abs(nextIndex.getAndIncrement() % available.size())).host;
+		}
+	}
+
+	public void requestStarted(String host) {
+		HostState state = hostStatesByName.get(host);
+		if (state != null) {
+			state.inFlight.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param host
+	 * @param latencyNanos how long it took for MarkLogic to respond
+	 * @param success      false if the host couldn't be reached or responded with a status that indicates it's
+	 *                     unhealthy
+	 */
+	public void requestCompleted(String host, long latencyNanos, boolean success) {
+		HostState state = hostStatesByName.get(host);
+		if (state == null) {
+			return;
+		}
+		state.inFlight.decrementAndGet();
+		if (success) {
+			state.recordLatency(latencyNanos);
+			markHealthy(state);
+		} else if (state.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			eject(state);
+		}
+	}
+
+	/**
+	 * Starts a background thread that checks every host at the given interval. A failed check ejects a host right
+	 * away, and a successful check makes an ejected host available again.
+	 *
+	 * @param healthCheck    returns true if the given host is healthy
+	 * @param intervalMillis
+	 */
+	public synchronized void startHealthChecks(Predicate<String> healthCheck, long intervalMillis) {
+		if (healthCheckExecutor != null || intervalMillis <= 0) {
+			return;
+		}
+		healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "marklogic-host-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		healthCheckExecutor.scheduleWithFixedDelay(() -> {
+			for (HostState state : hostStates) {
+				boolean healthy;
+				try {
+					healthy = healthCheck.test(state.host);
+				} catch (RuntimeException ex) {
+					healthy = false;
+				}
+				if (healthy) {
+					markHealthy(state);
+				} else {
+					eject(state);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (healthCheckExecutor != null) {
+			healthCheckExecutor.shutdownNow();
+			healthCheckExecutor = null;
+		}
+	}
+
+	protected void markHealthy(HostState state) {
+		state.consecutiveFailures.set(0);
+		synchronized (state) {
+			if (state.ejections > 0) {
+				if (logger.isInfoEnabled()) {
+					logger.info("Host is available again: " + state.host);
+				}
+				state.ejections = 0;
+				state.ejectedUntilNanos = System.nanoTime();
+			}
+		}
+	}
+
+	protected void eject(HostState state) {
+		synchronized (state) {
+			long now = System.nanoTime();
+			if (state.ejections > 0 && !state.isAvailable(now)) {
+				return;
+			}
+			long millis = Math.min(MAX_EJECTION_MILLIS, ejectionMillis << Math.min(state.ejections, 16));
+			state.ejections++;
+			state.ejectedUntilNanos = now + millis * 1000000L;
+			state.consecutiveFailures.set(0);
+			if (logger.isWarnEnabled()) {
+				logger.warn(String.format("Ejecting host %s for %d ms", state.host, millis));
+			}
+		}
+	}
+
+	public boolean isAvailable(String host) {
+		HostState state = hostStatesByName.get(host);
+		return state != null && state.isAvailable(System.nanoTime());
+	}
+
+	public int getInFlight(String host) {
+		HostState state = hostStatesByName.get(host);
+		return state != null ? state.inFlight.get() : 0;
+	}
+
+	public List<String> getHosts() {
+		return new ArrayList<>(hostStatesByName.keySet());
+	}
+
+	public HostSelectionStrategy getStrategy() {
+		return strategy;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public void setEjectionMillis(long ejectionMillis) {
+		this.ejectionMillis = ejectionMillis;
+	}
+
+	static class HostState {
+
+		final String host;
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger consecutiveFailures = new AtomicInteger();
+		volatile long ejectedUntilNanos = System.nanoTime();
+		volatile double averageLatencyNanos;
+		int ejections;
+
+		HostState(String host) {
+			this.host = host;
+		}
+
+		boolean isAvailable(long now) {
+			return now - ejectedUntilNanos >= 0;
+		}
+
+		/**
+		 * Exponentially weighted, so that recent responses count the most.
+		 */
+		void recordLatency(long latencyNanos) {
+			double average = averageLatencyNanos;
+			averageLatencyNanos = average == 0 ? latencyNanos : average * 0.8 + latencyNanos * 0.2;
+		}
+
+		double cost() {
+			return (averageLatencyNanos + 1) * (inFlight.get() + 1);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.marklogic.spring.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a multipart response - such as the multipart/mixed response to a multi-document GET /v1/documents - one part
+ * at a time, without buffering the body of a part. The body of each part must be read or abandoned before moving to
+ * the next one; calling next skips whatever hasn't been read.
+ * <p>
+ * The stream being read is not closed by this class; that's up to whatever opened it.
+ */
+public class MultipartReader implements Closeable {
+
+	private final static int MAX_HEADER_LINE_LENGTH = 8192;
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private boolean finished;
+	private PartInputStream currentPart;
+
+	/**
+	 * @param in
+	 * @param boundary see extractBoundary
+	 */
+	public MultipartReader(InputStream in, String boundary) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buffer = new byte[Math.max(8192, delimiter.length * 4)];
+		// The first delimiter doesn't need to be preceded by a line break, so pretend that it is; anything before it
+		// is then read as a preamble part and skipped
+		this.buffer[0] = '\r';
+		this.buffer[1] = '\n';
+		this.limit = 2;
+		this.currentPart = new PartInputStream();
+	}
+
+	/**
+	 * @param contentType
+	 * @return the boundary parameter of a multipart content type, or null if it doesn't have one
+	 */
+	public static String extractBoundary(MediaType contentType) {
+		if (contentType == null || !"multipart".equalsIgnoreCase(contentType.getType())) {
+			return null;
+		}
+		String boundary = contentType.getParameter("boundary");
+		if (boundary != null && boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+			boundary = boundary.substring(1, boundary.length() - 1);
+		}
+		return boundary;
+	}
+
+	/**
+	 * @return the next part, or null if there are no more
+	 * @throws IOException
+	 */
+	public Part next() throws IOException {
+		if (finished) {
+			return null;
+		}
+		currentPart.skipRemaining();
+		if (finished) {
+			return null;
+		}
+
+		// After a delimiter, "--" marks the end; otherwise, the rest of the line is ignored
+		if (!ensure(2)) {
+			finished = true;
+			return null;
+		}
+		if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+			finished = true;
+			return null;
+		}
+		readLine();
+
+		HttpHeaders headers = new HttpHeaders();
+		String line;
+		while ((line = readLine()) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+		currentPart = new PartInputStream();
+		return new Part(headers, currentPart);
+	}
+
+	@Override
+	public void close() {
+		finished = true;
+	}
+
+	/**
+	 * @return the line without its line break, or null if the stream ended first
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		while (true) {
+			if (!ensure(1)) {
+				return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+			}
+			byte b = buffer[pos++];
+			if (b == '\n') {
+				byte[] bytes = line.toByteArray();
+				int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+				return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+			}
+			line.write(b);
+			if (line.size() > MAX_HEADER_LINE_LENGTH) {
+				throw new IOException("Multipart header line is longer than " + MAX_HEADER_LINE_LENGTH + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Reads until at least the given number of bytes are available in the buffer, or the stream ends.
+	 *
+	 * @return true if the bytes are available
+	 */
+	private boolean ensure(int count) throws IOException {
+		if (limit - pos >= count) {
+			return true;
+		}
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (!eof && limit < count) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+		return limit - pos >= count;
+	}
+
+	private int indexOfDelimiter() {
+		int last = limit - delimiter.length;
+		outer:
+		for (int i = pos; i <= last; i++) {
+			if (buffer[i] != delimiter[0]) {
+				continue;
+			}
+			for (int j = 1; j < delimiter.length; j++) {
+				if (buffer[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the body of the current part, ending at the next delimiter.
+	 */
+	private class PartInputStream extends InputStream {
+
+		private boolean done;
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			ensure(delimiter.length);
+			int index = indexOfDelimiter();
+			int available;
+			if (index == pos) {
+				pos += delimiter.length;
+				done = true;
+				return -1;
+			} else if (index > pos) {
+				available = index - pos;
+			} else if (eof) {
+				// The closing delimiter is missing, so the rest of the stream is this part
+				available = limit - pos;
+				if (available == 0) {
+					done = true;
+					finished = true;
+					return -1;
+				}
+			} else {
+				// Hold back anything that could be the start of a delimiter
+				available = limit - pos - (delimiter.length - 1);
+			}
+			int count = Math.min(len, available);
+			System.arraycopy(buffer, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		void skipRemaining() throws IOException {
+			byte[] skipBuffer = new byte[1024];
+			while (read(skipBuffer, 0, skipBuffer.length) != -1) {
+			}
+		}
+	}
+
+	/**
+	 * A single part of a multipart body.
+	 */
+	public static class Part {
+
+		private final HttpHeaders headers;
+		private final InputStream body;
+
+		Part(HttpHeaders headers, InputStream body) {
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return the body of this part; only valid until the next part is read
+		 */
+		public InputStream getBody() {
+			return body;
+		}
+
+		/**
+		 * @return the filename parameter of the Content-Disposition header, which MarkLogic sets to the URI of the
+		 * document in the part
+		 */
+		public String getFileName() {
+			String disposition = headers.getFirst("Content-Disposition");
+			if (disposition == null) {
+				return null;
+			}
+			int start = disposition.indexOf("filename=");
+			if (start < 0) {
+				return null;
+			}
+			start += "filename=".length();
+			if (start < disposition.length() && disposition.charAt(start) == '"') {
+				int end = disposition.indexOf('"', start + 1);
+				return disposition.substring(start + 1, end > start ? end : disposition.length());
+			}
+			int end = disposition.indexOf(';', start);
+			return disposition.substring(start, end > 0 ? end : disposition.length()).trim();
+		}
+	}
+}
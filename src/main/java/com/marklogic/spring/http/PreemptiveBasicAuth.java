@@ -0,0 +1,210 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.message.BufferedHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.CharArrayBuffer;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends Basic credentials with the first request to a MarkLogic app server instead of waiting for a 401, which halves
+ * the round trips for each new connection. Each request gets a new HttpClientContext whose AuthCache holds a Basic
+ * scheme for the target host; HttpClient then authenticates the request with the credentials of the current user, and
+ * the Authorization header value for that user is computed once and cached.
+ * <p>
+ * This is only used by DefaultRestOperationsFactory for app servers that AuthSchemeDiscovery has found to use basic
+ * authentication, so credentials are never sent to an app server that expects digest. If MarkLogic challenges a
+ * preemptively authenticated request anyway - e.g. because the app server was reconfigured - HttpClient answers the
+ * challenge as usual and the discovered scheme is updated, so subsequent requests are no longer sent preemptively.
+ * <p>
+ * Up to maxSize header values are cached; the cache is cleared when it's full. A cached value is only used if the
+ * user's password hasn't changed, which is checked against a salted hash of the password rather than the password
+ * itself.
+ */
+public class PreemptiveBasicAuth {
+
+	private final int maxSize;
+	private final Charset charset;
+	private final ConcurrentMap<String, CachedHeader> headers = new ConcurrentHashMap<>();
+	private final byte[] salt = new byte[16];
+
+	private final AtomicLong preemptiveRequests = new AtomicLong();
+
+	public PreemptiveBasicAuth() {
+		this(10000, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param maxSize the number of users whose header values are cached
+	 * @param charset used to encode usernames and passwords; defaults to ASCII, as HttpClient's BasicScheme does
+	 */
+	public PreemptiveBasicAuth(int maxSize, Charset charset) {
+		this.maxSize = maxSize;
+		this.charset = charset;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * @param host the MarkLogic host that the request is being sent to
+	 * @return a new context for a single request
+	 */
+	public HttpClientContext newContext(HttpHost host) {
+		AuthCache authCache = new RequestAuthCache();
+		authCache.put(host, new CachedBasicScheme(this));
+		HttpClientContext context = HttpClientContext.create();
+		context.setAuthCache(authCache);
+		preemptiveRequests.incrementAndGet();
+		return context;
+	}
+
+	/**
+	 * @param credentials
+	 * @return the value of the Authorization header for the credentials, computed once per user
+	 */
+	protected String getHeaderValue(Credentials credentials) {
+		String username = credentials.getUserPrincipal().getName();
+		String password = credentials.getPassword();
+		byte[] passwordHash = hash(password);
+		CachedHeader cached = headers.get(username);
+		if (cached == null || !MessageDigest.isEqual(cached.passwordHash, passwordHash)) {
+			String token = username + ":" + (password != null ? password : "null");
+			cached = new CachedHeader(passwordHash,
+				"Basic " + Base64.getEncoder().encodeToString(token.getBytes(charset)));
+			if (headers.size() >= maxSize) {
+				headers.clear();
+			}
+			headers.put(username, cached);
+		}
+		return cached.value;
+	}
+
+	/**
+	 * @param password
+	 * @return a salted hash of the password, with null hashed differently from every string
+	 */
+	private byte[] hash(String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			if (password == null) {
+				return digest.digest();
+			}
+			digest.update((byte) 0);
+			return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("Unable to hash password, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	public void clear() {
+		headers.clear();
+	}
+
+	/**
+	 * @return how many requests have been sent with preemptive Basic credentials
+	 */
+	public long getPreemptiveRequests() {
+		return preemptiveRequests.get();
+	}
+
+	private static class CachedHeader {
+		private final byte[] passwordHash;
+		private final String value;
+
+		CachedHeader(byte[] passwordHash, String value) {
+			this.passwordHash = passwordHash;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * BasicAuthCache serializes the schemes it holds, which a scheme that refers to this class's cached header values
+	 * can't be; this cache only lives as long as a single request, so it holds schemes as they are.
+	 */
+	private static class RequestAuthCache implements AuthCache {
+
+		private final Map<HttpHost, AuthScheme> schemes = new HashMap<>(4);
+
+		@Override
+		public void put(HttpHost host, AuthScheme authScheme) {
+			schemes.put(normalize(host), authScheme);
+		}
+
+		@Override
+		public AuthScheme get(HttpHost host) {
+			return schemes.get(normalize(host));
+		}
+
+		@Override
+		public void remove(HttpHost host) {
+			schemes.remove(normalize(host));
+		}
+
+		@Override
+		public void clear() {
+			schemes.clear();
+		}
+
+		private HttpHost normalize(HttpHost host) {
+			if (host.getPort() >= 0) {
+				return host;
+			}
+			try {
+				return new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host),
+					host.getSchemeName());
+			} catch (UnsupportedSchemeException ex) {
+				return host;
+			}
+		}
+	}
+
+	/**
+	 * A Basic scheme that uses the cached header value instead of encoding the credentials for every request.
+	 */
+	private static class CachedBasicScheme extends BasicScheme {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient PreemptiveBasicAuth preemptiveBasicAuth;
+
+		CachedBasicScheme(PreemptiveBasicAuth preemptiveBasicAuth) {
+			this.preemptiveBasicAuth = preemptiveBasicAuth;
+		}
+
+		@Override
+		public Header authenticate(Credentials credentials, HttpRequest request, HttpContext context)
+			throws AuthenticationException {
+			if (preemptiveBasicAuth == null || credentials == null || credentials.getUserPrincipal() == null) {
+				return super.authenticate(credentials, request, context);
+			}
+			String value = preemptiveBasicAuth.getHeaderValue(credentials);
+			CharArrayBuffer buffer = new CharArrayBuffer(AUTH.WWW_AUTH_RESP.length() + 2 + value.length());
+			buffer.append(AUTH.WWW_AUTH_RESP);
+			buffer.append(": ");
+			buffer.append(value);
+			return new BufferedHeader(buffer);
+		}
+	}
+}
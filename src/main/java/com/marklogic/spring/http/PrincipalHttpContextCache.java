@@ -0,0 +1,213 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.AuthenticationStrategy;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.TargetAuthenticationStrategy;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps HttpClient authentication state - primarily a cached digest scheme, along with its nonce - for each principal
+ * that sends requests through a RestOperations built by DefaultRestOperationsFactory. Each request gets a new
+ * HttpClientContext that shares the AuthCache of the principal it's sent on behalf of, so once a user has been
+ * challenged by MarkLogic, that user's subsequent requests authenticate preemptively instead of receiving another 401.
+ * <p>
+ * Up to maxSize principals are tracked; state that hasn't been used within timeToLiveMillis is discarded, and if the
+ * cache is still full, the state of the least recently used principal is discarded.
+ */
+public class PrincipalHttpContextCache {
+
+	private static final String PREEMPTIVE_ATTRIBUTE = PrincipalHttpContextCache.class.getName() + ".preemptive";
+
+	private final int maxSize;
+	private final long timeToLiveNanos;
+
+	private boolean bindConnectionsToPrincipal = false;
+
+	private final ConcurrentMap<String, PrincipalState> states = new ConcurrentHashMap<>();
+
+	private final AtomicLong preemptiveRequests = new AtomicLong();
+	private final AtomicLong preemptiveRequestsChallenged = new AtomicLong();
+	private final AtomicLong challenges = new AtomicLong();
+
+	public PrincipalHttpContextCache() {
+		this(10000, 30 * 60 * 1000L);
+	}
+
+	public PrincipalHttpContextCache(int maxSize, long timeToLiveMillis) {
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = timeToLiveMillis * 1000000L;
+	}
+
+	/**
+	 * @param principal the name of the user that the request is being sent on behalf of; may be null, in which case a
+	 *                  context without any cached authentication state is returned
+	 * @param host      the MarkLogic host that the request is being sent to
+	 * @return a new context for a single request
+	 */
+	public HttpClientContext newContext(String principal, HttpHost host) {
+		HttpClientContext context = HttpClientContext.create();
+		if (principal == null) {
+			return context;
+		}
+
+		PrincipalState state = getState(principal);
+		context.setAuthCache(state.authCache);
+		if (bindConnectionsToPrincipal) {
+			context.setUserToken(principal);
+		}
+		if (state.authCache.hasScheme(host)) {
+			preemptiveRequests.incrementAndGet();
+			context.setAttribute(PREEMPTIVE_ATTRIBUTE, Boolean.TRUE);
+		}
+		return context;
+	}
+
+	/**
+	 * @return an AuthenticationStrategy that must be used by the HttpClient that executes requests with contexts from
+	 * this class so that challenges can be counted
+	 */
+	public AuthenticationStrategy newAuthenticationStrategy() {
+		return new TargetAuthenticationStrategy() {
+			@Override
+			public boolean isAuthenticationRequested(HttpHost authhost, HttpResponse response, HttpContext context) {
+				boolean requested = super.isAuthenticationRequested(authhost, response, context);
+				if (requested) {
+					challenges.incrementAndGet();
+					if (context.removeAttribute(PREEMPTIVE_ATTRIBUTE) != null) {
+						preemptiveRequestsChallenged.incrementAndGet();
+					}
+				}
+				return requested;
+			}
+		};
+	}
+
+	protected PrincipalState getState(String principal) {
+		long now = System.nanoTime();
+		PrincipalState state = states.get(principal);
+		if (state != null && now - state.lastAccess > timeToLiveNanos) {
+			states.remove(principal, state);
+			state = null;
+		}
+		if (state == null) {
+			if (states.size() >= maxSize) {
+				evict(now);
+			}
+			PrincipalState newState = new PrincipalState();
+			state = states.putIfAbsent(principal, newState);
+			if (state == null) {
+				state = newState;
+			}
+		}
+		state.lastAccess = now;
+		return state;
+	}
+
+	/**
+	 * Only invoked when the cache is full, so a scan of the entries is acceptable.
+	 *
+	 * @param now
+	 */
+	protected void evict(long now) {
+		String eldestPrincipal = null;
+		long eldestAccess = now;
+		for (Iterator<Map.Entry<String, PrincipalState>> iter = states.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<String, PrincipalState> entry = iter.next();
+			long lastAccess = entry.getValue().lastAccess;
+			if (now - lastAccess > timeToLiveNanos) {
+				iter.remove();
+			} else if (eldestPrincipal == null || lastAccess - eldestAccess < 0) {
+				eldestAccess = lastAccess;
+				eldestPrincipal = entry.getKey();
+			}
+		}
+		if (states.size() >= maxSize && eldestPrincipal != null) {
+			states.remove(eldestPrincipal);
+		}
+	}
+
+	public void clear() {
+		states.clear();
+	}
+
+	public int size() {
+		return states.size();
+	}
+
+	/**
+	 * @return the number of requests that reused cached authentication state and were not challenged by MarkLogic
+	 */
+	public long getChallengesAvoided() {
+		return preemptiveRequests.get() - preemptiveRequestsChallenged.get();
+	}
+
+	/**
+	 * @return the number of 401 challenges received from MarkLogic
+	 */
+	public long getChallenges() {
+		return challenges.get();
+	}
+
+	/**
+	 * If true, the name of the principal is used as the HttpClient user token, which results in pooled connections
+	 * only being reused for requests on behalf of the same principal. MarkLogic authenticates each request rather than
+	 * each connection, so this defaults to false to avoid churning connections when many users are active.
+	 *
+	 * @param bindConnectionsToPrincipal
+	 */
+	public void setBindConnectionsToPrincipal(boolean bindConnectionsToPrincipal) {
+		this.bindConnectionsToPrincipal = bindConnectionsToPrincipal;
+	}
+
+	public boolean isBindConnectionsToPrincipal() {
+		return bindConnectionsToPrincipal;
+	}
+
+	protected static class PrincipalState {
+		private final PrincipalAuthCache authCache = new PrincipalAuthCache();
+		private volatile long lastAccess;
+	}
+
+	/**
+	 * BasicAuthCache serializes each scheme, so this tracks which hosts have a scheme without having to deserialize it.
+	 */
+	protected static class PrincipalAuthCache extends BasicAuthCache {
+
+		private final Map<HttpHost, Boolean> hosts = new ConcurrentHashMap<>();
+
+		@Override
+		public void put(HttpHost host, AuthScheme authScheme) {
+			super.put(host, authScheme);
+			if (authScheme != null) {
+				hosts.put(getKey(host), Boolean.TRUE);
+			}
+		}
+
+		@Override
+		public void remove(HttpHost host) {
+			super.remove(host);
+			hosts.remove(getKey(host));
+		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			hosts.clear();
+		}
+
+		public boolean hasScheme(HttpHost host) {
+			return hosts.containsKey(getKey(host));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps a non-repeatable request entity, such as a request body streamed from a servlet request, and records the
+ * bytes as they're sent the first time so that the entity can be sent again. Up to the memory threshold is kept on
+ * the heap; beyond that, the recording is spilled to a temporary file. Call discard() once the request is done to
+ * delete that file.
+ */
+public class ReplayableRequestEntity extends HttpEntityWrapper {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final int memoryThreshold;
+	private final File directory;
+
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private File spillFile;
+	private OutputStream spillOutput;
+	private boolean started;
+	private boolean recorded;
+
+	/**
+	 * @param wrappedEntity
+	 * @param memoryThreshold
+	 * @param directory       where to create the temporary file; null means the default temporary directory
+	 */
+	public ReplayableRequestEntity(HttpEntity wrappedEntity, int memoryThreshold, File directory) {
+		super(wrappedEntity);
+		this.memoryThreshold = memoryThreshold;
+		this.directory = directory;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !recorded && super.isStreaming();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		if (recorded) {
+			return memory != null ? new ByteArrayInputStream(memory.toByteArray()) : new FileInputStream(spillFile);
+		}
+		return super.getContent();
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		if (recorded) {
+			try (InputStream in = getContent()) {
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					outStream.write(buffer, 0, count);
+				}
+			}
+			return;
+		}
+		if (started) {
+			throw new IOException("Unable to replay request body, as it was not completely sent on the previous attempt");
+		}
+		started = true;
+		wrappedEntity.writeTo(new RecordingOutputStream(outStream));
+		if (spillOutput != null) {
+			spillOutput.close();
+			spillOutput = null;
+		}
+		recorded = true;
+	}
+
+	/**
+	 * Releases the recording, deleting the temporary file if one was created.
+	 */
+	public void discard() {
+		memory = null;
+		if (spillOutput != null) {
+			try {
+				spillOutput.close();
+			} catch (IOException ex) {
+				// Nothing else to do with it
+			}
+			spillOutput = null;
+		}
+		if (spillFile != null) {
+			if (!spillFile.delete() && logger.isWarnEnabled()) {
+				logger.warn("Unable to delete temporary request body file: " + spillFile);
+			}
+			spillFile = null;
+		}
+	}
+
+	protected void record(byte[] b, int off, int len) throws IOException {
+		if (spillOutput == null && memory.size() + len > memoryThreshold) {
+			spillFile = File.createTempFile("ml-request-body", ".tmp", directory);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Spilling request body to temporary file: " + spillFile);
+			}
+			spillOutput = new BufferedOutputStream(new FileOutputStream(spillFile));
+			memory.writeTo(spillOutput);
+			memory = null;
+		}
+		if (spillOutput != null) {
+			spillOutput.write(b, off, len);
+		} else {
+			memory.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Records each write before passing it on, so that anything that was sent is also in the recording.
+	 */
+	private class RecordingOutputStream extends FilterOutputStream {
+
+		public RecordingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			record(b, off, len);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// The connection owns the underlying stream
+			flush();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decorates HttpClient's main execution chain, which is where authentication challenges are answered by resending a
+ * request, so that a non-repeatable request entity is recorded while it's sent and can be resent. The recording is
+ * discarded once the request has been sent, so it's kept no longer than the exchange that needs it.
+ */
+class RequestBodyReplayExec implements ClientExecChain {
+
+	private final ClientExecChain mainExec;
+	private final int memoryThreshold;
+	private final File directory;
+
+	RequestBodyReplayExec(ClientExecChain mainExec, int memoryThreshold, File directory) {
+		this.mainExec = mainExec;
+		this.memoryThreshold = memoryThreshold;
+		this.directory = directory;
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+	                                     HttpExecutionAware execAware) throws IOException, HttpException {
+		ReplayableRequestEntity replayableEntity = null;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = entityRequest.getEntity();
+			if (entity != null && !entity.isRepeatable()) {
+				replayableEntity = new ReplayableRequestEntity(entity, memoryThreshold, directory);
+				entityRequest.setEntity(replayableEntity);
+			}
+		}
+		try {
+			return mainExec.execute(route, request, context, execAware);
+		} finally {
+			if (replayableEntity != null) {
+				replayableEntity.discard();
+			}
+		}
+	}
+}
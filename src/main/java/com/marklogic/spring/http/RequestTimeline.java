@@ -0,0 +1,144 @@
+package com.marklogic.spring.http;
+
+/**
+ * Records how long each phase of a request to MarkLogic took: waiting for a pooled connection, connecting - including
+ * the TLS handshake - answering authentication challenges, sending the request and its body, waiting for the first
+ * byte of the response, and transferring the response body. A timeline is bound to the current thread via begin, so that the connection manager and request
+ * executor of the HttpClients built by DefaultRestOperationsFactory can add to it without anything being passed through
+ * RestOperations; when no timeline is bound, they record nothing.
+ * <p>
+ * Durations accumulate, so a retried request reports the total time spent in each phase across every attempt. All
+ * times are from System.nanoTime.
+ */
+public class RequestTimeline {
+
+	public enum Phase {
+
+		POOL_LEASE("pool"),
+		CONNECT("connect"),
+		AUTH_CHALLENGE("auth"),
+		SEND("send"),
+		TTFB("ttfb"),
+		BODY("body"),
+		TOTAL("total");
+
+		private final String metricName;
+
+		Phase(String metricName) {
+			this.metricName = metricName;
+		}
+
+		/**
+		 * @return the short name used in the Server-Timing header and in log lines
+		 */
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	private final static ThreadLocal<RequestTimeline> CURRENT = new ThreadLocal<>();
+
+	private final long startNanos;
+	private final long[] nanos = new long[Phase.values().length];
+	private long bodyStartNanos;
+	private long lastChallengeNanos;
+	private boolean sampled;
+
+	public RequestTimeline(long startNanos) {
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 * Binds a new timeline to the current thread; end must be called on the same thread to unbind it.
+	 *
+	 * @param startNanos
+	 * @return
+	 */
+	public static RequestTimeline begin(long startNanos) {
+		RequestTimeline timeline = new RequestTimeline(startNanos);
+		CURRENT.set(timeline);
+		return timeline;
+	}
+
+	/**
+	 * @return the timeline bound to the current thread, or null if none is
+	 */
+	public static RequestTimeline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Computes the body and total durations and unbinds this timeline from the current thread.
+	 *
+	 * @param endNanos
+	 */
+	public void end(long endNanos) {
+		if (CURRENT.get() == this) {
+			CURRENT.remove();
+		}
+		if (bodyStartNanos != 0) {
+			nanos[Phase.BODY.ordinal()] = endNanos - bodyStartNanos;
+		}
+		nanos[Phase.TOTAL.ordinal()] = endNanos - startNanos;
+	}
+
+	public void add(Phase phase, long durationNanos) {
+		nanos[phase.ordinal()] += durationNanos;
+	}
+
+	/**
+	 * Adds a round trip that ended in a 401 to the authentication challenge phase. Whether the request is sent again
+	 * with credentials isn't known yet; if it isn't, rejected moves the round trip to time to first byte.
+	 *
+	 * @param durationNanos
+	 */
+	public void addChallenge(long durationNanos) {
+		add(Phase.AUTH_CHALLENGE, durationNanos);
+		this.lastChallengeNanos = durationNanos;
+	}
+
+	/**
+	 * Called when the final response from MarkLogic is a 401, i.e. the credentials were rejected rather than a
+	 * challenge answered; the last round trip is then counted as time to first byte instead.
+	 */
+	public void rejected() {
+		nanos[Phase.AUTH_CHALLENGE.ordinal()] -= lastChallengeNanos;
+		nanos[Phase.TTFB.ordinal()] += lastChallengeNanos;
+		lastChallengeNanos = 0;
+	}
+
+	/**
+	 * Marks the point at which the response headers have been handled and the body starts being transferred.
+	 *
+	 * @param nowNanos
+	 */
+	public void markBodyStart(long nowNanos) {
+		this.bodyStartNanos = nowNanos;
+	}
+
+	/**
+	 * @return when the body started being transferred, or 0 if markBodyStart hasn't been called
+	 */
+	public long getBodyStartNanos() {
+		return bodyStartNanos;
+	}
+
+	public long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * @return whether this request was chosen to be logged; see RequestTiming
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	public void setSampled(boolean sampled) {
+		this.sampled = sampled;
+	}
+}
@@ -0,0 +1,197 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Decorates HttpClient's protocol execution chain - the same place that HttpClient's own retry handler sits, which
+ * is disabled when this is used - to retry idempotent requests after a connection failure or a 503, and to fail fast
+ * for hosts whose CircuitBreaker is open.
+ * <p>
+ * A request is only retried if its entity is repeatable. A streamed request body isn't, even when request body replay
+ * is enabled, as the recording only lasts for a single exchange and the servlet request it came from has been read.
+ * Read timeouts aren't retried either, as resending a slow request to a slow MarkLogic only adds to its load.
+ */
+class ResilientExec implements ClientExecChain {
+
+	private final static Logger logger = LoggerFactory.getLogger(ResilientExec.class);
+
+	private final ClientExecChain requestExecutor;
+	private final int maxRetries;
+	private final long backoffMillis;
+	private final long maxBackoffMillis;
+	private final RetryBudget retryBudget;
+	private final Function<String, CircuitBreaker> circuitBreakers;
+
+	/**
+	 * @param requestExecutor
+	 * @param maxRetries
+	 * @param backoffMillis
+	 * @param maxBackoffMillis
+	 * @param retryBudget
+	 * @param circuitBreakers  returns the circuit breaker for a host, or null if circuit breaking is disabled
+	 */
+	ResilientExec(ClientExecChain requestExecutor, int maxRetries, long backoffMillis, long maxBackoffMillis,
+	              RetryBudget retryBudget, Function<String, CircuitBreaker> circuitBreakers) {
+		this.requestExecutor = requestExecutor;
+		this.maxRetries = maxRetries;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.retryBudget = retryBudget;
+		this.circuitBreakers = circuitBreakers;
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+	                                     HttpExecutionAware execAware) throws IOException, HttpException {
+		String host = route.getTargetHost().toHostString();
+		CircuitBreaker circuitBreaker = circuitBreakers.apply(host);
+		boolean retryable = maxRetries > 0 && isIdempotent(request) && isRepeatable(request);
+		if (maxRetries > 0) {
+			retryBudget.deposit();
+		}
+		// The protocol chain adds cookies, default headers, and authorization to the wrapper on each attempt, so - as
+		// with HttpClient's RetryExec - the original headers are restored before a retry
+		Header[] originalHeaders = request.getAllHeaders();
+
+		for (int attempt = 0; ; attempt++) {
+			if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+				throw new CircuitBreakerOpenException(host);
+			}
+
+			CloseableHttpResponse response;
+			try {
+				response = requestExecutor.execute(route, request, context, execAware);
+			} catch (IOException ex) {
+				if (circuitBreaker != null) {
+					circuitBreaker.recordFailure();
+				}
+				if (!retryable || !isRetryable(ex) || attempt >= maxRetries || isAborted(execAware)
+					|| !retryBudget.tryWithdraw()) {
+					throw ex;
+				}
+				if (logger.isInfoEnabled()) {
+					logger.info(String.format("Retrying %s %s after failure: %s", request.getMethod(),
+						request.getURI(), ex.getMessage()));
+				}
+				backOff(attempt, -1);
+				request.setHeaders(originalHeaders);
+				continue;
+			} catch (HttpException | RuntimeException ex) {
+				if (circuitBreaker != null) {
+					circuitBreaker.recordFailure();
+				}
+				throw ex;
+			}
+
+			int status = response.getStatusLine().getStatusCode();
+			if (circuitBreaker != null) {
+				if (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+					|| status == HttpStatus.SC_GATEWAY_TIMEOUT) {
+					circuitBreaker.recordFailure();
+				} else {
+					circuitBreaker.recordSuccess();
+				}
+			}
+			if (status != HttpStatus.SC_SERVICE_UNAVAILABLE || !retryable || attempt >= maxRetries
+				|| isAborted(execAware)) {
+				return response;
+			}
+			long retryAfterMillis = determineRetryAfterMillis(response);
+			if (retryAfterMillis > maxBackoffMillis || !retryBudget.tryWithdraw()) {
+				return response;
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info(String.format("Retrying %s %s after a 503", request.getMethod(), request.getURI()));
+			}
+			try {
+				EntityUtils.consume(response.getEntity());
+			} finally {
+				response.close();
+			}
+			backOff(attempt, retryAfterMillis);
+			request.setHeaders(originalHeaders);
+		}
+	}
+
+	private boolean isIdempotent(HttpRequestWrapper request) {
+		String method = request.getRequestLine().getMethod();
+		return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+	}
+
+	private boolean isRepeatable(HttpRequestWrapper request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	/**
+	 * Connection failures and resets are retried; unknown hosts, SSL failures, and read timeouts aren't.
+	 */
+	private boolean isRetryable(IOException ex) {
+		if (ex instanceof CircuitBreakerOpenException || ex instanceof UnknownHostException
+			|| ex instanceof SSLException) {
+			return false;
+		}
+		return !(ex instanceof InterruptedIOException) || ex instanceof ConnectTimeoutException;
+	}
+
+	private boolean isAborted(HttpExecutionAware execAware) {
+		return execAware != null && execAware.isAborted();
+	}
+
+	/**
+	 * @return the delay in a Retry-After header given in seconds, or -1 if there isn't one
+	 */
+	private long determineRetryAfterMillis(CloseableHttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header != null) {
+			try {
+				return Long.parseLong(header.getValue().trim()) * 1000;
+			} catch (NumberFormatException ex) {
+				// An HTTP date isn't worth waiting on; fall back to the usual backoff
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Waits a random amount of time up to the exponential backoff for the attempt - "full jitter" - or for the delay
+	 * that MarkLogic asked for, if it's longer.
+	 */
+	private void backOff(int attempt, long retryAfterMillis) throws InterruptedIOException {
+		long ceiling = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt, 20));
+		long delay = Math.max(retryAfterMillis, ThreadLocalRandom.current().nextLong(ceiling + 1));
+		if (delay <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry request");
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.marklogic.spring.http;
 import org.apache.http.client.CredentialsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.web.client.RestOperations;
 
 import java.io.UnsupportedEncodingException;
@@ -13,37 +14,150 @@ import java.net.URLDecoder;
  * Simple class that wraps a RestTemplate and simplifies providing credentials to that RestTemplate and building the URI
  * for a request. A client of this will typically call getRestOperations() and then buildUri, taking the result and
  * passing it to a method in the RestOperations instance.
+ * <p>
+ * A RestClient constructed without a RestOperationsFactory creates its own DefaultRestOperationsFactory - and thus its
+ * own connection pool and reaper thread - which destroy() shuts down. Define it as a Spring bean so that happens
+ * with the application context, or pass in a shared factory when creating many clients.
  */
-public class RestClient {
+public class RestClient implements DisposableBean {
 
 	protected Logger logger = LoggerFactory.getLogger(getClass());
 
 	private RestConfig restConfig;
-	private RestOperations restOperations;
+	private volatile RestOperations restOperations;
+	private DefaultRestOperationsFactory ownedRestOperationsFactory;
+
+	// Only set when the RestOperations is created on first use
+	private RestOperationsFactory restOperationsFactory;
+	private CredentialsProvider credentialsProvider;
 
 	private boolean decodeQuerystring = true;
 	private String encoding = "UTF-8";
+	private RestUriBuilder restUriBuilder;
 
 	/**
 	 * A DefaultRestOperationsFactory is used to construct a RestOperations based on the given RestConfig and
 	 * CredentialsProvider. To customize this behavior, just use the other constructor that allows for a RestOperations
-	 * to be passed in directly.
+	 * to be passed in directly. The factory is owned by this client and is destroyed by destroy().
 	 *
 	 * @param restConfig
 	 * @param credentialsProvider
 	 */
 	public RestClient(RestConfig restConfig, CredentialsProvider credentialsProvider) {
+		this(restConfig, credentialsProvider, false);
+	}
+
+	/**
+	 * Like the constructor above, but for a subclass that may never use the RestOperations - such as one that sends
+	 * most requests some other way - createLazily defers creating it, and thus the connection pool, until
+	 * getRestOperations is first called.
+	 *
+	 * @param restConfig
+	 * @param credentialsProvider
+	 * @param createLazily
+	 */
+	protected RestClient(RestConfig restConfig, CredentialsProvider credentialsProvider, boolean createLazily) {
+		this(restConfig, credentialsProvider, new DefaultRestOperationsFactory(), createLazily);
+	}
+
+	private RestClient(RestConfig restConfig, CredentialsProvider credentialsProvider,
+	                   DefaultRestOperationsFactory restOperationsFactory, boolean createLazily) {
+		this(restConfig, credentialsProvider, (RestOperationsFactory) restOperationsFactory, createLazily);
+		this.ownedRestOperationsFactory = restOperationsFactory;
+	}
+
+	/**
+	 * Use this constructor to share a RestOperationsFactory - and thus its connection pool - across RestClient
+	 * instances.
+	 *
+	 * @param restConfig
+	 * @param credentialsProvider
+	 * @param restOperationsFactory
+	 */
+	public RestClient(RestConfig restConfig, CredentialsProvider credentialsProvider,
+	                  RestOperationsFactory restOperationsFactory) {
+		this(restConfig, credentialsProvider, restOperationsFactory, false);
+	}
+
+	/**
+	 * @param restConfig
+	 * @param credentialsProvider
+	 * @param restOperationsFactory
+	 * @param createLazily if true, the RestOperations isn't created until getRestOperations is first called
+	 */
+	protected RestClient(RestConfig restConfig, CredentialsProvider credentialsProvider,
+	                     RestOperationsFactory restOperationsFactory, boolean createLazily) {
 		this.restConfig = restConfig;
-		this.restOperations = new DefaultRestOperationsFactory().newRestOperations(restConfig, credentialsProvider);
+		if (createLazily) {
+			this.restOperationsFactory = restOperationsFactory;
+			this.credentialsProvider = credentialsProvider;
+		} else {
+			this.restOperations = restOperationsFactory.newRestOperations(restConfig, credentialsProvider);
+		}
+		this.restUriBuilder = newRestUriBuilder(restConfig);
 	}
 
 	public RestClient(RestConfig restConfig, RestOperations restOperations) {
 		this.restConfig = restConfig;
 		this.restOperations = restOperations;
+		this.restUriBuilder = newRestUriBuilder(restConfig);
 	}
 
+	/**
+	 * The RestUriBuilder decodes the querystring itself, so it's not used when a subclass overrides decode.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	private RestUriBuilder newRestUriBuilder(RestConfig restConfig) {
+		for (Class<?> type = getClass(); type != RestClient.class; type = type.getSuperclass()) {
+			try {
+				type.getDeclaredMethod("decode", String.class);
+				return null;
+			} catch (NoSuchMethodException ex) {
+				// Not overridden by this class, so check its superclass
+			}
+		}
+		return new RestUriBuilder(restConfig);
+	}
+
+	/**
+	 * Shuts down the connection pool if this client created its own factory; a factory that was passed in is left
+	 * alone, as other clients may be using it.
+	 */
+	@Override
+	public synchronized void destroy() {
+		restOperationsFactory = null;
+		if (ownedRestOperationsFactory != null) {
+			ownedRestOperationsFactory.destroy();
+			ownedRestOperationsFactory = null;
+		}
+	}
+
+	/**
+	 * @return the factory that this client created for itself, or null if it was given a RestOperations or a factory,
+	 * or has been destroyed
+	 */
+	protected synchronized DefaultRestOperationsFactory getOwnedRestOperationsFactory() {
+		return ownedRestOperationsFactory;
+	}
+
+	/**
+	 * Most URIs are built by a RestUriBuilder, which produces the same URIs as the java.net.URI constructor below
+	 * without re-parsing the scheme, host, and port each time. Anything the builder doesn't handle - such as a
+	 * malformed escape sequence in the querystring - falls back to the constructor so that it fails the same way. If
+	 * a subclass overrides decode, the constructor is always used.
+	 *
+	 * @param path
+	 * @param queryString
+	 * @return
+	 */
 	public URI buildUri(String path, String queryString) {
 		try {
+			URI uri = restUriBuilder != null ? restUriBuilder.build(path, queryString) : null;
+			if (uri != null) {
+				return uri;
+			}
 			/**
 			 * Gotta decode this, the URI constructor will then encode it. The QS will often have encoded text on it
 			 * already, such as for a structured query for a /v1/search request. The text is then decoded here, and then
@@ -61,14 +175,29 @@ public class RestClient {
 
 	protected String decode(String queryString) {
 		try {
-			return queryString != null ? URLDecoder.decode(queryString, "UTF-8") : null;
+			return queryString != null ? URLDecoder.decode(queryString, encoding) : null;
 		} catch (UnsupportedEncodingException ex) {
 			throw new RuntimeException("Unable to decode queryString, cause: " + ex.getMessage(), ex);
 		}
 	}
 
 	public RestOperations getRestOperations() {
-		return restOperations;
+		RestOperations operations = restOperations;
+		if (operations == null) {
+			synchronized (this) {
+				operations = restOperations;
+				if (operations == null) {
+					if (restOperationsFactory == null) {
+						throw new IllegalStateException("Unable to create RestOperations, as the client has been shut down");
+					}
+					operations = restOperationsFactory.newRestOperations(restConfig, credentialsProvider);
+					restOperations = operations;
+					restOperationsFactory = null;
+					credentialsProvider = null;
+				}
+			}
+		}
+		return operations;
 	}
 
 	public boolean isDecodeQuerystring() {
@@ -77,6 +206,9 @@ public class RestClient {
 
 	public void setDecodeQuerystring(boolean decodeQuerystring) {
 		this.decodeQuerystring = decodeQuerystring;
+		if (restUriBuilder != null) {
+			restUriBuilder.setDecodeQuerystring(decodeQuerystring);
+		}
 	}
 
 	public String getEncoding() {
@@ -85,6 +217,9 @@ public class RestClient {
 
 	public void setEncoding(String encoding) {
 		this.encoding = encoding;
+		if (restUriBuilder != null) {
+			restUriBuilder.setEncoding(encoding);
+		}
 	}
 
 	public RestConfig getRestConfig() {
@@ -1,5 +1,8 @@
 package com.marklogic.spring.http;
 
+import java.util.Collections;
+import java.util.List;
+
 public interface RestConfig {
 
     public String getHost();
@@ -9,4 +12,283 @@ public interface RestConfig {
     public String getScheme();
 
     public Boolean isDigestCachingEnabled();
+
+    /**
+     * @return true to send Basic credentials with the first request to an app server that AuthSchemeDiscovery has
+     * found to use basic authentication, instead of waiting for MarkLogic to challenge each new connection
+     */
+    default Boolean isPreemptiveBasicAuth() {
+        return false;
+    }
+
+    /**
+     * The connection pool settings below are used by DefaultRestOperationsFactory. They're default methods so that
+     * existing implementations of this interface don't need to define them.
+     */
+
+    /**
+     * @return the maximum number of pooled connections to a single MarkLogic host
+     */
+    default Integer getMaxConnectionsPerRoute() {
+        return 20;
+    }
+
+    /**
+     * @return the maximum number of pooled connections across all MarkLogic hosts
+     */
+    default Integer getMaxConnectionsTotal() {
+        return 100;
+    }
+
+    /**
+     * @return how long an idle connection may be kept alive when MarkLogic doesn't send a Keep-Alive timeout
+     */
+    default Long getKeepAliveMillis() {
+        return 30000L;
+    }
+
+    /**
+     * @return how long a connection may sit idle in the pool before the background reaper closes it
+     */
+    default Long getIdleConnectionTimeoutMillis() {
+        return 60000L;
+    }
+
+    /**
+     * @return how often the background reaper checks for idle and expired connections
+     */
+    default Long getConnectionReaperIntervalMillis() {
+        return 5000L;
+    }
+
+    /**
+     * @return how long a pooled connection may be inactive before it's checked for staleness before being reused
+     */
+    default Integer getValidateAfterInactivityMillis() {
+        return 2000;
+    }
+
+    /**
+     * @return how long to wait to lease a connection from the pool before failing; -1 means wait indefinitely
+     */
+    default Integer getConnectionRequestTimeoutMillis() {
+        return 30000;
+    }
+
+    /**
+     * @return how long to wait for a connection to MarkLogic to be established; -1 means the system default
+     */
+    default Integer getConnectTimeoutMillis() {
+        return -1;
+    }
+
+    /**
+     * @return how long to wait for data from MarkLogic once connected; -1 means the system default
+     */
+    default Integer getSocketTimeoutMillis() {
+        return -1;
+    }
+
+    /**
+     * @return true to stream request bodies to MarkLogic as they're read from the servlet request instead of buffering
+     * each one in memory first. Expect: 100-continue is then used so that an authentication challenge arrives before
+     * the body is sent.
+     */
+    default Boolean isStreamRequestBody() {
+        return false;
+    }
+
+    /**
+     * @return true to record streamed request bodies as they're sent so that they can be resent if MarkLogic asks
+     * for the request to be retried, such as after a digest challenge
+     */
+    default Boolean isRequestBodyReplayEnabled() {
+        return false;
+    }
+
+    /**
+     * @return how many bytes of a recorded request body are kept in memory before the body is spilled to a temporary
+     * file
+     */
+    default Integer getRequestBodyReplayMemoryThreshold() {
+        return 64 * 1024;
+    }
+
+    /**
+     * @return the directory for temporary files holding recorded request bodies; null means the default temporary
+     * directory
+     */
+    default String getRequestBodyReplayDirectory() {
+        return null;
+    }
+
+    /**
+     * @return true to stop the HttpClient from asking for and decompressing compressed responses, so that HttpProxy
+     * can pass the client's Accept-Encoding to MarkLogic and send compressed responses back as they are
+     */
+    default Boolean isCompressionPassThrough() {
+        return false;
+    }
+
+    /**
+     * The resilience settings below are used by DefaultRestOperationsFactory to retry idempotent requests and to stop
+     * sending requests to a host that keeps failing.
+     */
+
+    /**
+     * @return how many times a GET, HEAD, PUT, or DELETE request may be retried after a connection failure or a 503;
+     * 0 to disable retries. A request whose body can't be sent again, such as a streamed body, is never retried.
+     */
+    default Integer getMaxRetries() {
+        return 0;
+    }
+
+    /**
+     * @return the base delay before a retry; the delay doubles with each retry, up to getMaxRetryBackoffMillis, and a
+     * random amount of it is used so that clients don't retry in lockstep
+     */
+    default Long getRetryBackoffMillis() {
+        return 100L;
+    }
+
+    /**
+     * @return the longest delay before a retry
+     */
+    default Long getMaxRetryBackoffMillis() {
+        return 2000L;
+    }
+
+    /**
+     * @return how many retries may be made per request, averaged over time, across every request sent by a
+     * DefaultRestOperationsFactory; this keeps retries from multiplying the load on a struggling MarkLogic
+     */
+    default Double getRetryBudgetRatio() {
+        return 0.2;
+    }
+
+    /**
+     * @return how many consecutive connection failures or 502, 503, or 504 responses from a host cause requests to it
+     * to fail immediately; 0 to disable the circuit breaker
+     */
+    default Integer getCircuitBreakerFailureThreshold() {
+        return 0;
+    }
+
+    /**
+     * @return how long requests to a host fail immediately before a single request is allowed through to test it
+     */
+    default Long getCircuitBreakerOpenMillis() {
+        return 10000L;
+    }
+
+    /**
+     * The TLS settings below are used by DefaultRestOperationsFactory, via SslContextFactory, when getScheme returns
+     * "https". If none of them are set, the JVM's default SSLContext is used, as configured by system properties.
+     */
+
+    /**
+     * @return the path of a truststore holding the certificates to trust; null to use the JVM's default truststore
+     */
+    default String getTrustStorePath() {
+        return null;
+    }
+
+    default String getTrustStorePassword() {
+        return null;
+    }
+
+    /**
+     * @return the type of the truststore, e.g. "JKS" or "PKCS12"; null for the JVM's default type
+     */
+    default String getTrustStoreType() {
+        return null;
+    }
+
+    /**
+     * @return the path of a keystore holding a client certificate, for app servers that require one; null for none
+     */
+    default String getKeyStorePath() {
+        return null;
+    }
+
+    default String getKeyStorePassword() {
+        return null;
+    }
+
+    /**
+     * @return the type of the keystore; null for the JVM's default type
+     */
+    default String getKeyStoreType() {
+        return null;
+    }
+
+    /**
+     * @return the SSLContext protocol, e.g. "TLSv1.2"; null for "TLS"
+     */
+    default String getSslProtocol() {
+        return null;
+    }
+
+    /**
+     * @return how many TLS sessions are cached so that new connections can resume them instead of performing a full
+     * handshake; 0 or less for the JVM's default
+     */
+    default Integer getSslSessionCacheSize() {
+        return -1;
+    }
+
+    /**
+     * @return how long a cached TLS session can be resumed; 0 or less for the JVM's default
+     */
+    default Integer getSslSessionTimeoutSeconds() {
+        return -1;
+    }
+
+    /**
+     * @return false to skip checking the MarkLogic host name against its certificate, e.g. for a self-signed
+     * certificate in a development environment
+     */
+    default Boolean isSslHostnameVerificationEnabled() {
+        return true;
+    }
+
+    /**
+     * The cluster settings below are used by DefaultRestOperationsFactory when more than one host is configured; see
+     * ClusterRestConfig.
+     */
+
+    /**
+     * @return every MarkLogic host that requests may be sent to; each must have a REST server on getRestPort
+     */
+    default List<String> getHosts() {
+        return Collections.singletonList(getHost());
+    }
+
+    /**
+     * @return how to choose among the hosts for each request
+     */
+    default HostSelectionStrategy getHostSelectionStrategy() {
+        return HostSelectionStrategy.ROUND_ROBIN;
+    }
+
+    /**
+     * @return how many consecutive failed requests cause a host to be ejected
+     */
+    default Integer getHostFailureThreshold() {
+        return 3;
+    }
+
+    /**
+     * @return how long a host is ejected for the first time; repeated ejections double this, up to 5 minutes
+     */
+    default Long getHostEjectionMillis() {
+        return 10000L;
+    }
+
+    /**
+     * @return how often every host is checked with a HEAD request; 0 to disable active health checks
+     */
+    default Long getHealthCheckIntervalMillis() {
+        return 10000L;
+    }
 }
@@ -0,0 +1,230 @@
+package com.marklogic.spring.http;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the same URIs as the seven-argument java.net.URI constructor does for a RestConfig, a path, and an optionally
+ * decoded querystring, but without building and re-parsing the scheme/host/port prefix on every call and without
+ * URL-decoding the querystring into an intermediate string before quoting it again. The querystring is decoded and
+ * quoted in a single pass, using the given encoding for percent-encoded bytes, and quoted paths are kept in a small
+ * cache since the same few REST endpoints are requested over and over.
+ *
+ * build returns null for anything outside the fast path - a relative path or a malformed escape sequence, for example
+ * - so that the caller can fall back to the java.net.URI constructor and report the same error it always has.
+ */
+public class RestUriBuilder {
+
+	/**
+	 * Characters that java.net.URI leaves unquoted in a path: unreserved, ":@&=+$," and ";/".
+	 */
+	private static final boolean[] PATH_CHARS = allowedChars("-_.!~*'():@&=+$,;/");
+
+	/**
+	 * Characters that java.net.URI leaves unquoted in a query: unreserved and ";/?:@&=+$,[]".
+	 */
+	private static final boolean[] QUERY_CHARS = allowedChars("-_.!~*'();/?:@&=+$,[]");
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final RestConfig restConfig;
+
+	private Charset charset = StandardCharsets.UTF_8;
+	private boolean decodeQuerystring = true;
+	private int maxCachedPaths = 256;
+
+	private volatile Prefix prefix;
+	private final Map<String, String> pathCache = new ConcurrentHashMap<>();
+
+	public RestUriBuilder(RestConfig restConfig) {
+		this.restConfig = restConfig;
+	}
+
+	/**
+	 * @param path
+	 * @param queryString
+	 * @return the URI, or null if the caller should build it with the java.net.URI constructor instead
+	 * @throws URISyntaxException if the scheme, host, and port from the RestConfig don't form a valid URI
+	 */
+	public URI build(String path, String queryString) throws URISyntaxException {
+		if (path != null && !path.isEmpty() && path.charAt(0) != '/') {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder(getPrefix());
+		if (path != null) {
+			sb.append(quotePath(path));
+		}
+		if (queryString != null) {
+			sb.append('?');
+			if (!appendQuery(sb, queryString)) {
+				return null;
+			}
+		}
+		return new URI(sb.toString());
+	}
+
+	/**
+	 * The prefix is rebuilt whenever the scheme, host, or port on the RestConfig changes, as SimpleRestConfig allows
+	 * those to be set at any time.
+	 */
+	protected String getPrefix() throws URISyntaxException {
+		String scheme = restConfig.getScheme();
+		String host = restConfig.getHost();
+		Integer port = restConfig.getRestPort();
+		Prefix current = prefix;
+		if (current == null || !current.matches(scheme, host, port)) {
+			String value = new URI(scheme, null, host, port, null, null, null).toString();
+			current = new Prefix(scheme, host, port, value);
+			prefix = current;
+		}
+		return current.value;
+	}
+
+	protected String quotePath(String path) {
+		String quoted = pathCache.get(path);
+		if (quoted == null) {
+			StringBuilder sb = new StringBuilder(path.length() + 16);
+			for (int i = 0; i < path.length(); i++) {
+				appendQuoted(sb, path.charAt(i), PATH_CHARS);
+			}
+			quoted = sb.toString();
+			if (pathCache.size() >= maxCachedPaths) {
+				pathCache.clear();
+			}
+			pathCache.put(path, quoted);
+		}
+		return quoted;
+	}
+
+	/**
+	 * Decodes the querystring the way URLDecoder does - "+" is a space and each run of "%XX" escapes is decoded as
+	 * bytes in the configured charset - while quoting each decoded character the way java.net.URI does.
+	 *
+	 * @return false if the querystring has an escape sequence that URLDecoder would need to interpret
+	 */
+	protected boolean appendQuery(StringBuilder sb, String queryString) {
+		int length = queryString.length();
+		byte[] bytes = null;
+		int i = 0;
+		while (i < length) {
+			char c = queryString.charAt(i);
+			if (decodeQuerystring && c == '+') {
+				appendQuoted(sb, ' ', QUERY_CHARS);
+				i++;
+			} else if (decodeQuerystring && c == '%') {
+				if (bytes == null) {
+					bytes = new byte[(length - i) / 3];
+				}
+				int count = 0;
+				while (i < length && queryString.charAt(i) == '%') {
+					if (i + 2 >= length) {
+						return false;
+					}
+					int high = Character.digit(queryString.charAt(i + 1), 16);
+					int low = Character.digit(queryString.charAt(i + 2), 16);
+					if (high < 0 || low < 0) {
+						return false;
+					}
+					bytes[count++] = (byte) ((high << 4) + low);
+					i += 3;
+				}
+				String decoded = new String(bytes, 0, count, charset);
+				for (int j = 0; j < decoded.length(); j++) {
+					appendQuoted(sb, decoded.charAt(j), QUERY_CHARS);
+				}
+			} else {
+				appendQuoted(sb, c, QUERY_CHARS);
+				i++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Mirrors java.net.URI's quoting: disallowed ASCII characters, including "%", are escaped; non-ASCII characters
+	 * are left alone unless they're space or control characters, in which case they're escaped as UTF-8 bytes.
+	 */
+	private static void appendQuoted(StringBuilder sb, char c, boolean[] allowed) {
+		if (c < 0x80) {
+			if (allowed[c]) {
+				sb.append(c);
+			} else {
+				appendEscape(sb, c);
+			}
+		} else if (Character.isSpaceChar(c) || Character.isISOControl(c)) {
+			for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+				appendEscape(sb, b & 0xff);
+			}
+		} else {
+			sb.append(c);
+		}
+	}
+
+	private static void appendEscape(StringBuilder sb, int b) {
+		sb.append('%').append(HEX_DIGITS[(b >> 4) & 0x0f]).append(HEX_DIGITS[b & 0x0f]);
+	}
+
+	private static boolean[] allowedChars(String punctuation) {
+		boolean[] allowed = new boolean[128];
+		for (char c = '0'; c <= '9'; c++) {
+			allowed[c] = true;
+		}
+		for (char c = 'a'; c <= 'z'; c++) {
+			allowed[c] = true;
+			allowed[Character.toUpperCase(c)] = true;
+		}
+		for (char c : punctuation.toCharArray()) {
+			allowed[c] = true;
+		}
+		return allowed;
+	}
+
+	private static class Prefix {
+		private final String scheme;
+		private final String host;
+		private final Integer port;
+		private final String value;
+
+		Prefix(String scheme, String host, Integer port, String value) {
+			this.scheme = scheme;
+			this.host = host;
+			this.port = port;
+			this.value = value;
+		}
+
+		boolean matches(String scheme, String host, Integer port) {
+			return Objects.equals(this.scheme, scheme) && Objects.equals(this.host, host)
+				&& Objects.equals(this.port, port);
+		}
+	}
+
+	public void setEncoding(String encoding) {
+		this.charset = Charset.forName(encoding);
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public boolean isDecodeQuerystring() {
+		return decodeQuerystring;
+	}
+
+	public void setDecodeQuerystring(boolean decodeQuerystring) {
+		this.decodeQuerystring = decodeQuerystring;
+	}
+
+	public int getMaxCachedPaths() {
+		return maxCachedPaths;
+	}
+
+	public void setMaxCachedPaths(int maxCachedPaths) {
+		this.maxCachedPaths = maxCachedPaths;
+	}
+}
@@ -0,0 +1,70 @@
+package com.marklogic.spring.http;
+
+/**
+ * Limits retries to a fraction of requests so that, when MarkLogic is struggling, retries can't multiply the load on
+ * it. Each request deposits ratio tokens, up to maxTokens, and each retry withdraws one; a retry is only allowed if a
+ * whole token is available. The budget starts with minTokens so that retries are possible before much traffic has
+ * been seen.
+ */
+public class RetryBudget {
+
+	private final double ratio;
+	private final double maxTokens;
+	private double tokens;
+
+	private long retries;
+	private long exhausted;
+
+	public RetryBudget(double ratio) {
+		this(ratio, 10, 100);
+	}
+
+	/**
+	 * @param ratio     how many retries are allowed per request, averaged over time
+	 * @param minTokens how many retries are allowed before any requests have been made
+	 * @param maxTokens how many retries may be saved up for a burst of failures
+	 */
+	public RetryBudget(double ratio, int minTokens, int maxTokens) {
+		this.ratio = ratio;
+		this.maxTokens = maxTokens;
+		this.tokens = Math.min(minTokens, maxTokens);
+	}
+
+	/**
+	 * Called once for each request, not counting retries.
+	 */
+	public synchronized void deposit() {
+		tokens = Math.min(maxTokens, tokens + ratio);
+	}
+
+	/**
+	 * @return true if a retry may be made, in which case it's been charged to the budget
+	 */
+	public synchronized boolean tryWithdraw() {
+		if (tokens >= 1) {
+			tokens -= 1;
+			retries++;
+			return true;
+		}
+		exhausted++;
+		return false;
+	}
+
+	public double getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * @return how many retries have been allowed
+	 */
+	public synchronized long getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return how many retries have been refused because the budget was exhausted
+	 */
+	public synchronized long getExhausted() {
+		return exhausted;
+	}
+}
@@ -6,7 +6,8 @@ import org.springframework.beans.factory.annotation.Value;
  * Simple config class that can be a Bean in a Spring Configuration class and look for common MarkLogic connection
  * properties - mlHost and mlRestPort.
  * 
- * The scheme attribute is there for future SSL support.
+ * Set mlScheme to "https" to connect to MarkLogic over TLS; the mlTrustStore*, mlKeyStore*, and mlSsl* properties then
+ * configure the SSLContext, and the JVM's defaults are used for any that aren't set.
  */
 public class SimpleRestConfig implements RestConfig {
 
@@ -16,11 +17,105 @@ public class SimpleRestConfig implements RestConfig {
     @Value("${mlRestPort:8000}")
     private Integer restPort;
 
+    @Value("${mlScheme:http}")
     private String scheme = "http";
     
     @Value("${mlCacheDigest:true}")
     private Boolean digestCachingEnabled;
 
+    @Value("${mlPreemptiveBasicAuth:false}")
+    private Boolean preemptiveBasicAuth = false;
+
+    @Value("${mlMaxConnectionsPerRoute:20}")
+    private Integer maxConnectionsPerRoute = 20;
+
+    @Value("${mlMaxConnectionsTotal:100}")
+    private Integer maxConnectionsTotal = 100;
+
+    @Value("${mlKeepAliveMillis:30000}")
+    private Long keepAliveMillis = 30000L;
+
+    @Value("${mlIdleConnectionTimeoutMillis:60000}")
+    private Long idleConnectionTimeoutMillis = 60000L;
+
+    @Value("${mlConnectionReaperIntervalMillis:5000}")
+    private Long connectionReaperIntervalMillis = 5000L;
+
+    @Value("${mlValidateAfterInactivityMillis:2000}")
+    private Integer validateAfterInactivityMillis = 2000;
+
+    @Value("${mlConnectionRequestTimeoutMillis:30000}")
+    private Integer connectionRequestTimeoutMillis = 30000;
+
+    @Value("${mlConnectTimeoutMillis:-1}")
+    private Integer connectTimeoutMillis = -1;
+
+    @Value("${mlSocketTimeoutMillis:-1}")
+    private Integer socketTimeoutMillis = -1;
+
+    @Value("${mlStreamRequestBody:false}")
+    private Boolean streamRequestBody = false;
+
+    @Value("${mlRequestBodyReplayEnabled:false}")
+    private Boolean requestBodyReplayEnabled = false;
+
+    @Value("${mlRequestBodyReplayMemoryThreshold:65536}")
+    private Integer requestBodyReplayMemoryThreshold = 64 * 1024;
+
+    @Value("${mlRequestBodyReplayDirectory:#{null}}")
+    private String requestBodyReplayDirectory;
+
+    @Value("${mlCompressionPassThrough:false}")
+    private Boolean compressionPassThrough = false;
+
+    @Value("${mlMaxRetries:0}")
+    private Integer maxRetries = 0;
+
+    @Value("${mlRetryBackoffMillis:100}")
+    private Long retryBackoffMillis = 100L;
+
+    @Value("${mlMaxRetryBackoffMillis:2000}")
+    private Long maxRetryBackoffMillis = 2000L;
+
+    @Value("${mlRetryBudgetRatio:0.2}")
+    private Double retryBudgetRatio = 0.2;
+
+    @Value("${mlCircuitBreakerFailureThreshold:0}")
+    private Integer circuitBreakerFailureThreshold = 0;
+
+    @Value("${mlCircuitBreakerOpenMillis:10000}")
+    private Long circuitBreakerOpenMillis = 10000L;
+
+    @Value("${mlTrustStorePath:#{null}}")
+    private String trustStorePath;
+
+    @Value("${mlTrustStorePassword:#{null}}")
+    private String trustStorePassword;
+
+    @Value("${mlTrustStoreType:#{null}}")
+    private String trustStoreType;
+
+    @Value("${mlKeyStorePath:#{null}}")
+    private String keyStorePath;
+
+    @Value("${mlKeyStorePassword:#{null}}")
+    private String keyStorePassword;
+
+    @Value("${mlKeyStoreType:#{null}}")
+    private String keyStoreType;
+
+    @Value("${mlSslProtocol:#{null}}")
+    private String sslProtocol;
+
+    @Value("${mlSslSessionCacheSize:-1}")
+    private Integer sslSessionCacheSize = -1;
+
+    @Value("${mlSslSessionTimeoutSeconds:-1}")
+    private Integer sslSessionTimeoutSeconds = -1;
+
+    @Value("${mlSslHostnameVerificationEnabled:true}")
+    private Boolean sslHostnameVerificationEnabled = true;
+
     public SimpleRestConfig() {
 
     }
@@ -62,4 +157,252 @@ public class SimpleRestConfig implements RestConfig {
         this.digestCachingEnabled = cacheDigest;
     }
 
+    public Boolean isPreemptiveBasicAuth() {
+        return preemptiveBasicAuth;
+    }
+
+    public void setPreemptiveBasicAuth(Boolean preemptiveBasicAuth) {
+        this.preemptiveBasicAuth = preemptiveBasicAuth;
+    }
+
+    public Integer getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public Integer getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public void setMaxConnectionsTotal(Integer maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    public Long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(Long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public Long getIdleConnectionTimeoutMillis() {
+        return idleConnectionTimeoutMillis;
+    }
+
+    public void setIdleConnectionTimeoutMillis(Long idleConnectionTimeoutMillis) {
+        this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+    }
+
+    public Long getConnectionReaperIntervalMillis() {
+        return connectionReaperIntervalMillis;
+    }
+
+    public void setConnectionReaperIntervalMillis(Long connectionReaperIntervalMillis) {
+        this.connectionReaperIntervalMillis = connectionReaperIntervalMillis;
+    }
+
+    public Integer getValidateAfterInactivityMillis() {
+        return validateAfterInactivityMillis;
+    }
+
+    public void setValidateAfterInactivityMillis(Integer validateAfterInactivityMillis) {
+        this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+    }
+
+    public Integer getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public void setConnectionRequestTimeoutMillis(Integer connectionRequestTimeoutMillis) {
+        this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+    }
+
+    public Integer getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(Integer connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public Integer getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public void setSocketTimeoutMillis(Integer socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public Boolean isStreamRequestBody() {
+        return streamRequestBody;
+    }
+
+    public void setStreamRequestBody(Boolean streamRequestBody) {
+        this.streamRequestBody = streamRequestBody;
+    }
+
+    public Boolean isRequestBodyReplayEnabled() {
+        return requestBodyReplayEnabled;
+    }
+
+    public void setRequestBodyReplayEnabled(Boolean requestBodyReplayEnabled) {
+        this.requestBodyReplayEnabled = requestBodyReplayEnabled;
+    }
+
+    public Integer getRequestBodyReplayMemoryThreshold() {
+        return requestBodyReplayMemoryThreshold;
+    }
+
+    public void setRequestBodyReplayMemoryThreshold(Integer requestBodyReplayMemoryThreshold) {
+        this.requestBodyReplayMemoryThreshold = requestBodyReplayMemoryThreshold;
+    }
+
+    public String getRequestBodyReplayDirectory() {
+        return requestBodyReplayDirectory;
+    }
+
+    public void setRequestBodyReplayDirectory(String requestBodyReplayDirectory) {
+        this.requestBodyReplayDirectory = requestBodyReplayDirectory;
+    }
+
+    public Boolean isCompressionPassThrough() {
+        return compressionPassThrough;
+    }
+
+    public void setCompressionPassThrough(Boolean compressionPassThrough) {
+        this.compressionPassThrough = compressionPassThrough;
+    }
+
+    public Integer getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(Integer maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public Long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public void setRetryBackoffMillis(Long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    public Long getMaxRetryBackoffMillis() {
+        return maxRetryBackoffMillis;
+    }
+
+    public void setMaxRetryBackoffMillis(Long maxRetryBackoffMillis) {
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+    }
+
+    public Double getRetryBudgetRatio() {
+        return retryBudgetRatio;
+    }
+
+    public void setRetryBudgetRatio(Double retryBudgetRatio) {
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    public Integer getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(Integer circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public Long getCircuitBreakerOpenMillis() {
+        return circuitBreakerOpenMillis;
+    }
+
+    public void setCircuitBreakerOpenMillis(Long circuitBreakerOpenMillis) {
+        this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    }
+
+    public String getTrustStorePath() {
+        return trustStorePath;
+    }
+
+    public void setTrustStorePath(String trustStorePath) {
+        this.trustStorePath = trustStorePath;
+    }
+
+    public String getTrustStorePassword() {
+        return trustStorePassword;
+    }
+
+    public void setTrustStorePassword(String trustStorePassword) {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+    public String getTrustStoreType() {
+        return trustStoreType;
+    }
+
+    public void setTrustStoreType(String trustStoreType) {
+        this.trustStoreType = trustStoreType;
+    }
+
+    public String getKeyStorePath() {
+        return keyStorePath;
+    }
+
+    public void setKeyStorePath(String keyStorePath) {
+        this.keyStorePath = keyStorePath;
+    }
+
+    public String getKeyStorePassword() {
+        return keyStorePassword;
+    }
+
+    public void setKeyStorePassword(String keyStorePassword) {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    public String getKeyStoreType() {
+        return keyStoreType;
+    }
+
+    public void setKeyStoreType(String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
+    public String getSslProtocol() {
+        return sslProtocol;
+    }
+
+    public void setSslProtocol(String sslProtocol) {
+        this.sslProtocol = sslProtocol;
+    }
+
+    public Integer getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+
+    public void setSslSessionCacheSize(Integer sslSessionCacheSize) {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+    }
+
+    public Integer getSslSessionTimeoutSeconds() {
+        return sslSessionTimeoutSeconds;
+    }
+
+    public void setSslSessionTimeoutSeconds(Integer sslSessionTimeoutSeconds) {
+        this.sslSessionTimeoutSeconds = sslSessionTimeoutSeconds;
+    }
+
+    public Boolean isSslHostnameVerificationEnabled() {
+        return sslHostnameVerificationEnabled;
+    }
+
+    public void setSslHostnameVerificationEnabled(Boolean sslHostnameVerificationEnabled) {
+        this.sslHostnameVerificationEnabled = sslHostnameVerificationEnabled;
+    }
+
 }
@@ -0,0 +1,116 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.ssl.SSLContextBuilder;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+/**
+ * Builds the SSLContext used for connections to MarkLogic based on the TLS settings in a RestConfig - a truststore,
+ * a keystore for client certificates, the protocol, and the size and timeout of the client session cache.
+ * <p>
+ * TLS sessions are cached by the SSLContext that created them, and a session can only be resumed - skipping the full
+ * handshake - by a connection created from the same SSLContext to the same host and port. So a single SSLContext
+ * should be built and shared by every connection to MarkLogic; DefaultRestOperationsFactory does this for its
+ * connection pool and health checks. The session cache should be large enough to hold a session for every host, and
+ * its timeout long enough to outlive idle connections, so that a replaced connection resumes its session instead of
+ * performing a full handshake.
+ */
+public class SslContextFactory {
+
+	/**
+	 * @param restConfig
+	 * @return true if any TLS setting in the RestConfig differs from the JVM's defaults; if not, the JVM's default
+	 * SSLContext - which honors the javax.net.ssl system properties - is used instead
+	 */
+	public static boolean isConfigured(RestConfig restConfig) {
+		return restConfig.getTrustStorePath() != null
+			|| restConfig.getKeyStorePath() != null
+			|| restConfig.getSslProtocol() != null
+			|| isPositive(restConfig.getSslSessionCacheSize())
+			|| isPositive(restConfig.getSslSessionTimeoutSeconds())
+			|| Boolean.FALSE.equals(restConfig.isSslHostnameVerificationEnabled());
+	}
+
+	/**
+	 * @param restConfig
+	 * @return a new SSLContext with the truststore, keystore, and protocol in the RestConfig
+	 */
+	public SSLContext newSslContext(RestConfig restConfig) {
+		try {
+			SSLContextBuilder builder = SSLContextBuilder.create();
+			if (restConfig.getSslProtocol() != null) {
+				builder.useProtocol(restConfig.getSslProtocol());
+			}
+			if (restConfig.getTrustStorePath() != null) {
+				builder.loadTrustMaterial(loadKeyStore(restConfig.getTrustStorePath(),
+					restConfig.getTrustStorePassword(), restConfig.getTrustStoreType()), null);
+			}
+			if (restConfig.getKeyStorePath() != null) {
+				String password = restConfig.getKeyStorePassword();
+				builder.loadKeyMaterial(loadKeyStore(restConfig.getKeyStorePath(), password,
+					restConfig.getKeyStoreType()), password != null ? password.toCharArray() : null);
+			}
+			SSLContext sslContext = builder.build();
+			configureSessionContext(sslContext, restConfig);
+			return sslContext;
+		} catch (Exception ex) {
+			throw new RuntimeException("Unable to create SSLContext, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Sizes the client session cache of the SSLContext. This is also applied to an SSLContext that's supplied to
+	 * DefaultRestOperationsFactory instead of being built by this class.
+	 *
+	 * @param sslContext
+	 * @param restConfig
+	 */
+	public void configureSessionContext(SSLContext sslContext, RestConfig restConfig) {
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+		if (sessionContext == null) {
+			return;
+		}
+		if (isPositive(restConfig.getSslSessionCacheSize())) {
+			sessionContext.setSessionCacheSize(restConfig.getSslSessionCacheSize());
+		}
+		if (isPositive(restConfig.getSslSessionTimeoutSeconds())) {
+			sessionContext.setSessionTimeout(restConfig.getSslSessionTimeoutSeconds());
+		}
+	}
+
+	/**
+	 * @param restConfig
+	 * @return a verifier that checks the MarkLogic host name against its certificate, unless the RestConfig disables
+	 * hostname verification
+	 */
+	public HostnameVerifier newHostnameVerifier(RestConfig restConfig) {
+		return Boolean.FALSE.equals(restConfig.isSslHostnameVerificationEnabled()) ?
+			NoopHostnameVerifier.INSTANCE : new DefaultHostnameVerifier();
+	}
+
+	/**
+	 * @param path
+	 * @param password may be null for a truststore
+	 * @param type     defaults to the JVM's default keystore type
+	 * @return
+	 * @throws Exception
+	 */
+	protected KeyStore loadKeyStore(String path, String password, String type) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance(type != null ? type : KeyStore.getDefaultType());
+		try (InputStream in = new FileInputStream(path)) {
+			keyStore.load(in, password != null ? password.toCharArray() : null);
+		}
+		return keyStore;
+	}
+
+	private static boolean isPositive(Integer value) {
+		return value != null && value > 0;
+	}
+}
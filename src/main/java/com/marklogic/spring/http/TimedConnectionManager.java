@@ -0,0 +1,108 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a connection manager to add the time spent leasing a connection from the pool, and the time spent connecting
+ * a new one - which includes the TLS handshake for "https" - to the RequestTimeline bound to the current thread, if
+ * any. Everything else is passed straight to the wrapped manager.
+ */
+class TimedConnectionManager implements HttpClientConnectionManager {
+
+	private final HttpClientConnectionManager manager;
+
+	TimedConnectionManager(HttpClientConnectionManager manager) {
+		this.manager = manager;
+	}
+
+	@Override
+	public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+		final ConnectionRequest request = manager.requestConnection(route, state);
+		return new ConnectionRequest() {
+			@Override
+			public HttpClientConnection get(long timeout, TimeUnit tunit)
+				throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+				RequestTimeline timeline = RequestTimeline.current();
+				if (timeline == null) {
+					return request.get(timeout, tunit);
+				}
+				long start = System.nanoTime();
+				try {
+					return request.get(timeout, tunit);
+				} finally {
+					timeline.add(RequestTimeline.Phase.POOL_LEASE, System.nanoTime() - start);
+				}
+			}
+
+			@Override
+			public boolean cancel() {
+				return request.cancel();
+			}
+		};
+	}
+
+	@Override
+	public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context)
+		throws IOException {
+		RequestTimeline timeline = RequestTimeline.current();
+		if (timeline == null) {
+			manager.connect(conn, route, connectTimeout, context);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			manager.connect(conn, route, connectTimeout, context);
+		} finally {
+			timeline.add(RequestTimeline.Phase.CONNECT, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+		RequestTimeline timeline = RequestTimeline.current();
+		if (timeline == null) {
+			manager.upgrade(conn, route, context);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			manager.upgrade(conn, route, context);
+		} finally {
+			timeline.add(RequestTimeline.Phase.CONNECT, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+		manager.releaseConnection(conn, newState, validDuration, timeUnit);
+	}
+
+	@Override
+	public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+		manager.routeComplete(conn, route, context);
+	}
+
+	@Override
+	public void closeIdleConnections(long idletime, TimeUnit tunit) {
+		manager.closeIdleConnections(idletime, tunit);
+	}
+
+	@Override
+	public void closeExpiredConnections() {
+		manager.closeExpiredConnections();
+	}
+
+	@Override
+	public void shutdown() {
+		manager.shutdown();
+	}
+}
@@ -0,0 +1,57 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Adds the time from sending a request to receiving the response headers to the RequestTimeline bound to the current
+ * thread, if any. HttpClient answers an authentication challenge by sending the request again through this executor,
+ * so a round trip that ends in a 401 is recorded as an authentication challenge - unless it turns out to be the final
+ * response, see RequestTimeline.rejected. Otherwise the time spent sending the request, including its body, is
+ * recorded separately from the time spent waiting for the response, so that a large upload isn't mistaken for a slow
+ * MarkLogic; and the body of the response is considered to start once its headers have been received.
+ */
+class TimedRequestExecutor extends HttpRequestExecutor {
+
+	private final static String SENT_ATTRIBUTE = TimedRequestExecutor.class.getName() + ".sent";
+
+	@Override
+	public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+		throws IOException, HttpException {
+		RequestTimeline timeline = RequestTimeline.current();
+		if (timeline == null) {
+			return super.execute(request, conn, context);
+		}
+		long start = System.nanoTime();
+		context.removeAttribute(SENT_ATTRIBUTE);
+		HttpResponse response = super.execute(request, conn, context);
+		long end = System.nanoTime();
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+			timeline.addChallenge(end - start);
+		} else {
+			Object sent = context.getAttribute(SENT_ATTRIBUTE);
+			long sentNanos = sent instanceof Long ? (Long) sent : start;
+			timeline.add(RequestTimeline.Phase.SEND, sentNanos - start);
+			timeline.add(RequestTimeline.Phase.TTFB, end - sentNanos);
+		}
+		timeline.markBodyStart(end);
+		return response;
+	}
+
+	@Override
+	protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+		throws IOException, HttpException {
+		HttpResponse response = super.doSendRequest(request, conn, context);
+		if (RequestTimeline.current() != null) {
+			context.setAttribute(SENT_ATTRIBUTE, System.nanoTime());
+		}
+		return response;
+	}
+}
@@ -0,0 +1,358 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.PrincipalHttpContextCache;
+import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.http.RestOperationsFactory;
+import com.marklogic.spring.http.SslContextFactory;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.net.ssl.SSLContext;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Future;
+
+/**
+ * Proxies servlet requests to MarkLogic without holding a container thread for the duration of the request. Each
+ * request is put into async mode, sent to MarkLogic via a non-blocking HttpAsyncClient, and the request and response
+ * bodies are streamed via Servlet 3.1 ReadListener and WriteListener callbacks with backpressure in both directions.
+ * This allows for a large number of concurrent proxied requests to be handled by a small number of threads.
+ * <p>
+ * Unlike HttpProxy, the status of the MarkLogic response is always passed through to the servlet response instead of an
+ * exception being thrown for a 4xx or 5xx status. If MarkLogic can't be reached, a 502 is returned, and if the request
+ * doesn't complete within asyncTimeout milliseconds, a 504 is returned.
+ * <p>
+ * The servlet and every filter in front of it must support async processing. If the servlet request doesn't, this
+ * class falls back to the blocking behavior of HttpProxy. Likewise, the proxy method that accepts a Spring
+ * RequestCallback and ResponseExtractor is blocking; use proxyAsync to customize async requests. The blocking
+ * RestOperations - and its connection pool - is only created once a request needs it.
+ * <p>
+ * A ProxyResponseCache, RequestCoalescer, ResponseCompression or RequestTiming set on this class only applies to
+ * requests that fall back to the blocking behavior; async requests are neither cached, coalesced, compressed nor
+ * timed, so setting any of these logs a warning.
+ * <p>
+ * The credentials for each request are obtained from the CredentialsProvider on the thread that calls proxy, so a
+ * thread-bound provider such as SpringSecurityCredentialsProvider works as expected.
+ */
+public class AsyncHttpProxy extends HttpProxy implements DisposableBean {
+
+	private CredentialsProvider credentialsProvider;
+	private DefaultRestOperationsFactory sslContextSource;
+	private CloseableHttpAsyncClient httpAsyncClient;
+	private PrincipalHttpContextCache principalHttpContextCache = new PrincipalHttpContextCache();
+	private RequestConfig requestConfig;
+	private RequestConfig expectContinueRequestConfig;
+
+	private long asyncTimeout = 60000;
+	private int bufferSize = 8192;
+
+	public AsyncHttpProxy(RestConfig restConfig, CredentialsProvider provider) {
+		super(restConfig, provider, true);
+		initialize(provider, getOwnedRestOperationsFactory());
+	}
+
+	/**
+	 * @param restConfig
+	 * @param provider
+	 * @param restOperationsFactory if this is a DefaultRestOperationsFactory, its SSLContext is also used for async
+	 *                              requests, so that they resume the same TLS sessions as blocking requests
+	 */
+	public AsyncHttpProxy(RestConfig restConfig, CredentialsProvider provider,
+	                      RestOperationsFactory restOperationsFactory) {
+		super(restConfig, provider, restOperationsFactory, true);
+		initialize(provider, restOperationsFactory);
+	}
+
+	private void initialize(CredentialsProvider provider, RestOperationsFactory restOperationsFactory) {
+		this.credentialsProvider = provider;
+		if (restOperationsFactory instanceof DefaultRestOperationsFactory) {
+			this.sslContextSource = (DefaultRestOperationsFactory) restOperationsFactory;
+		}
+		this.requestConfig = RequestConfig.custom()
+			.setConnectionRequestTimeout(getRestConfig().getConnectionRequestTimeoutMillis())
+			.setConnectTimeout(getRestConfig().getConnectTimeoutMillis())
+			.setSocketTimeout(getRestConfig().getSocketTimeoutMillis())
+			.build();
+		this.expectContinueRequestConfig = RequestConfig.copy(requestConfig).setExpectContinueEnabled(true).build();
+		this.httpAsyncClient = newHttpAsyncClient(getRestConfig());
+		this.httpAsyncClient.start();
+	}
+
+	/**
+	 * Builds the client used for every async request, with a connection pool sized based on the given RestConfig.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected CloseableHttpAsyncClient newHttpAsyncClient(RestConfig restConfig) {
+		final long defaultKeepAlive = restConfig.getKeepAliveMillis();
+		HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+			.setConnectionManager(newConnectionManager(restConfig))
+			.setKeepAliveStrategy((response, context) -> {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : defaultKeepAlive;
+			})
+			.setDefaultRequestConfig(requestConfig)
+			.setTargetAuthenticationStrategy(principalHttpContextCache.newAuthenticationStrategy())
+			.useSystemProperties();
+		return builder.build();
+	}
+
+	/**
+	 * HttpAsyncClientBuilder ignores pool limits when using system properties, so the connection manager is built here.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected PoolingNHttpClientConnectionManager newConnectionManager(RestConfig restConfig) {
+		Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+			.register("http", NoopIOSessionStrategy.INSTANCE)
+			.register("https", newSslStrategy(restConfig))
+			.build();
+		PoolingNHttpClientConnectionManager manager;
+		try {
+			manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(), registry);
+		} catch (IOReactorException ex) {
+			throw new RuntimeException("Unable to create I/O reactor, cause: " + ex.getMessage(), ex);
+		}
+		manager.setDefaultMaxPerRoute(restConfig.getMaxConnectionsPerRoute());
+		manager.setMaxTotal(restConfig.getMaxConnectionsTotal());
+		return manager;
+	}
+
+	/**
+	 * Every TLS connection in this class's pool is created from the same SSLContext, so that new connections resume
+	 * cached sessions. With a DefaultRestOperationsFactory, that's the factory's SSLContext - including one supplied
+	 * via setSslContext or built by a custom SslContextFactory - so async and blocking requests share their sessions.
+	 *
+	 * @param restConfig
+	 * @return
+	 */
+	protected SchemeIOSessionStrategy newSslStrategy(RestConfig restConfig) {
+		if (sslContextSource != null) {
+			SSLContext sslContext = sslContextSource.getSslContext(restConfig);
+			return sslContext != null ? new SSLIOSessionStrategy(sslContext,
+				sslContextSource.getSslContextFactory().newHostnameVerifier(restConfig)) :
+				SSLIOSessionStrategy.getSystemDefaultStrategy();
+		}
+		if (!SslContextFactory.isConfigured(restConfig)) {
+			return SSLIOSessionStrategy.getSystemDefaultStrategy();
+		}
+		SslContextFactory sslContextFactory = new SslContextFactory();
+		return new SSLIOSessionStrategy(sslContextFactory.newSslContext(restConfig),
+			sslContextFactory.newHostnameVerifier(restConfig));
+	}
+
+	@Override
+	public void proxy(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+		proxy(httpRequest.getServletPath(), httpRequest, httpResponse);
+	}
+
+	@Override
+	public void proxy(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String... headerNamesToCopy) {
+		proxy(httpRequest.getServletPath(), httpRequest, httpResponse, headerNamesToCopy);
+	}
+
+	@Override
+	public void proxy(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	                  String... headerNamesToCopy) {
+		if (!httpRequest.isAsyncSupported()) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Async is not supported for request, so proxying it synchronously");
+			}
+			super.proxy(path, httpRequest, httpResponse, headerNamesToCopy);
+			return;
+		}
+		DefaultAsyncRequestCallback requestCallback = new DefaultAsyncRequestCallback(httpRequest, headerNamesToCopy);
+		requestCallback.setHeaderPolicy(getHeaderPolicy());
+		DefaultAsyncResponseExtractor responseExtractor = new DefaultAsyncResponseExtractor(headerNamesToCopy);
+		responseExtractor.setHeaderPolicy(getHeaderPolicy());
+		proxyAsync(path, httpRequest, httpResponse, requestCallback, responseExtractor);
+	}
+
+	/**
+	 * Starts async processing of the servlet request and sends the request to MarkLogic; this returns as soon as the
+	 * request has been handed off to the HttpAsyncClient.
+	 *
+	 * @param path
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param requestCallback
+	 * @param responseExtractor
+	 */
+	public void proxyAsync(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	                       AsyncRequestCallback requestCallback, AsyncResponseExtractor responseExtractor) {
+		URI uri = buildUri(path, httpRequest.getQueryString());
+		if (logger.isDebugEnabled()) {
+			logger.debug("Asynchronously proxying to URI: " + uri);
+		}
+		ConcurrencyLimiter.Permit permit = null;
+		if (getConcurrencyLimiter() != null) {
+			permit = getConcurrencyLimiter().acquire(httpRequest);
+			if (permit == null) {
+				rejectOverloadedRequest(httpRequest, httpResponse);
+				if (getMetrics() != MarkLogicMetrics.NOOP) {
+					getMetrics().recordProxyRequest(httpRequest.getMethod(), toPathTemplate(path),
+						httpResponse.getStatus(), 0, 0, 0);
+				}
+				return;
+			}
+		}
+		HttpHost target = URIUtils.extractHost(uri);
+		HttpClientContext context;
+		AsyncProxyExchange exchange;
+		try {
+			context = newHttpClientContext(target);
+			AsyncContext asyncContext = httpRequest.startAsync(httpRequest, httpResponse);
+			asyncContext.setTimeout(asyncTimeout);
+			exchange = new AsyncProxyExchange(asyncContext);
+			if (getMetrics() != MarkLogicMetrics.NOOP) {
+				exchange.setMetrics(getMetrics(), httpRequest.getMethod(), toPathTemplate(path));
+			}
+			asyncContext.addListener(exchange);
+			// From here on, the exchange releases the permit once the async context completes
+			exchange.setPermit(permit);
+		} catch (RuntimeException ex) {
+			if (permit != null) {
+				// Nothing was sent to MarkLogic, so this says nothing about its load
+				permit.cancel();
+			}
+			throw ex;
+		}
+
+		ServletRequestProducer producer = new ServletRequestProducer(httpRequest, target, uri, requestCallback,
+			exchange, bufferSize);
+		ServletResponseConsumer consumer = new ServletResponseConsumer(httpResponse, responseExtractor, exchange,
+			bufferSize);
+		exchange.setRequestProducer(producer);
+		exchange.setResponseConsumer(consumer);
+
+		if (producer.hasBody()) {
+			// Allows MarkLogic to challenge the request before the body - which can only be read once - is sent
+			context.setRequestConfig(expectContinueRequestConfig);
+		}
+
+		try {
+			producer.start();
+			consumer.start();
+		} catch (IOException ex) {
+			exchange.fail(ex);
+			return;
+		}
+
+		Future<Void> future = httpAsyncClient.execute(producer, consumer, context, exchange);
+		exchange.setFuture(future);
+	}
+
+	/**
+	 * Captures the credentials of the current user, as the HttpAsyncClient will need them on one of its own threads.
+	 *
+	 * @param target
+	 * @return
+	 */
+	protected HttpClientContext newHttpClientContext(HttpHost target) {
+		Credentials credentials = credentialsProvider.getCredentials(new AuthScope(target));
+		String principal = credentials != null && credentials.getUserPrincipal() != null ?
+			credentials.getUserPrincipal().getName() : null;
+
+		HttpClientContext context = Boolean.TRUE.equals(getRestConfig().isDigestCachingEnabled()) ?
+			principalHttpContextCache.newContext(principal, target) : HttpClientContext.create();
+
+		BasicCredentialsProvider requestCredentialsProvider = new BasicCredentialsProvider();
+		if (credentials != null) {
+			requestCredentialsProvider.setCredentials(AuthScope.ANY, credentials);
+		}
+		context.setCredentialsProvider(requestCredentialsProvider);
+		return context;
+	}
+
+	/**
+	 * Closes the HttpAsyncClient, and the blocking connection pool if this proxy created its own.
+	 */
+	@Override
+	public void destroy() {
+		try {
+			httpAsyncClient.close();
+		} catch (IOException ex) {
+			logger.warn("Unable to close async client, cause: " + ex.getMessage());
+		}
+		super.destroy();
+	}
+
+	public CloseableHttpAsyncClient getHttpAsyncClient() {
+		return httpAsyncClient;
+	}
+
+	public PrincipalHttpContextCache getPrincipalHttpContextCache() {
+		return principalHttpContextCache;
+	}
+
+	@Override
+	public void setResponseCache(ProxyResponseCache responseCache) {
+		warnIfIgnoredByAsyncRequests(responseCache, "response cache");
+		super.setResponseCache(responseCache);
+	}
+
+	@Override
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		warnIfIgnoredByAsyncRequests(requestCoalescer, "request coalescer");
+		super.setRequestCoalescer(requestCoalescer);
+	}
+
+	@Override
+	public void setResponseCompression(ResponseCompression responseCompression) {
+		warnIfIgnoredByAsyncRequests(responseCompression, "response compression");
+		super.setResponseCompression(responseCompression);
+	}
+
+	@Override
+	public void setRequestTiming(RequestTiming requestTiming) {
+		warnIfIgnoredByAsyncRequests(requestTiming, "request timing");
+		super.setRequestTiming(requestTiming);
+	}
+
+	private void warnIfIgnoredByAsyncRequests(Object feature, String name) {
+		if (feature != null) {
+			logger.warn("The " + name + " set on " + getClass().getSimpleName() + " only applies to requests that " +
+				"can't be proxied asynchronously; async requests ignore it");
+		}
+	}
+
+	/**
+	 * @param asyncTimeout the number of milliseconds after which a proxied request is abandoned and a 504 is returned
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	/**
+	 * @param bufferSize the size of the buffer used for streaming each request body and each response body
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+}
@@ -0,0 +1,149 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tracks a single request proxied by AsyncHttpProxy, ensuring that the async context is completed exactly once -
+ * whether that's due to the MarkLogic response being fully streamed, a failure, or the async context timing out.
+ */
+class AsyncProxyExchange implements FutureCallback<Void>, AsyncListener {
+
+	private final static Logger logger = LoggerFactory.getLogger(AsyncProxyExchange.class);
+
+	private final AsyncContext asyncContext;
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+	private final long startNanos = System.nanoTime();
+
+	private ServletRequestProducer requestProducer;
+	private ServletResponseConsumer responseConsumer;
+	private volatile Future<Void> future;
+
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+	private String method;
+	private String pathTemplate;
+	private ConcurrencyLimiter.Permit permit;
+
+	AsyncProxyExchange(AsyncContext asyncContext) {
+		this.asyncContext = asyncContext;
+	}
+
+	/**
+	 * The request is recorded once the async context has completed, regardless of how it completed.
+	 */
+	void setMetrics(MarkLogicMetrics metrics, String method, String pathTemplate) {
+		this.metrics = metrics;
+		this.method = method;
+		this.pathTemplate = pathTemplate;
+	}
+
+	/**
+	 * The permit is released once the async context has completed; a 5xx, including a timeout, counts as overload.
+	 * Its latency is recorded when MarkLogic's response arrives, via responseReceived.
+	 */
+	void setPermit(ConcurrencyLimiter.Permit permit) {
+		this.permit = permit;
+	}
+
+	void responseReceived() {
+		if (permit != null) {
+			permit.responseReceived();
+		}
+	}
+
+	void setRequestProducer(ServletRequestProducer requestProducer) {
+		this.requestProducer = requestProducer;
+	}
+
+	void setResponseConsumer(ServletResponseConsumer responseConsumer) {
+		this.responseConsumer = responseConsumer;
+	}
+
+	void setFuture(Future<Void> future) {
+		this.future = future;
+		if (completed.get()) {
+			future.cancel(true);
+		}
+	}
+
+	@Override
+	public void completed(Void result) {
+		try {
+			responseConsumer.upstreamCompleted();
+		} catch (IOException ex) {
+			fail(ex);
+		}
+	}
+
+	@Override
+	public void failed(Exception ex) {
+		fail(ex);
+	}
+
+	@Override
+	public void cancelled() {
+		complete();
+	}
+
+	void fail(Throwable t) {
+		logger.warn("Unable to proxy request, cause: " + t.getMessage(), t);
+		completeWithStatus(HttpServletResponse.SC_BAD_GATEWAY);
+	}
+
+	void complete() {
+		if (completed.compareAndSet(false, true)) {
+			asyncContext.complete();
+		}
+	}
+
+	private void completeWithStatus(int status) {
+		if (completed.compareAndSet(false, true)) {
+			Future<Void> f = future;
+			if (f != null) {
+				f.cancel(true);
+			}
+			HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+			if (!response.isCommitted()) {
+				response.setStatus(status);
+			}
+			asyncContext.complete();
+		}
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		completeWithStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		completeWithStatus(HttpServletResponse.SC_BAD_GATEWAY);
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		int status = ((HttpServletResponse) event.getSuppliedResponse()).getStatus();
+		if (permit != null) {
+			permit.release(status >= 500);
+		}
+		if (metrics != MarkLogicMetrics.NOOP) {
+			long bytesIn = requestProducer != null ? requestProducer.getBytesRead() : -1;
+			long bytesOut = responseConsumer != null ? responseConsumer.getBytesWritten() : -1;
+			metrics.recordProxyRequest(method, pathTemplate, status, System.nanoTime() - startNanos, bytesIn, bytesOut);
+		}
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
@@ -0,0 +1,14 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpRequest;
+
+/**
+ * Async counterpart to Spring's RequestCallback, as used by AsyncHttpProxy. Allows for customizing the request that's
+ * sent to MarkLogic before it's sent - typically by adding headers. The body of the servlet request is streamed by
+ * AsyncHttpProxy, so implementations must not attempt to read it.
+ */
+public interface AsyncRequestCallback {
+
+	void doWithRequest(HttpRequest request);
+
+}
@@ -0,0 +1,16 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpResponse;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Async counterpart to Spring's ResponseExtractor, as used by AsyncHttpProxy. Invoked when the status line and headers
+ * of the MarkLogic response are received, so that they can be applied to the servlet response. The body of the
+ * MarkLogic response is then streamed by AsyncHttpProxy, so implementations must not attempt to read it.
+ */
+public interface AsyncResponseExtractor {
+
+	void extractHead(HttpResponse response, HttpServletResponse httpResponse);
+
+}
@@ -0,0 +1,56 @@
+package com.marklogic.spring.http.proxy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of fixed-size byte arrays for copying request and response bodies. Reusing large buffers avoids
+ * allocating a new one for every proxied request, which keeps large responses from churning the heap. When the pool is
+ * empty, a new buffer is allocated; when it's full, released buffers are left for the garbage collector.
+ */
+public class BufferPool {
+
+	private final static BufferPool DEFAULT = new BufferPool(64 * 1024, 256);
+
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @return a pool of 64k buffers shared by every class in this package that doesn't have its own pool
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer != null) {
+			pooledBuffers.decrementAndGet();
+			return buffer;
+		}
+		return new byte[bufferSize];
+	}
+
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		if (pooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+			buffers.offer(buffer);
+		} else {
+			pooledBuffers.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
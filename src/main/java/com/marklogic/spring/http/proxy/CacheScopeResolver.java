@@ -0,0 +1,17 @@
+package com.marklogic.spring.http.proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Determines which cached responses a servlet request may be served from. Responses from MarkLogic depend on the
+ * permissions of the user that a request is sent on behalf of, so a response cached for one scope is never served to
+ * another.
+ */
+public interface CacheScopeResolver {
+
+	/**
+	 * @param httpRequest
+	 * @return the scope of the request, such as the name of the current user
+	 */
+	String resolveScope(HttpServletRequest httpRequest);
+}
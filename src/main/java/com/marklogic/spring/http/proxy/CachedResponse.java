@@ -0,0 +1,171 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A response body and its headers as stored by ProxyResponseCache. The body is either a byte array or, when the cache
+ * stores bodies off-heap, a direct ByteBuffer. Instances are immutable; revalidating a response creates a new one.
+ */
+class CachedResponse {
+
+	private final HttpHeaders headers;
+	private final byte[] body;
+	private final ByteBuffer directBody;
+	private final long expiresAtNanos;
+
+	CachedResponse(HttpHeaders headers, byte[] body, boolean offHeap, long freshnessMillis) {
+		this.headers = headers;
+		if (offHeap) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+			buffer.put(body);
+			buffer.flip();
+			this.directBody = buffer;
+			this.body = null;
+		} else {
+			this.body = body;
+			this.directBody = null;
+		}
+		this.expiresAtNanos = System.nanoTime() + freshnessMillis * 1000000L;
+	}
+
+	private CachedResponse(CachedResponse original, HttpHeaders headers, long freshnessMillis) {
+		this.headers = headers;
+		this.body = original.body;
+		this.directBody = original.directBody;
+		this.expiresAtNanos = System.nanoTime() + freshnessMillis * 1000000L;
+	}
+
+	/**
+	 * @param notModifiedHeaders the headers of a 304 response from MarkLogic, which replace the stored ones
+	 * @param freshnessMillis
+	 * @return a copy of this response with updated headers and freshness
+	 */
+	CachedResponse revalidate(HttpHeaders notModifiedHeaders, long freshnessMillis) {
+		HttpHeaders merged = new HttpHeaders();
+		merged.putAll(headers);
+		for (String name : notModifiedHeaders.keySet()) {
+			if (!ProxyResponseCache.isUncacheableHeader(name)) {
+				merged.put(name, notModifiedHeaders.get(name));
+			}
+		}
+		return new CachedResponse(this, merged, freshnessMillis);
+	}
+
+	boolean isFresh() {
+		return System.nanoTime() - expiresAtNanos < 0;
+	}
+
+	HttpHeaders getHeaders() {
+		return headers;
+	}
+
+	String getETag() {
+		return headers.getETag();
+	}
+
+	String getLastModified() {
+		return headers.getFirst(HttpHeaders.LAST_MODIFIED);
+	}
+
+	int getBodyLength() {
+		return body != null ? body.length : directBody.capacity();
+	}
+
+	/**
+	 * Writes this response to the servlet response, or a 304 if the servlet request's validators match this response.
+	 *
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param headerPolicy      if not null, used instead of the header names to copy
+	 * @param headerNamesToCopy
+	 * @return the number of body bytes written
+	 * @throws IOException
+	 */
+	int writeTo(HttpServletRequest httpRequest, HttpServletResponse httpResponse, HeaderPolicy headerPolicy,
+	            String... headerNamesToCopy) throws IOException {
+		boolean notModified = isNotModified(httpRequest);
+		httpResponse.setStatus(notModified ? HttpServletResponse.SC_NOT_MODIFIED : HttpServletResponse.SC_OK);
+		if (headerPolicy != null) {
+			headerPolicy.applyToResponse(headers, httpResponse);
+		} else {
+			copyHeaders(httpResponse, headerNamesToCopy);
+		}
+		if (notModified) {
+			return 0;
+		}
+		httpResponse.setContentLength(getBodyLength());
+		OutputStream out = httpResponse.getOutputStream();
+		if (body != null) {
+			out.write(body);
+			return body.length;
+		}
+		BufferPool bufferPool = BufferPool.getDefault();
+		byte[] buffer = bufferPool.acquire();
+		try {
+			ByteBuffer source = directBody.duplicate();
+			while (source.hasRemaining()) {
+				int count = Math.min(buffer.length, source.remaining());
+				source.get(buffer, 0, count);
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return directBody.capacity();
+	}
+
+	/**
+	 * Like DefaultResponseExtractor, only the given headers are copied, so a cached response exposes the same headers -
+	 * validators included - as the response it was stored from.
+	 */
+	private void copyHeaders(HttpServletResponse httpResponse, String... headerNamesToCopy) {
+		if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				List<String> values = headers.get(name);
+				if (values != null) {
+					for (String value : values) {
+						httpResponse.addHeader(name, value);
+					}
+				}
+			}
+		}
+	}
+
+	boolean isNotModified(HttpServletRequest httpRequest) {
+		String ifNoneMatch = httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			String etag = getETag();
+			if (etag == null) {
+				return false;
+			}
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if ("*".equals(candidate) || stripWeak(candidate).equals(stripWeak(etag))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long lastModified = headers.getLastModified();
+		if (lastModified >= 0) {
+			try {
+				long ifModifiedSince = httpRequest.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+				return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+			} catch (IllegalArgumentException ex) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static String stripWeak(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+}
@@ -0,0 +1,82 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.ClientHttpResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Handles the response to a GET that HttpProxy sent on behalf of ProxyResponseCache. A 304 from a conditional request
+ * refreshes the cached response and serves it; a cacheable 200 is stored and served; anything else is passed through
+ * the same way DefaultResponseExtractor does.
+ */
+class CachingResponseExtractor extends DefaultResponseExtractor {
+
+	private final ProxyResponseCache cache;
+	private final String key;
+	private final CachedResponse cachedResponse;
+	private final HttpServletRequest httpRequest;
+	private final HttpServletResponse httpResponse;
+	private final String[] headerNamesToCopy;
+	private long bytesWritten;
+
+	CachingResponseExtractor(ProxyResponseCache cache, String key, CachedResponse cachedResponse,
+	                         HttpServletRequest httpRequest, HttpServletResponse httpResponse, String... headerNamesToCopy) {
+		super(httpResponse, headerNamesToCopy);
+		this.cache = cache;
+		this.key = key;
+		this.cachedResponse = cachedResponse;
+		this.httpRequest = httpRequest;
+		this.httpResponse = httpResponse;
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+
+	@Override
+	public Void extractData(ClientHttpResponse response) throws IOException {
+		int status = response.getRawStatusCode();
+		HttpHeaders headers = response.getHeaders();
+
+		if (status == HttpServletResponse.SC_NOT_MODIFIED && cachedResponse != null) {
+			long freshnessMillis = cache.determineFreshnessMillis(headers);
+			CachedResponse revalidated = cachedResponse.revalidate(cache.copyCacheableHeaders(headers),
+				Math.max(0, freshnessMillis));
+			if (freshnessMillis < 0) {
+				cache.remove(key);
+			} else {
+				cache.put(key, revalidated);
+			}
+			cache.recordRevalidation();
+			bytesWritten += revalidated.writeTo(httpRequest, httpResponse, getHeaderPolicy(), headerNamesToCopy);
+			return null;
+		}
+
+		cache.recordMiss();
+		long freshnessMillis = cache.determineFreshnessMillis(headers);
+		long contentLength = headers.getContentLength();
+		if (status != HttpServletResponse.SC_OK || !cache.isCacheable(headers, freshnessMillis)
+			|| contentLength > cache.getMaxEntryBytes()) {
+			cache.remove(key);
+			return super.extractData(response);
+		}
+
+		byte[] bytes = readUpTo(response, cache.getMaxEntryBytes());
+		if (bytes == null) {
+			// Larger than a cacheable response; send what's been read so far and stream the rest
+			cache.remove(key);
+			return null;
+		}
+
+		CachedResponse newResponse = new CachedResponse(cache.copyCacheableHeaders(headers), bytes, cache.isOffHeap(),
+			freshnessMillis);
+		cache.put(key, newResponse);
+		bytesWritten += newResponse.writeTo(httpRequest, httpResponse, getHeaderPolicy(), headerNamesToCopy);
+		return null;
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return super.getBytesCopied() + bytesWritten;
+	}
+}
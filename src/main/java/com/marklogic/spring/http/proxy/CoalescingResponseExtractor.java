@@ -0,0 +1,98 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.ClientHttpResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Handles the response to a request that HttpProxy sent on behalf of every request coalesced with it. A body no
+ * larger than the shared buffer limit is read into memory and becomes the SharedResponse; a larger body is streamed
+ * to the servlet response the same way DefaultResponseExtractor does, and there's nothing to share. As soon as the
+ * body is known to be too large, notShared is run so that the waiting requests don't have to wait for it to be
+ * streamed before falling back to a request of their own.
+ */
+class CoalescingResponseExtractor extends DefaultResponseExtractor {
+
+	private final HttpServletResponse httpResponse;
+	private final String[] headerNamesToCopy;
+	private final int maxSharedBytes;
+	private final boolean headRequest;
+	private final Runnable notShared;
+
+	private SharedResponse sharedResponse;
+	private long bytesWritten;
+
+	/**
+	 * @param httpResponse
+	 * @param maxSharedBytes
+	 * @param headRequest       true if the request is a HEAD, whose response has no body but keeps its Content-Length
+	 * @param notShared         run once the response is known to be too large to share
+	 * @param headerNamesToCopy
+	 */
+	CoalescingResponseExtractor(HttpServletResponse httpResponse, int maxSharedBytes, boolean headRequest,
+	                            Runnable notShared, String... headerNamesToCopy) {
+		super(httpResponse, headerNamesToCopy);
+		this.httpResponse = httpResponse;
+		this.headerNamesToCopy = headerNamesToCopy;
+		this.maxSharedBytes = maxSharedBytes;
+		this.headRequest = headRequest;
+		this.notShared = notShared;
+	}
+
+	@Override
+	public Void extractData(ClientHttpResponse response) throws IOException {
+		long contentLength = response.getHeaders().getContentLength();
+		if (!headRequest && contentLength > maxSharedBytes) {
+			notShared.run();
+			return super.extractData(response);
+		}
+		byte[] body = readUpTo(response, maxSharedBytes);
+		if (body == null) {
+			return null;
+		}
+		sharedResponse = new SharedResponse(response.getRawStatusCode(), copyHeaders(response), body,
+			headRequest ? contentLength : body.length);
+		bytesWritten += sharedResponse.writeTo(httpResponse);
+		return null;
+	}
+
+	@Override
+	protected void limitExceeded(ClientHttpResponse response) {
+		notShared.run();
+	}
+
+	private HttpHeaders copyHeaders(ClientHttpResponse response) {
+		if (getHeaderPolicy() != null) {
+			return getHeaderPolicy().filterResponse(response.getHeaders());
+		}
+		HttpHeaders headers = new HttpHeaders();
+		if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) || HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+					// The shared body always has a known length
+					continue;
+				}
+				List<String> values = response.getHeaders().get(name);
+				if (values != null) {
+					headers.put(name, values);
+				}
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * @return the response to hand to the coalesced requests, or null if the body was too large to share
+	 */
+	SharedResponse getSharedResponse() {
+		return sharedResponse;
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return super.getBytesCopied() + bytesWritten;
+	}
+}
@@ -0,0 +1,343 @@
+package com.marklogic.spring.http.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests are sent to MarkLogic at once, adjusting the limit as MarkLogic's latency changes so that
+ * a slowdown sheds load instead of piling up threads. The limit is adjusted with AIMD: each request that completes
+ * without a sign of overload while the limit is being used raises the limit by 1/limit - about 1 per round of
+ * requests - and each request that fails, returns a 5xx, or takes longer than latencyTolerance times the long-term
+ * average latency multiplies the limit by backoffRatio.
+ * <p>
+ * A request that arrives when the limit is reached waits, in arrival order, for up to maxWaitMillis, with no more
+ * than maxWaiting requests waiting at once; anything beyond that is rejected right away, and HttpProxy then sends a
+ * 503 with a Retry-After header. Latency is measured until MarkLogic's response arrives - see Permit.responseReceived -
+ * so that a client that's slow to read the body isn't mistaken for MarkLogic being overloaded.
+ * <p>
+ * If a bulkhead scope resolver is set - such as a DefaultCacheScopeResolver to scope by user - no single scope may
+ * hold more than maxScopeShare of the limit, so one busy user can't crowd out the rest. For per-route bulkheads, give
+ * each HttpProxy in a RouteTable its own instance of this class.
+ */
+public class ConcurrencyLimiter {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition available = lock.newCondition();
+	private final Map<String, Integer> inFlightByScope = new HashMap<>();
+
+	private volatile double limit;
+	private int inFlight;
+	private int waiting;
+	private double averageLatencyNanos;
+	private long rejected;
+
+	private int minLimit = 1;
+	private int maxLimit = 200;
+	private double backoffRatio = 0.9;
+	private double latencyTolerance = 2.0;
+	private int latencyWindow = 100;
+	private long maxWaitMillis = 50;
+	private int maxWaiting = 50;
+	private int retryAfterSeconds = 1;
+	private CacheScopeResolver bulkheadScopeResolver;
+	private double maxScopeShare = 0.5;
+
+	public ConcurrencyLimiter() {
+		this(20);
+	}
+
+	/**
+	 * @param initialLimit the limit to start at before it's adjusted based on MarkLogic's latency
+	 */
+	public ConcurrencyLimiter(int initialLimit) {
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * @param httpRequest
+	 * @return a permit that must be released once the request has completed, or null if the request should be
+	 * rejected
+	 */
+	public Permit acquire(HttpServletRequest httpRequest) {
+		String scope = bulkheadScopeResolver != null ? bulkheadScopeResolver.resolveScope(httpRequest) : null;
+		lock.lock();
+		try {
+			if (waiting == 0 && hasCapacity(scope)) {
+				return grant(scope);
+			}
+			if (maxWaitMillis <= 0 || waiting >= maxWaiting || !hasScopeCapacity(scope)) {
+				return reject(scope);
+			}
+			waiting++;
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+				while (inFlight >= getLimit()) {
+					if (nanos <= 0) {
+						return reject(scope);
+					}
+					nanos = available.awaitNanos(nanos);
+				}
+				return hasScopeCapacity(scope) ? grant(scope) : reject(scope);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return reject(scope);
+			} finally {
+				waiting--;
+				if (waiting > 0 && inFlight < getLimit()) {
+					available.signal();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean hasCapacity(String scope) {
+		return inFlight < getLimit() && hasScopeCapacity(scope);
+	}
+
+	private boolean hasScopeCapacity(String scope) {
+		if (scope == null) {
+			return true;
+		}
+		Integer count = inFlightByScope.get(scope);
+		return count == null || count < Math.max(1, (int) Math.ceil(getLimit() * maxScopeShare));
+	}
+
+	private Permit grant(String scope) {
+		inFlight++;
+		if (scope != null) {
+			inFlightByScope.merge(scope, 1, Integer::sum);
+		}
+		return new Permit(scope);
+	}
+
+	private Permit reject(String scope) {
+		rejected++;
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Rejecting request; limit: %d; in flight: %d; scope: %s", getLimit(), inFlight,
+				scope));
+		}
+		return null;
+	}
+
+	/**
+	 * @param latencyNanos the latency of the request, or -1 if it's not known
+	 * @param adjustLimit false if the request was never sent to MarkLogic
+	 */
+	private void release(Permit permit, long latencyNanos, boolean dropped, boolean adjustLimit) {
+		lock.lock();
+		try {
+			inFlight--;
+			if (permit.scope != null) {
+				inFlightByScope.computeIfPresent(permit.scope, (key, count) -> count > 1 ? count - 1 : null);
+			}
+
+			boolean slow = false;
+			if (adjustLimit && !dropped && latencyNanos >= 0) {
+				if (averageLatencyNanos == 0) {
+					averageLatencyNanos = latencyNanos;
+				} else {
+					slow = latencyTolerance > 0 && latencyNanos > averageLatencyNanos * latencyTolerance;
+					averageLatencyNanos += (latencyNanos - averageLatencyNanos) / latencyWindow;
+				}
+			}
+
+			if (adjustLimit) {
+				if (dropped || slow) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+				} else if (inFlight + 1 >= limit / 2) {
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				}
+			}
+
+			if (waiting > 0 && inFlight < getLimit()) {
+				available.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the current limit on concurrent requests
+	 */
+	public int getLimit() {
+		return Math.max(minLimit, (int) limit);
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejected() {
+		lock.lock();
+		try {
+			return rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Held by a request while it's in flight.
+	 */
+	public class Permit {
+
+		private final String scope;
+		private final long startNanos = System.nanoTime();
+		private volatile long latencyNanos = -1;
+		private boolean released;
+
+		private Permit(String scope) {
+			this.scope = scope;
+		}
+
+		/**
+		 * Records the latency of the request; to be called when MarkLogic's response arrives, before its body is
+		 * written to the client. Only the first call has any effect.
+		 */
+		public void responseReceived() {
+			if (latencyNanos < 0) {
+				latencyNanos = System.nanoTime() - startNanos;
+			}
+		}
+
+		/**
+		 * Releases the permit; only the first call has any effect. The request only counts as slow if
+		 * responseReceived was called and the latency it recorded is too high.
+		 *
+		 * @param dropped true if the request failed in a way that indicates MarkLogic is overloaded, such as a 5xx or
+		 *                a timeout
+		 */
+		public synchronized void release(boolean dropped) {
+			if (!released) {
+				released = true;
+				ConcurrencyLimiter.this.release(this, latencyNanos, dropped, true);
+			}
+		}
+
+		/**
+		 * Releases the permit without adjusting the limit, for a request that was never sent to MarkLogic.
+		 */
+		public synchronized void cancel() {
+			if (!released) {
+				released = true;
+				ConcurrencyLimiter.this.release(this, -1, false, false);
+			}
+		}
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public double getBackoffRatio() {
+		return backoffRatio;
+	}
+
+	/**
+	 * @param backoffRatio what the limit is multiplied by when a request indicates overload
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public double getLatencyTolerance() {
+		return latencyTolerance;
+	}
+
+	/**
+	 * @param latencyTolerance how many times the average latency a request may take before it's treated as a sign of
+	 *                         overload; 0 to only treat failures and 5xx responses as overload
+	 */
+	public void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	public int getLatencyWindow() {
+		return latencyWindow;
+	}
+
+	/**
+	 * @param latencyWindow roughly how many recent requests the average latency reflects
+	 */
+	public void setLatencyWindow(int latencyWindow) {
+		this.latencyWindow = latencyWindow;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	/**
+	 * @param maxWaitMillis how long a request may wait for the limit to allow it; 0 to reject it immediately
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	public int getMaxWaiting() {
+		return maxWaiting;
+	}
+
+	public void setMaxWaiting(int maxWaiting) {
+		this.maxWaiting = maxWaiting;
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	/**
+	 * @param retryAfterSeconds the value of the Retry-After header sent with a rejected request
+	 */
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public CacheScopeResolver getBulkheadScopeResolver() {
+		return bulkheadScopeResolver;
+	}
+
+	public void setBulkheadScopeResolver(CacheScopeResolver bulkheadScopeResolver) {
+		this.bulkheadScopeResolver = bulkheadScopeResolver;
+	}
+
+	public double getMaxScopeShare() {
+		return maxScopeShare;
+	}
+
+	/**
+	 * @param maxScopeShare the fraction of the limit that requests in a single bulkhead scope may hold
+	 */
+	public void setMaxScopeShare(double maxScopeShare) {
+		this.maxScopeShare = maxScopeShare;
+	}
+}
@@ -0,0 +1,52 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Default async request callback that copies certain headers from the servlet request to the client request.
+ */
+public class DefaultAsyncRequestCallback implements AsyncRequestCallback {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private HttpServletRequest httpRequest;
+	private String[] headerNamesToCopy;
+	private HeaderPolicy headerPolicy;
+
+	public DefaultAsyncRequestCallback(HttpServletRequest httpRequest, String... headerNamesToCopy) {
+		this.httpRequest = httpRequest;
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+
+	@Override
+	public void doWithRequest(HttpRequest request) {
+		if (headerPolicy != null) {
+			headerPolicy.applyToRequest(httpRequest, request::addHeader);
+		} else if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				String value = httpRequest.getHeader(name);
+				if (value != null) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Setting client HTTP header '" + name + "' to '" + value + "'");
+					}
+					request.setHeader(name, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param headerPolicy if set, used instead of the header names to copy
+	 */
+	public void setHeaderPolicy(HeaderPolicy headerPolicy) {
+		this.headerPolicy = headerPolicy;
+	}
+
+	public void setHeaderNamesToCopy(String[] headerNamesToCopy) {
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+}
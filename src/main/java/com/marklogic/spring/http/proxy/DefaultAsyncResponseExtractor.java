@@ -0,0 +1,60 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Default async response extractor that sets the status of the servlet response and copies certain headers over,
+ * along with Content-Length so that clients don't receive a chunked response when MarkLogic reports the length.
+ */
+public class DefaultAsyncResponseExtractor implements AsyncResponseExtractor {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private String[] headerNamesToCopy;
+	private HeaderPolicy headerPolicy;
+
+	public DefaultAsyncResponseExtractor(String... headerNamesToCopy) {
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+
+	@Override
+	public void extractHead(HttpResponse response, HttpServletResponse httpResponse) {
+		httpResponse.setStatus(response.getStatusLine().getStatusCode());
+		if (headerPolicy != null) {
+			headerPolicy.applyToResponse(response, httpResponse);
+		} else if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				for (Header header : response.getHeaders(name)) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Adding servlet HTTP header '" + name + "' with value '" + header.getValue() + "'");
+					}
+					httpResponse.addHeader(name, header.getValue());
+				}
+			}
+		}
+		Header contentLength = response.getFirstHeader("Content-Length");
+		if (contentLength != null) {
+			try {
+				httpResponse.setContentLengthLong(Long.parseLong(contentLength.getValue()));
+			} catch (NumberFormatException ex) {
+				logger.warn("Ignoring invalid Content-Length: " + contentLength.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param headerPolicy if set, used instead of the header names to copy
+	 */
+	public void setHeaderPolicy(HeaderPolicy headerPolicy) {
+		this.headerPolicy = headerPolicy;
+	}
+
+	public void setHeaderNamesToCopy(String[] headerNamesToCopy) {
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+}
@@ -0,0 +1,45 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.servlet.http.HttpServletRequest;
+import java.security.Principal;
+import java.util.TreeSet;
+
+/**
+ * Scopes cached responses to the current user, as determined by Spring Security or else by the servlet request. If
+ * useRoles is true, responses are instead scoped to the user's set of granted authorities, which lets users with the
+ * same roles share cached responses; only do this if what a user can read in MarkLogic is determined entirely by those
+ * roles.
+ */
+public class DefaultCacheScopeResolver implements CacheScopeResolver {
+
+	private boolean useRoles = false;
+
+	@Override
+	public String resolveScope(HttpServletRequest httpRequest) {
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		if (auth != null) {
+			if (useRoles) {
+				TreeSet<String> roles = new TreeSet<>();
+				for (GrantedAuthority authority : auth.getAuthorities()) {
+					roles.add(authority.getAuthority());
+				}
+				return "roles:" + String.join(",", roles);
+			}
+			return "user:" + auth.getName();
+		}
+		Principal principal = httpRequest.getUserPrincipal();
+		return principal != null ? "user:" + principal.getName() : "anonymous";
+	}
+
+	public boolean isUseRoles() {
+		return useRoles;
+	}
+
+	public void setUseRoles(boolean useRoles) {
+		this.useRoles = useRoles;
+	}
+}
@@ -1,17 +1,20 @@
 package com.marklogic.spring.http.proxy;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.client.RequestCallback;
 
 /**
- * Default request callback that copies certain headers from the servlet request to the client request.
+ * Default request callback that copies certain headers from the servlet request to the client request, along with the
+ * body. If the client request supports streaming, the body is streamed instead of being buffered in memory.
  */
 public class DefaultRequestCallback implements RequestCallback {
 
@@ -19,9 +22,11 @@ public class DefaultRequestCallback implements RequestCallback {
 
     private HttpServletRequest httpRequest;
     private String[] headerNamesToCopy;
+    private long bytesCopied;
+    private HeaderPolicy headerPolicy;
 
     /**
-     * TODO May want the ability to specify header names to exclude instead of including.
+     * To exclude headers instead of including them, see setHeaderPolicy.
      */
     public DefaultRequestCallback(HttpServletRequest httpRequest, String... headerNamesToCopy) {
         this.httpRequest = httpRequest;
@@ -31,13 +36,53 @@ public class DefaultRequestCallback implements RequestCallback {
     @Override
     public void doWithRequest(ClientHttpRequest request) throws IOException {
         copyHeaders(httpRequest, request);
-        FileCopyUtils.copy(httpRequest.getInputStream(), request.getBody());
+        if (request instanceof StreamingHttpOutputMessage) {
+            streamBody(request);
+        } else {
+            bytesCopied = FileCopyUtils.copy(httpRequest.getInputStream(), request.getBody());
+        }
+    }
+
+    /**
+     * Used when the request factory doesn't buffer request bodies. The servlet request body is then copied to
+     * MarkLogic as it's read, with its length sent up front when the client provided one and chunked transfer used
+     * otherwise.
+     *
+     * @param request
+     */
+    protected void streamBody(ClientHttpRequest request) {
+        long contentLength = httpRequest.getContentLengthLong();
+        if (contentLength >= 0 && httpRequest.getHeader("Transfer-Encoding") == null) {
+            request.getHeaders().setContentLength(contentLength);
+        } else {
+            request.getHeaders().remove("Content-Length");
+        }
+        ((StreamingHttpOutputMessage) request).setBody(outputStream -> {
+            BufferPool bufferPool = BufferPool.getDefault();
+            byte[] buffer = bufferPool.acquire();
+            bytesCopied = 0;
+            try {
+                InputStream in = httpRequest.getInputStream();
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                    bytesCopied += count;
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        });
     }
 
     protected void copyHeaders(HttpServletRequest httpRequest, ClientHttpRequest request) {
-        if (headerNamesToCopy != null) {
+        if (headerPolicy != null) {
+            headerPolicy.applyToRequest(httpRequest, request.getHeaders());
+        } else if (headerNamesToCopy != null) {
             for (String name : headerNamesToCopy) {
                 String value = httpRequest.getHeader(name);
+                if (value == null) {
+                    continue;
+                }
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format("Setting client HTTP header '%s' to '%s'", name, value));
                 }
@@ -46,6 +91,20 @@ public class DefaultRequestCallback implements RequestCallback {
         }
     }
 
+    /**
+     * @return the number of body bytes sent to MarkLogic by the most recent attempt
+     */
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @param headerPolicy if set, used instead of the header names to copy
+     */
+    public void setHeaderPolicy(HeaderPolicy headerPolicy) {
+        this.headerPolicy = headerPolicy;
+    }
+
     public void setHeaderNamesToCopy(String[] headerNamesToInclude) {
         this.headerNamesToCopy = headerNamesToInclude;
     }
@@ -1,20 +1,35 @@
 package com.marklogic.spring.http.proxy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.util.FileCopyUtils;
 import org.springframework.web.client.ResponseExtractor;
 
 /**
  * Default implementation that writes the body of the client response to the servlet response and also copies certain
  * headers over.
+ * <p>
+ * The status and headers - including Content-Length, so that clients don't receive a chunked response when MarkLogic
+ * reports the length - are set before any of the body is written. The body is then streamed via a pooled buffer. The
+ * servlet output stream is not closed, so that anything further along in the servlet request can still modify the
+ * response. For progressive rendering of slow responses, the servlet output stream can be flushed after a number of
+ * bytes and/or after an interval of time has passed since the last flush; both are disabled by default, which leaves
+ * flushing to the servlet container.
+ * <p>
+ * If a ResponseCompression is set, a response that MarkLogic didn't compress is compressed on its way to the client
+ * when the client accepts it; Content-Length is then omitted.
  */
 public class DefaultResponseExtractor implements ResponseExtractor<Void> {
 
@@ -23,6 +38,17 @@ public class DefaultResponseExtractor implements ResponseExtractor<Void> {
     private HttpServletResponse httpResponse;
     private String[] headerNamesToCopy;
 
+    private boolean copyContentLength = true;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private long flushThresholdBytes = -1;
+    private long flushIntervalMillis = -1;
+    private long bytesCopied;
+    private boolean writeFailed;
+    private ResponseCompression responseCompression;
+    private String acceptEncoding;
+    private String contentEncoding;
+    private HeaderPolicy headerPolicy;
+
     public DefaultResponseExtractor(HttpServletResponse httpResponse, String... headerNamesToCopy) {
         this.httpResponse = httpResponse;
         this.headerNamesToCopy = headerNamesToCopy;
@@ -30,25 +56,163 @@ public class DefaultResponseExtractor implements ResponseExtractor<Void> {
 
     @Override
     public Void extractData(ClientHttpResponse response) throws IOException {
+        httpResponse.setStatus(response.getRawStatusCode());
+        contentEncoding = determineContentEncoding(response);
         copyHeaders(httpResponse, response);
+        if (contentEncoding != null) {
+            httpResponse.setHeader(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+            httpResponse.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        } else if (copyContentLength) {
+            long contentLength = response.getHeaders().getContentLength();
+            if (contentLength >= 0) {
+                httpResponse.setContentLengthLong(contentLength);
+            }
+        }
+
         InputStream body = response.getBody();
         if (body != null) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Copying the client HTTP response body to the servlet HTTP response");
             }
-            FileCopyUtils.copy(response.getBody(), httpResponse.getOutputStream());
+            if (contentEncoding != null) {
+                try (DeflaterOutputStream out = responseCompression.wrap(contentEncoding, httpResponse.getOutputStream())) {
+                    copyBody(body, out);
+                    try {
+                        out.finish();
+                    } catch (IOException ex) {
+                        writeFailed = true;
+                        throw ex;
+                    }
+                }
+            } else {
+                copyBody(body, httpResponse.getOutputStream());
+            }
         } else if (logger.isDebugEnabled()) {
             logger.debug("No body in the client HTTP response, so not copying anything to the servlet HTTP response");
         }
 
-        httpResponse.setStatus(response.getRawStatusCode());
-
         return null;
     }
 
+    /**
+     * @param response
+     * @return the encoding to compress the body with, or null if it's to be copied as is
+     */
+    protected String determineContentEncoding(ClientHttpResponse response) throws IOException {
+        if (responseCompression == null) {
+            return null;
+        }
+        int status = response.getRawStatusCode();
+        HttpHeaders headers = response.getHeaders();
+        if (status < 200 || status == HttpServletResponse.SC_NO_CONTENT || status == HttpServletResponse.SC_NOT_MODIFIED
+            || headers.getFirst(HttpHeaders.CONTENT_ENCODING) != null) {
+            return null;
+        }
+        MediaType contentType;
+        try {
+            contentType = headers.getContentType();
+        } catch (InvalidMediaTypeException ex) {
+            return null;
+        }
+        return responseCompression.selectEncoding(acceptEncoding, contentType, headers.getContentLength());
+    }
+
+    /**
+     * Copies the body without closing either stream; the client response is closed by RestTemplate.
+     *
+     * @param body
+     * @param out
+     * @throws IOException
+     */
+    protected void copyBody(InputStream body, OutputStream out) throws IOException {
+        byte[] buffer = bufferPool.acquire();
+        try {
+            long unflushedBytes = 0;
+            long lastFlush = flushIntervalMillis > 0 ? System.nanoTime() : 0;
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                try {
+                    out.write(buffer, 0, count);
+                    bytesCopied += count;
+                    unflushedBytes += count;
+                    if (flushThresholdBytes > 0 && unflushedBytes >= flushThresholdBytes) {
+                        out.flush();
+                        unflushedBytes = 0;
+                    } else if (flushIntervalMillis > 0) {
+                        long now = System.nanoTime();
+                        if (now - lastFlush >= flushIntervalMillis * 1000000L) {
+                            out.flush();
+                            unflushedBytes = 0;
+                            lastFlush = now;
+                        }
+                    }
+                } catch (IOException ex) {
+                    writeFailed = true;
+                    throw ex;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads the body into memory so that it can be shared, unless it's larger than the given limit. In that case, the
+     * status, headers, what's been read so far, and the rest of the body are written to the servlet response.
+     *
+     * @param response
+     * @param limit
+     * @return the body, or null if it exceeded the limit, in which case the whole body has already been written to the
+     * servlet response
+     * @throws IOException
+     */
+    protected byte[] readUpTo(ClientHttpResponse response, int limit) throws IOException {
+        InputStream body = response.getBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (body == null) {
+            return bytes.toByteArray();
+        }
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = body.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+            if (bytes.size() > limit) {
+                limitExceeded(response);
+                httpResponse.setStatus(response.getRawStatusCode());
+                copyHeaders(httpResponse, response);
+                OutputStream out = httpResponse.getOutputStream();
+                try {
+                    bytes.writeTo(out);
+                } catch (IOException ex) {
+                    writeFailed = true;
+                    throw ex;
+                }
+                bytesCopied += bytes.size();
+                copyBody(body, out);
+                return null;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Called by readUpTo once the body turns out to be larger than the limit, before anything is written to the
+     * servlet response.
+     *
+     * @param response
+     */
+    protected void limitExceeded(ClientHttpResponse response) {
+    }
+
     protected void copyHeaders(HttpServletResponse httpResponse, ClientHttpResponse response) {
-        if (headerNamesToCopy != null) {
+        if (headerPolicy != null) {
+            headerPolicy.applyToResponse(response.getHeaders(), httpResponse);
+        } else if (headerNamesToCopy != null) {
             for (String name : headerNamesToCopy) {
+                if (contentEncoding != null && HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                    // The compressed length isn't known until the body has been written
+                    continue;
+                }
                 List<String> values = response.getHeaders().get(name);
                 if (values != null) {
                     if (logger.isDebugEnabled()) {
@@ -62,4 +226,68 @@ public class DefaultResponseExtractor implements ResponseExtractor<Void> {
         }
     }
 
+    /**
+     * @return true if writing the body to the servlet response failed - typically because the client went away - as
+     * opposed to reading it from MarkLogic
+     */
+    public boolean isWriteFailed() {
+        return writeFailed;
+    }
+
+    /**
+     * @return the number of body bytes written to the servlet response so far
+     */
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @param responseCompression if set, responses that MarkLogic didn't compress are compressed when the client
+     *                            accepts it
+     * @param acceptEncoding      the Accept-Encoding header of the servlet request
+     */
+    public void setResponseCompression(ResponseCompression responseCompression, String acceptEncoding) {
+        this.responseCompression = responseCompression;
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    protected HeaderPolicy getHeaderPolicy() {
+        return headerPolicy;
+    }
+
+    /**
+     * @param headerPolicy if set, used instead of the header names to copy
+     */
+    public void setHeaderPolicy(HeaderPolicy headerPolicy) {
+        this.headerPolicy = headerPolicy;
+    }
+
+    /**
+     * @param copyContentLength whether to set the Content-Length of the servlet response based on the client response;
+     *                          defaults to true
+     */
+    public void setCopyContentLength(boolean copyContentLength) {
+        this.copyContentLength = copyContentLength;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @param flushThresholdBytes flush the servlet output stream each time this many bytes have been written since the
+     *                            last flush; -1 to disable
+     */
+    public void setFlushThresholdBytes(long flushThresholdBytes) {
+        this.flushThresholdBytes = flushThresholdBytes;
+    }
+
+    /**
+     * @param flushIntervalMillis flush the servlet output stream when data is written and at least this many
+     *                            milliseconds have passed since the last flush; -1 to disable
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
 }
@@ -0,0 +1,503 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpResponse;
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Determines which headers HttpProxy copies from the servlet request to MarkLogic and from MarkLogic's response to
+ * the servlet response. A policy is built once via a Builder and is then immutable, so a single instance can be shared
+ * by every request; see HttpProxy.setHeaderPolicy.
+ * <p>
+ * In each direction, either only the included headers are copied, or - if none are included - every header is copied
+ * except the excluded ones. Either way, hop-by-hop headers - those listed by RFC 7230 and any named by the Connection
+ * header - are never copied, nor are headers that the HttpClient or servlet container set themselves: Host and
+ * Content-Length, plus Authorization on requests, as the HttpClient authenticates with MarkLogic itself. Headers can
+ * also be renamed and have their values rewritten, and X-Forwarded-For/Proto/Host and Via can be added to requests.
+ * <p>
+ * Header names are matched case-insensitively without allocating, headers are copied as they're read rather than being
+ * collected first, and nothing is logged per header.
+ */
+public class HeaderPolicy {
+
+	private final static String[] HOP_BY_HOP_HEADERS = {"Connection", "Keep-Alive", "Proxy-Authenticate",
+		"Proxy-Authorization", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade"};
+
+	private final static String[] FORWARDED_HEADERS = {"X-Forwarded-For", "X-Forwarded-Proto", "X-Forwarded-Host"};
+
+	private final Rules requestRules;
+	private final Rules responseRules;
+	private final boolean addForwardedHeaders;
+	private final String via;
+
+	private HeaderPolicy(Builder builder) {
+		List<String> requestExcluded = new ArrayList<>(Arrays.asList("Host", "Content-Length", "Authorization"));
+		if (builder.addForwardedHeaders) {
+			requestExcluded.addAll(Arrays.asList(FORWARDED_HEADERS));
+		}
+		if (builder.via != null) {
+			requestExcluded.add("Via");
+		}
+		this.requestRules = new Rules(builder.requestIncludes, builder.requestExcludes, builder.requestRenames,
+			builder.requestRewrites, requestExcluded.toArray(new String[requestExcluded.size()]));
+		this.responseRules = new Rules(builder.responseIncludes, builder.responseExcludes, builder.responseRenames,
+			builder.responseRewrites, "Content-Length");
+		this.addForwardedHeaders = builder.addForwardedHeaders;
+		this.via = builder.via;
+	}
+
+	private HeaderPolicy(HeaderPolicy policy, String... names) {
+		this.requestRules = new Rules(policy.requestRules, names);
+		this.responseRules = new Rules(policy.responseRules, names);
+		this.addForwardedHeaders = policy.addForwardedHeaders;
+		this.via = policy.via;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @param names
+	 * @return a policy that copies these headers in both directions - whether or not this policy includes or excludes
+	 * them - and is otherwise the same as this one; e.g. for the headers that passing compressed responses through
+	 * depends on. Hop-by-hop headers are still never copied.
+	 */
+	public HeaderPolicy alsoCopying(String... names) {
+		return new HeaderPolicy(this, names);
+	}
+
+	/**
+	 * @param httpRequest
+	 * @param headers the headers of the request to MarkLogic
+	 */
+	public void applyToRequest(HttpServletRequest httpRequest, HttpHeaders headers) {
+		applyToRequest(httpRequest, headers::add);
+	}
+
+	/**
+	 * @param httpRequest
+	 * @param headers     called with the name and value of each header to send to MarkLogic, as it's read from the
+	 *                    servlet request
+	 */
+	public void applyToRequest(HttpServletRequest httpRequest, BiConsumer<String, String> headers) {
+		copyRequestHeaders(httpRequest, headers);
+		if (addForwardedHeaders) {
+			String forwardedFor = httpRequest.getHeader("X-Forwarded-For");
+			String remoteAddr = httpRequest.getRemoteAddr();
+			headers.accept("X-Forwarded-For", forwardedFor != null ? forwardedFor + ", " + remoteAddr : remoteAddr);
+			headers.accept("X-Forwarded-Proto", httpRequest.getScheme());
+			String host = httpRequest.getHeader(HttpHeaders.HOST);
+			if (host != null) {
+				headers.accept("X-Forwarded-Host", host);
+			}
+		}
+		if (via != null) {
+			String existing = httpRequest.getHeader("Via");
+			headers.accept("Via", existing != null ? existing + ", " + via : via);
+		}
+	}
+
+	private void copyRequestHeaders(HttpServletRequest httpRequest, BiConsumer<String, String> headers) {
+		String connection = httpRequest.getHeader(HttpHeaders.CONNECTION);
+		if (requestRules.includedNames != null) {
+			for (int i = 0; i < requestRules.includedNames.length; i++) {
+				String name = requestRules.includedNames[i];
+				if (!isNamedByConnection(connection, name)) {
+					copyRequestHeader(httpRequest, name, requestRules.includedRules[i], headers);
+				}
+			}
+		} else {
+			Enumeration<String> names = httpRequest.getHeaderNames();
+			if (names != null) {
+				while (names.hasMoreElements()) {
+					String name = names.nextElement();
+					Rule rule = requestRules.rules.get(name);
+					if ((rule == null || !rule.excluded) && !isNamedByConnection(connection, name)) {
+						copyRequestHeader(httpRequest, name, rule, headers);
+					}
+				}
+			}
+		}
+	}
+
+	private void copyRequestHeader(HttpServletRequest httpRequest, String name, Rule rule,
+	                               BiConsumer<String, String> headers) {
+		Enumeration<String> values = httpRequest.getHeaders(name);
+		if (values == null) {
+			return;
+		}
+		String targetName = rule != null && rule.rename != null ? rule.rename : name;
+		while (values.hasMoreElements()) {
+			String value = values.nextElement();
+			if (rule != null && rule.rewrite != null) {
+				value = rule.rewrite.apply(value);
+			}
+			if (value != null) {
+				headers.accept(targetName, value);
+			}
+		}
+	}
+
+	/**
+	 * @param headers      the headers of MarkLogic's response
+	 * @param httpResponse
+	 */
+	public void applyToResponse(HttpHeaders headers, HttpServletResponse httpResponse) {
+		String connection = headers.getFirst(HttpHeaders.CONNECTION);
+		if (responseRules.includedNames != null) {
+			for (int i = 0; i < responseRules.includedNames.length; i++) {
+				String name = responseRules.includedNames[i];
+				if (!isNamedByConnection(connection, name)) {
+					copyResponseHeader(name, headers.get(name), responseRules.includedRules[i], httpResponse, null);
+				}
+			}
+		} else {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				String name = entry.getKey();
+				Rule rule = responseRules.rules.get(name);
+				if ((rule == null || !rule.excluded) && !isNamedByConnection(connection, name)) {
+					copyResponseHeader(name, entry.getValue(), rule, httpResponse, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the headers of an HttpClient response - as received by AsyncHttpProxy - without collecting them first.
+	 *
+	 * @param response     MarkLogic's response
+	 * @param httpResponse
+	 */
+	public void applyToResponse(HttpResponse response, HttpServletResponse httpResponse) {
+		Header connectionHeader = response.getFirstHeader(HttpHeaders.CONNECTION);
+		String connection = connectionHeader != null ? connectionHeader.getValue() : null;
+		if (responseRules.includedNames != null) {
+			for (int i = 0; i < responseRules.includedNames.length; i++) {
+				String name = responseRules.includedNames[i];
+				if (!isNamedByConnection(connection, name)) {
+					for (Header header : response.getHeaders(name)) {
+						copyResponseHeader(name, header.getValue(), responseRules.includedRules[i], httpResponse);
+					}
+				}
+			}
+		} else {
+			HeaderIterator headers = response.headerIterator();
+			while (headers.hasNext()) {
+				Header header = headers.nextHeader();
+				String name = header.getName();
+				Rule rule = responseRules.rules.get(name);
+				if ((rule == null || !rule.excluded) && !isNamedByConnection(connection, name)) {
+					copyResponseHeader(name, header.getValue(), rule, httpResponse);
+				}
+			}
+		}
+	}
+
+	private void copyResponseHeader(String name, String value, Rule rule, HttpServletResponse httpResponse) {
+		if (rule != null && rule.rewrite != null) {
+			value = rule.rewrite.apply(value);
+		}
+		if (value != null) {
+			httpResponse.addHeader(rule != null && rule.rename != null ? rule.rename : name, value);
+		}
+	}
+
+	/**
+	 * Applies the response rules to the given headers without writing them anywhere, so that they can be stored and
+	 * sent later, such as by RequestCoalescer.
+	 *
+	 * @param headers
+	 * @return
+	 */
+	public HttpHeaders filterResponse(HttpHeaders headers) {
+		HttpHeaders filtered = new HttpHeaders();
+		String connection = headers.getFirst(HttpHeaders.CONNECTION);
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			String name = entry.getKey();
+			Rule rule = responseRules.rules.get(name);
+			boolean copy = responseRules.includedNames != null ? rule != null && rule.included :
+				rule == null || !rule.excluded;
+			if (copy && !isNamedByConnection(connection, name)) {
+				copyResponseHeader(name, entry.getValue(), rule, null, filtered);
+			}
+		}
+		return filtered;
+	}
+
+	private void copyResponseHeader(String name, List<String> values, Rule rule, HttpServletResponse httpResponse,
+	                                HttpHeaders target) {
+		if (values == null) {
+			return;
+		}
+		String targetName = rule != null && rule.rename != null ? rule.rename : name;
+		for (int i = 0; i < values.size(); i++) {
+			String value = values.get(i);
+			if (rule != null && rule.rewrite != null) {
+				value = rule.rewrite.apply(value);
+			}
+			if (value != null) {
+				if (httpResponse != null) {
+					httpResponse.addHeader(targetName, value);
+				} else {
+					target.add(targetName, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the name and value of each header that would be copied to MarkLogic, so that requests that would be sent
+	 * with different headers aren't coalesced. The X-Forwarded and Via headers are left out, as they only describe the
+	 * route of the request.
+	 *
+	 * @param httpRequest
+	 * @param key
+	 */
+	public void appendRequestKey(HttpServletRequest httpRequest, StringBuilder key) {
+		copyRequestHeaders(httpRequest, (name, value) -> key.append('\n').append(name).append(':').append(value));
+	}
+
+	/**
+	 * Checks whether the Connection header lists the given name, without splitting it.
+	 */
+	private static boolean isNamedByConnection(String connection, String name) {
+		if (connection == null) {
+			return false;
+		}
+		int length = name.length();
+		int from = 0;
+		while (true) {
+			int index = indexOfIgnoreCase(connection, name, from);
+			if (index < 0) {
+				return false;
+			}
+			boolean startsToken = index == 0 || connection.charAt(index - 1) == ',' || connection.charAt(index - 1) == ' ';
+			int end = index + length;
+			boolean endsToken = end == connection.length() || connection.charAt(end) == ',' || connection.charAt(end) == ' ';
+			if (startsToken && endsToken) {
+				return true;
+			}
+			from = index + 1;
+		}
+	}
+
+	private static int indexOfIgnoreCase(String text, String search, int from) {
+		int last = text.length() - search.length();
+		for (int i = from; i <= last; i++) {
+			if (text.regionMatches(true, i, search, 0, search.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * What to do with a single header name.
+	 */
+	private static class Rule {
+
+		boolean included;
+		boolean excluded;
+		String rename;
+		UnaryOperator<String> rewrite;
+	}
+
+	/**
+	 * The compiled rules for one direction.
+	 */
+	private static class Rules {
+
+		final TreeMap<String, Rule> rules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		final String[] includedNames;
+		final Rule[] includedRules;
+
+		Rules(List<String> includes, List<String> excludes, Map<String, String> renames,
+		      Map<String, UnaryOperator<String>> rewrites, String... alwaysExcluded) {
+			for (String name : includes) {
+				rule(name).included = true;
+			}
+			for (String name : excludes) {
+				rule(name).excluded = true;
+			}
+			for (String name : HOP_BY_HOP_HEADERS) {
+				rule(name).excluded = true;
+			}
+			for (String name : alwaysExcluded) {
+				rule(name).excluded = true;
+			}
+			for (Map.Entry<String, String> entry : renames.entrySet()) {
+				rule(entry.getKey()).rename = entry.getValue();
+			}
+			for (Map.Entry<String, UnaryOperator<String>> entry : rewrites.entrySet()) {
+				rule(entry.getKey()).rewrite = entry.getValue();
+			}
+			this.includedNames = includes.isEmpty() ? null : collectIncludedNames();
+			this.includedRules = includedNames != null ? collectIncludedRules() : null;
+		}
+
+		/**
+		 * Copies the given rules, with the given headers included - if headers are included - and not excluded, unless
+		 * they're hop-by-hop headers.
+		 */
+		Rules(Rules base, String... names) {
+			for (Map.Entry<String, Rule> entry : base.rules.entrySet()) {
+				Rule copy = rule(entry.getKey());
+				copy.included = entry.getValue().included;
+				copy.excluded = entry.getValue().excluded;
+				copy.rename = entry.getValue().rename;
+				copy.rewrite = entry.getValue().rewrite;
+			}
+			for (String name : names) {
+				Rule rule = rule(name);
+				rule.included = base.includedNames != null;
+				rule.excluded = false;
+			}
+			for (String name : HOP_BY_HOP_HEADERS) {
+				rule(name).excluded = true;
+			}
+			this.includedNames = base.includedNames != null ? collectIncludedNames() : null;
+			this.includedRules = includedNames != null ? collectIncludedRules() : null;
+		}
+
+		private String[] collectIncludedNames() {
+			List<String> names = new ArrayList<>();
+			for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+				if (entry.getValue().included && !entry.getValue().excluded) {
+					names.add(entry.getKey());
+				}
+			}
+			return names.toArray(new String[names.size()]);
+		}
+
+		private Rule[] collectIncludedRules() {
+			Rule[] includedRules = new Rule[includedNames.length];
+			for (int i = 0; i < includedNames.length; i++) {
+				includedRules[i] = rules.get(includedNames[i]);
+			}
+			return includedRules;
+		}
+
+		private Rule rule(String name) {
+			return rules.computeIfAbsent(name, key -> new Rule());
+		}
+	}
+
+	public static class Builder {
+
+		private final List<String> requestIncludes = new ArrayList<>();
+		private final List<String> requestExcludes = new ArrayList<>();
+		private final Map<String, String> requestRenames = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private final Map<String, UnaryOperator<String>> requestRewrites = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private final List<String> responseIncludes = new ArrayList<>();
+		private final List<String> responseExcludes = new ArrayList<>();
+		private final Map<String, String> responseRenames = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private final Map<String, UnaryOperator<String>> responseRewrites = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private boolean addForwardedHeaders;
+		private String via;
+
+		/**
+		 * Only copy these headers - plus any renamed or rewritten ones - to MarkLogic.
+		 */
+		public Builder includeRequestHeaders(String... names) {
+			addAll(requestIncludes, names);
+			return this;
+		}
+
+		/**
+		 * If no request headers are included, copy every header to MarkLogic except these.
+		 */
+		public Builder excludeRequestHeaders(String... names) {
+			addAll(requestExcludes, names);
+			return this;
+		}
+
+		public Builder renameRequestHeader(String name, String newName) {
+			requestRenames.put(name, newName);
+			return this;
+		}
+
+		/**
+		 * @param rewrite returns the value to send to MarkLogic, or null to not send it
+		 */
+		public Builder rewriteRequestHeader(String name, UnaryOperator<String> rewrite) {
+			requestRewrites.put(name, rewrite);
+			return this;
+		}
+
+		/**
+		 * Only copy these headers - plus any renamed or rewritten ones - to the servlet response.
+		 */
+		public Builder includeResponseHeaders(String... names) {
+			addAll(responseIncludes, names);
+			return this;
+		}
+
+		/**
+		 * If no response headers are included, copy every header to the servlet response except these.
+		 */
+		public Builder excludeResponseHeaders(String... names) {
+			addAll(responseExcludes, names);
+			return this;
+		}
+
+		public Builder renameResponseHeader(String name, String newName) {
+			responseRenames.put(name, newName);
+			return this;
+		}
+
+		/**
+		 * @param rewrite returns the value to send to the client, or null to not send it; e.g. for rewriting Location
+		 */
+		public Builder rewriteResponseHeader(String name, UnaryOperator<String> rewrite) {
+			responseRewrites.put(name, rewrite);
+			return this;
+		}
+
+		/**
+		 * Send X-Forwarded-For, X-Forwarded-Proto, and X-Forwarded-Host to MarkLogic.
+		 */
+		public Builder addForwardedHeaders() {
+			this.addForwardedHeaders = true;
+			return this;
+		}
+
+		/**
+		 * @param via appended to the Via header sent to MarkLogic, e.g. "1.1 my-proxy"
+		 */
+		public Builder via(String via) {
+			this.via = via;
+			return this;
+		}
+
+		public HeaderPolicy build() {
+			if (!requestIncludes.isEmpty()) {
+				requestIncludes.addAll(requestRenames.keySet());
+				requestIncludes.addAll(requestRewrites.keySet());
+			}
+			if (!responseIncludes.isEmpty()) {
+				responseIncludes.addAll(responseRenames.keySet());
+				responseIncludes.addAll(responseRewrites.keySet());
+			}
+			return new HeaderPolicy(this);
+		}
+
+		private static void addAll(List<String> list, String... names) {
+			for (String name : names) {
+				list.add(name);
+			}
+		}
+	}
+}
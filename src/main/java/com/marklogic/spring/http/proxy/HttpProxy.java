@@ -1,32 +1,69 @@
 package com.marklogic.spring.http.proxy;
 
+import com.marklogic.spring.http.RequestTimeline;
 import com.marklogic.spring.http.RestClient;
 import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.http.RestOperationsFactory;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
 import org.apache.http.client.CredentialsProvider;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Simple proxy class that uses Spring's RestOperations to proxy servlet requests to MarkLogic.
  */
 public class HttpProxy extends RestClient {
 
+	private final static String[] COMPRESSION_HEADER_NAMES =
+		{HttpHeaders.ACCEPT_ENCODING, HttpHeaders.CONTENT_ENCODING, HttpHeaders.VARY};
+
+	private ProxyResponseCache responseCache;
+	private RequestCoalescer requestCoalescer;
+	private ResponseCompression responseCompression;
+	private HeaderPolicy headerPolicy;
+	private ConcurrencyLimiter concurrencyLimiter;
+	private RequestTiming requestTiming;
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+
 	public HttpProxy(RestConfig restConfig, CredentialsProvider provider) {
 		super(restConfig, provider);
 	}
 
+	public HttpProxy(RestConfig restConfig, CredentialsProvider provider, RestOperationsFactory restOperationsFactory) {
+		super(restConfig, provider, restOperationsFactory);
+	}
+
+	/**
+	 * For subclasses that only use the blocking RestOperations for some requests; see RestClient.
+	 */
+	protected HttpProxy(RestConfig restConfig, CredentialsProvider provider, boolean createLazily) {
+		super(restConfig, provider, createLazily);
+	}
+
+	protected HttpProxy(RestConfig restConfig, CredentialsProvider provider, RestOperationsFactory restOperationsFactory,
+	                    boolean createLazily) {
+		super(restConfig, provider, restOperationsFactory, createLazily);
+	}
+
 	public HttpProxy(RestConfig restConfig, RestOperations restOperations) {
 		super(restConfig, restOperations);
 	}
 
 	/**
-	 * Proxy a request without copying any headers.
+	 * Proxy a request without copying any headers, unless a HeaderPolicy is set.
 	 *
 	 * @param httpRequest
 	 * @param httpResponse
@@ -43,9 +80,7 @@ public class HttpProxy extends RestClient {
 	 * @param headerNamesToCopy
 	 */
 	public void proxy(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String... headerNamesToCopy) {
-		proxy(httpRequest.getServletPath(), httpRequest, httpResponse,
-			new DefaultRequestCallback(httpRequest, headerNamesToCopy),
-			new DefaultResponseExtractor(httpResponse, headerNamesToCopy));
+		proxy(httpRequest.getServletPath(), httpRequest, httpResponse, headerNamesToCopy);
 	}
 
 	/**
@@ -58,8 +93,184 @@ public class HttpProxy extends RestClient {
 	 */
 	public void proxy(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
 	                  String... headerNamesToCopy) {
-		proxy(path, httpRequest, httpResponse, new DefaultRequestCallback(httpRequest, headerNamesToCopy),
-			new DefaultResponseExtractor(httpResponse, headerNamesToCopy));
+		if (Boolean.TRUE.equals(getRestConfig().isCompressionPassThrough())) {
+			headerNamesToCopy = addCompressionHeaderNames(headerNamesToCopy);
+		}
+		if (responseCache != null && "GET".equals(httpRequest.getMethod())) {
+			proxyWithCache(path, httpRequest, httpResponse, headerNamesToCopy);
+			return;
+		}
+		if (requestCoalescer != null && requestCoalescer.isCoalescable(httpRequest.getMethod())
+			&& !ServletRequestProducer.hasBody(httpRequest)) {
+			proxyCoalesced(path, httpRequest, httpResponse, headerNamesToCopy);
+			return;
+		}
+		proxy(path, httpRequest, httpResponse, newRequestCallback(httpRequest, headerNamesToCopy),
+			newResponseExtractor(httpRequest, httpResponse, headerNamesToCopy));
+	}
+
+	/**
+	 * When compressed responses are passed through, the client's Accept-Encoding is sent to MarkLogic, and the
+	 * Content-Encoding and Vary headers of MarkLogic's response are sent back with the still-compressed body.
+	 *
+	 * @param headerNamesToCopy
+	 * @return
+	 */
+	protected String[] addCompressionHeaderNames(String[] headerNamesToCopy) {
+		List<String> names = headerNamesToCopy != null ? new ArrayList<>(Arrays.asList(headerNamesToCopy)) :
+			new ArrayList<>();
+		for (String name : COMPRESSION_HEADER_NAMES) {
+			boolean present = false;
+			for (String existing : names) {
+				if (existing.equalsIgnoreCase(name)) {
+					present = true;
+					break;
+				}
+			}
+			if (!present) {
+				names.add(name);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	protected DefaultRequestCallback newRequestCallback(HttpServletRequest httpRequest, String... headerNamesToCopy) {
+		DefaultRequestCallback requestCallback = new DefaultRequestCallback(httpRequest, headerNamesToCopy);
+		requestCallback.setHeaderPolicy(headerPolicy);
+		return requestCallback;
+	}
+
+	protected DefaultResponseExtractor newResponseExtractor(HttpServletRequest httpRequest,
+	                                                        HttpServletResponse httpResponse,
+	                                                        String... headerNamesToCopy) {
+		DefaultResponseExtractor responseExtractor = new DefaultResponseExtractor(httpResponse, headerNamesToCopy);
+		responseExtractor.setHeaderPolicy(headerPolicy);
+		if (responseCompression != null) {
+			responseExtractor.setResponseCompression(responseCompression,
+				httpRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
+		}
+		return responseExtractor;
+	}
+
+	/**
+	 * Serves a GET from the response cache if the cached response is fresh; otherwise, sends the request to MarkLogic,
+	 * conditionally if there's a cached response to revalidate.
+	 *
+	 * @param path
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param headerNamesToCopy
+	 */
+	protected void proxyWithCache(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	                              String... headerNamesToCopy) {
+		long startNanos = System.nanoTime();
+		URI uri = buildUri(path, httpRequest.getQueryString());
+		String key = responseCache.buildKey(httpRequest, uri,
+			Boolean.TRUE.equals(getRestConfig().isCompressionPassThrough()));
+		CachedResponse cachedResponse = responseCache.get(key);
+		if (cachedResponse != null && cachedResponse.isFresh() && !ProxyResponseCache.isNoCacheRequest(httpRequest)) {
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format("Serving cached response for URI: %s", uri));
+			}
+			responseCache.recordHit();
+			int bytesOut = -1;
+			try {
+				bytesOut = cachedResponse.writeTo(httpRequest, httpResponse, headerPolicy, headerNamesToCopy);
+			} catch (IOException ex) {
+				throw new RuntimeException("Unable to write cached response, cause: " + ex.getMessage(), ex);
+			} finally {
+				if (metrics != MarkLogicMetrics.NOOP) {
+					metrics.recordProxyRequest(httpRequest.getMethod(), toPathTemplate(path), httpResponse.getStatus(),
+						System.nanoTime() - startNanos, 0, bytesOut);
+				}
+			}
+			return;
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Proxying to URI: %s", uri));
+		}
+		DefaultRequestCallback callback = newRequestCallback(httpRequest, headerNamesToCopy);
+		RequestCallback requestCallback = cachedResponse == null ? callback : request -> {
+			callback.doWithRequest(request);
+			// Revalidate the cached response instead of passing along the client's validators
+			request.getHeaders().remove(HttpHeaders.IF_MODIFIED_SINCE);
+			request.getHeaders().remove(HttpHeaders.IF_NONE_MATCH);
+			if (cachedResponse.getETag() != null) {
+				request.getHeaders().setIfNoneMatch(cachedResponse.getETag());
+			}
+			if (cachedResponse.getLastModified() != null) {
+				request.getHeaders().set(HttpHeaders.IF_MODIFIED_SINCE, cachedResponse.getLastModified());
+			}
+		};
+		CachingResponseExtractor responseExtractor = new CachingResponseExtractor(responseCache, key, cachedResponse,
+			httpRequest, httpResponse, headerNamesToCopy);
+		responseExtractor.setHeaderPolicy(headerPolicy);
+		execute(path, uri, HttpMethod.GET, httpRequest, httpResponse, requestCallback, responseExtractor, startNanos,
+			callback, responseExtractor);
+	}
+
+	/**
+	 * Sends the request to MarkLogic unless an identical request is already in flight, in which case this waits for
+	 * and then sends the response to that request.
+	 *
+	 * @param path
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param headerNamesToCopy
+	 */
+	protected void proxyCoalesced(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	                              String... headerNamesToCopy) {
+		long startNanos = System.nanoTime();
+		URI uri = buildUri(path, httpRequest.getQueryString());
+		String key = requestCoalescer.buildKey(httpRequest, uri, headerPolicy, headerNamesToCopy);
+		CompletableFuture<SharedResponse> flight = new CompletableFuture<>();
+		CompletableFuture<SharedResponse> existing = requestCoalescer.join(key, flight);
+
+		if (existing != null) {
+			SharedResponse sharedResponse = requestCoalescer.await(existing);
+			if (sharedResponse != null) {
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format("Serving coalesced response for URI: %s", uri));
+				}
+				int bytesOut = -1;
+				try {
+					bytesOut = sharedResponse.writeTo(httpResponse);
+				} catch (IOException ex) {
+					throw new RuntimeException("Unable to write coalesced response, cause: " + ex.getMessage(), ex);
+				} finally {
+					if (metrics != MarkLogicMetrics.NOOP) {
+						metrics.recordProxyRequest(httpRequest.getMethod(), toPathTemplate(path),
+							httpResponse.getStatus(), System.nanoTime() - startNanos, 0, bytesOut);
+					}
+				}
+				return;
+			}
+			proxy(path, httpRequest, httpResponse, newRequestCallback(httpRequest, headerNamesToCopy),
+				newResponseExtractor(httpRequest, httpResponse, headerNamesToCopy));
+			return;
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Proxying to URI: %s", uri));
+		}
+		try {
+			DefaultRequestCallback requestCallback = newRequestCallback(httpRequest, headerNamesToCopy);
+			CoalescingResponseExtractor responseExtractor = new CoalescingResponseExtractor(httpResponse,
+				requestCoalescer.getMaxSharedBytes(), "HEAD".equals(httpRequest.getMethod()), () -> {
+				flight.complete(null);
+				requestCoalescer.leave(key, flight);
+			}, headerNamesToCopy);
+			responseExtractor.setHeaderPolicy(headerPolicy);
+			execute(path, uri, determineMethod(httpRequest), httpRequest, httpResponse, requestCallback,
+				responseExtractor, startNanos, requestCallback, responseExtractor);
+			flight.complete(responseExtractor.getSharedResponse());
+		} catch (RuntimeException ex) {
+			flight.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			requestCoalescer.leave(key, flight);
+		}
 	}
 
 	/**
@@ -80,11 +291,216 @@ public class HttpProxy extends RestClient {
 			logger.debug(String.format("Proxying to URI: %s", uri));
 		}
 		HttpMethod method = determineMethod(httpRequest);
-		return getRestOperations().execute(uri, method, requestCallback, responseExtractor);
+		return execute(path, uri, method, httpRequest, httpResponse, requestCallback, responseExtractor,
+			System.nanoTime(), requestCallback, responseExtractor);
+	}
+
+	/**
+	 * Sends the request to MarkLogic and, if metrics are enabled, records it. The status is the one set on the servlet
+	 * response, or the one from MarkLogic if the RestOperations error handler threw an exception for it, or 0 if
+	 * MarkLogic couldn't be reached. Bytes are only known when the callback and extractor are the default ones.
+	 * <p>
+	 * The ConcurrencyLimiter permit counts as dropped when MarkLogic returns a 5xx or can't be connected to or read
+	 * from, but not when the client goes away while the body is being written - which a DefaultResponseExtractor can
+	 * tell apart. Its latency is measured until MarkLogic's response arrives, not until the body has been written.
+	 * <p>
+	 * If a ConcurrencyLimiter is set and it rejects the request, nothing is sent to MarkLogic and null is returned.
+	 * If a RequestTiming is set, the phases of the request are recorded in a RequestTimeline and reported by it.
+	 */
+	private <T> T execute(String path, URI uri, HttpMethod method, HttpServletRequest httpRequest,
+	                      HttpServletResponse httpResponse, RequestCallback requestCallback,
+	                      ResponseExtractor<T> responseExtractor, long startNanos, Object bytesInSource,
+	                      Object bytesOutSource) {
+		ConcurrencyLimiter.Permit permit = null;
+		if (concurrencyLimiter != null) {
+			permit = concurrencyLimiter.acquire(httpRequest);
+			if (permit == null) {
+				rejectOverloadedRequest(httpRequest, httpResponse);
+				if (metrics != MarkLogicMetrics.NOOP) {
+					metrics.recordProxyRequest(httpRequest.getMethod(), toPathTemplate(path), httpResponse.getStatus(),
+						System.nanoTime() - startNanos, 0, 0);
+				}
+				return null;
+			}
+		} else if (metrics == MarkLogicMetrics.NOOP && requestTiming == null) {
+			return getRestOperations().execute(uri, method, requestCallback, responseExtractor);
+		}
+		RequestTiming timing = requestTiming;
+		RequestTimeline timeline = timing != null ? timing.start(startNanos) : null;
+		ConcurrencyLimiter.Permit heldPermit = permit;
+		if (timeline != null || heldPermit != null) {
+			ResponseExtractor<T> extractor = responseExtractor;
+			responseExtractor = response -> {
+				if (heldPermit != null) {
+					heldPermit.responseReceived();
+				}
+				if (timeline != null) {
+					timing.responseReceived(httpResponse, timeline, response.getRawStatusCode());
+				}
+				return extractor.extractData(response);
+			};
+		}
+		int status = 0;
+		try {
+			T result = getRestOperations().execute(uri, method, requestCallback, responseExtractor);
+			status = httpResponse.getStatus();
+			return result;
+		} catch (HttpStatusCodeException ex) {
+			status = ex.getRawStatusCode();
+			if (permit != null) {
+				permit.responseReceived();
+			}
+			if (timeline != null) {
+				// The error handler threw before the extractor was called
+				timing.responseReceived(httpResponse, timeline, status);
+			}
+			throw ex;
+		} finally {
+			if (permit != null) {
+				boolean clientFailed = bytesOutSource instanceof DefaultResponseExtractor
+					&& ((DefaultResponseExtractor) bytesOutSource).isWriteFailed();
+				permit.release((status == 0 && !clientFailed) || status >= 500);
+			}
+			if (metrics != MarkLogicMetrics.NOOP) {
+				long bytesIn = bytesInSource instanceof DefaultRequestCallback ?
+					((DefaultRequestCallback) bytesInSource).getBytesCopied() : -1;
+				long bytesOut = bytesOutSource instanceof DefaultResponseExtractor ?
+					((DefaultResponseExtractor) bytesOutSource).getBytesCopied() : -1;
+				metrics.recordProxyRequest(httpRequest.getMethod(), toPathTemplate(path), status,
+					System.nanoTime() - startNanos, bytesIn, bytesOut);
+			}
+			if (timeline != null) {
+				timing.finish(timeline, httpRequest.getMethod(), toPathTemplate(path), status);
+			}
+		}
+	}
+
+	/**
+	 * Called when the ConcurrencyLimiter rejects a request; sends a 503 with a Retry-After header so that the client
+	 * backs off instead of MarkLogic being sent more than it can handle.
+	 *
+	 * @param httpRequest
+	 * @param httpResponse
+	 */
+	protected void rejectOverloadedRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Too many requests in flight, so rejecting request for: " + httpRequest.getRequestURI());
+		}
+		httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		httpResponse.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(concurrencyLimiter.getRetryAfterSeconds()));
+	}
+
+	/**
+	 * Reduces a path to a value with bounded cardinality so that it can be used as a metrics tag. The default keeps the
+	 * first two segments - e.g. "/v1/documents" - and replaces the rest with "*". Override this to match the routes of
+	 * a particular application.
+	 *
+	 * @param path
+	 * @return
+	 */
+	protected String toPathTemplate(String path) {
+		if (path == null || path.isEmpty()) {
+			return "/";
+		}
+		int slashes = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/' && i > 0 && ++slashes == 2) {
+				return i == path.length() - 1 ? path.substring(0, i) : path.substring(0, i) + "/*";
+			}
+		}
+		return path;
 	}
 
 	protected HttpMethod determineMethod(HttpServletRequest request) {
 		return HttpMethod.valueOf(request.getMethod());
 	}
 
+	public ProxyResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * @param responseCache if set, GET requests proxied via the methods that copy header names are served from and
+	 *                      stored in this cache
+	 */
+	public void setResponseCache(ProxyResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	/**
+	 * @param requestCoalescer if set, concurrent identical GET and HEAD requests proxied via the methods that copy
+	 *                         header names share a single request to MarkLogic; GET requests are instead handled by
+	 *                         the response cache when one is set
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public ResponseCompression getResponseCompression() {
+		return responseCompression;
+	}
+
+	/**
+	 * @param responseCompression if set, responses that MarkLogic didn't compress are compressed on their way to the
+	 *                            client when the client accepts it
+	 */
+	public void setResponseCompression(ResponseCompression responseCompression) {
+		this.responseCompression = responseCompression;
+	}
+
+	public HeaderPolicy getHeaderPolicy() {
+		return headerPolicy;
+	}
+
+	/**
+	 * @param headerPolicy if set, determines the headers copied on both the request and the response instead of the
+	 *                     header names passed to the proxy methods. When compressed responses are passed through, the
+	 *                     policy is extended to always copy the headers that depends on; see addCompressionHeaderNames.
+	 */
+	public void setHeaderPolicy(HeaderPolicy headerPolicy) {
+		if (headerPolicy != null && Boolean.TRUE.equals(getRestConfig().isCompressionPassThrough())) {
+			headerPolicy = headerPolicy.alsoCopying(COMPRESSION_HEADER_NAMES);
+		}
+		this.headerPolicy = headerPolicy;
+	}
+
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * @param concurrencyLimiter if set, limits how many requests are sent to MarkLogic at once, and requests beyond
+	 *                           that limit are rejected with a 503
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	public RequestTiming getRequestTiming() {
+		return requestTiming;
+	}
+
+	/**
+	 * @param requestTiming reports a breakdown of each request to MarkLogic via a Server-Timing header and sampled log
+	 *                      lines; defaults to null, in which case requests aren't timed
+	 */
+	public void setRequestTiming(RequestTiming requestTiming) {
+		this.requestTiming = requestTiming;
+	}
+
+	public MarkLogicMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param metrics records the duration, status, and bytes of each proxied request; defaults to no-op
+	 */
+	public void setMetrics(MarkLogicMetrics metrics) {
+		this.metrics = metrics != null ? metrics : MarkLogicMetrics.NOOP;
+	}
+
 }
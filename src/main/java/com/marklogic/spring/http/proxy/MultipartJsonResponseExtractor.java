@@ -0,0 +1,362 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.MultipartReader;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Re-streams a multipart/mixed MarkLogic response - such as a multi-document GET /v1/documents, or a /v1/search that
+ * includes content - as newline-delimited JSON or as a JSON array, one object per part:
+ * <pre>
+ * {"uri":"/a.json","contentType":"application/json","content":{...}}
+ * </pre>
+ * JSON content is inlined - or is null if the part is empty - other text is a JSON string, decoded per the charset of
+ * the part if it isn't UTF-8, and anything else is a base64 string with "encoding":"base64".
+ * Parts are parsed as they arrive using a fixed-size buffer, and each part is flushed to the client once written, so
+ * memory use doesn't depend on the size of the result and the first part reaches the client as soon as possible.
+ * <p>
+ * A response that isn't multipart - including an error response - is copied as is by DefaultResponseExtractor.
+ */
+public class MultipartJsonResponseExtractor extends DefaultResponseExtractor {
+
+	public enum Format {
+
+		/**
+		 * application/x-ndjson - one object per line
+		 */
+		NDJSON,
+
+		/**
+		 * application/json - a single array of objects
+		 */
+		JSON_ARRAY
+	}
+
+	private final static byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+	private final HttpServletResponse httpResponse;
+	private final Format format;
+	private final String[] headerNamesToCopy;
+	private boolean restreaming;
+	private BufferPool bufferPool = BufferPool.getDefault();
+	private boolean flushEachPart = true;
+
+	public MultipartJsonResponseExtractor(HttpServletResponse httpResponse, Format format,
+	                                      String... headerNamesToCopy) {
+		super(httpResponse, headerNamesToCopy);
+		this.httpResponse = httpResponse;
+		this.format = format;
+		this.headerNamesToCopy = headerNamesToCopy;
+	}
+
+	@Override
+	public Void extractData(ClientHttpResponse response) throws IOException {
+		String boundary;
+		try {
+			boundary = MultipartReader.extractBoundary(response.getHeaders().getContentType());
+		} catch (InvalidMediaTypeException ex) {
+			boundary = null;
+		}
+		if (boundary == null) {
+			return super.extractData(response);
+		}
+
+		restreaming = true;
+		httpResponse.setStatus(response.getRawStatusCode());
+		copyHeaders(httpResponse, response);
+		httpResponse.setContentType(format == Format.NDJSON ? "application/x-ndjson" : "application/json");
+
+		InputStream body = response.getBody();
+		OutputStream out = httpResponse.getOutputStream();
+		if (format == Format.JSON_ARRAY) {
+			out.write('[');
+		}
+		if (body != null) {
+			MultipartReader reader = new MultipartReader(body, boundary);
+			MultipartReader.Part part;
+			boolean first = true;
+			while ((part = reader.next()) != null) {
+				if (!first && format == Format.JSON_ARRAY) {
+					out.write(',');
+				}
+				writePart(part, out);
+				if (format == Format.NDJSON) {
+					out.write('\n');
+				}
+				if (flushEachPart) {
+					out.flush();
+				}
+				first = false;
+			}
+		}
+		if (format == Format.JSON_ARRAY) {
+			out.write(']');
+		}
+		return null;
+	}
+
+	/**
+	 * Headers describing the multipart body don't apply to the re-streamed body, so they're dropped after the header
+	 * policy, if one is set, has been applied.
+	 */
+	@Override
+	protected void copyHeaders(HttpServletResponse httpResponse, ClientHttpResponse response) {
+		if (!restreaming) {
+			super.copyHeaders(httpResponse, response);
+			return;
+		}
+		HeaderPolicy headerPolicy = getHeaderPolicy();
+		if (headerPolicy != null) {
+			HttpHeaders headers = headerPolicy.filterResponse(response.getHeaders());
+			headers.remove(HttpHeaders.CONTENT_TYPE);
+			headers.remove(HttpHeaders.CONTENT_LENGTH);
+			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				for (String value : entry.getValue()) {
+					httpResponse.addHeader(entry.getKey(), value);
+				}
+			}
+		} else if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				if (HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+					continue;
+				}
+				List<String> values = response.getHeaders().get(name);
+				if (values != null) {
+					for (String value : values) {
+						httpResponse.addHeader(name, value);
+					}
+				}
+			}
+		}
+	}
+
+	protected void writePart(MultipartReader.Part part, OutputStream out) throws IOException {
+		MediaType contentType;
+		try {
+			contentType = part.getHeaders().getContentType();
+		} catch (InvalidMediaTypeException ex) {
+			contentType = null;
+		}
+
+		out.write("{\"uri\":".getBytes(StandardCharsets.US_ASCII));
+		writeString(part.getFileName(), out);
+		out.write(",\"contentType\":".getBytes(StandardCharsets.US_ASCII));
+		writeString(contentType != null ? contentType.toString() : null, out);
+
+		if (isJson(contentType)) {
+			out.write(",\"content\":".getBytes(StandardCharsets.US_ASCII));
+			copyJson(part.getBody(), out);
+		} else if (isText(contentType)) {
+			out.write(",\"content\":\"".getBytes(StandardCharsets.US_ASCII));
+			Charset charset = contentType.getCharset();
+			if (charset == null || StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+				copyEscaped(part.getBody(), out);
+			} else {
+				copyEscaped(new InputStreamReader(part.getBody(), charset), out);
+			}
+			out.write('"');
+		} else {
+			out.write(",\"encoding\":\"base64\",\"content\":\"".getBytes(StandardCharsets.US_ASCII));
+			OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					// Leave the servlet output stream open
+				}
+			});
+			copy(part.getBody(), base64, false);
+			base64.close();
+			out.write('"');
+		}
+		out.write('}');
+	}
+
+	protected boolean isJson(MediaType contentType) {
+		return contentType != null && (MediaType.APPLICATION_JSON.includes(contentType)
+			|| contentType.getSubtype().endsWith("+json"));
+	}
+
+	protected boolean isText(MediaType contentType) {
+		return contentType != null && ("text".equals(contentType.getType()) || contentType.getSubtype().endsWith("xml")
+			|| "javascript".equals(contentType.getSubtype()));
+	}
+
+	/**
+	 * JSON can't contain a raw line break other than as whitespace between tokens, so replacing each one with a space
+	 * keeps a pretty-printed document on a single line without parsing it. An empty part isn't valid JSON, so it's
+	 * written as null.
+	 */
+	private void copyJson(InputStream in, OutputStream out) throws IOException {
+		if (!copy(in, out, true)) {
+			out.write(NULL);
+		}
+	}
+
+	/**
+	 * @return when replacing line breaks, true if anything other than whitespace was copied
+	 */
+	private boolean copy(InputStream in, OutputStream out, boolean replaceLineBreaks) throws IOException {
+		byte[] buffer = bufferPool.acquire();
+		boolean copied = false;
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				if (replaceLineBreaks) {
+					for (int i = 0; i < count; i++) {
+						byte b = buffer[i];
+						if (b == '\n' || b == '\r') {
+							buffer[i] = ' ';
+						} else if (b != ' ' && b != '\t') {
+							copied = true;
+						}
+					}
+				}
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return copied;
+	}
+
+	/**
+	 * Escapes text as the contents of a JSON string. Bytes of multibyte UTF-8 characters never look like ASCII, so they
+	 * can be copied without decoding them.
+	 */
+	private void copyEscaped(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = bufferPool.acquire();
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				int start = 0;
+				for (int i = 0; i < count; i++) {
+					int b = buffer[i] & 0xff;
+					if (b == '"' || b == '\\' || b < 0x20) {
+						out.write(buffer, start, i - start);
+						writeEscape(b, out);
+						start = i + 1;
+					}
+				}
+				out.write(buffer, start, count - start);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * Escapes text in a charset other than UTF-8 as the contents of a JSON string, re-encoding it as UTF-8. Flushing the
+	 * writer only hands its encoded bytes to the servlet output stream, which isn't itself flushed.
+	 */
+	private void copyEscaped(Reader in, OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void flush() {
+				// Leave flushing the servlet output stream to extractData
+			}
+		}, StandardCharsets.UTF_8);
+		char[] buffer = new char[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			int start = 0;
+			for (int i = 0; i < count; i++) {
+				char c = buffer[i];
+				if (c == '"' || c == '\\' || c < 0x20) {
+					writer.write(buffer, start, i - start);
+					writer.flush();
+					writeEscape(c, out);
+					start = i + 1;
+				}
+			}
+			writer.write(buffer, start, count - start);
+		}
+		writer.flush();
+	}
+
+	private void writeString(String value, OutputStream out) throws IOException {
+		if (value == null) {
+			out.write(NULL);
+			return;
+		}
+		out.write('"');
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		int start = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xff;
+			if (b == '"' || b == '\\' || b < 0x20) {
+				out.write(bytes, start, i - start);
+				writeEscape(b, out);
+				start = i + 1;
+			}
+		}
+		out.write(bytes, start, bytes.length - start);
+		out.write('"');
+	}
+
+	private void writeEscape(int b, OutputStream out) throws IOException {
+		out.write('\\');
+		switch (b) {
+			case '"':
+				out.write('"');
+				break;
+			case '\\':
+				out.write('\\');
+				break;
+			case '\n':
+				out.write('n');
+				break;
+			case '\r':
+				out.write('r');
+				break;
+			case '\t':
+				out.write('t');
+				break;
+			default:
+				out.write('u');
+				out.write('0');
+				out.write('0');
+				out.write(HEX[b >> 4]);
+				out.write(HEX[b & 0xf]);
+		}
+	}
+
+	@Override
+	public void setBufferPool(BufferPool bufferPool) {
+		super.setBufferPool(bufferPool);
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @param flushEachPart whether to flush the servlet output stream after each part; defaults to true
+	 */
+	public void setFlushEachPart(boolean flushEachPart) {
+		this.flushEachPart = flushEachPart;
+	}
+}
@@ -0,0 +1,293 @@
+package com.marklogic.spring.http.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional cache of GET responses for HttpProxy. Responses are stored per scope - by default, per user - along with
+ * their validators (ETag and Last-Modified), within a budget of bytes; the least recently used responses are evicted
+ * when the budget is exceeded. Bodies can be stored off-heap via direct buffers.
+ * <p>
+ * A cached response is served without contacting MarkLogic only while it's fresh per the Cache-Control max-age or
+ * Expires header that MarkLogic sent, or else per defaultFreshnessMillis, which defaults to zero. Once it's stale, a
+ * conditional request is sent to MarkLogic, and a 304 lets the cached body be served without MarkLogic sending it
+ * again. Responses with Cache-Control no-store are not cached, and no-cache responses are always revalidated. Either
+ * way, a client's own If-None-Match or If-Modified-Since is answered with a 304 when it matches.
+ */
+public class ProxyResponseCache {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final long maxBytes;
+	private final int maxEntryBytes;
+	private long defaultFreshnessMillis = 0;
+	private boolean offHeap = false;
+	private CacheScopeResolver cacheScopeResolver = new DefaultCacheScopeResolver();
+
+	private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Uses a budget of 64mb, with no single response over 1mb being cached.
+	 */
+	public ProxyResponseCache() {
+		this(64 * 1024 * 1024, 1024 * 1024);
+	}
+
+	/**
+	 * @param maxBytes      the total size of cached bodies and headers before responses are evicted
+	 * @param maxEntryBytes responses with a larger body are streamed to the client without being cached
+	 */
+	public ProxyResponseCache(long maxBytes, int maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	/**
+	 * Responses can vary on the Accept header - e.g. JSON vs XML from /v1/search - and, when compressed responses are
+	 * passed through, on the Accept-Encoding header, so both are part of the key along with the scope and the URI.
+	 * Otherwise MarkLogic's response doesn't depend on Accept-Encoding, so it's left out of the key, and clients that
+	 * accept different encodings share one cached response.
+	 *
+	 * @param httpRequest
+	 * @param uri
+	 * @param varyOnAcceptEncoding true if compressed responses are passed through to the client
+	 * @return
+	 */
+	public String buildKey(HttpServletRequest httpRequest, URI uri, boolean varyOnAcceptEncoding) {
+		String accept = httpRequest.getHeader(HttpHeaders.ACCEPT);
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(cacheScopeResolver.resolveScope(httpRequest)).append('\n');
+		if (accept != null) {
+			sb.append(accept);
+		}
+		sb.append('\n');
+		if (varyOnAcceptEncoding) {
+			String acceptEncoding = httpRequest.getHeader(HttpHeaders.ACCEPT_ENCODING);
+			if (acceptEncoding != null) {
+				sb.append(acceptEncoding);
+			}
+		}
+		return sb.append('\n').append(uri).toString();
+	}
+
+	synchronized CachedResponse get(String key) {
+		return entries.get(key);
+	}
+
+	synchronized void put(String key, CachedResponse response) {
+		CachedResponse previous = entries.remove(key);
+		if (previous != null) {
+			totalBytes -= sizeOf(key, previous);
+		}
+		long size = sizeOf(key, response);
+		if (size > maxBytes) {
+			return;
+		}
+		entries.put(key, response);
+		totalBytes += size;
+		Iterator<Map.Entry<String, CachedResponse>> iterator = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, CachedResponse> eldest = iterator.next();
+			totalBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+			iterator.remove();
+		}
+	}
+
+	public synchronized void remove(String key) {
+		CachedResponse previous = entries.remove(key);
+		if (previous != null) {
+			totalBytes -= sizeOf(key, previous);
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Approximates the headers, as their size is small relative to a typical body.
+	 */
+	protected long sizeOf(String key, CachedResponse response) {
+		return response.getBodyLength() + key.length() * 2 + response.getHeaders().size() * 64 + 128;
+	}
+
+	/**
+	 * @param headers the headers of a response from MarkLogic
+	 * @return how long the response may be served without revalidating it; -1 if it must not be cached
+	 */
+	protected long determineFreshnessMillis(HttpHeaders headers) {
+		String cacheControl = headers.getCacheControl();
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-store")) {
+					return -1;
+				} else if (directive.equals("no-cache")) {
+					return 0;
+				}
+			}
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.startsWith("max-age=")) {
+					try {
+						return Math.max(0, Long.parseLong(directive.substring(8).replace("\"", "")) * 1000);
+					} catch (NumberFormatException ex) {
+						return 0;
+					}
+				}
+			}
+		}
+		try {
+			long expires = headers.getExpires();
+			if (expires >= 0) {
+				long date = headers.getDate();
+				return Math.max(0, expires - (date >= 0 ? date : System.currentTimeMillis()));
+			}
+		} catch (IllegalArgumentException ex) {
+			// An invalid Expires means the response is already expired
+			return 0;
+		}
+		return defaultFreshnessMillis;
+	}
+
+	/**
+	 * @param headers
+	 * @return true if the response may be stored; it needs a validator or a freshness lifetime to be of any use
+	 */
+	protected boolean isCacheable(HttpHeaders headers, long freshnessMillis) {
+		if (freshnessMillis < 0) {
+			return false;
+		}
+		return freshnessMillis > 0 || headers.getETag() != null || headers.getFirst(HttpHeaders.LAST_MODIFIED) != null;
+	}
+
+	HttpHeaders copyCacheableHeaders(HttpHeaders headers) {
+		HttpHeaders copy = new HttpHeaders();
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (!isUncacheableHeader(entry.getKey())) {
+				copy.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @param name
+	 * @return true for hop-by-hop headers, which only apply to a single connection, and Set-Cookie
+	 */
+	static boolean isUncacheableHeader(String name) {
+		return HttpHeaders.CONNECTION.equalsIgnoreCase(name) || "Keep-Alive".equalsIgnoreCase(name)
+			|| HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)
+			|| HttpHeaders.SET_COOKIE.equalsIgnoreCase(name) || HttpHeaders.TE.equalsIgnoreCase(name)
+			|| HttpHeaders.TRAILER.equalsIgnoreCase(name) || HttpHeaders.UPGRADE.equalsIgnoreCase(name)
+			|| HttpHeaders.PROXY_AUTHENTICATE.equalsIgnoreCase(name) || HttpHeaders.WWW_AUTHENTICATE.equalsIgnoreCase(name);
+	}
+
+	/**
+	 * @param httpRequest
+	 * @return true if the client asked for the response to be revalidated via Cache-Control or Pragma no-cache
+	 */
+	static boolean isNoCacheRequest(HttpServletRequest httpRequest) {
+		String cacheControl = httpRequest.getHeader(HttpHeaders.CACHE_CONTROL);
+		if (cacheControl != null && (cacheControl.contains("no-cache") || cacheControl.contains("max-age=0"))) {
+			return true;
+		}
+		String pragma = httpRequest.getHeader(HttpHeaders.PRAGMA);
+		return pragma != null && pragma.contains("no-cache");
+	}
+
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	void recordRevalidation() {
+		revalidations.incrementAndGet();
+	}
+
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of responses served from the cache without contacting MarkLogic
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of responses served from the cache after MarkLogic returned a 304
+	 */
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	/**
+	 * @return the number of responses that MarkLogic had to send in full
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getMaxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getDefaultFreshnessMillis() {
+		return defaultFreshnessMillis;
+	}
+
+	/**
+	 * @param defaultFreshnessMillis how long to serve a response without revalidating it when MarkLogic doesn't send
+	 *                               max-age or Expires; defaults to zero, so that such responses are always revalidated
+	 */
+	public void setDefaultFreshnessMillis(long defaultFreshnessMillis) {
+		this.defaultFreshnessMillis = defaultFreshnessMillis;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * @param offHeap true to store bodies in direct buffers outside of the Java heap
+	 */
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	public CacheScopeResolver getCacheScopeResolver() {
+		return cacheScopeResolver;
+	}
+
+	public void setCacheScopeResolver(CacheScopeResolver cacheScopeResolver) {
+		this.cacheScopeResolver = cacheScopeResolver;
+	}
+}
@@ -0,0 +1,208 @@
+package com.marklogic.spring.http.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent, identical requests for a safe method share a single request to MarkLogic. Requests are identical
+ * when they have the same method, URI, scope - see CacheScopeResolver - and values for the headers being copied. The
+ * first such request is sent to MarkLogic; requests that arrive while it's in flight wait for it and are then sent
+ * the same status, headers, and body.
+ * <p>
+ * The response is shared via an in-memory buffer no larger than maxSharedBytes. If the response is larger than that,
+ * the waiting requests are sent to MarkLogic on their own as soon as that's known; if it takes longer than
+ * maxWaitMillis, they give up waiting and do the same. If the request
+ * fails - including a 4xx or 5xx that the RestOperations error handler throws an exception for - the waiting requests
+ * fail the same way, each with its own exception whose cause is the exception of the request that was sent.
+ */
+public class RequestCoalescer {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ConcurrentMap<String, CompletableFuture<SharedResponse>> inFlight = new ConcurrentHashMap<>();
+
+	private CacheScopeResolver cacheScopeResolver = new DefaultCacheScopeResolver();
+	private int maxSharedBytes = 1024 * 1024;
+	private long maxWaitMillis = 30000;
+
+	private final AtomicLong leaders = new AtomicLong();
+	private final AtomicLong followers = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	/**
+	 * @param method
+	 * @return true for the methods that are safe to coalesce - GET and HEAD
+	 */
+	public boolean isCoalescable(String method) {
+		return "GET".equals(method) || "HEAD".equals(method);
+	}
+
+	/**
+	 * @param httpRequest
+	 * @param uri
+	 * @param headerPolicy      if not null, used instead of the header names to copy
+	 * @param headerNamesToCopy
+	 * @return
+	 */
+	public String buildKey(HttpServletRequest httpRequest, URI uri, HeaderPolicy headerPolicy,
+	                       String... headerNamesToCopy) {
+		StringBuilder key = new StringBuilder(128);
+		key.append(httpRequest.getMethod()).append('\n')
+			.append(cacheScopeResolver.resolveScope(httpRequest)).append('\n')
+			.append(uri);
+		if (headerPolicy != null) {
+			headerPolicy.appendRequestKey(httpRequest, key);
+		} else if (headerNamesToCopy != null) {
+			for (String name : headerNamesToCopy) {
+				String value = httpRequest.getHeader(name);
+				key.append('\n').append(name).append(':').append(value != null ? value : "");
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param key
+	 * @param flight the future that the calling request will complete if it turns out to be the first one
+	 * @return null if the calling request should go to MarkLogic and complete the given future; otherwise, the future
+	 * of the request already in flight
+	 */
+	CompletableFuture<SharedResponse> join(String key, CompletableFuture<SharedResponse> flight) {
+		CompletableFuture<SharedResponse> existing = inFlight.putIfAbsent(key, flight);
+		if (existing == null) {
+			leaders.incrementAndGet();
+		}
+		return existing;
+	}
+
+	void leave(String key, CompletableFuture<SharedResponse> flight) {
+		inFlight.remove(key, flight);
+	}
+
+	/**
+	 * @param existing
+	 * @return the shared response, or null if the calling request should be sent to MarkLogic on its own
+	 */
+	SharedResponse await(CompletableFuture<SharedResponse> existing) {
+		SharedResponse response;
+		try {
+			response = existing.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			response = null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for coalesced request", ex);
+		} catch (ExecutionException ex) {
+			followers.incrementAndGet();
+			throw newFollowerException(ex.getCause());
+		}
+		if (response == null) {
+			fallbacks.incrementAndGet();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Coalesced response is not available, so sending request on its own");
+			}
+		} else {
+			followers.incrementAndGet();
+		}
+		return response;
+	}
+
+	/**
+	 * Every request that waited gets its own exception, so that they don't all add suppressed exceptions to - or log
+	 * - the same instance from different threads. An HttpClientErrorException, HttpServerErrorException, or
+	 * UnknownHttpStatusCodeException is rebuilt from its status, headers, and body so that it can still be caught by
+	 * type.
+	 *
+	 * @param cause the exception thrown for the request that was sent to MarkLogic
+	 * @return
+	 */
+	private RuntimeException newFollowerException(Throwable cause) {
+		RuntimeException ex = null;
+		if (cause instanceof RestClientResponseException) {
+			RestClientResponseException response = (RestClientResponseException) cause;
+			HttpHeaders headers = response.getResponseHeaders();
+			MediaType contentType = headers != null ? headers.getContentType() : null;
+			Charset charset = contentType != null ? contentType.getCharset() : null;
+			if (cause instanceof HttpClientErrorException) {
+				ex = new HttpClientErrorException(((HttpClientErrorException) cause).getStatusCode(),
+					response.getStatusText(), headers, response.getResponseBodyAsByteArray(), charset);
+			} else if (cause instanceof HttpServerErrorException) {
+				ex = new HttpServerErrorException(((HttpServerErrorException) cause).getStatusCode(),
+					response.getStatusText(), headers, response.getResponseBodyAsByteArray(), charset);
+			} else if (cause instanceof UnknownHttpStatusCodeException) {
+				ex = new UnknownHttpStatusCodeException(response.getRawStatusCode(), response.getStatusText(), headers,
+					response.getResponseBodyAsByteArray(), charset);
+			}
+		}
+		if (ex == null) {
+			return new RuntimeException("Unable to proxy coalesced request, cause: " + cause.getMessage(), cause);
+		}
+		ex.initCause(cause);
+		return ex;
+	}
+
+	/**
+	 * @return the number of requests that were sent to MarkLogic on behalf of others
+	 */
+	public long getLeaders() {
+		return leaders.get();
+	}
+
+	/**
+	 * @return the number of requests that were served by another request's response
+	 */
+	public long getFollowers() {
+		return followers.get();
+	}
+
+	/**
+	 * @return the number of requests that waited on another request but then had to be sent on their own
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	public CacheScopeResolver getCacheScopeResolver() {
+		return cacheScopeResolver;
+	}
+
+	/**
+	 * @param cacheScopeResolver determines which requests may share a response; defaults to one per user
+	 */
+	public void setCacheScopeResolver(CacheScopeResolver cacheScopeResolver) {
+		this.cacheScopeResolver = cacheScopeResolver;
+	}
+
+	public int getMaxSharedBytes() {
+		return maxSharedBytes;
+	}
+
+	public void setMaxSharedBytes(int maxSharedBytes) {
+		this.maxSharedBytes = maxSharedBytes;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+}
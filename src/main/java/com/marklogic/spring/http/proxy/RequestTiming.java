@@ -0,0 +1,174 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.RequestTimeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reports where the time went for requests that HttpProxy sends to MarkLogic - see RequestTimeline for the phases -
+ * as a Server-Timing response header and as a single log line per request, e.g.:
+ * <pre>
+ * method=GET path=/v1/search status=200 pool=0.004 connect=0.000 auth=0.000 send=0.021 ttfb=12.310 body=0.845 total=13.402
+ * </pre>
+ * with all durations in milliseconds. The header is sent before the response body, so it covers every phase up to
+ * time to first byte; the log line covers every phase. So that this can stay enabled in production, only a fraction
+ * of requests are logged - logSampleRate - along with every request that takes at least slowRequestThresholdMillis.
+ * Requests that are neither sampled nor - when the header is disabled - slow aren't timed at all.
+ * <p>
+ * Error responses from MarkLogic are reported as well, even though the RestOperations error handler consumes their
+ * body and throws an exception instead of passing them to the response extractor. When the final response is a 401,
+ * the credentials were rejected, so its round trip is reported as ttfb rather than auth.
+ * <p>
+ * This applies to requests that are sent to MarkLogic; responses served by ProxyResponseCache or RequestCoalescer
+ * without a request of their own aren't reported.
+ */
+public class RequestTiming {
+
+	public final static String SERVER_TIMING_HEADER = "Server-Timing";
+
+	private final static RequestTimeline.Phase[] HEADER_PHASES = {RequestTimeline.Phase.POOL_LEASE,
+		RequestTimeline.Phase.CONNECT, RequestTimeline.Phase.AUTH_CHALLENGE, RequestTimeline.Phase.SEND,
+		RequestTimeline.Phase.TTFB};
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private boolean serverTimingHeaderEnabled = true;
+	private double logSampleRate = 0;
+	private long slowRequestThresholdMillis = -1;
+
+	/**
+	 * Binds a RequestTimeline to the current thread if the request needs to be timed.
+	 *
+	 * @param startNanos
+	 * @return the timeline, or null if the request doesn't need to be timed
+	 */
+	public RequestTimeline start(long startNanos) {
+		boolean sampled = logSampleRate > 0 && logger.isInfoEnabled()
+			&& (logSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < logSampleRate);
+		if (!sampled && !serverTimingHeaderEnabled && slowRequestThresholdMillis < 0) {
+			return null;
+		}
+		RequestTimeline timeline = RequestTimeline.begin(startNanos);
+		timeline.setSampled(sampled);
+		return timeline;
+	}
+
+	/**
+	 * Called once MarkLogic's response has been received, before anything is written to the servlet response - or,
+	 * for an error response, once the RestOperations error handler has thrown an exception for it.
+	 *
+	 * @param httpResponse
+	 * @param timeline
+	 * @param status the status of MarkLogic's response
+	 */
+	public void responseReceived(HttpServletResponse httpResponse, RequestTimeline timeline, int status) {
+		if (status == HttpServletResponse.SC_UNAUTHORIZED) {
+			timeline.rejected();
+		}
+		if (timeline.getBodyStartNanos() == 0) {
+			// Not marked when the RestOperations doesn't come from DefaultRestOperationsFactory
+			timeline.markBodyStart(System.nanoTime());
+		}
+		if (serverTimingHeaderEnabled && !httpResponse.isCommitted()) {
+			httpResponse.addHeader(SERVER_TIMING_HEADER, buildServerTiming(timeline));
+		}
+	}
+
+	/**
+	 * Unbinds the timeline from the current thread and logs it if the request was sampled or slow.
+	 *
+	 * @param timeline
+	 * @param method
+	 * @param pathTemplate
+	 * @param status
+	 */
+	public void finish(RequestTimeline timeline, String method, String pathTemplate, int status) {
+		timeline.end(System.nanoTime());
+		boolean slow = slowRequestThresholdMillis >= 0
+			&& timeline.getNanos(RequestTimeline.Phase.TOTAL) >= slowRequestThresholdMillis * 1000000L;
+		if ((timeline.isSampled() || slow) && logger.isInfoEnabled()) {
+			logger.info(buildLogLine(timeline, method, pathTemplate, status));
+		}
+	}
+
+	/**
+	 * @param timeline
+	 * @return e.g. "pool;dur=0.004, connect;dur=0.000, auth;dur=0.000, send;dur=0.021, ttfb;dur=12.310"
+	 */
+	public String buildServerTiming(RequestTimeline timeline) {
+		StringBuilder sb = new StringBuilder(80);
+		for (RequestTimeline.Phase phase : HEADER_PHASES) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(phase.getMetricName()).append(";dur=");
+			appendMillis(sb, timeline.getNanos(phase));
+		}
+		return sb.toString();
+	}
+
+	public String buildLogLine(RequestTimeline timeline, String method, String pathTemplate, int status) {
+		StringBuilder sb = new StringBuilder(160);
+		sb.append("method=").append(method).append(" path=").append(pathTemplate).append(" status=").append(status);
+		for (RequestTimeline.Phase phase : RequestTimeline.Phase.values()) {
+			sb.append(' ').append(phase.getMetricName()).append('=');
+			appendMillis(sb, timeline.getNanos(phase));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends nanoseconds as milliseconds with three decimal places, without going through String.format.
+	 */
+	private static void appendMillis(StringBuilder sb, long nanos) {
+		long micros = Math.max(0, nanos) / 1000;
+		sb.append(micros / 1000).append('.');
+		long fraction = micros % 1000;
+		if (fraction < 100) {
+			sb.append('0');
+		}
+		if (fraction < 10) {
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+	public boolean isServerTimingHeaderEnabled() {
+		return serverTimingHeaderEnabled;
+	}
+
+	/**
+	 * @param serverTimingHeaderEnabled whether to add a Server-Timing header to each response; defaults to true.
+	 *                                  Browsers show it to anyone who can see the response, so disable it if the
+	 *                                  timings shouldn't be exposed to clients.
+	 */
+	public void setServerTimingHeaderEnabled(boolean serverTimingHeaderEnabled) {
+		this.serverTimingHeaderEnabled = serverTimingHeaderEnabled;
+	}
+
+	public double getLogSampleRate() {
+		return logSampleRate;
+	}
+
+	/**
+	 * @param logSampleRate the fraction of requests to log, from 0 to 1; defaults to 0
+	 */
+	public void setLogSampleRate(double logSampleRate) {
+		this.logSampleRate = logSampleRate;
+	}
+
+	public long getSlowRequestThresholdMillis() {
+		return slowRequestThresholdMillis;
+	}
+
+	/**
+	 * @param slowRequestThresholdMillis every request taking at least this long is logged, sampled or not; -1, the
+	 *                                   default, disables this
+	 */
+	public void setSlowRequestThresholdMillis(long slowRequestThresholdMillis) {
+		this.slowRequestThresholdMillis = slowRequestThresholdMillis;
+	}
+}
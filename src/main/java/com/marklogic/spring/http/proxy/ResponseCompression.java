@@ -0,0 +1,159 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Determines whether DefaultResponseExtractor compresses a MarkLogic response on its way to the client, and how. A
+ * response is compressed when MarkLogic didn't already compress it, the client accepts gzip or deflate, its content
+ * type matches one of the compressible types, and its length - if known - is at least minSizeBytes.
+ * <p>
+ * This only applies to responses that are streamed from MarkLogic; responses served by ProxyResponseCache or
+ * RequestCoalescer are sent as they were received.
+ */
+public class ResponseCompression {
+
+	private int minSizeBytes = 1024;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private List<MediaType> compressibleTypes = new ArrayList<>(Arrays.asList(
+		MediaType.parseMediaType("text/*"),
+		MediaType.APPLICATION_JSON,
+		MediaType.APPLICATION_XML,
+		MediaType.parseMediaType("application/*+json"),
+		MediaType.parseMediaType("application/*+xml"),
+		MediaType.parseMediaType("application/javascript"),
+		MediaType.parseMediaType("application/x-ndjson")
+	));
+
+	/**
+	 * @param acceptEncoding the Accept-Encoding header of the servlet request
+	 * @param contentType    the Content-Type of the MarkLogic response
+	 * @param contentLength  the Content-Length of the MarkLogic response, or -1 if unknown
+	 * @return "gzip", "deflate", or null if the response shouldn't be compressed
+	 */
+	public String selectEncoding(String acceptEncoding, MediaType contentType, long contentLength) {
+		if (acceptEncoding == null || contentType == null) {
+			return null;
+		}
+		if (contentLength >= 0 && contentLength < minSizeBytes) {
+			return null;
+		}
+		if (!isCompressible(contentType)) {
+			return null;
+		}
+		double gzip = quality(acceptEncoding, "gzip");
+		double deflate = quality(acceptEncoding, "deflate");
+		if (gzip <= 0 && deflate <= 0) {
+			return null;
+		}
+		return gzip >= deflate ? "gzip" : "deflate";
+	}
+
+	protected boolean isCompressible(MediaType contentType) {
+		for (MediaType type : compressibleTypes) {
+			if (type.includes(contentType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the q value of the coding, or of "*" if the coding isn't listed; a coding without a q value has a q value
+	 * of 1, and a coding that's listed neither by name nor via "*" - or that has an invalid q value - has a q value of 0
+	 */
+	static double quality(String acceptEncoding, String coding) {
+		double wildcard = 0;
+		for (String candidate : acceptEncoding.split(",")) {
+			String[] parts = candidate.split(";");
+			String name = parts[0].trim();
+			boolean matches = coding.equalsIgnoreCase(name);
+			if (!matches && !"*".equals(name)) {
+				continue;
+			}
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException ex) {
+						q = 0;
+					}
+				}
+			}
+			if (matches) {
+				return q;
+			}
+			wildcard = q;
+		}
+		return wildcard;
+	}
+
+	/**
+	 * @param encoding as returned by selectEncoding
+	 * @param out
+	 * @return a stream that must be finished once the body has been written, and then closed whether or not the body
+	 * was written; closing it releases its native Deflater but leaves the servlet output stream open
+	 * @throws IOException
+	 */
+	public DeflaterOutputStream wrap(String encoding, OutputStream out) throws IOException {
+		if ("gzip".equals(encoding)) {
+			final int compressionLevel = level;
+			return new GZIPOutputStream(out, 8192, true) {
+				{
+					def.setLevel(compressionLevel);
+				}
+
+				@Override
+				public void close() {
+					def.end();
+				}
+			};
+		}
+		return new DeflaterOutputStream(out, new Deflater(level), 8192, true) {
+			@Override
+			public void close() {
+				def.end();
+			}
+		};
+	}
+
+	public int getMinSizeBytes() {
+		return minSizeBytes;
+	}
+
+	/**
+	 * @param minSizeBytes responses with a known length below this aren't compressed; defaults to 1024
+	 */
+	public void setMinSizeBytes(int minSizeBytes) {
+		this.minSizeBytes = minSizeBytes;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param level a java.util.zip.Deflater compression level; lower levels use less CPU
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public List<MediaType> getCompressibleTypes() {
+		return compressibleTypes;
+	}
+
+	public void setCompressibleTypes(List<MediaType> compressibleTypes) {
+		this.compressibleTypes = compressibleTypes;
+	}
+}
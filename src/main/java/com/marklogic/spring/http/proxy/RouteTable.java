@@ -0,0 +1,204 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.RestConfig;
+import org.apache.http.client.CredentialsProvider;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps servlet paths to the HttpProxy that should handle them. Routes are path patterns made of literal segments,
+ * "*" for any single segment, and a trailing "**" for any number of remaining segments, including none - e.g.
+ * "/v1/**", "/LATEST/resources/**", or "/v1/documents/*". They're compiled by the Builder into a trie keyed on path
+ * segments, so finding a route walks the segments of the path once, no matter how many routes there are.
+ *
+ * When more than one route matches a path, a literal segment is preferred over "*", which is preferred over "**".
+ * Empty segments are ignored, so "/v1/search/" and "/v1//search" are both matched as "/v1/search".
+ *
+ * Each route has its own HttpProxy, and thus its own RestConfig, RestOperations, timeouts, and caching. A route added
+ * with a RestConfig gets its own DefaultRestOperationsFactory - and thus its own connection pool - which is destroyed
+ * along with this table.
+ */
+public class RouteTable implements DisposableBean {
+
+	private final Node root;
+	private final Map<String, HttpProxy> routes;
+	private final List<DefaultRestOperationsFactory> factories;
+
+	private RouteTable(Builder builder) {
+		this.root = builder.root;
+		this.routes = new LinkedHashMap<>(builder.routes);
+		this.factories = new ArrayList<>(builder.factories);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @param path
+	 * @return the proxy for the most specific route matching the path, or null if no route matches
+	 */
+	public HttpProxy match(String path) {
+		return path != null ? match(root, path, 0) : null;
+	}
+
+	private static HttpProxy match(Node node, String path, int start) {
+		int length = path.length();
+		while (start < length && path.charAt(start) == '/') {
+			start++;
+		}
+		if (start == length) {
+			return node.target != null ? node.target : node.remainderTarget;
+		}
+
+		int end = path.indexOf('/', start);
+		if (end < 0) {
+			end = length;
+		}
+		if (node.children != null) {
+			Node child = node.children.get(path.substring(start, end));
+			if (child != null) {
+				HttpProxy target = match(child, path, end);
+				if (target != null) {
+					return target;
+				}
+			}
+		}
+		if (node.segmentWildcard != null) {
+			HttpProxy target = match(node.segmentWildcard, path, end);
+			if (target != null) {
+				return target;
+			}
+		}
+		return node.remainderTarget;
+	}
+
+	/**
+	 * @return each route pattern and its proxy, in the order they were added
+	 */
+	public Map<String, HttpProxy> getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * Destroys the connection pools created for routes that were added with a RestConfig, along with any proxy that
+	 * holds its own resources, such as an AsyncHttpProxy.
+	 */
+	@Override
+	public void destroy() throws Exception {
+		for (HttpProxy proxy : routes.values()) {
+			if (proxy instanceof DisposableBean) {
+				((DisposableBean) proxy).destroy();
+			}
+		}
+		for (DefaultRestOperationsFactory factory : factories) {
+			factory.destroy();
+		}
+	}
+
+	private static class Node {
+		private Map<String, Node> children;
+		private Node segmentWildcard;
+		private HttpProxy target;
+		private HttpProxy remainderTarget;
+	}
+
+	public static class Builder {
+
+		private final Node root = new Node();
+		private final Map<String, HttpProxy> routes = new LinkedHashMap<>();
+		private final List<DefaultRestOperationsFactory> factories = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param pattern
+		 * @param proxy
+		 * @return
+		 */
+		public Builder route(String pattern, HttpProxy proxy) {
+			if (proxy == null) {
+				throw new IllegalArgumentException("No proxy given for route: " + pattern);
+			}
+			String[] segments = splitPattern(pattern);
+			Node node = root;
+			for (int i = 0; i < segments.length; i++) {
+				String segment = segments[i];
+				if ("**".equals(segment)) {
+					if (i != segments.length - 1) {
+						throw new IllegalArgumentException("'**' may only be the last segment of route: " + pattern);
+					}
+					if (node.remainderTarget != null) {
+						throw new IllegalArgumentException("Duplicate route: " + pattern);
+					}
+					node.remainderTarget = proxy;
+					routes.put(pattern, proxy);
+					return this;
+				}
+				if ("*".equals(segment)) {
+					if (node.segmentWildcard == null) {
+						node.segmentWildcard = new Node();
+					}
+					node = node.segmentWildcard;
+				} else {
+					if (node.children == null) {
+						node.children = new HashMap<>();
+					}
+					node = node.children.computeIfAbsent(segment, key -> new Node());
+				}
+			}
+			if (node.target != null) {
+				throw new IllegalArgumentException("Duplicate route: " + pattern);
+			}
+			node.target = proxy;
+			routes.put(pattern, proxy);
+			return this;
+		}
+
+		/**
+		 * Adds a route whose HttpProxy has its own connection pool, built from the given RestConfig.
+		 *
+		 * @param pattern
+		 * @param restConfig
+		 * @param credentialsProvider
+		 * @return
+		 */
+		public Builder route(String pattern, RestConfig restConfig, CredentialsProvider credentialsProvider) {
+			DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+			factories.add(factory);
+			return route(pattern, new HttpProxy(restConfig, credentialsProvider, factory));
+		}
+
+		/**
+		 * @param proxy handles every path that no other route matches; equivalent to a route of "/**"
+		 * @return
+		 */
+		public Builder defaultRoute(HttpProxy proxy) {
+			return route("/**", proxy);
+		}
+
+		public RouteTable build() {
+			return new RouteTable(this);
+		}
+
+		private static String[] splitPattern(String pattern) {
+			if (pattern == null) {
+				throw new IllegalArgumentException("Route pattern must not be null");
+			}
+			List<String> segments = new ArrayList<>();
+			for (String segment : pattern.split("/")) {
+				if (!segment.isEmpty()) {
+					segments.add(segment);
+				}
+			}
+			return segments.toArray(new String[segments.size()]);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.marklogic.spring.http.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Proxies each servlet request with the HttpProxy of the route in a RouteTable that matches the request's path, so
+ * that different paths can be sent to different MarkLogic app servers or clusters. A request that no route matches
+ * gets a 404 without anything being sent to MarkLogic; add a default route to the table to send those somewhere.
+ */
+public class RoutingHttpProxy implements DisposableBean {
+
+	protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final RouteTable routeTable;
+
+	public RoutingHttpProxy(RouteTable routeTable) {
+		this.routeTable = routeTable;
+	}
+
+	/**
+	 * Proxy a request and copy the given headers on both the request and the response.
+	 *
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param headerNamesToCopy
+	 */
+	public void proxy(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String... headerNamesToCopy) {
+		proxy(httpRequest.getServletPath(), httpRequest, httpResponse, headerNamesToCopy);
+	}
+
+	/**
+	 * Proxy a request, using the given path instead of the servlet path in the HttpServletRequest both to choose the
+	 * route and as the path sent to MarkLogic.
+	 *
+	 * @param path
+	 * @param httpRequest
+	 * @param httpResponse
+	 * @param headerNamesToCopy
+	 */
+	public void proxy(String path, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+	                  String... headerNamesToCopy) {
+		HttpProxy proxy = routeTable.match(path);
+		if (proxy == null) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("No route matches path: " + path);
+			}
+			try {
+				httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+			} catch (IOException ex) {
+				throw new RuntimeException("Unable to send error response, cause: " + ex.getMessage(), ex);
+			}
+			return;
+		}
+		proxy.proxy(path, httpRequest, httpResponse, headerNamesToCopy);
+	}
+
+	public RouteTable getRouteTable() {
+		return routeTable;
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		routeTable.destroy();
+	}
+}
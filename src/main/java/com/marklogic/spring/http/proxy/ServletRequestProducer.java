@@ -0,0 +1,188 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the body of a servlet request to MarkLogic using Servlet 3.1 non-blocking reads. When the servlet input stream
+ * has no data available, output to MarkLogic is suspended until the container signals that more data can be read, so
+ * no thread is ever blocked waiting on the client.
+ * <p>
+ * produceContent is invoked on an HttpAsyncClient I/O thread while the ReadListener methods are invoked on container
+ * threads, so the two synchronize on this object.
+ */
+class ServletRequestProducer implements HttpAsyncRequestProducer, ReadListener {
+
+	private final HttpServletRequest httpRequest;
+	private final HttpHost target;
+	private final URI uri;
+	private final boolean hasBody;
+	private final AsyncRequestCallback requestCallback;
+	private final AsyncProxyExchange exchange;
+
+	private ServletInputStream input;
+	private ByteBuffer buffer;
+	private IOControl ioControl;
+	private boolean waitingForInput;
+	private volatile long bytesRead;
+
+	ServletRequestProducer(HttpServletRequest httpRequest, HttpHost target, URI uri,
+	                       AsyncRequestCallback requestCallback, AsyncProxyExchange exchange, int bufferSize) {
+		this.httpRequest = httpRequest;
+		this.target = target;
+		this.uri = uri;
+		this.requestCallback = requestCallback;
+		this.exchange = exchange;
+		this.hasBody = hasBody(httpRequest);
+		if (hasBody) {
+			this.buffer = ByteBuffer.allocate(bufferSize);
+			this.buffer.flip();
+		}
+	}
+
+	static boolean hasBody(HttpServletRequest httpRequest) {
+		return httpRequest.getContentLengthLong() > 0 || httpRequest.getHeader("Transfer-Encoding") != null;
+	}
+
+	long getBytesRead() {
+		return bytesRead;
+	}
+
+	boolean hasBody() {
+		return hasBody;
+	}
+
+	/**
+	 * Must be invoked on a container thread once async processing has started.
+	 *
+	 * @throws IOException
+	 */
+	void start() throws IOException {
+		if (hasBody) {
+			input = httpRequest.getInputStream();
+			input.setReadListener(this);
+		}
+	}
+
+	@Override
+	public HttpHost getTarget() {
+		return target;
+	}
+
+	@Override
+	public HttpRequest generateRequest() {
+		String method = httpRequest.getMethod();
+		String requestUri = uri.getRawQuery() != null ? uri.getRawPath() + "?" + uri.getRawQuery() : uri.getRawPath();
+		HttpRequest request;
+		if (hasBody) {
+			BasicHttpEntity entity = new BasicHttpEntity();
+			long length = httpRequest.getContentLengthLong();
+			entity.setContentLength(length);
+			entity.setChunked(length < 0);
+			entity.setContentType(httpRequest.getContentType());
+			BasicHttpEntityEnclosingRequest enclosingRequest = new BasicHttpEntityEnclosingRequest(method, requestUri);
+			enclosingRequest.setEntity(entity);
+			request = enclosingRequest;
+		} else {
+			request = new BasicHttpRequest(method, requestUri);
+		}
+		if (requestCallback != null) {
+			requestCallback.doWithRequest(request);
+		}
+		return request;
+	}
+
+	@Override
+	public synchronized void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+		this.ioControl = ioControl;
+		while (true) {
+			if (buffer.hasRemaining()) {
+				encoder.write(buffer);
+				if (buffer.hasRemaining()) {
+					// The connection can't accept more right now; this will be invoked again when it can
+					return;
+				}
+			}
+			if (input.isFinished()) {
+				encoder.complete();
+				return;
+			}
+			if (!input.isReady()) {
+				waitingForInput = true;
+				ioControl.suspendOutput();
+				return;
+			}
+			buffer.clear();
+			int count = input.read(buffer.array(), 0, buffer.capacity());
+			if (count < 0) {
+				buffer.limit(0);
+				encoder.complete();
+				return;
+			}
+			buffer.limit(count);
+			bytesRead += count;
+		}
+	}
+
+	@Override
+	public synchronized void onDataAvailable() {
+		resumeOutput();
+	}
+
+	@Override
+	public synchronized void onAllDataRead() {
+		resumeOutput();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		exchange.fail(t);
+	}
+
+	private void resumeOutput() {
+		if (waitingForInput && ioControl != null) {
+			waitingForInput = false;
+			ioControl.requestOutput();
+		}
+	}
+
+	@Override
+	public void requestCompleted(HttpContext context) {
+	}
+
+	@Override
+	public void failed(Exception ex) {
+	}
+
+	/**
+	 * The servlet input stream can only be read once.
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean isRepeatable() {
+		return !hasBody;
+	}
+
+	@Override
+	public void resetRequest() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,145 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the body of a MarkLogic response to a servlet response using Servlet 3.1 non-blocking writes. When the
+ * servlet output stream can't accept more data, input from MarkLogic is suspended until the container signals that
+ * more data can be written; this provides backpressure without ever blocking a thread on a slow client.
+ * <p>
+ * onContentReceived is invoked on an HttpAsyncClient I/O thread while onWritePossible is invoked on container
+ * threads, so the two synchronize on this object.
+ */
+class ServletResponseConsumer extends AbstractAsyncResponseConsumer<Void> implements WriteListener {
+
+	private final HttpServletResponse httpResponse;
+	private final AsyncResponseExtractor responseExtractor;
+	private final AsyncProxyExchange exchange;
+	private final ByteBuffer buffer;
+
+	private ServletOutputStream output;
+	private IOControl ioControl;
+	private boolean waitingForOutput;
+	private boolean upstreamCompleted;
+	private volatile long bytesWritten;
+
+	ServletResponseConsumer(HttpServletResponse httpResponse, AsyncResponseExtractor responseExtractor,
+	                        AsyncProxyExchange exchange, int bufferSize) {
+		this.httpResponse = httpResponse;
+		this.responseExtractor = responseExtractor;
+		this.exchange = exchange;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.buffer.flip();
+	}
+
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Must be invoked on a container thread once async processing has started.
+	 *
+	 * @throws IOException
+	 */
+	void start() throws IOException {
+		output = httpResponse.getOutputStream();
+		output.setWriteListener(this);
+	}
+
+	@Override
+	protected void onResponseReceived(HttpResponse response) {
+		exchange.responseReceived();
+		responseExtractor.extractHead(response, httpResponse);
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+	}
+
+	@Override
+	protected synchronized void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+		this.ioControl = ioControl;
+		if (!writeBuffer()) {
+			suspendInput();
+			return;
+		}
+		buffer.clear();
+		int count = decoder.read(buffer);
+		buffer.flip();
+		if (count > 0 && !writeBuffer()) {
+			suspendInput();
+		}
+	}
+
+	@Override
+	public synchronized void onWritePossible() throws IOException {
+		if (!writeBuffer()) {
+			return;
+		}
+		if (upstreamCompleted) {
+			exchange.complete();
+		} else if (waitingForOutput && ioControl != null) {
+			waitingForOutput = false;
+			ioControl.requestInput();
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		exchange.fail(t);
+	}
+
+	/**
+	 * Invoked once the entire MarkLogic response has been consumed. The async context is completed once any data
+	 * still in the buffer has been written.
+	 */
+	synchronized void upstreamCompleted() throws IOException {
+		upstreamCompleted = true;
+		if (writeBuffer()) {
+			exchange.complete();
+		}
+	}
+
+	/**
+	 * @return true if the buffer was fully written, false if the servlet output stream is not ready
+	 * @throws IOException
+	 */
+	private boolean writeBuffer() throws IOException {
+		if (!buffer.hasRemaining()) {
+			return true;
+		}
+		if (!output.isReady()) {
+			return false;
+		}
+		output.write(buffer.array(), buffer.position(), buffer.remaining());
+		bytesWritten += buffer.remaining();
+		buffer.position(buffer.limit());
+		return true;
+	}
+
+	private void suspendInput() {
+		waitingForOutput = true;
+		ioControl.suspendInput();
+	}
+
+	@Override
+	protected Void buildResult(HttpContext context) {
+		return null;
+	}
+
+	@Override
+	protected void releaseResources() {
+	}
+}
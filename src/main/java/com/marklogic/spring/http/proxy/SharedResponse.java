@@ -0,0 +1,63 @@
+package com.marklogic.spring.http.proxy;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An immutable MarkLogic response - its status, the headers that were asked to be copied, and its body - that
+ * RequestCoalescer hands to every request waiting on the same upstream request. The Content-Length is usually that of
+ * the body, but a response to HEAD has no body and keeps the length that MarkLogic reported.
+ */
+class SharedResponse {
+
+	private final int status;
+	private final HttpHeaders headers;
+	private final byte[] body;
+	private final long contentLength;
+
+	SharedResponse(int status, HttpHeaders headers, byte[] body) {
+		this(status, headers, body, body.length);
+	}
+
+	/**
+	 * @param status
+	 * @param headers
+	 * @param body
+	 * @param contentLength the Content-Length to send, or -1 for none
+	 */
+	SharedResponse(int status, HttpHeaders headers, byte[] body, long contentLength) {
+		this.status = status;
+		this.headers = headers;
+		this.body = body;
+		this.contentLength = contentLength;
+	}
+
+	int getBodyLength() {
+		return body.length;
+	}
+
+	/**
+	 * @param httpResponse
+	 * @return the number of body bytes written
+	 * @throws IOException
+	 */
+	int writeTo(HttpServletResponse httpResponse) throws IOException {
+		httpResponse.setStatus(status);
+		for (String name : headers.keySet()) {
+			List<String> values = headers.get(name);
+			for (String value : values) {
+				httpResponse.addHeader(name, value);
+			}
+		}
+		if (contentLength >= 0) {
+			httpResponse.setContentLengthLong(contentLength);
+		}
+		if (body.length > 0) {
+			httpResponse.getOutputStream().write(body);
+		}
+		return body.length;
+	}
+}
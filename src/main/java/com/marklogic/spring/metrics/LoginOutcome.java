@@ -0,0 +1,16 @@
+package com.marklogic.spring.metrics;
+
+/**
+ * The outcome of verifying a user's credentials against MarkLogic.
+ */
+public enum LoginOutcome {
+
+	SUCCESS,
+
+	BAD_CREDENTIALS,
+
+	/**
+	 * MarkLogic couldn't be reached or returned an unexpected response.
+	 */
+	ERROR
+}
@@ -0,0 +1,54 @@
+package com.marklogic.spring.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Receives measurements from HttpProxy, DefaultRestOperationsFactory, and MarkLogicAuthenticationManager. Every method
+ * has a no-op default, so an implementation only needs to override what it's interested in; NOOP is used when no
+ * implementation is configured. MicrometerMarkLogicMetrics records everything to a Micrometer MeterRegistry.
+ * <p>
+ * The record methods are invoked for every request, so implementations should avoid allocating in them.
+ */
+public interface MarkLogicMetrics {
+
+	MarkLogicMetrics NOOP = new MarkLogicMetrics() {
+	};
+
+	/**
+	 * @param method        the HTTP method
+	 * @param pathTemplate  the path with any unbounded segments replaced, so that it can be used as a tag
+	 * @param status        the status sent to the client, or 0 if MarkLogic couldn't be reached
+	 * @param durationNanos
+	 * @param bytesIn       the number of request body bytes sent to MarkLogic, or -1 if unknown
+	 * @param bytesOut      the number of response body bytes sent to the client, or -1 if unknown
+	 */
+	default void recordProxyRequest(String method, String pathTemplate, int status, long durationNanos, long bytesIn,
+	                                long bytesOut) {
+	}
+
+	/**
+	 * @param outcome
+	 * @param cached        true if the outcome came from a cached verification instead of MarkLogic
+	 * @param durationNanos
+	 */
+	default void recordLogin(LoginOutcome outcome, boolean cached, long durationNanos) {
+	}
+
+	/**
+	 * Registers a value that can go up and down, such as the number of leased connections.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	default void registerGauge(String name, DoubleSupplier value) {
+	}
+
+	/**
+	 * Registers a value that only goes up, such as the number of authentication challenges.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	default void registerCounter(String name, DoubleSupplier value) {
+	}
+}
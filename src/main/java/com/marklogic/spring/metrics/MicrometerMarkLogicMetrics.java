@@ -0,0 +1,144 @@
+package com.marklogic.spring.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Records measurements to a Micrometer MeterRegistry. Micrometer is an optional dependency of this library, so an
+ * application using this class must depend on micrometer-core itself.
+ * <p>
+ * Meters are looked up by registry only the first time a combination of tags is seen; after that, they're found via
+ * nested maps keyed by the method and path template and an array indexed by status, so that recording a request
+ * doesn't allocate.
+ * <ul>
+ * <li>marklogic.proxy.requests - timer tagged with method, path, and status</li>
+ * <li>marklogic.proxy.bytes.in and marklogic.proxy.bytes.out - distribution summaries tagged with method and path</li>
+ * <li>marklogic.logins - timer tagged with outcome and cached</li>
+ * <li>marklogic.pool.* and marklogic.auth.* - gauges and counters registered by DefaultRestOperationsFactory</li>
+ * </ul>
+ */
+public class MicrometerMarkLogicMetrics implements MarkLogicMetrics {
+
+	private final static int MAX_STATUS = 600;
+
+	private final MeterRegistry registry;
+	private final ConcurrentMap<String, ConcurrentMap<String, RequestMeters>> requestMeters = new ConcurrentHashMap<>();
+	private final Timer[] loginTimers;
+	private final ConcurrentMap<String, ValueHolder> gaugeValues = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ValueHolder> counterValues = new ConcurrentHashMap<>();
+
+	public MicrometerMarkLogicMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		LoginOutcome[] outcomes = LoginOutcome.values();
+		this.loginTimers = new Timer[outcomes.length * 2];
+		for (LoginOutcome outcome : outcomes) {
+			for (boolean cached : new boolean[]{false, true}) {
+				loginTimers[outcome.ordinal() * 2 + (cached ? 1 : 0)] = Timer.builder("marklogic.logins")
+					.tag("outcome", outcome.name())
+					.tag("cached", String.valueOf(cached))
+					.register(registry);
+			}
+		}
+	}
+
+	@Override
+	public void recordProxyRequest(String method, String pathTemplate, int status, long durationNanos, long bytesIn,
+	                               long bytesOut) {
+		RequestMeters meters = getRequestMeters(method, pathTemplate);
+		int index = status >= 0 && status < MAX_STATUS ? status : 0;
+		Timer timer = meters.timers.get(index);
+		if (timer == null) {
+			timer = Timer.builder("marklogic.proxy.requests")
+				.tag("method", method)
+				.tag("path", pathTemplate)
+				.tag("status", String.valueOf(index))
+				.register(registry);
+			meters.timers.set(index, timer);
+		}
+		timer.record(durationNanos, TimeUnit.NANOSECONDS);
+		if (bytesIn >= 0) {
+			meters.bytesIn.record(bytesIn);
+		}
+		if (bytesOut >= 0) {
+			meters.bytesOut.record(bytesOut);
+		}
+	}
+
+	private RequestMeters getRequestMeters(String method, String pathTemplate) {
+		ConcurrentMap<String, RequestMeters> byPath = requestMeters.get(method);
+		if (byPath == null) {
+			byPath = requestMeters.computeIfAbsent(method, key -> new ConcurrentHashMap<>());
+		}
+		RequestMeters meters = byPath.get(pathTemplate);
+		if (meters == null) {
+			meters = byPath.computeIfAbsent(pathTemplate, key -> new RequestMeters(method, pathTemplate));
+		}
+		return meters;
+	}
+
+	@Override
+	public void recordLogin(LoginOutcome outcome, boolean cached, long durationNanos) {
+		loginTimers[outcome.ordinal() * 2 + (cached ? 1 : 0)].record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Micrometer only holds a weak reference to the object that a gauge or function counter reads, so the meter is
+	 * registered against a holder that this class keeps. Registering the same name again just replaces the supplier.
+	 */
+	@Override
+	public void registerGauge(String name, DoubleSupplier value) {
+		ValueHolder holder = gaugeValues.computeIfAbsent(name, key -> {
+			ValueHolder newHolder = new ValueHolder();
+			Gauge.builder(key, newHolder, ValueHolder::get).register(registry);
+			return newHolder;
+		});
+		holder.supplier = value;
+	}
+
+	@Override
+	public void registerCounter(String name, DoubleSupplier value) {
+		ValueHolder holder = counterValues.computeIfAbsent(name, key -> {
+			ValueHolder newHolder = new ValueHolder();
+			FunctionCounter.builder(key, newHolder, ValueHolder::get).register(registry);
+			return newHolder;
+		});
+		holder.supplier = value;
+	}
+
+	public MeterRegistry getRegistry() {
+		return registry;
+	}
+
+	private static class ValueHolder {
+
+		volatile DoubleSupplier supplier;
+
+		double get() {
+			DoubleSupplier current = supplier;
+			return current != null ? current.getAsDouble() : Double.NaN;
+		}
+	}
+
+	private class RequestMeters {
+
+		final AtomicReferenceArray<Timer> timers = new AtomicReferenceArray<>(MAX_STATUS);
+		final DistributionSummary bytesIn;
+		final DistributionSummary bytesOut;
+
+		RequestMeters(String method, String pathTemplate) {
+			bytesIn = DistributionSummary.builder("marklogic.proxy.bytes.in").baseUnit("bytes")
+				.tag("method", method).tag("path", pathTemplate).register(registry);
+			bytesOut = DistributionSummary.builder("marklogic.proxy.bytes.out").baseUnit("bytes")
+				.tag("method", method).tag("path", pathTemplate).register(registry);
+		}
+	}
+}
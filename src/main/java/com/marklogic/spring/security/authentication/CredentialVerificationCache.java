@@ -0,0 +1,87 @@
+package com.marklogic.spring.security.authentication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of credential verification results, used by MarkLogicAuthenticationManager to avoid asking MarkLogic
+ * to verify the same credentials over and over - e.g. during a login storm after a deploy. Keys are salted hashes
+ * computed by MarkLogicAuthenticationManager, so no username or password is held here.
+ * <p>
+ * Successful verifications are cached for timeToLiveMillis, while failed verifications - i.e. a 401 from MarkLogic -
+ * are cached for the typically much shorter negativeTimeToLiveMillis. Once maxSize entries are cached, the least
+ * recently used entry is evicted. Keep in mind that a cached success means a password changed in MarkLogic will still
+ * be accepted here until the entry expires.
+ */
+public class CredentialVerificationCache {
+
+	private final int maxSize;
+	private final long timeToLiveMillis;
+	private final long negativeTimeToLiveMillis;
+
+	private final Map<String, Result> entries;
+
+	public CredentialVerificationCache() {
+		this(10000, 5 * 60 * 1000L, 5 * 1000L);
+	}
+
+	public CredentialVerificationCache(int maxSize, long timeToLiveMillis, long negativeTimeToLiveMillis) {
+		this.maxSize = maxSize;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.negativeTimeToLiveMillis = negativeTimeToLiveMillis;
+		this.entries = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				return size() > CredentialVerificationCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return TRUE if the credentials were verified, FALSE if they were rejected, and null if there's no unexpired
+	 * result for the given key
+	 */
+	public synchronized Boolean get(String key) {
+		Result result = entries.get(key);
+		if (result == null) {
+			return null;
+		}
+		if (result.expiresAt - System.nanoTime() <= 0) {
+			entries.remove(key);
+			return null;
+		}
+		return result.valid;
+	}
+
+	public synchronized void put(String key, boolean valid) {
+		long ttl = valid ? timeToLiveMillis : negativeTimeToLiveMillis;
+		if (ttl <= 0) {
+			entries.remove(key);
+			return;
+		}
+		entries.put(key, new Result(valid, System.nanoTime() + ttl * 1000000L));
+	}
+
+	public synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Result {
+		private final boolean valid;
+		private final long expiresAt;
+
+		private Result(boolean valid, long expiresAt) {
+			this.valid = valid;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
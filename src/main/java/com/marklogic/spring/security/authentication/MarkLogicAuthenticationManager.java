@@ -1,14 +1,20 @@
 package com.marklogic.spring.security.authentication;
 
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
 import com.marklogic.spring.http.RestClient;
 import com.marklogic.spring.http.RestConfig;
+import com.marklogic.spring.http.RestOperationsFactory;
+import com.marklogic.spring.metrics.LoginOutcome;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -16,17 +22,48 @@ import org.springframework.security.core.AuthenticationException;
 import org.springframework.web.client.HttpClientErrorException;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Implements Spring Security's AuthenticationManager interface so that it can authenticate users by making a simple
  * request to MarkLogic and checking for a 401. Also implements AuthenticationProvider so that it can be used with
  * Spring Security's ProviderManager.
+ * <p>
+ * Every authentication request is sent over a single RestClient - and thus a single pooled HttpClient - that is
+ * created the first time a user is authenticated. Concurrent authentications with the same username and password
+ * result in a single request to MarkLogic. An optional CredentialVerificationCache can be set to avoid making a request
+ * to MarkLogic at all for credentials that were recently verified or rejected.
+ * <p>
+ * If no RestOperationsFactory is given, this creates its own DefaultRestOperationsFactory, which destroy() shuts down.
  */
-public class MarkLogicAuthenticationManager implements AuthenticationProvider, AuthenticationManager {
+public class MarkLogicAuthenticationManager implements AuthenticationProvider, AuthenticationManager, DisposableBean {
+
+	private final static long DEFAULT_MAX_VERIFICATION_WAIT_MILLIS = 60000;
 
 	private RestConfig restConfig;
+	private RestOperationsFactory restOperationsFactory;
+	private DefaultRestOperationsFactory ownedRestOperationsFactory;
 
 	private String pathToAuthenticateAgainst = "/";
+	private long maxVerificationWaitMillis = -1;
+
+	private CredentialVerificationCache verificationCache;
+	private MarkLogicMetrics metrics = MarkLogicMetrics.NOOP;
+
+	private final ThreadLocalCredentialsProvider credentialsProvider = new ThreadLocalCredentialsProvider();
+	private final ConcurrentMap<String, CompletableFuture<Boolean>> verificationsInProgress = new ConcurrentHashMap<>();
+	private final byte[] salt = new byte[16];
+	private volatile RestClient restClient;
 
 	/**
 	 * A RestConfig instance is needed so a request can be made to MarkLogic to see if the user can successfully
@@ -35,7 +72,20 @@ public class MarkLogicAuthenticationManager implements AuthenticationProvider, A
 	 * @param restConfig
 	 */
 	public MarkLogicAuthenticationManager(RestConfig restConfig) {
+		this(restConfig, new DefaultRestOperationsFactory());
+		this.ownedRestOperationsFactory = (DefaultRestOperationsFactory) restOperationsFactory;
+	}
+
+	/**
+	 * Use this constructor to share a RestOperationsFactory - and thus its connection pool - with other clients.
+	 *
+	 * @param restConfig
+	 * @param restOperationsFactory
+	 */
+	public MarkLogicAuthenticationManager(RestConfig restConfig, RestOperationsFactory restOperationsFactory) {
 		this.restConfig = restConfig;
+		this.restOperationsFactory = restOperationsFactory;
+		new SecureRandom().nextBytes(salt);
 	}
 
 	@Override
@@ -54,25 +104,137 @@ public class MarkLogicAuthenticationManager implements AuthenticationProvider, A
 		String username = token.getPrincipal().toString();
 		String password = token.getCredentials().toString();
 
-		/**
-		 * For now, building a new RestTemplate each time. This should in general be okay, because we're typically not
-		 * authenticating users over and over.
-		 */
-		RestClient client = new RestClient(restConfig, new SimpleCredentialsProvider(username, password));
+		long startNanos = System.nanoTime();
+		String key = buildKey(username, password);
+		Boolean valid = verificationCache != null ? verificationCache.get(key) : null;
+		boolean cached = valid != null;
+		if (!cached) {
+			try {
+				valid = verifyOnce(key, username, password);
+			} catch (RuntimeException ex) {
+				metrics.recordLogin(LoginOutcome.ERROR, false, System.nanoTime() - startNanos);
+				throw ex;
+			}
+		}
+		metrics.recordLogin(valid ? LoginOutcome.SUCCESS : LoginOutcome.BAD_CREDENTIALS, cached,
+			System.nanoTime() - startNanos);
+		if (!valid) {
+			throw new BadCredentialsException("Invalid credentials");
+		}
+
+		return buildAuthenticationToReturn(token);
+	}
+
+	/**
+	 * Ensures that only one request is made to MarkLogic for a given username and password at a time; any other thread
+	 * verifying the same credentials waits for the result of that request, for up to getMaxVerificationWaitMillis, so
+	 * that a hung request can't block every login for that user indefinitely.
+	 *
+	 * @param key
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	protected boolean verifyOnce(String key, String username, String password) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		CompletableFuture<Boolean> existing = verificationsInProgress.putIfAbsent(key, future);
+		if (existing != null) {
+			long waitMillis = getMaxVerificationWaitMillis();
+			try {
+				return existing.get(waitMillis, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) ex.getCause();
+				}
+				throw new AuthenticationServiceException("Unable to verify credentials, cause: " +
+					ex.getCause().getMessage(), ex.getCause());
+			} catch (TimeoutException ex) {
+				throw new AuthenticationServiceException("Timed out after " + waitMillis +
+					"ms waiting for another request to verify the same credentials");
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new AuthenticationServiceException("Interrupted while waiting for credentials to be verified");
+			}
+		}
+
+		try {
+			boolean valid = verify(username, password);
+			if (verificationCache != null) {
+				verificationCache.put(key, valid);
+			}
+			future.complete(valid);
+			return valid;
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			verificationsInProgress.remove(key, future);
+		}
+	}
+
+	/**
+	 * Makes the request to MarkLogic to verify the given credentials.
+	 *
+	 * @param username
+	 * @param password
+	 * @return true if the credentials were accepted, false if MarkLogic returned a 401
+	 */
+	protected boolean verify(String username, String password) {
+		RestClient client = getRestClient();
 		URI uri = client.buildUri(pathToAuthenticateAgainst, "");
+		credentialsProvider.setCurrentCredentials(username, password);
 		try {
 			client.getRestOperations().headForHeaders(uri);
 		} catch (HttpClientErrorException ex) {
 			if (HttpStatus.NOT_FOUND.equals(ex.getStatusCode())) {
 				// Authenticated, but the path wasn't found - that's okay, we just needed to verify authentication
 			} else if (HttpStatus.UNAUTHORIZED.equals(ex.getStatusCode())) {
-				throw new BadCredentialsException("Invalid credentials");
+				return false;
 			} else {
 				throw ex;
 			}
+		} finally {
+			credentialsProvider.removeCurrentCredentials();
 		}
+		return true;
+	}
 
-		return buildAuthenticationToReturn(token);
+	/**
+	 * The RestClient is built lazily so that constructing this class doesn't require MarkLogic to be available.
+	 *
+	 * @return
+	 */
+	protected RestClient getRestClient() {
+		RestClient client = restClient;
+		if (client == null) {
+			synchronized (this) {
+				client = restClient;
+				if (client == null) {
+					client = new RestClient(restConfig, credentialsProvider, restOperationsFactory);
+					restClient = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Builds a salted hash of the given credentials so that neither is held as a key in memory.
+	 *
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	protected String buildKey(String username, String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			digest.update(username.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return Base64.getEncoder().encodeToString(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("Unable to hash credentials, cause: " + ex.getMessage(), ex);
+		}
 	}
 
 	/**
@@ -87,22 +249,81 @@ public class MarkLogicAuthenticationManager implements AuthenticationProvider, A
 			token.getAuthorities());
 	}
 
+	/**
+	 * Shuts down the connection pool if this created its own factory; a factory that was passed in is left alone.
+	 */
+	@Override
+	public void destroy() {
+		if (ownedRestOperationsFactory != null) {
+			ownedRestOperationsFactory.destroy();
+			ownedRestOperationsFactory = null;
+		}
+	}
+
+	/**
+	 * @return how long a login waits for another thread's verification of the same credentials. Unless set, this is
+	 * the connect timeout plus the socket timeout of the RestConfig - the longest the other thread's request should
+	 * take - or 60 seconds if neither is set.
+	 */
+	public long getMaxVerificationWaitMillis() {
+		if (maxVerificationWaitMillis >= 0) {
+			return maxVerificationWaitMillis;
+		}
+		Integer socketTimeout = restConfig.getSocketTimeoutMillis();
+		Integer connectTimeout = restConfig.getConnectTimeoutMillis();
+		if (socketTimeout == null || socketTimeout <= 0) {
+			return DEFAULT_MAX_VERIFICATION_WAIT_MILLIS;
+		}
+		return socketTimeout + (connectTimeout != null && connectTimeout > 0 ? connectTimeout : 0);
+	}
+
+	public void setMaxVerificationWaitMillis(long maxVerificationWaitMillis) {
+		this.maxVerificationWaitMillis = maxVerificationWaitMillis;
+	}
+
 	public void setPathToAuthenticateAgainst(String pathToAuthenticateAgainst) {
 		this.pathToAuthenticateAgainst = pathToAuthenticateAgainst;
 	}
+
+	/**
+	 * Enables caching of verification results; the cache is disabled by default.
+	 *
+	 * @param verificationCache
+	 */
+	public void setVerificationCache(CredentialVerificationCache verificationCache) {
+		this.verificationCache = verificationCache;
+	}
+
+	public CredentialVerificationCache getVerificationCache() {
+		return verificationCache;
+	}
+
+	/**
+	 * @param metrics records the duration and outcome of each authentication; defaults to no-op
+	 */
+	public void setMetrics(MarkLogicMetrics metrics) {
+		this.metrics = metrics != null ? metrics : MarkLogicMetrics.NOOP;
+	}
+
+	public MarkLogicMetrics getMetrics() {
+		return metrics;
+	}
 }
 
 /**
- * Simple implementation that is good for one-time requests.
+ * Returns the credentials that are being verified by the current thread, which allows a single HttpClient to be used
+ * for verifying the credentials of every user.
  */
-class SimpleCredentialsProvider implements CredentialsProvider {
+class ThreadLocalCredentialsProvider implements CredentialsProvider {
+
+	private final ThreadLocal<Credentials> currentCredentials = new ThreadLocal<>();
 
-	private String username;
-	private String password;
+	public void setCurrentCredentials(String username, String password) {
+		currentCredentials.set(new UsernamePasswordCredentials(username, password));
+	}
 
-	public SimpleCredentialsProvider(String username, String password) {
-		this.username = username;
-		this.password = password;
+	public void removeCurrentCredentials() {
+		currentCredentials.remove();
 	}
 
 	@Override
@@ -111,11 +332,11 @@ class SimpleCredentialsProvider implements CredentialsProvider {
 
 	@Override
 	public Credentials getCredentials(AuthScope authscope) {
-		return new UsernamePasswordCredentials(username, password);
+		return currentCredentials.get();
 	}
 
 	@Override
 	public void clear() {
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AuthSchemeDiscoveryTest extends Assert {
+
+	private AuthSchemeDiscovery discovery = new AuthSchemeDiscovery();
+
+	@Test
+	public void digestChallenge() {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+		response.addHeader("WWW-Authenticate", "Digest realm=\"public\", qop=\"auth\", nonce=\"abc\", opaque=\"def\"");
+
+		DiscoveredAuthScheme authScheme = discovery.extractAuthScheme(response);
+		assertTrue(authScheme.isDigest());
+		assertEquals("public", authScheme.getRealm());
+	}
+
+	@Test
+	public void basicChallenge() {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+		response.addHeader("WWW-Authenticate", "Basic realm=\"public\"");
+
+		DiscoveredAuthScheme authScheme = discovery.extractAuthScheme(response);
+		assertFalse(authScheme.isDigest());
+		assertEquals("basic", authScheme.getScheme());
+		assertEquals("public", authScheme.getRealm());
+	}
+
+	@Test
+	public void noChallenge() {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		assertEquals(DiscoveredAuthScheme.NONE, discovery.extractAuthScheme(response).getScheme());
+	}
+
+	@Test
+	public void updatedSchemeIsReturnedWithoutProbing() {
+		discovery.update(new HttpHost("somehost", -1, "http"), new DiscoveredAuthScheme("basic", "public"));
+		DiscoveredAuthScheme authScheme = discovery.getIfDiscovered("http", "somehost", 80);
+		assertNotNull(authScheme);
+		assertEquals("basic", authScheme.getScheme());
+	}
+}
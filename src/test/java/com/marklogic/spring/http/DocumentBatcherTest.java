@@ -0,0 +1,123 @@
+package com.marklogic.spring.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.client.ExpectedCount.once;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class DocumentBatcherTest extends Assert {
+
+	private final static MediaType MULTIPART = MediaType.parseMediaType("multipart/mixed; boundary=BOUNDARY");
+
+	private MockRestServiceServer server;
+	private DocumentBatcher batcher;
+
+	@Before
+	public void setup() {
+		RestTemplate restTemplate = new RestTemplate();
+		server = MockRestServiceServer.bindTo(restTemplate).build();
+		batcher = new DocumentBatcher(new RestClient(new SimpleRestConfig("localhost", 8000), restTemplate));
+	}
+
+	@After
+	public void teardown() {
+		batcher.destroy();
+	}
+
+	@Test
+	public void readDocumentsInBatches() {
+		batcher.setMaxBatchSize(2);
+		server.expect(requestTo("http://localhost:8000/v1/documents?uri=%2Fa.json&uri=%2Fb%20c.json"))
+			.andExpect(header("Accept", "multipart/mixed"))
+			.andRespond(withSuccess(multipart("/b c.json", "/a.json"), MULTIPART));
+		server.expect(requestTo("http://localhost:8000/v1/documents?uri=%2Fmissing.json"))
+			.andRespond(withSuccess(multipart(), MULTIPART));
+
+		Map<String, BatchedDocument> documents = batcher.readDocuments(
+			Arrays.asList("/a.json", "/b c.json", "/a.json", "/missing.json"));
+
+		server.verify();
+		assertEquals(Arrays.asList("/a.json", "/b c.json"), Arrays.asList(documents.keySet().toArray()));
+		assertEquals("{\"uri\":\"/a.json\"}", documents.get("/a.json").getContentAsString());
+		assertEquals(MediaType.APPLICATION_JSON, documents.get("/b c.json").getContentType());
+	}
+
+	@Test
+	public void concurrentReadsShareOneRequest() throws Exception {
+		batcher.setMaxWaitMillis(50);
+		server.expect(once(), requestTo("http://localhost:8000/v1/documents?uri=%2Fa.json&uri=%2Fb.json"))
+			.andRespond(withSuccess(multipart("/a.json", "/b.json"), MULTIPART));
+
+		CompletableFuture<BatchedDocument> a = batcher.read("/a.json");
+		CompletableFuture<BatchedDocument> b = batcher.read("/b.json");
+		CompletableFuture<BatchedDocument> a2 = batcher.read("/a.json");
+
+		assertEquals("{\"uri\":\"/a.json\"}", a.get().getContentAsString());
+		assertEquals("{\"uri\":\"/b.json\"}", b.get().getContentAsString());
+		assertSame(a.get(), a2.get());
+		server.verify();
+	}
+
+	@Test
+	public void batchesAreSentOffTheTimerThread() throws Exception {
+		batcher.setMaxWaitMillis(10);
+		List<String> threadNames = new CopyOnWriteArrayList<>();
+		server.expect(once(), requestTo("http://localhost:8000/v1/documents?uri=%2Fa.json"))
+			.andRespond(request -> {
+				threadNames.add(Thread.currentThread().getName());
+				return withSuccess(multipart("/a.json"), MULTIPART).createResponse(request);
+			});
+
+		assertNotNull(batcher.read("/a.json").get(5, TimeUnit.SECONDS));
+		assertEquals("[marklogic-document-batcher]", threadNames.toString());
+		server.verify();
+	}
+
+	@Test
+	public void destroyFailsPendingReadsAndRejectsNewOnes() throws Exception {
+		batcher.setMaxWaitMillis(50);
+		CompletableFuture<BatchedDocument> pending = batcher.read("/a.json");
+		batcher.destroy();
+		try {
+			pending.get(5, TimeUnit.SECONDS);
+			fail("The pending batch should have failed");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+
+		try {
+			batcher.read("/b.json");
+			fail("A destroyed batcher must not create new threads");
+		} catch (IllegalStateException ex) {
+			assertEquals("DocumentBatcher has been destroyed", ex.getMessage());
+		}
+	}
+
+	private String multipart(String... uris) {
+		StringBuilder body = new StringBuilder();
+		for (String uri : uris) {
+			body.append("--BOUNDARY\r\n")
+				.append("Content-Type: application/json\r\n")
+				.append("Content-Disposition: attachment; filename=\"").append(uri).append("\"; category=content; format=json\r\n")
+				.append("\r\n")
+				.append("{\"uri\":\"").append(uri).append("\"}\r\n");
+		}
+		return body.append("--BOUNDARY--\r\n").toString();
+	}
+}
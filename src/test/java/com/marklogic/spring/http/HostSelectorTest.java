@@ -0,0 +1,135 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HostSelectorTest extends Assert {
+
+	@Test
+	public void roundRobin() {
+		HostSelector selector = new HostSelector(Arrays.asList("a", "b", "c"), HostSelectionStrategy.ROUND_ROBIN);
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < 30; i++) {
+			counts.merge(selector.select(), 1, Integer::sum);
+		}
+		assertEquals(10, (int) counts.get("a"));
+		assertEquals(10, (int) counts.get("b"));
+		assertEquals(10, (int) counts.get("c"));
+	}
+
+	@Test
+	public void leastInFlight() {
+		HostSelector selector = new HostSelector(Arrays.asList("a", "b"), HostSelectionStrategy.LEAST_IN_FLIGHT);
+		selector.requestStarted("a");
+		selector.requestStarted("a");
+		selector.requestStarted("b");
+		for (int i = 0; i < 5; i++) {
+			assertEquals("b", selector.select());
+		}
+	}
+
+	@Test
+	public void failingHostIsEjectedAndRetriedLater() throws Exception {
+		HostSelector selector = new HostSelector(Arrays.asList("a", "b"), HostSelectionStrategy.ROUND_ROBIN);
+		selector.setFailureThreshold(2);
+		selector.setEjectionMillis(50);
+
+		selector.requestStarted("a");
+		selector.requestCompleted("a", 0, false);
+		assertTrue(selector.isAvailable("a"));
+		selector.requestStarted("a");
+		selector.requestCompleted("a", 0, false);
+		assertFalse(selector.isAvailable("a"));
+		for (int i = 0; i < 5; i++) {
+			assertEquals("b", selector.select());
+		}
+
+		Thread.sleep(60);
+		assertTrue("Once the ejection period ends, the host should be tried again", selector.isAvailable("a"));
+	}
+
+	@Test
+	public void everyHostEjected() {
+		HostSelector selector = new HostSelector(Arrays.asList("a", "b"), HostSelectionStrategy.LATENCY_WEIGHTED);
+		selector.setFailureThreshold(1);
+		selector.setEjectionMillis(60000);
+		selector.requestStarted("a");
+		selector.requestCompleted("a", 0, false);
+		selector.requestStarted("b");
+		selector.requestCompleted("b", 0, false);
+
+		assertEquals("The host whose ejection ends first should be chosen instead of failing", "a", selector.select());
+	}
+
+	@Test
+	public void factorySharesOneSelectorPerHostList() throws Exception {
+		ClusterRestConfig config = new ClusterRestConfig(8000, "host-a", "host-b");
+		config.setHealthCheckIntervalMillis(60000L);
+		CountingFactory factory = new CountingFactory();
+		try {
+			factory.newRestOperations(config, null);
+			factory.newRestOperations(config, null);
+			factory.newRestOperations(new ClusterRestConfig(8000, "host-a", "host-b"), null);
+			assertEquals("Every RestOperations for the same hosts should share one selector and health check", 1,
+				factory.selectorsCreated);
+			assertEquals(1, countHealthCheckThreads());
+
+			factory.newRestOperations(new ClusterRestConfig(8000, "host-a", "host-c"), null);
+			assertEquals(2, factory.selectorsCreated);
+			assertSame(factory.getHostSelector(config), factory.getHostSelector(config));
+		} finally {
+			factory.destroy();
+		}
+		for (int i = 0; i < 100 && countHealthCheckThreads() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals("destroy() should stop every health check", 0, countHealthCheckThreads());
+		assertEquals(2, factory.healthCheckClients.size());
+		for (HttpClient client : factory.healthCheckClients) {
+			try {
+				client.execute(new HttpHead("http://localhost:1/"));
+				fail("destroy() should have closed the health check client");
+			} catch (IllegalStateException ex) {
+				// Expected, as the client's connection manager has been shut down
+			}
+		}
+	}
+
+	private int countHealthCheckThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().equals("marklogic-host-health-check")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static class CountingFactory extends DefaultRestOperationsFactory {
+
+		private int selectorsCreated;
+		private final List<HttpClient> healthCheckClients = new ArrayList<>();
+
+		@Override
+		protected HostSelector newHostSelector(RestConfig restConfig) {
+			selectorsCreated++;
+			return super.newHostSelector(restConfig);
+		}
+
+		@Override
+		protected CloseableHttpClient newHealthCheckClient(RestConfig restConfig, long intervalMillis) {
+			CloseableHttpClient client = super.newHealthCheckClient(restConfig, intervalMillis);
+			healthCheckClients.add(client);
+			return client;
+		}
+	}
+}
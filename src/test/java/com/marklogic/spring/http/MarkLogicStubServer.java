@@ -0,0 +1,507 @@
+package com.marklogic.spring.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An embedded stand-in for a MarkLogic REST server, so that RestClient and HttpProxy can be tested - and load tested
+ * - without a live MarkLogic. It authenticates requests the way MarkLogic does, via basic or digest authentication
+ * in the "public" realm, and serves a subset of the REST API:
+ * <ul>
+ * <li>GET /v1/documents?uri=... returns a stored document, or a generated JSON document of payloadSize bytes; with
+ * more than one uri, or an Accept header of multipart/mixed, it returns a multipart response</li>
+ * <li>PUT and DELETE /v1/documents?uri=... store and remove a document</li>
+ * <li>GET and POST /v1/search return a JSON search response of roughly payloadSize bytes</li>
+ * </ul>
+ * Digest nonces expire after nonceTimeoutMillis, after which requests are challenged with stale=true. Like MarkLogic,
+ * the stub accepts a nonce count that has already been used - which HttpClient sends when digest state is cached in a
+ * BasicAuthCache, as that cache stores a serialized copy of the scheme - unless rejectReusedNonceCounts is set. Every
+ * response is delayed by latencyMillis, plus a random amount up to latencyJitterMillis.
+ */
+public class MarkLogicStubServer {
+
+	public enum Authentication {
+		NONE, BASIC, DIGEST
+	}
+
+	public final static String REALM = "public";
+	public final static String BOUNDARY = "ML_BOUNDARY_STUB";
+
+	private final static Pattern DIGEST_PARAM = Pattern.compile("(\\w+)=(?:\"([^\"]*)\"|([^,\\s]*))");
+
+	static {
+		// The JDK server writes the headers and the body of a response separately, so without this, Nagle's algorithm
+		// and delayed ACKs add ~40ms to every response. It's only read when the first server in the JVM is created.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final Map<String, String> users = new ConcurrentHashMap<>();
+	private final Map<String, StoredDocument> documents = new ConcurrentHashMap<>();
+	private final Map<String, Nonce> nonces = new ConcurrentHashMap<>();
+	private final Map<Integer, byte[]> payloads = new ConcurrentHashMap<>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong challenges = new AtomicLong();
+
+	private volatile Authentication authentication = Authentication.DIGEST;
+	private volatile long latencyMillis;
+	private volatile long latencyJitterMillis;
+	private volatile int payloadSize = 1024;
+	private volatile long nonceTimeoutMillis = 60000;
+	private volatile boolean rejectReusedNonceCounts;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public MarkLogicStubServer() {
+		users.put("admin", "admin");
+	}
+
+	/**
+	 * Starts the server on an ephemeral port.
+	 *
+	 * @return this
+	 */
+	public MarkLogicStubServer start() {
+		return start(0);
+	}
+
+	public MarkLogicStubServer start(int port) {
+		try {
+			server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to start stub server, cause: " + ex.getMessage(), ex);
+		}
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "marklogic-stub");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public SimpleRestConfig newRestConfig() {
+		return new SimpleRestConfig("localhost", getPort());
+	}
+
+	public void addUser(String username, String password) {
+		users.put(username, password);
+	}
+
+	public void putDocument(String uri, String contentType, byte[] content) {
+		documents.put(uri, new StoredDocument(contentType, content));
+	}
+
+	/**
+	 * @return the number of requests received, including those that were challenged
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of 401 responses sent
+	 */
+	public long getChallenges() {
+		return challenges.get();
+	}
+
+	public void resetCounts() {
+		requests.set(0);
+		challenges.set(0);
+	}
+
+	protected void handle(HttpExchange exchange) throws IOException {
+		try {
+			requests.incrementAndGet();
+			byte[] body = readBody(exchange.getRequestBody());
+			if (!authenticate(exchange)) {
+				return;
+			}
+			delay();
+
+			String path = exchange.getRequestURI().getPath();
+			Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			if (path.equals("/v1/search")) {
+				List<String> query = params.get("q");
+				send(exchange, 200, "application/json", newSearchResponse(query != null ? query.get(0) : ""));
+			} else if (path.equals("/v1/documents")) {
+				handleDocuments(exchange, params.getOrDefault("uri", Collections.emptyList()), body);
+			} else if (path.equals("/")) {
+				send(exchange, 200, "text/html", "<html><body>MarkLogic stub</body></html>".getBytes(StandardCharsets.UTF_8));
+			} else {
+				sendError(exchange, 404, "RESTAPI-NOTFOUND", "Unknown path: " + path);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	protected void handleDocuments(HttpExchange exchange, List<String> uris, byte[] body) throws IOException {
+		String method = exchange.getRequestMethod();
+		if (uris.isEmpty()) {
+			sendError(exchange, 400, "REST-REQUIREDPARAM", "Missing uri parameter");
+		} else if (method.equals("PUT")) {
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			boolean created = documents.put(uris.get(0), new StoredDocument(
+				contentType != null ? contentType : "application/json", body)) == null;
+			send(exchange, created ? 201 : 204, null, null);
+		} else if (method.equals("DELETE")) {
+			for (String uri : uris) {
+				documents.remove(uri);
+			}
+			send(exchange, 204, null, null);
+		} else if (method.equals("GET") || method.equals("HEAD")) {
+			String accept = exchange.getRequestHeaders().getFirst("Accept");
+			if (uris.size() > 1 || (accept != null && accept.startsWith("multipart/mixed"))) {
+				send(exchange, 200, "multipart/mixed; boundary=" + BOUNDARY, newMultipartResponse(uris));
+			} else {
+				StoredDocument document = getDocument(uris.get(0));
+				send(exchange, 200, document.contentType, document.content);
+			}
+		} else {
+			sendError(exchange, 405, "REST-UNSUPPORTEDMETHOD", "Unsupported method: " + method);
+		}
+	}
+
+	/**
+	 * @return true if the request may proceed; otherwise, a 401 has been sent
+	 */
+	protected boolean authenticate(HttpExchange exchange) throws IOException {
+		if (authentication == Authentication.NONE) {
+			return true;
+		}
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		boolean stale = false;
+		if (authorization != null) {
+			if (authentication == Authentication.BASIC && authorization.startsWith("Basic ")) {
+				if (verifyBasic(authorization.substring(6).trim())) {
+					return true;
+				}
+			} else if (authentication == Authentication.DIGEST && authorization.startsWith("Digest ")) {
+				Map<String, String> params = parseDigestParams(authorization.substring(7));
+				Nonce nonce = nonces.get(String.valueOf(params.get("nonce")));
+				if (nonce != null && nonce.isExpired(nonceTimeoutMillis)) {
+					nonces.remove(nonce.value);
+					nonce = null;
+				}
+				if (nonce == null) {
+					stale = params.get("nonce") != null;
+				} else if (verifyDigest(exchange.getRequestMethod(), params, nonce)) {
+					return true;
+				}
+			}
+		}
+		challenge(exchange, stale);
+		return false;
+	}
+
+	protected void challenge(HttpExchange exchange, boolean stale) throws IOException {
+		challenges.incrementAndGet();
+		String header;
+		if (authentication == Authentication.BASIC) {
+			header = "Basic realm=\"" + REALM + "\"";
+		} else {
+			Nonce nonce = new Nonce(Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+				Long.toHexString(System.nanoTime()));
+			nonces.put(nonce.value, nonce);
+			header = "Digest realm=\"" + REALM + "\", qop=\"auth\", nonce=\"" + nonce.value + "\", opaque=\"" +
+				md5(nonce.value) + "\"" + (stale ? ", stale=true" : "");
+		}
+		exchange.getResponseHeaders().add("WWW-Authenticate", header);
+		sendError(exchange, 401, "SEC-AUTHNEEDED", "Unauthorized");
+	}
+
+	private boolean verifyBasic(String token) {
+		String decoded;
+		try {
+			decoded = new String(Base64.getDecoder().decode(token), StandardCharsets.ISO_8859_1);
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+		int colon = decoded.indexOf(':');
+		return colon > 0 && decoded.substring(colon + 1).equals(users.get(decoded.substring(0, colon)));
+	}
+
+	private boolean verifyDigest(String method, Map<String, String> params, Nonce nonce) {
+		String username = params.get("username");
+		String password = username != null ? users.get(username) : null;
+		String nc = params.get("nc");
+		if (password == null || nc == null || !REALM.equals(params.get("realm"))) {
+			return false;
+		}
+		String ha1 = md5(username + ":" + REALM + ":" + password);
+		String ha2 = md5(method + ":" + params.get("uri"));
+		String expected = md5(ha1 + ":" + nonce.value + ":" + nc + ":" + params.get("cnonce") + ":" +
+			params.get("qop") + ":" + ha2);
+		if (!expected.equals(params.get("response"))) {
+			return false;
+		}
+		return nonce.counts.add(nc) || !rejectReusedNonceCounts;
+	}
+
+	private Map<String, String> parseDigestParams(String value) {
+		Map<String, String> params = new HashMap<>();
+		Matcher matcher = DIGEST_PARAM.matcher(value);
+		while (matcher.find()) {
+			params.put(matcher.group(1), matcher.group(2) != null ? matcher.group(2) : matcher.group(3));
+		}
+		return params;
+	}
+
+	private StoredDocument getDocument(String uri) {
+		StoredDocument document = documents.get(uri);
+		return document != null ? document : new StoredDocument("application/json", getPayload(payloadSize));
+	}
+
+	private byte[] newMultipartResponse(List<String> uris) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String uri : uris) {
+			StoredDocument document = getDocument(uri);
+			String format = document.contentType.contains("json") ? "json" :
+				document.contentType.contains("xml") ? "xml" : "binary";
+			write(out, "--" + BOUNDARY + "\r\n" +
+				"Content-Type: " + document.contentType + "\r\n" +
+				"Content-Disposition: attachment; filename=\"" + uri + "\"; category=content; format=" + format + "\r\n" +
+				"Content-Length: " + document.content.length + "\r\n\r\n");
+			out.write(document.content, 0, document.content.length);
+			write(out, "\r\n");
+		}
+		write(out, "--" + BOUNDARY + "--\r\n");
+		return out.toByteArray();
+	}
+
+	private byte[] newSearchResponse(String query) {
+		StringBuilder json = new StringBuilder("{\"snippet-format\":\"snippet\",\"total\":10,\"start\":1,");
+		json.append("\"page-length\":10,\"qtext\":\"").append(query.replace("\"", "")).append("\",\"results\":[");
+		int resultSize = Math.max(payloadSize / 10, 64);
+		for (int i = 1; i <= 10; i++) {
+			if (i > 1) {
+				json.append(',');
+			}
+			json.append("{\"index\":").append(i).append(",\"uri\":\"/doc").append(i).append(".json\",\"matches\":[");
+			json.append("{\"match-text\":\"");
+			for (int j = 0; j < resultSize - 64; j++) {
+				json.append((char) ('a' + j % 26));
+			}
+			json.append("\"}]}");
+		}
+		json.append("]}");
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a JSON document of exactly the given number of bytes, or the smallest one possible
+	 */
+	private byte[] getPayload(int size) {
+		return payloads.computeIfAbsent(size, key -> {
+			StringBuilder json = new StringBuilder("{\"content\":\"");
+			int padding = Math.max(0, key - json.length() - 2);
+			for (int i = 0; i < padding; i++) {
+				json.append((char) ('a' + i % 26));
+			}
+			return json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+		});
+	}
+
+	private void delay() {
+		long delay = latencyMillis + (latencyJitterMillis > 0 ?
+			ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+		if (delay > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(delay);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void sendError(HttpExchange exchange, int status, String messageCode, String message) throws IOException {
+		String json = String.format("{\"errorResponse\":{\"statusCode\":%d,\"messageCode\":\"%s\",\"message\":\"%s\"}}",
+			status, messageCode, message.replace("\"", ""));
+		send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		Headers headers = exchange.getResponseHeaders();
+		headers.set("Server", "MarkLogic stub");
+		if (contentType != null) {
+			headers.set("Content-Type", contentType);
+		}
+		boolean noBody = body == null || body.length == 0 || exchange.getRequestMethod().equals("HEAD");
+		exchange.sendResponseHeaders(status, noBody ? -1 : body.length);
+		if (!noBody) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, List<String>> parseQuery(String rawQuery) {
+		Map<String, List<String>> params = new HashMap<>();
+		if (rawQuery == null) {
+			return params;
+		}
+		try {
+			for (String pair : rawQuery.split("&")) {
+				int equals = pair.indexOf('=');
+				String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+				String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+				params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return params;
+	}
+
+	private static void write(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static String md5(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.ISO_8859_1));
+			StringBuilder hex = new StringBuilder(32);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public Authentication getAuthentication() {
+		return authentication;
+	}
+
+	public void setAuthentication(Authentication authentication) {
+		this.authentication = authentication;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public long getLatencyJitterMillis() {
+		return latencyJitterMillis;
+	}
+
+	public void setLatencyJitterMillis(long latencyJitterMillis) {
+		this.latencyJitterMillis = latencyJitterMillis;
+	}
+
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	/**
+	 * @param payloadSize the size of generated documents, and roughly the size of search responses
+	 */
+	public void setPayloadSize(int payloadSize) {
+		this.payloadSize = payloadSize;
+	}
+
+	public long getNonceTimeoutMillis() {
+		return nonceTimeoutMillis;
+	}
+
+	public void setNonceTimeoutMillis(long nonceTimeoutMillis) {
+		this.nonceTimeoutMillis = nonceTimeoutMillis;
+	}
+
+	public boolean isRejectReusedNonceCounts() {
+		return rejectReusedNonceCounts;
+	}
+
+	/**
+	 * @param rejectReusedNonceCounts true to challenge a digest request whose nonce count has already been used, as a
+	 *                                server with strict replay protection would
+	 */
+	public void setRejectReusedNonceCounts(boolean rejectReusedNonceCounts) {
+		this.rejectReusedNonceCounts = rejectReusedNonceCounts;
+	}
+
+	private static class StoredDocument {
+		final String contentType;
+		final byte[] content;
+
+		StoredDocument(String contentType, byte[] content) {
+			this.contentType = contentType;
+			this.content = content;
+		}
+	}
+
+	private static class Nonce {
+		final String value;
+		final long createdAt = System.nanoTime();
+		final Set<String> counts = ConcurrentHashMap.newKeySet();
+
+		Nonce(String value) {
+			this.value = value;
+		}
+
+		boolean isExpired(long timeoutMillis) {
+			return System.nanoTime() - createdAt > TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.marklogic.spring.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class MultipartReaderTest extends Assert {
+
+	private final static String BODY = "preamble\r\n" +
+		"--ML_BOUNDARY\r\n" +
+		"Content-Type: application/json\r\n" +
+		"Content-Disposition: attachment; filename=\"/a.json\"; category=content; format=json\r\n" +
+		"\r\n" +
+		"{\"a\":\"--ML_BOUNDAR\"}\r\n" +
+		"--ML_BOUNDARY\r\n" +
+		"Content-Type: application/xml\r\n" +
+		"Content-Disposition: attachment; filename=/b.xml\r\n" +
+		"\r\n" +
+		"<b/>\r\n" +
+		"--ML_BOUNDARY--\r\n";
+
+	@Test
+	public void readParts() throws Exception {
+		verifyParts(new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void readPartsOneByteAtATime() throws Exception {
+		verifyParts(new FilterInputStream(new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8))) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		});
+	}
+
+	@Test
+	public void skipUnreadBody() throws Exception {
+		MultipartReader reader = new MultipartReader(new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8)),
+			"ML_BOUNDARY");
+		assertEquals("/a.json", reader.next().getFileName());
+		assertEquals("/b.xml", reader.next().getFileName());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void extractBoundary() {
+		assertEquals("ML_BOUNDARY", MultipartReader.extractBoundary(
+			MediaType.parseMediaType("multipart/mixed; boundary=\"ML_BOUNDARY\"")));
+		assertNull(MultipartReader.extractBoundary(MediaType.APPLICATION_JSON));
+	}
+
+	private void verifyParts(InputStream in) throws Exception {
+		MultipartReader reader = new MultipartReader(in, "ML_BOUNDARY");
+
+		MultipartReader.Part part = reader.next();
+		assertEquals("/a.json", part.getFileName());
+		assertEquals(MediaType.APPLICATION_JSON, part.getHeaders().getContentType());
+		assertEquals("{\"a\":\"--ML_BOUNDAR\"}", StreamUtils.copyToString(part.getBody(), StandardCharsets.UTF_8));
+
+		part = reader.next();
+		assertEquals("/b.xml", part.getFileName());
+		assertEquals("<b/>", StreamUtils.copyToString(part.getBody(), StandardCharsets.UTF_8));
+
+		assertNull(reader.next());
+	}
+}
@@ -0,0 +1,115 @@
+package com.marklogic.spring.http;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestOperations;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PreemptiveBasicAuthTest extends Assert {
+
+	private HttpServer server;
+	private List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+	private String challenge = "Basic realm=\"public\"";
+	private DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+	private AuthSchemeDiscovery discovery = new AuthSchemeDiscovery();
+
+	@Before
+	public void setup() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			authorizations.add(String.valueOf(authorization));
+			if (authorization == null || !authorization.startsWith(challenge.substring(0, 6))) {
+				exchange.getResponseHeaders().add("WWW-Authenticate", challenge);
+				exchange.sendResponseHeaders(401, -1);
+			} else {
+				exchange.sendResponseHeaders(200, -1);
+			}
+			exchange.close();
+		});
+		server.start();
+		factory.setAuthSchemeDiscovery(discovery);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		server.stop(0);
+		factory.destroy();
+		discovery.destroy();
+	}
+
+	@Test
+	public void credentialsAreSentWithFirstRequest() {
+		RestOperations restOperations = newRestOperations(true, "basic");
+		restOperations.headForHeaders(uri());
+		restOperations.headForHeaders(uri());
+
+		assertEquals("Neither request should have been challenged", 2, authorizations.size());
+		assertEquals("Basic amFuZTpwYXNzd29yZA==", authorizations.get(0));
+		assertEquals(authorizations.get(0), authorizations.get(1));
+		assertEquals(2, factory.getPreemptiveBasicAuth().getPreemptiveRequests());
+	}
+
+	@Test
+	public void disabledByDefault() {
+		newRestOperations(false, "basic").headForHeaders(uri());
+		assertEquals("null", authorizations.get(0));
+		assertEquals("Basic amFuZTpwYXNzd29yZA==", authorizations.get(1));
+	}
+
+	@Test
+	public void notSentToDigestServer() {
+		challenge = "Digest realm=\"public\", qop=\"auth\", nonce=\"abc\", opaque=\"def\"";
+		newRestOperations(true, "digest").headForHeaders(uri());
+		assertEquals("Basic credentials must not be sent to a digest server", "null", authorizations.get(0));
+		assertTrue(authorizations.get(1).startsWith("Digest"));
+	}
+
+	@Test
+	public void fallsBackWhenChallengedWithDifferentScheme() {
+		challenge = "Digest realm=\"public\", qop=\"auth\", nonce=\"abc\", opaque=\"def\"";
+		RestOperations restOperations = newRestOperations(true, "basic");
+		restOperations.headForHeaders(uri());
+		assertTrue(authorizations.get(0).startsWith("Basic"));
+		assertTrue("The digest challenge is answered", authorizations.get(1).startsWith("Digest"));
+
+		authorizations.clear();
+		restOperations.headForHeaders(uri());
+		assertFalse("The changed scheme is recorded, so Basic isn't sent again",
+			authorizations.get(0).startsWith("Basic"));
+	}
+
+	@Test
+	public void headerValueIsCachedPerUser() {
+		PreemptiveBasicAuth auth = new PreemptiveBasicAuth();
+		String value = auth.getHeaderValue(new UsernamePasswordCredentials("jane", "password"));
+		assertSame(value, auth.getHeaderValue(new UsernamePasswordCredentials("jane", "password")));
+		assertNotEquals(value, auth.getHeaderValue(new UsernamePasswordCredentials("jane", "changed")));
+	}
+
+	private RestOperations newRestOperations(boolean preemptive, String discoveredScheme) {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", server.getAddress().getPort());
+		config.setDigestCachingEnabled(false);
+		config.setPreemptiveBasicAuth(preemptive);
+		discovery.update(new HttpHost("localhost", server.getAddress().getPort(), "http"),
+			new DiscoveredAuthScheme(discoveredScheme, "public"));
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("jane", "password"));
+		return factory.newRestOperations(config, provider);
+	}
+
+	private String uri() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+}
@@ -0,0 +1,86 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.auth.DigestScheme;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrincipalHttpContextCacheTest extends Assert {
+
+	private HttpHost host = new HttpHost("localhost", 8000);
+
+	@Test
+	public void separateStatePerPrincipal() {
+		PrincipalHttpContextCache cache = new PrincipalHttpContextCache();
+		HttpClientContext jane = cache.newContext("jane", host);
+		jane.getAuthCache().put(host, new DigestScheme());
+
+		assertSame("Each request for the same principal shares its AuthCache",
+			jane.getAuthCache(), cache.newContext("jane", host).getAuthCache());
+		assertNotNull(cache.newContext("jane", host).getAuthCache().get(host));
+
+		HttpClientContext john = cache.newContext("john", host);
+		assertNotSame(jane.getAuthCache(), john.getAuthCache());
+		assertNull("One principal must never reuse another's digest state", john.getAuthCache().get(host));
+		assertEquals(2, cache.size());
+		assertNull(john.getUserToken());
+
+		cache.setBindConnectionsToPrincipal(true);
+		assertEquals("john", cache.newContext("john", host).getUserToken());
+	}
+
+	@Test
+	public void leastRecentlyUsedPrincipalIsEvictedWhenFull() throws Exception {
+		PrincipalHttpContextCache cache = new PrincipalHttpContextCache(2, 60000);
+		cache.newContext("a", host).getAuthCache().put(host, new DigestScheme());
+		Thread.sleep(2);
+		cache.newContext("b", host);
+		Thread.sleep(2);
+		cache.newContext("a", host);
+		Thread.sleep(2);
+		cache.newContext("c", host);
+
+		assertEquals(2, cache.size());
+		assertNotNull("a was used more recently than b, so it keeps its state",
+			cache.newContext("a", host).getAuthCache().get(host));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void expiredStateIsDiscarded() throws Exception {
+		PrincipalHttpContextCache cache = new PrincipalHttpContextCache(10, 1);
+		cache.newContext("a", host).getAuthCache().put(host, new DigestScheme());
+		Thread.sleep(5);
+		assertNull(cache.newContext("a", host).getAuthCache().get(host));
+	}
+
+	@Test
+	public void anonymousRequestsGetNoCachedState() {
+		PrincipalHttpContextCache cache = new PrincipalHttpContextCache();
+		HttpClientContext context = cache.newContext(null, host);
+		assertNull(context.getAuthCache());
+		assertEquals(0, cache.size());
+
+		DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+		try {
+			assertNull("No credentials means no principal",
+				factory.determinePrincipal(new BasicCredentialsProvider(), host));
+
+			CredentialsProvider failing = new BasicCredentialsProvider() {
+				@Override
+				public Credentials getCredentials(AuthScope authscope) {
+					throw new IllegalStateException("No user is authenticated");
+				}
+			};
+			assertNull("A provider that can't determine the user results in an anonymous context",
+				factory.determinePrincipal(failing, host));
+		} finally {
+			factory.destroy();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.marklogic.spring.http;
+
+import com.marklogic.spring.http.proxy.HttpProxy;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Sends request bodies larger than the memory threshold through a digest challenge, which HttpClient can only answer
+ * by sending the body a second time.
+ */
+public class ReplayableRequestEntityTest extends Assert {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MarkLogicStubServer server;
+	private DefaultRestOperationsFactory factory;
+	private byte[] content;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		factory = new DefaultRestOperationsFactory();
+		content = new byte[200000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	@After
+	public void teardown() {
+		factory.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void spilledBodyIsReplayedThroughDigestChallenge() throws Exception {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		config.setStreamRequestBody(true);
+		config.setRequestBodyReplayEnabled(true);
+		config.setRequestBodyReplayMemoryThreshold(8192);
+		config.setRequestBodyReplayDirectory(folder.getRoot().getAbsolutePath());
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+		HttpProxy proxy = new HttpProxy(config, provider, factory);
+
+		MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/v1/documents");
+		request.setServletPath("/v1/documents");
+		request.setQueryString("uri=/large.txt");
+		request.setContentType("text/plain");
+		request.setContent(content);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response, "Content-Type");
+
+		assertEquals(201, response.getStatus());
+		assertEquals("The first attempt is challenged, and the body is sent again", 1, server.getChallenges());
+		assertEquals("The temporary file must be deleted once the request is done", 0, folder.getRoot().list().length);
+
+		byte[] stored = proxy.getRestOperations().getForObject(proxy.buildUri("/v1/documents", "uri=/large.txt"),
+			byte[].class);
+		assertArrayEquals("The replayed body must arrive intact", content, stored);
+	}
+
+	@Test
+	public void bodyLargerThanThresholdIsSpilledAndDeleted() throws Exception {
+		ReplayableRequestEntity entity = new ReplayableRequestEntity(
+			new InputStreamEntity(new ByteArrayInputStream(content)), 8192, folder.getRoot());
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		entity.writeTo(first);
+		assertArrayEquals(content, first.toByteArray());
+		File[] files = folder.getRoot().listFiles();
+		assertEquals(1, files.length);
+		assertEquals(content.length, files[0].length());
+
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		entity.writeTo(second);
+		assertArrayEquals(content, second.toByteArray());
+
+		entity.discard();
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void bodyWithinThresholdStaysInMemory() throws Exception {
+		byte[] small = new byte[100];
+		ReplayableRequestEntity entity = new ReplayableRequestEntity(
+			new InputStreamEntity(new ByteArrayInputStream(small)), 8192, folder.getRoot());
+		entity.writeTo(new ByteArrayOutputStream());
+		assertEquals(0, folder.getRoot().list().length);
+
+		ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+		entity.writeTo(replayed);
+		assertArrayEquals(small, replayed.toByteArray());
+		entity.discard();
+	}
+}
@@ -0,0 +1,190 @@
+package com.marklogic.spring.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ResilientExecTest extends Assert {
+
+	private final HttpRoute route = new HttpRoute(new HttpHost("localhost", 8000));
+	private final Deque<Object> outcomes = new ArrayDeque<>();
+	private int attempts;
+
+	private final ClientExecChain stub = (route, request, context, execAware) -> {
+		attempts++;
+		Object outcome = outcomes.isEmpty() ? 200 : outcomes.pop();
+		if (outcome instanceof IOException) {
+			throw (IOException) outcome;
+		}
+		return new TestResponse((Integer) outcome);
+	};
+
+	@Test
+	public void idempotentRequestsAreRetried() throws Exception {
+		ResilientExec exec = new ResilientExec(stub, 3, 0, 0, new RetryBudget(0.2), host -> null);
+
+		outcomes.addAll(Arrays.asList(503, new SocketException("Connection reset"), 200));
+		assertEquals(200, execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search"))));
+		assertEquals(3, attempts);
+
+		attempts = 0;
+		HttpPut put = new HttpPut("/v1/documents?uri=/a.json");
+		put.setEntity(new ByteArrayEntity("{}".getBytes()));
+		outcomes.addAll(Arrays.asList(503, 200));
+		assertEquals("A buffered body can be sent again", 200, execute(exec, HttpRequestWrapper.wrap(put)));
+		assertEquals(2, attempts);
+	}
+
+	@Test
+	public void unsafeRequestsAreNotRetried() throws Exception {
+		ResilientExec exec = new ResilientExec(stub, 3, 0, 0, new RetryBudget(0.2), host -> null);
+
+		outcomes.add(503);
+		assertEquals(503, execute(exec, HttpRequestWrapper.wrap(new HttpPost("/v1/search"))));
+		assertEquals(1, attempts);
+
+		attempts = 0;
+		HttpPut put = new HttpPut("/v1/documents?uri=/a.json");
+		put.setEntity(new InputStreamEntity(new ByteArrayInputStream("{}".getBytes())));
+		outcomes.add(503);
+		assertEquals("A streamed body can't be sent again", 503, execute(exec, HttpRequestWrapper.wrap(put)));
+		assertEquals(1, attempts);
+
+		attempts = 0;
+		outcomes.add(new SocketTimeoutException("Read timed out"));
+		try {
+			execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search")));
+			fail("Read timeouts should not be retried");
+		} catch (SocketTimeoutException ex) {
+			assertEquals(1, attempts);
+		}
+	}
+
+	@Test
+	public void retriesAreLimitedByBudget() throws Exception {
+		RetryBudget budget = new RetryBudget(0, 1, 1);
+		ResilientExec exec = new ResilientExec(stub, 3, 0, 0, budget, host -> null);
+
+		outcomes.addAll(Arrays.asList(503, 503, 503));
+		assertEquals(503, execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search"))));
+		assertEquals("Only one retry was in the budget", 2, attempts);
+		assertEquals(1, budget.getRetries());
+		assertEquals(1, budget.getExhausted());
+	}
+
+	@Test
+	public void circuitOpensAndRecovers() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("localhost:8000", 2, 100);
+		ResilientExec exec = new ResilientExec(stub, 0, 0, 0, new RetryBudget(0.2), host -> breaker);
+
+		outcomes.addAll(Arrays.asList(503, 502));
+		execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search")));
+		execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search")));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search")));
+			fail("Expected the open circuit to fail the request");
+		} catch (CircuitBreakerOpenException ex) {
+			assertEquals(2, attempts);
+			assertEquals(1, breaker.getRejected());
+		}
+
+		Thread.sleep(150);
+		assertEquals(200, execute(exec, HttpRequestWrapper.wrap(new HttpGet("/v1/search"))));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	/**
+	 * Goes through a real HttpClient, whose protocol chain adds cookies and default headers to the request on every
+	 * attempt; a retry must not send them twice.
+	 */
+	@Test
+	public void retriesDontAccumulateHeaders() throws Exception {
+		List<Headers> received = new CopyOnWriteArrayList<>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			received.add(exchange.getRequestHeaders());
+			exchange.sendResponseHeaders(received.size() == 1 ? 503 : 200, -1);
+			exchange.close();
+		});
+		server.start();
+
+		BasicCookieStore cookieStore = new BasicCookieStore();
+		BasicClientCookie cookie = new BasicClientCookie("session", "abc");
+		cookie.setDomain("localhost");
+		cookie.setPath("/");
+		cookieStore.addCookie(cookie);
+		CloseableHttpClient client = new HttpClientBuilder() {
+			@Override
+			protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+				return new ResilientExec(protocolExec, 3, 0, 0, new RetryBudget(0.2), host -> null);
+			}
+		}
+			.disableAutomaticRetries()
+			.setDefaultCookieStore(cookieStore)
+			.setDefaultHeaders(Collections.singletonList(new BasicHeader("X-Default", "1")))
+			.build();
+		try (CloseableHttpResponse response = client.execute(
+			new HttpGet("http://localhost:" + server.getAddress().getPort() + "/v1/search"))) {
+			assertEquals(200, response.getStatusLine().getStatusCode());
+		} finally {
+			client.close();
+			server.stop(0);
+		}
+
+		assertEquals(2, received.size());
+		for (Headers headers : received) {
+			assertEquals(1, headers.get("Cookie").size());
+			assertEquals(1, headers.get("X-Default").size());
+		}
+	}
+
+	private int execute(ResilientExec exec, HttpRequestWrapper request) throws Exception {
+		try (CloseableHttpResponse response = exec.execute(route, request, HttpClientContext.create(), null)) {
+			return response.getStatusLine().getStatusCode();
+		}
+	}
+
+	private static class TestResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+		TestResponse(int status) {
+			super(HttpVersion.HTTP_1_1, status, null);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
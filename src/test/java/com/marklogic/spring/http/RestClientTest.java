@@ -0,0 +1,119 @@
+package com.marklogic.spring.http;
+
+import com.marklogic.spring.http.proxy.HttpProxy;
+import com.marklogic.spring.http.proxy.RouteTable;
+import com.marklogic.spring.security.authentication.MarkLogicAuthenticationManager;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+/**
+ * Verifies that RestClients built from one factory share its connection pool, and that a factory created by a
+ * convenience constructor is shut down along with the object that created it.
+ */
+public class RestClientTest extends Assert {
+
+	private MarkLogicStubServer server;
+	private SimpleRestConfig config;
+	private BasicCredentialsProvider provider;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+	}
+
+	@After
+	public void teardown() {
+		server.stop();
+	}
+
+	@Test
+	public void clientsOfOneFactoryShareItsPool() {
+		DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+		try {
+			RestClient first = new RestClient(config, provider, factory);
+			RestClient second = new RestClient(config, provider, factory);
+			get(first);
+			get(second);
+			get(first);
+
+			PoolStats stats = factory.getConnectionManager(config).getTotalStats();
+			assertEquals("Each request should have reused the one pooled connection", 1, stats.getAvailable());
+			assertEquals(0, stats.getLeased());
+
+			first.destroy();
+			get(second);
+			assertNotNull("Destroying a client must not shut down a factory it was given",
+				factory.getConnectionManager(config));
+		} finally {
+			factory.destroy();
+		}
+	}
+
+	@Test
+	public void destroyShutsDownOwnedFactory() {
+		RestClient client = new RestClient(config, provider);
+		get(client);
+		client.destroy();
+		try {
+			get(client);
+			fail("The connection pool should have been shut down");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("shut down"));
+		}
+	}
+
+	@Test
+	public void httpProxyOwnsFactoryFromConvenienceConstructor() {
+		HttpProxy proxy = new HttpProxy(config, provider);
+		get(proxy);
+		proxy.destroy();
+		try {
+			get(proxy);
+			fail("The connection pool should have been shut down");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("shut down"));
+		}
+	}
+
+	@Test
+	public void routeTableDestroysFactoriesItCreated() throws Exception {
+		RouteTable routeTable = RouteTable.builder().route("/v1/**", config, provider).build();
+		HttpProxy proxy = routeTable.getRoutes().get("/v1/**");
+		get(proxy);
+		routeTable.destroy();
+		try {
+			get(proxy);
+			fail("The connection pool should have been shut down");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("shut down"));
+		}
+	}
+
+	@Test
+	public void authenticationManagerOwnsFactoryFromConvenienceConstructor() {
+		MarkLogicAuthenticationManager manager = new MarkLogicAuthenticationManager(config);
+		assertTrue(manager.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin")).isAuthenticated());
+		manager.destroy();
+		try {
+			manager.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin"));
+			fail("The connection pool should have been shut down");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("shut down"));
+		}
+	}
+
+	private void get(RestClient client) {
+		client.getRestOperations().getForObject(client.buildUri("/v1/search", "q=test"), String.class);
+	}
+}
@@ -0,0 +1,120 @@
+package com.marklogic.spring.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.web.client.RestOperations;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares RestUriBuilder with the java.net.URI constructor that RestClient has always used.
+ */
+public class RestUriBuilderTest extends Assert {
+
+	private static final List<String> PATHS = Arrays.asList(
+		null, "", "/", "/v1/search", "/v1/documents", "/v1/resources/my ext", "/a%2Fb", "/a?b#c", "/[x]/y;z",
+		"/caf\u00e9/\u00a0nbsp", "/tab\there", "/v1/graphs/sparql", "relative/path"
+	);
+
+	private static final List<String> QUERIES = Arrays.asList(
+		null, "", "q=cat", "q=cat+dog", "q=cat%20dog", "uri=/a%2Bb.json&format=json", "q=100%25",
+		"q=%25E2%2582", "q=%E2%82%AC&x=1", "q=caf%C3%A9", "q=caf%E9", "q=caf\u00e9", "a=b#frag", "a=[1]&b={2}",
+		"structuredQuery=%7B%22query%22%3A%7B%22term-query%22%3A%7B%22text%22%3A%5B%22hello+world%22%5D%7D%7D%7D",
+		"bad=%zz", "bad=%4", "bad=%", "q=%C2%A0&r=%0A", "q=%2B1", "q=+%2B+", "x=%D8%3D"
+	);
+
+	@Test
+	public void matchesUriConstructor() throws Exception {
+		for (String encoding : Arrays.asList("UTF-8", "ISO-8859-1")) {
+			for (boolean decode : new boolean[]{true, false}) {
+				SimpleRestConfig config = new SimpleRestConfig("localhost", 8003);
+				RestClient client = new RestClient(config, (RestOperations) null);
+				client.setEncoding(encoding);
+				client.setDecodeQuerystring(decode);
+				for (String path : PATHS) {
+					for (String query : QUERIES) {
+						assertSame(config, encoding, decode, client, path, query);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void randomQueries() throws Exception {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		RestClient client = new RestClient(config, (RestOperations) null);
+		String alphabet = "abcAZ09-_.!~*'();/?:@&=+$,[]{}\"<>|\\^` #%%%%\u00e9\u20ac\u00a0\u2028";
+		Random random = new Random(17);
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(30);
+			for (int j = 0; j < length; j++) {
+				char c = alphabet.charAt(random.nextInt(alphabet.length()));
+				sb.append(c);
+				if (c == '%' && random.nextBoolean()) {
+					sb.append(Integer.toHexString(random.nextInt(256) | 0x100).substring(1));
+				}
+			}
+			assertSame(config, "UTF-8", true, client, "/v1/search", sb.toString());
+		}
+	}
+
+	@Test
+	public void overriddenDecodeIsUsed() {
+		RestClient client = new RestClient(new SimpleRestConfig("localhost", 8000), (RestOperations) null) {
+			@Override
+			protected String decode(String queryString) {
+				return queryString != null ? queryString.replace("secret", "redacted") : null;
+			}
+		};
+		assertEquals("http://localhost:8000/v1/search?q=redacted",
+			client.buildUri("/v1/search", "q=secret").toString());
+	}
+
+	@Test
+	public void commonRequestsUseFastPath() throws Exception {
+		RestUriBuilder builder = new RestUriBuilder(new SimpleRestConfig("localhost", 8000));
+		assertNotNull(builder.build("/v1/search", "q=cat+dog&format=json"));
+		assertNotNull(builder.build("/v1/documents", null));
+		assertNull("Malformed escapes are left to URLDecoder", builder.build("/v1/search", "q=%zz"));
+		assertNull("Relative paths are left to the URI constructor", builder.build("v1/search", null));
+	}
+
+	@Test
+	public void prefixFollowsConfigChanges() {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		RestClient client = new RestClient(config, (RestOperations) null);
+		assertEquals("http://localhost:8000/v1/search?q=a", client.buildUri("/v1/search", "q=a").toString());
+		config.setHost("ml.example.org");
+		config.setRestPort(8443);
+		config.setScheme("https");
+		assertEquals("https://ml.example.org:8443/v1/search?q=a", client.buildUri("/v1/search", "q=a").toString());
+	}
+
+	private void assertSame(SimpleRestConfig config, String encoding, boolean decode, RestClient client, String path,
+	                        String query) {
+		String expected;
+		try {
+			String queryString = decode && query != null ? URLDecoder.decode(query, encoding) : query;
+			expected = new URI(config.getScheme(), null, config.getHost(), config.getRestPort(), path, queryString,
+				null).toString();
+		} catch (Exception ex) {
+			try {
+				client.buildUri(path, query);
+				fail("Expected failure for path " + path + " and query " + query);
+			} catch (RuntimeException ignored) {
+				// Both fail
+			}
+			return;
+		}
+		URI actual = client.buildUri(path, query);
+		String message = String.format("path: %s, query: %s, encoding: %s, decode: %s", path, query, encoding, decode);
+		assertEquals(message, expected, actual.toString());
+		assertEquals(message, URI.create(expected), actual);
+	}
+}
@@ -0,0 +1,100 @@
+package com.marklogic.spring.http;
+
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.web.client.RestOperations;
+
+import javax.net.ssl.SSLContext;
+import java.util.List;
+
+public class SslContextFactoryTest extends Assert {
+
+	private DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+
+	@After
+	public void teardown() {
+		factory.destroy();
+	}
+
+	@Test
+	public void defaultsUseJvmSslContext() {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		assertFalse(SslContextFactory.isConfigured(config));
+
+		config.setScheme("https");
+		factory.newRestOperations(config, new BasicCredentialsProvider());
+		assertNull("The JVM's default SSLContext should be used", factory.getSslContext());
+	}
+
+	@Test
+	public void sessionCacheIsConfigured() {
+		SimpleRestConfig config = newConfig();
+		SSLContext sslContext = new SslContextFactory().newSslContext(config);
+		assertEquals(50, sslContext.getClientSessionContext().getSessionCacheSize());
+		assertEquals(600, sslContext.getClientSessionContext().getSessionTimeout());
+	}
+
+	@Test
+	public void sslContextIsShared() {
+		SimpleRestConfig config = newConfig();
+		factory.newRestOperations(config, new BasicCredentialsProvider());
+		SSLContext sslContext = factory.getSslContext();
+		assertNotNull(sslContext);
+
+		factory.newRestOperations(config, new BasicCredentialsProvider());
+		assertSame("Every connection should be created from the same SSLContext so that sessions can be resumed",
+			sslContext, factory.getSslContext());
+	}
+
+	@Test
+	public void suppliedSslContextIsConfigured() throws Exception {
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, null, null);
+		factory.setSslContext(sslContext);
+		factory.newRestOperations(newConfig(), new BasicCredentialsProvider());
+
+		assertSame(sslContext, factory.getSslContext());
+		assertEquals(50, sslContext.getClientSessionContext().getSessionCacheSize());
+	}
+
+	@Test
+	public void sessionIsResumed() {
+		TlsStubServer server = new TlsStubServer().start();
+		try {
+			RestOperations restOperations = factory.newRestOperations(server.newRestConfig(),
+				new BasicCredentialsProvider());
+			String uri = "https://localhost:" + server.getPort() + "/v1/ping";
+			assertEquals("OK", restOperations.getForObject(uri, String.class));
+			assertEquals("OK", restOperations.getForObject(uri, String.class));
+
+			List<String> sessionIds = server.getSessionIds();
+			assertEquals("The server closes each connection, so each request needs a handshake", 2, sessionIds.size());
+			assertEquals("The second connection should have resumed the session of the first",
+				sessionIds.get(0), sessionIds.get(1));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void missingTrustStore() {
+		SimpleRestConfig config = newConfig();
+		config.setTrustStorePath("does-not-exist.jks");
+		try {
+			new SslContextFactory().newSslContext(config);
+			fail("Expected an error for a truststore that doesn't exist");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.getMessage().startsWith("Unable to create SSLContext"));
+		}
+	}
+
+	private SimpleRestConfig newConfig() {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		config.setScheme("https");
+		config.setSslSessionCacheSize(50);
+		config.setSslSessionTimeoutSeconds(600);
+		return config;
+	}
+}
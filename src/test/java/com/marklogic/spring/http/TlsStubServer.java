@@ -0,0 +1,112 @@
+package com.marklogic.spring.http;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal HTTPS server for testing TLS settings. It answers every request with a 200 and closes the connection, so
+ * that each request needs a new connection and thus a new handshake, and it records the ID of the TLS session of each
+ * connection; a connection that resumes a session has the same ID as the connection that established it.
+ * <p>
+ * The server's certificate is for "localhost" and is in localhost.jks, which also serves as the client's truststore.
+ * TLS 1.2 is used, as its session IDs identify resumed sessions.
+ */
+public class TlsStubServer {
+
+	public final static String KEYSTORE_PASSWORD = "changeit";
+	public final static String PROTOCOL = "TLSv1.2";
+
+	private SSLServerSocket serverSocket;
+	private final List<String> sessionIds = new CopyOnWriteArrayList<>();
+
+	public TlsStubServer start() {
+		try {
+			KeyStore keyStore = KeyStore.getInstance("JKS");
+			try (InputStream in = TlsStubServer.class.getResourceAsStream("/localhost.jks")) {
+				keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+			}
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+			SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
+			sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+			serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0);
+			serverSocket.setEnabledProtocols(new String[]{PROTOCOL});
+		} catch (Exception ex) {
+			throw new RuntimeException("Unable to start TLS stub server, cause: " + ex.getMessage(), ex);
+		}
+		Thread thread = new Thread(this::acceptConnections, "tls-stub-server");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException ex) {
+			// Nothing to do, the server is going away anyway
+		}
+	}
+
+	/**
+	 * @return a RestConfig for this server that trusts its certificate
+	 */
+	public SimpleRestConfig newRestConfig() {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", getPort());
+		config.setScheme("https");
+		config.setTrustStorePath(getKeyStorePath());
+		config.setTrustStorePassword(KEYSTORE_PASSWORD);
+		config.setSslProtocol(PROTOCOL);
+		return config;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public List<String> getSessionIds() {
+		return sessionIds;
+	}
+
+	public static String getKeyStorePath() {
+		try {
+			return new File(TlsStubServer.class.getResource("/localhost.jks").toURI()).getPath();
+		} catch (Exception ex) {
+			throw new RuntimeException("Unable to find localhost.jks, cause: " + ex.getMessage(), ex);
+		}
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+				socket.startHandshake();
+				sessionIds.add(Base64.getEncoder().encodeToString(socket.getSession().getId()));
+				BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+				String line;
+				while ((line = reader.readLine()) != null && !line.isEmpty()) {
+					// Only GET requests are expected, so there's no body to read
+				}
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n" +
+					"Connection: close\r\n\r\nOK").getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+			} catch (IOException ex) {
+				// The server was stopped, or the client went away
+			}
+		}
+	}
+}
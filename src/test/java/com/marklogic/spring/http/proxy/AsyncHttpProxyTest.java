@@ -0,0 +1,273 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.http.SimpleRestConfig;
+import com.marklogic.spring.http.TlsStubServer;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs AsyncHttpProxy as an async servlet in an embedded Jetty against MarkLogicStubServer, so that the request and
+ * response bodies are really streamed via the Servlet 3.1 listeners.
+ */
+public class AsyncHttpProxyTest extends Assert {
+
+	private MarkLogicStubServer stub;
+	private DefaultRestOperationsFactory factory;
+	private AsyncHttpProxy proxy;
+	private Server jetty;
+	private CloseableHttpClient client;
+	private String baseUrl;
+
+	private ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+	private List<String> recorded = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setup() throws Exception {
+		stub = new MarkLogicStubServer().start();
+		factory = new DefaultRestOperationsFactory();
+		client = HttpClients.createDefault();
+	}
+
+	@After
+	public void teardown() throws Exception {
+		client.close();
+		if (jetty != null) {
+			jetty.stop();
+		}
+		if (proxy != null) {
+			proxy.destroy();
+		}
+		factory.destroy();
+		stub.stop();
+	}
+
+	@Test
+	public void streamedGet() throws Exception {
+		stub.setPayloadSize(500000);
+		startProxy(stub.newRestConfig(), "admin");
+
+		HttpResponse response = client.execute(new HttpGet(baseUrl + "/v1/documents?uri=/large.json"));
+		byte[] body = EntityUtils.toByteArray(response.getEntity());
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals(500000, body.length);
+		assertTrue(new String(body, StandardCharsets.UTF_8).startsWith("{\"content\":\"abcdef"));
+		assertReleased("GET /v1/documents 200 0 500000");
+	}
+
+	@Test
+	public void putWithBody() throws Exception {
+		SimpleRestConfig config = stub.newRestConfig();
+		config.setDigestCachingEnabled(true);
+		startProxy(config, "admin");
+		// The first request is challenged, and the digest state it results in lets the PUT be sent preemptively
+		EntityUtils.consume(client.execute(new HttpGet(baseUrl + "/v1/search?q=test")).getEntity());
+
+		byte[] content = new byte[100000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+		HttpPut put = new HttpPut(baseUrl + "/v1/documents?uri=/put.txt");
+		put.setEntity(new ByteArrayEntity(content, ContentType.TEXT_PLAIN));
+		HttpResponse response = client.execute(put);
+		EntityUtils.consume(response.getEntity());
+		assertEquals(201, response.getStatusLine().getStatusCode());
+		assertReleased("PUT /v1/documents 201 100000 0");
+
+		response = client.execute(new HttpGet(baseUrl + "/v1/documents?uri=/put.txt"));
+		assertArrayEquals("The body must arrive intact", content, EntityUtils.toByteArray(response.getEntity()));
+	}
+
+	@Test
+	public void challengeIsPassedThrough() throws Exception {
+		startProxy(stub.newRestConfig(), "wrong-password");
+
+		HttpResponse response = client.execute(new HttpGet(baseUrl + "/v1/search?q=test"));
+		String body = EntityUtils.toString(response.getEntity());
+		assertEquals("Unlike HttpProxy, a 401 is passed through instead of thrown", 401,
+			response.getStatusLine().getStatusCode());
+		assertTrue(body, body.contains("SEC-AUTHNEEDED"));
+		assertReleased("GET /v1/search 401 0 " + body.length());
+	}
+
+	@Test
+	public void asyncTimeout() throws Exception {
+		stub.setLatencyMillis(3000);
+		startProxy(stub.newRestConfig(), "admin");
+		proxy.setAsyncTimeout(300);
+
+		long start = System.currentTimeMillis();
+		HttpResponse response = client.execute(new HttpGet(baseUrl + "/v1/search?q=test"));
+		EntityUtils.consume(response.getEntity());
+		assertEquals(504, response.getStatusLine().getStatusCode());
+		assertTrue("The proxy must not wait for MarkLogic", System.currentTimeMillis() - start < 2500);
+		assertReleased("GET /v1/search 504 0 0");
+	}
+
+	@Test
+	public void clientAbort() throws Exception {
+		stub.setLatencyMillis(300);
+		stub.setPayloadSize(2000000);
+		startProxy(stub.newRestConfig(), "admin");
+		proxy.setAsyncTimeout(5000);
+
+		try (Socket socket = new Socket("localhost", ((ServerConnector) jetty.getConnectors()[0]).getLocalPort())) {
+			OutputStream out = socket.getOutputStream();
+			out.write("GET /v1/documents?uri=/large.json HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			waitFor(() -> limiter.getInFlight() == 1);
+		}
+		waitFor(() -> limiter.getInFlight() == 0);
+		waitFor(() -> recorded.size() == 1);
+		assertTrue(recorded.get(0), recorded.get(0).startsWith("GET /v1/documents "));
+	}
+
+	@Test
+	public void blockingRestOperationsIsCreatedLazily() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+		proxy = new AsyncHttpProxy(stub.newRestConfig(), provider, (restConfig, credentialsProvider) -> {
+			created.incrementAndGet();
+			return factory.newRestOperations(restConfig, credentialsProvider);
+		});
+		startJetty();
+
+		EntityUtils.consume(client.execute(new HttpGet(baseUrl + "/v1/search?q=test")).getEntity());
+		assertEquals("Async requests don't need the blocking RestOperations", 0, created.get());
+
+		assertNotNull(proxy.getRestOperations());
+		assertSame(proxy.getRestOperations(), proxy.getRestOperations());
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	public void tlsSessionsAreSharedWithBlockingRequests() throws Exception {
+		TlsStubServer tlsServer = new TlsStubServer().start();
+		try {
+			SimpleRestConfig config = tlsServer.newRestConfig();
+			proxy = new AsyncHttpProxy(config, new BasicCredentialsProvider(), factory);
+			startJetty();
+
+			assertEquals("OK", proxy.getRestOperations().getForObject(proxy.buildUri("/v1/ping", null), String.class));
+			HttpResponse response = client.execute(new HttpGet(baseUrl + "/v1/ping"));
+			assertEquals("OK", EntityUtils.toString(response.getEntity()));
+
+			List<String> sessionIds = tlsServer.getSessionIds();
+			assertEquals(2, sessionIds.size());
+			assertEquals("The async request should have resumed the session of the blocking request",
+				sessionIds.get(0), sessionIds.get(1));
+		} finally {
+			tlsServer.stop();
+		}
+	}
+
+	@Test
+	public void permitIsReleasedWhenStartingFails() {
+		proxy = new AsyncHttpProxy(stub.newRestConfig(), new BasicCredentialsProvider(), factory) {
+			@Override
+			protected HttpClientContext newHttpClientContext(HttpHost target) {
+				throw new IllegalStateException("No credentials");
+			}
+		};
+		proxy.setConcurrencyLimiter(limiter);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setAsyncSupported(true);
+
+		try {
+			proxy.proxy("/v1/search", request, new MockHttpServletResponse());
+			fail("Creating the context should have failed");
+		} catch (IllegalStateException ex) {
+			assertEquals("No credentials", ex.getMessage());
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertEquals("Nothing was sent to MarkLogic, so the limit must not change", 10, limiter.getLimit());
+	}
+
+	private void startProxy(SimpleRestConfig config, String password) throws Exception {
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", password));
+		proxy = new AsyncHttpProxy(config, provider, factory);
+		proxy.setConcurrencyLimiter(limiter);
+		proxy.setMetrics(new MarkLogicMetrics() {
+			@Override
+			public void recordProxyRequest(String method, String pathTemplate, int status, long durationNanos,
+			                               long bytesIn, long bytesOut) {
+				recorded.add(method + " " + pathTemplate + " " + status + " " + bytesIn + " " + bytesOut);
+			}
+		});
+		startJetty();
+	}
+
+	private void startJetty() throws Exception {
+		jetty = new Server();
+		ServerConnector connector = new ServerConnector(jetty);
+		connector.setPort(0);
+		jetty.addConnector(connector);
+		ServletContextHandler handler = new ServletContextHandler();
+		ServletHolder holder = new ServletHolder(new HttpServlet() {
+			@Override
+			protected void service(HttpServletRequest request, HttpServletResponse response) {
+				proxy.proxy(request.getRequestURI(), request, response, "Content-Type");
+			}
+		});
+		holder.setAsyncSupported(true);
+		handler.addServlet(holder, "/*");
+		jetty.setHandler(handler);
+		jetty.start();
+		baseUrl = "http://localhost:" + connector.getLocalPort();
+	}
+
+	/**
+	 * The async context completes after the response has been sent, so the client can see the response before the
+	 * permit is released and the metrics are recorded.
+	 */
+	private void assertReleased(String lastRecorded) throws Exception {
+		waitFor(() -> limiter.getInFlight() == 0);
+		waitFor(() -> !recorded.isEmpty() && recorded.get(recorded.size() - 1).equals(lastRecorded));
+	}
+
+	private void waitFor(java.util.function.BooleanSupplier condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting; recorded: " + recorded + "; in flight: " + limiter.getInFlight());
+			}
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.DelegatingServletOutputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class ConcurrencyLimiterTest extends Assert {
+
+	@Test
+	public void limitBacksOffAndRecovers() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+		limiter.setMaxWaitMillis(0);
+		limiter.setLatencyTolerance(0);
+
+		ConcurrencyLimiter.Permit[] permits = new ConcurrencyLimiter.Permit[10];
+		for (int i = 0; i < 10; i++) {
+			permits[i] = limiter.acquire(new MockHttpServletRequest());
+			assertNotNull(permits[i]);
+		}
+		assertNull("The limit has been reached", limiter.acquire(new MockHttpServletRequest()));
+		assertEquals(1, limiter.getRejected());
+
+		for (int i = 0; i < 5; i++) {
+			permits[i].release(true);
+		}
+		assertEquals("10 * 0.9^5 = 5.9", 5, limiter.getLimit());
+		assertEquals(5, limiter.getInFlight());
+		assertNull("5 are still in flight", limiter.acquire(new MockHttpServletRequest()));
+
+		for (int i = 5; i < 10; i++) {
+			permits[i].release(false);
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertEquals("Requests that completed while using the limit raise it", 6, limiter.getLimit());
+	}
+
+	@Test
+	public void latencyIsMeasuredUntilResponseArrives() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+		ConcurrencyLimiter.Permit permit = limiter.acquire(new MockHttpServletRequest());
+		Thread.sleep(20);
+		permit.responseReceived();
+		permit.release(false);
+
+		permit = limiter.acquire(new MockHttpServletRequest());
+		permit.responseReceived();
+		Thread.sleep(100);
+		permit.release(false);
+		assertEquals("A slow client must not lower the limit", 10, limiter.getLimit());
+
+		permit = limiter.acquire(new MockHttpServletRequest());
+		Thread.sleep(100);
+		permit.responseReceived();
+		permit.release(false);
+		assertEquals("A slow response from MarkLogic lowers the limit", 9, limiter.getLimit());
+	}
+
+	@Test
+	public void cancelledPermitDoesntChangeLimit() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+		limiter.acquire(new MockHttpServletRequest());
+		ConcurrencyLimiter.Permit permit = limiter.acquire(new MockHttpServletRequest());
+		permit.cancel();
+		permit.release(true);
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void waitingRequestGetsReleasedPermit() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+		limiter.setMaxWaitMillis(5000);
+		ConcurrencyLimiter.Permit permit = limiter.acquire(new MockHttpServletRequest());
+
+		CompletableFuture<ConcurrencyLimiter.Permit> waiter =
+			CompletableFuture.supplyAsync(() -> limiter.acquire(new MockHttpServletRequest()));
+		Thread.sleep(100);
+		assertFalse(waiter.isDone());
+		permit.release(false);
+		assertNotNull(waiter.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void bulkheadLimitsEachScope() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(4);
+		limiter.setMaxWaitMillis(0);
+		limiter.setBulkheadScopeResolver(request -> request.getRemoteUser());
+
+		MockHttpServletRequest jane = new MockHttpServletRequest();
+		jane.setRemoteUser("jane");
+		MockHttpServletRequest joe = new MockHttpServletRequest();
+		joe.setRemoteUser("joe");
+
+		assertNotNull(limiter.acquire(jane));
+		assertNotNull(limiter.acquire(jane));
+		assertNull("Jane may only hold half the limit", limiter.acquire(jane));
+		assertNotNull(limiter.acquire(joe));
+		assertNotNull(limiter.acquire(joe));
+		assertNull(limiter.acquire(joe));
+	}
+
+	@Test
+	public void rejectedRequestGets503() {
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+		HttpProxy proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+		limiter.setMaxWaitMillis(0);
+		limiter.setMaxLimit(1);
+		limiter.setRetryAfterSeconds(3);
+		proxy.setConcurrencyLimiter(limiter);
+
+		server.expect(requestTo("http://localhost:8000/v1/search")).andRespond(withSuccess("{}", MediaType.APPLICATION_JSON));
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response);
+		assertEquals(200, response.getStatus());
+		assertEquals(0, limiter.getInFlight());
+
+		ConcurrencyLimiter.Permit held = limiter.acquire(new MockHttpServletRequest());
+		response = new MockHttpServletResponse();
+		proxy.proxy(request, response);
+		assertEquals(503, response.getStatus());
+		assertEquals("3", response.getHeader("Retry-After"));
+		held.release(false);
+		server.verify();
+	}
+
+	@Test
+	public void onlyUpstreamFailuresAreDrops() {
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+		HttpProxy proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+		proxy.setConcurrencyLimiter(limiter);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+
+		server.expect(requestTo("http://localhost:8000/v1/search")).andRespond(withSuccess("{}", MediaType.APPLICATION_JSON));
+		server.expect(requestTo("http://localhost:8000/v1/search")).andRespond(clientRequest -> {
+			throw new IOException("Connection refused");
+		});
+		MockHttpServletResponse abortedResponse = new MockHttpServletResponse() {
+			@Override
+			public ServletOutputStream getOutputStream() {
+				return new DelegatingServletOutputStream(new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						throw new IOException("Broken pipe");
+					}
+				});
+			}
+		};
+		try {
+			proxy.proxy(request, abortedResponse);
+			fail("Writing the body should have failed");
+		} catch (ResourceAccessException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("Broken pipe"));
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertEquals("A client going away must not lower the limit", 10, limiter.getLimit());
+
+		try {
+			proxy.proxy(request, new MockHttpServletResponse());
+			fail("Connecting to MarkLogic should have failed");
+		} catch (ResourceAccessException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("Connection refused"));
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertTrue("Not reaching MarkLogic is a drop", limiter.getLimit() < 10);
+		server.verify();
+	}
+}
@@ -0,0 +1,193 @@
+package com.marklogic.spring.http.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class DefaultResponseExtractorTest extends Assert {
+
+	private final byte[] content = new byte[20000];
+
+	{
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	@Test
+	public void statusAndHeadersAreSetBeforeBody() throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		new DefaultResponseExtractor(response, "Content-Type", "ETag").extractData(newClientResponse(HttpStatus.CREATED));
+
+		assertEquals("The status must be set before the body commits the response", 201, response.statusAtFirstWrite);
+		assertEquals(MediaType.APPLICATION_JSON_VALUE, response.contentTypeAtFirstWrite);
+		assertEquals("\"123\"", response.etagAtFirstWrite);
+		assertEquals(content.length, response.contentLengthAtFirstWrite);
+		assertArrayEquals(content, response.out.bytes.toByteArray());
+	}
+
+	@Test
+	public void contentLengthIsCopied() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		DefaultResponseExtractor extractor = new DefaultResponseExtractor(response);
+		extractor.extractData(newClientResponse(HttpStatus.OK));
+		assertEquals(String.valueOf(content.length), response.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertEquals(content.length, extractor.getBytesCopied());
+
+		response = new MockHttpServletResponse();
+		extractor = new DefaultResponseExtractor(response);
+		extractor.setCopyContentLength(false);
+		extractor.extractData(newClientResponse(HttpStatus.OK));
+		assertNull(response.getHeader(HttpHeaders.CONTENT_LENGTH));
+	}
+
+	@Test
+	public void streamsAreNotClosed() throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		TrackingInputStream body = new TrackingInputStream(content);
+		MockClientHttpResponse clientResponse = new MockClientHttpResponse(body, HttpStatus.OK);
+		new DefaultResponseExtractor(response).extractData(clientResponse);
+
+		assertFalse("Anything after the proxy must still be able to write to the response", response.out.closed);
+		assertFalse("RestTemplate closes the client response", body.closed);
+		assertEquals(0, response.out.flushes);
+	}
+
+	@Test
+	public void flushedAfterThreshold() throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		DefaultResponseExtractor extractor = new DefaultResponseExtractor(response);
+		extractor.setBufferPool(new BufferPool(1000, 1));
+		extractor.setFlushThresholdBytes(5000);
+		extractor.extractData(newClientResponse(HttpStatus.OK));
+
+		assertEquals(4, response.out.flushes);
+		assertArrayEquals(content, response.out.bytes.toByteArray());
+	}
+
+	@Test
+	public void flushedAfterInterval() throws Exception {
+		RecordingResponse response = new RecordingResponse();
+		DefaultResponseExtractor extractor = new DefaultResponseExtractor(response);
+		extractor.setBufferPool(new BufferPool(1000, 1));
+		extractor.setFlushIntervalMillis(1);
+		MockClientHttpResponse clientResponse = new MockClientHttpResponse(new ByteArrayInputStream(content) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return super.read(b, off, len);
+			}
+		}, HttpStatus.OK);
+		extractor.extractData(clientResponse);
+
+		assertEquals("Each read takes longer than the interval", 20, response.out.flushes);
+	}
+
+	private MockClientHttpResponse newClientResponse(HttpStatus status) {
+		MockClientHttpResponse response = new MockClientHttpResponse(content, status);
+		response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+		response.getHeaders().setContentLength(content.length);
+		response.getHeaders().setETag("\"123\"");
+		return response;
+	}
+
+	private static class RecordingResponse extends HttpServletResponseWrapper {
+
+		private final RecordingOutputStream out = new RecordingOutputStream(this);
+		private int statusAtFirstWrite = -1;
+		private String contentTypeAtFirstWrite;
+		private String etagAtFirstWrite;
+		private long contentLengthAtFirstWrite = -1;
+
+		RecordingResponse() {
+			super(new MockHttpServletResponse());
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return out;
+		}
+
+		void firstWrite() {
+			statusAtFirstWrite = getStatus();
+			contentTypeAtFirstWrite = getHeader(HttpHeaders.CONTENT_TYPE);
+			etagAtFirstWrite = getHeader(HttpHeaders.ETAG);
+			String contentLength = getHeader(HttpHeaders.CONTENT_LENGTH);
+			contentLengthAtFirstWrite = contentLength != null ? Long.parseLong(contentLength) : -1;
+		}
+	}
+
+	private static class RecordingOutputStream extends ServletOutputStream {
+
+		private final RecordingResponse response;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int flushes;
+		private boolean closed;
+
+		RecordingOutputStream(RecordingResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (bytes.size() == 0) {
+				response.firstWrite();
+			}
+			bytes.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			flushes++;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+	}
+
+	private static class TrackingInputStream extends ByteArrayInputStream {
+
+		private boolean closed;
+
+		TrackingInputStream(byte[] buf) {
+			super(buf);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+}
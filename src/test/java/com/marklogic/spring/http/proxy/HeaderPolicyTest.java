@@ -0,0 +1,140 @@
+package com.marklogic.spring.http.proxy;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Arrays;
+
+public class HeaderPolicyTest extends Assert {
+
+	@Test
+	public void excludeRequestHeaders() {
+		HeaderPolicy policy = HeaderPolicy.builder()
+			.excludeRequestHeaders("cookie")
+			.renameRequestHeader("X-Format", "X-ML-Format")
+			.addForwardedHeaders()
+			.via("1.1 proxy")
+			.build();
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.addHeader("Accept", "application/json");
+		request.addHeader("Cookie", "session=1");
+		request.addHeader("Connection", "keep-alive, X-Secret");
+		request.addHeader("X-Secret", "hidden");
+		request.addHeader("Transfer-Encoding", "chunked");
+		request.addHeader("Host", "example.org");
+		request.addHeader("Authorization", "Basic abc");
+		request.addHeader("X-Format", "json");
+		request.addHeader("X-Forwarded-For", "10.0.0.1");
+		request.setRemoteAddr("10.0.0.2");
+
+		HttpHeaders headers = new HttpHeaders();
+		policy.applyToRequest(request, headers);
+
+		assertEquals("application/json", headers.getFirst("Accept"));
+		assertEquals("json", headers.getFirst("X-ML-Format"));
+		assertEquals(Arrays.asList("10.0.0.1, 10.0.0.2"), headers.get("X-Forwarded-For"));
+		assertEquals("http", headers.getFirst("X-Forwarded-Proto"));
+		assertEquals("example.org", headers.getFirst("X-Forwarded-Host"));
+		assertEquals("1.1 proxy", headers.getFirst("Via"));
+		for (String name : Arrays.asList("Cookie", "Connection", "X-Secret", "Transfer-Encoding", "Host", "Authorization",
+			"X-Format")) {
+			assertFalse(name, headers.containsKey(name));
+		}
+	}
+
+	@Test
+	public void includeResponseHeaders() {
+		HeaderPolicy policy = HeaderPolicy.builder()
+			.includeResponseHeaders("content-type", "ETag")
+			.rewriteResponseHeader("Location", value -> value.replace("http://ml:8000", "/api"))
+			.build();
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("Content-Type", "application/json");
+		headers.add("ETag", "\"1\"");
+		headers.add("Location", "http://ml:8000/v1/documents?uri=/a.json");
+		headers.add("Server", "MarkLogic");
+		headers.add("Content-Length", "10");
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		policy.applyToResponse(headers, response);
+
+		assertEquals("application/json", response.getHeader("Content-Type"));
+		assertEquals("\"1\"", response.getHeader("ETag"));
+		assertEquals("/api/v1/documents?uri=/a.json", response.getHeader("Location"));
+		assertNull(response.getHeader("Server"));
+		assertNull(response.getHeader("Content-Length"));
+
+		HttpHeaders filtered = policy.filterResponse(headers);
+		assertEquals(3, filtered.size());
+		assertEquals("/api/v1/documents?uri=/a.json", filtered.getFirst("Location"));
+	}
+
+	@Test
+	public void httpClientResponse() {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		response.addHeader("Content-Type", "application/json");
+		response.addHeader("Set-Cookie", "a=1");
+		response.addHeader("Set-Cookie", "b=2");
+		response.addHeader("Server", "MarkLogic");
+		response.addHeader("Keep-Alive", "timeout=5");
+
+		MockHttpServletResponse httpResponse = new MockHttpServletResponse();
+		HeaderPolicy.builder().excludeResponseHeaders("server").build().applyToResponse(response, httpResponse);
+		assertEquals("application/json", httpResponse.getHeader("Content-Type"));
+		assertEquals(Arrays.asList("a=1", "b=2"), httpResponse.getHeaders("Set-Cookie"));
+		assertNull(httpResponse.getHeader("Server"));
+		assertNull(httpResponse.getHeader("Keep-Alive"));
+
+		httpResponse = new MockHttpServletResponse();
+		HeaderPolicy.builder().includeResponseHeaders("set-cookie").renameResponseHeader("Server", "X-Server").build()
+			.applyToResponse(response, httpResponse);
+		assertEquals(Arrays.asList("a=1", "b=2"), httpResponse.getHeaders("Set-Cookie"));
+		assertEquals("MarkLogic", httpResponse.getHeader("X-Server"));
+		assertNull(httpResponse.getHeader("Content-Type"));
+	}
+
+	@Test
+	public void alsoCopying() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.addHeader("Accept", "application/json");
+		request.addHeader("Accept-Encoding", "gzip");
+		request.addHeader("Cookie", "session=1");
+
+		HeaderPolicy included = HeaderPolicy.builder().includeRequestHeaders("Accept").build();
+		HttpHeaders headers = new HttpHeaders();
+		included.alsoCopying("Accept-Encoding", "Connection").applyToRequest(request, headers);
+		assertEquals(2, headers.size());
+		assertEquals("gzip", headers.getFirst("Accept-Encoding"));
+
+		HeaderPolicy excluded = HeaderPolicy.builder().excludeRequestHeaders("Accept-Encoding", "Cookie").build();
+		headers = new HttpHeaders();
+		excluded.alsoCopying("Accept-Encoding").applyToRequest(request, headers);
+		assertEquals(2, headers.size());
+		assertEquals("gzip", headers.getFirst("Accept-Encoding"));
+		assertFalse(headers.containsKey("Cookie"));
+
+		headers = new HttpHeaders();
+		included.applyToRequest(request, headers);
+		assertFalse("The original policy is unchanged", headers.containsKey("Accept-Encoding"));
+	}
+
+	@Test
+	public void requestKey() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.addHeader("Accept", "application/json");
+		request.addHeader("Accept-Language", "en");
+		request.addHeader("Accept-Language", "fr");
+		request.addHeader("Host", "example.org");
+
+		StringBuilder key = new StringBuilder("GET");
+		HeaderPolicy.builder().addForwardedHeaders().build().appendRequestKey(request, key);
+		assertEquals("GET\nAccept:application/json\nAccept-Language:en\nAccept-Language:fr", key.toString());
+	}
+}
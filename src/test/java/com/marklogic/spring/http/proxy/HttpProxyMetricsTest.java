@@ -0,0 +1,103 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import com.marklogic.spring.metrics.MarkLogicMetrics;
+import com.marklogic.spring.metrics.MicrometerMarkLogicMetrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class HttpProxyMetricsTest extends Assert {
+
+	private MockRestServiceServer server;
+	private HttpProxy proxy;
+	private List<String> recorded = new ArrayList<>();
+
+	@Before
+	public void setup() {
+		RestTemplate restTemplate = new RestTemplate();
+		server = MockRestServiceServer.bindTo(restTemplate).build();
+		proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		proxy.setMetrics(new MarkLogicMetrics() {
+			@Override
+			public void recordProxyRequest(String method, String pathTemplate, int status, long durationNanos,
+			                               long bytesIn, long bytesOut) {
+				assertTrue(durationNanos > 0);
+				recorded.add(method + " " + pathTemplate + " " + status + " " + bytesIn + " " + bytesOut);
+			}
+		});
+	}
+
+	@Test
+	public void requestIsRecorded() {
+		server.expect(requestTo("http://localhost:8000/v1/documents/abc?uri=/test.json")).andExpect(method(HttpMethod.PUT))
+			.andRespond(withSuccess("hello", MediaType.TEXT_PLAIN));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/v1/documents/abc");
+		request.setServletPath("/v1/documents/abc");
+		request.setQueryString("uri=/test.json");
+		request.setContent("{\"a\":1}".getBytes());
+		proxy.proxy(request, new MockHttpServletResponse(), "Content-Type");
+
+		server.verify();
+		assertEquals(1, recorded.size());
+		assertEquals("PUT /v1/documents/* 200 7 5", recorded.get(0));
+	}
+
+	@Test
+	public void errorStatusIsRecorded() {
+		server.expect(requestTo("http://localhost:8000/v1/search")).andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+		try {
+			proxy.proxy(request, new MockHttpServletResponse(), "Accept");
+			fail("Expected the 404 to be thrown by the RestTemplate error handler");
+		} catch (HttpClientErrorException ex) {
+			// Expected
+		}
+
+		assertEquals("GET /v1/search 404 0 0", recorded.get(0));
+	}
+
+	@Test
+	public void pathTemplate() {
+		assertEquals("/", proxy.toPathTemplate(""));
+		assertEquals("/v1", proxy.toPathTemplate("/v1"));
+		assertEquals("/v1/documents", proxy.toPathTemplate("/v1/documents/"));
+		assertEquals("/v1/resources/*", proxy.toPathTemplate("/v1/resources/example/more"));
+	}
+
+	@Test
+	public void micrometer() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		MicrometerMarkLogicMetrics metrics = new MicrometerMarkLogicMetrics(registry);
+		metrics.recordProxyRequest("GET", "/v1/search", 200, 1000000, 0, 100);
+		metrics.recordProxyRequest("GET", "/v1/search", 200, 3000000, 0, 300);
+		metrics.recordProxyRequest("GET", "/v1/search", 500, 1000000, 0, -1);
+
+		Timer timer = registry.find("marklogic.proxy.requests").tags("method", "GET", "path", "/v1/search", "status", "200").timer();
+		assertEquals(2, timer.count());
+		assertEquals(1, registry.find("marklogic.proxy.requests").tag("status", "500").timer().count());
+		assertEquals(400, registry.find("marklogic.proxy.bytes.out").summary().totalAmount(), 0);
+		assertEquals(2, registry.find("marklogic.proxy.bytes.out").summary().count());
+	}
+}
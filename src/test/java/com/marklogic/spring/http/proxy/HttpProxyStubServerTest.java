@@ -0,0 +1,134 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.AuthSchemeDiscovery;
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs HttpProxy against MarkLogicStubServer, which - unlike HttpProxyTest - doesn't need a live MarkLogic, and can
+ * count the authentication challenges that digest caching is meant to avoid.
+ */
+public class HttpProxyStubServerTest extends Assert {
+
+	private MarkLogicStubServer server;
+	private DefaultRestOperationsFactory factory;
+	private AuthSchemeDiscovery discovery;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		discovery = new AuthSchemeDiscovery();
+		factory = new DefaultRestOperationsFactory();
+		factory.setAuthSchemeDiscovery(discovery);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		factory.destroy();
+		discovery.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void digestCachingAvoidsChallenges() throws Exception {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(true);
+		HttpProxy proxy = newHttpProxy(config);
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(200, proxy("/v1/search", "q=test", proxy).getStatus());
+		}
+		assertEquals("Only the first request should be challenged", 1, server.getChallenges());
+	}
+
+	@Test
+	public void everyRequestIsChallengedWithoutDigestCaching() throws Exception {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		HttpProxy proxy = newHttpProxy(config);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(200, proxy("/v1/search", "q=test", proxy).getStatus());
+		}
+		assertEquals(3, server.getChallenges());
+	}
+
+	@Test
+	public void staleNonceIsRenewed() throws Exception {
+		server.setNonceTimeoutMillis(50);
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(true);
+		HttpProxy proxy = newHttpProxy(config);
+
+		assertEquals(200, proxy("/v1/search", null, proxy).getStatus());
+		Thread.sleep(100);
+		assertEquals(200, proxy("/v1/search", null, proxy).getStatus());
+		assertEquals(2, server.getChallenges());
+	}
+
+	@Test
+	public void preemptiveBasicAuth() throws Exception {
+		server.setAuthentication(MarkLogicStubServer.Authentication.BASIC);
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		config.setPreemptiveBasicAuth(true);
+		HttpProxy proxy = newHttpProxy(config);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(200, proxy("/v1/documents", "uri=/a.json", proxy).getStatus());
+		}
+		assertEquals(0, server.getChallenges());
+	}
+
+	@Test
+	public void multipartDocuments() throws Exception {
+		server.setPayloadSize(100);
+		server.putDocument("/b.xml", "application/xml", "<b/>".getBytes("UTF-8"));
+		HttpProxy proxy = newHttpProxy(server.newRestConfig());
+
+		MockHttpServletRequest request = newRequest("/v1/documents", "uri=/a.json&uri=/b.xml");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy("/v1/documents", request, response, new DefaultRequestCallback(request),
+			new MultipartJsonResponseExtractor(response, MultipartJsonResponseExtractor.Format.NDJSON, "Content-Type"));
+
+		String[] lines = response.getContentAsString().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].startsWith("{\"uri\":\"/a.json\",\"contentType\":\"application/json\""));
+		assertEquals("{\"uri\":\"/b.xml\",\"contentType\":\"application/xml\",\"content\":\"<b/>\"}", lines[1]);
+	}
+
+	private HttpProxy newHttpProxy(SimpleRestConfig config) throws Exception {
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+		HttpProxy proxy = new HttpProxy(config, provider, factory);
+		// Wait for discovery so that the first request already uses the discovered scheme
+		discovery.discover("http", "localhost", server.getPort()).get(5, TimeUnit.SECONDS);
+		server.resetCounts();
+		return proxy;
+	}
+
+	private MockHttpServletResponse proxy(String path, String query, HttpProxy proxy) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(newRequest(path, query), response);
+		return response;
+	}
+
+	private MockHttpServletRequest newRequest(String path, String query) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+		request.setServletPath(path);
+		request.setQueryString(query);
+		return request;
+	}
+}
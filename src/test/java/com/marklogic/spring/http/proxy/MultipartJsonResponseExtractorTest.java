@@ -0,0 +1,169 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class MultipartJsonResponseExtractorTest extends Assert {
+
+	private final static String URI = "http://localhost:8000/v1/documents?uri=/a.json&uri=/b.xml";
+
+	private final static String MULTIPART = "--BOUNDARY\r\n" +
+		"Content-Type: application/json\r\n" +
+		"Content-Disposition: attachment; filename=\"/a.json\"; category=content; format=json\r\n" +
+		"\r\n" +
+		"{\r\n  \"a\": 1\r\n}\r\n" +
+		"--BOUNDARY\r\n" +
+		"Content-Type: application/xml\r\n" +
+		"Content-Disposition: attachment; filename=\"/b.xml\"; category=content; format=xml\r\n" +
+		"\r\n" +
+		"<b attr=\"x\">\n\tcaf\u00e9</b>\r\n" +
+		"--BOUNDARY\r\n" +
+		"Content-Type: application/octet-stream\r\n" +
+		"Content-Disposition: attachment; filename=\"/c.bin\"\r\n" +
+		"\r\n" +
+		"abc\r\n" +
+		"--BOUNDARY--\r\n";
+
+	private MockRestServiceServer server;
+	private HttpProxy proxy;
+
+	@Before
+	public void setup() {
+		RestTemplate restTemplate = new RestTemplate();
+		server = MockRestServiceServer.bindTo(restTemplate).build();
+		proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+	}
+
+	@Test
+	public void ndjson() throws Exception {
+		MockHttpServletResponse response = proxy(MultipartJsonResponseExtractor.Format.NDJSON);
+
+		assertEquals("application/x-ndjson", response.getContentType());
+		String[] lines = new String(response.getContentAsByteArray(), "UTF-8").split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("{\"uri\":\"/a.json\",\"contentType\":\"application/json\",\"content\":{    \"a\": 1  }}", lines[0]);
+		assertEquals("{\"uri\":\"/b.xml\",\"contentType\":\"application/xml\",\"content\":\"<b attr=\\\"x\\\">\\n\\tcaf\u00e9</b>\"}",
+			lines[1]);
+		assertEquals("{\"uri\":\"/c.bin\",\"contentType\":\"application/octet-stream\",\"encoding\":\"base64\",\"content\":\"YWJj\"}",
+			lines[2]);
+	}
+
+	@Test
+	public void jsonArray() throws Exception {
+		MockHttpServletResponse response = proxy(MultipartJsonResponseExtractor.Format.JSON_ARRAY);
+
+		String content = response.getContentAsString();
+		assertTrue(content.startsWith("[{\"uri\":\"/a.json\""));
+		assertTrue(content.contains("}},{\"uri\":\"/b.xml\""));
+		assertTrue(content.endsWith("\"YWJj\"}]"));
+	}
+
+	@Test
+	public void nonMultipartResponseIsCopied() throws Exception {
+		server.expect(requestTo(URI)).andRespond(withSuccess("{\"a\":1}", MediaType.APPLICATION_JSON));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy("/v1/documents", newRequest(), response, new DefaultRequestCallback(newRequest()),
+			new MultipartJsonResponseExtractor(response, MultipartJsonResponseExtractor.Format.NDJSON, "Content-Type"));
+
+		assertEquals("application/json", response.getContentType());
+		assertEquals("{\"a\":1}", response.getContentAsString());
+	}
+
+	@Test
+	public void textIsDecodedPerItsCharset() throws Exception {
+		ByteArrayOutputStream multipart = new ByteArrayOutputStream();
+		multipart.write(("--BOUNDARY\r\n" +
+			"Content-Type: text/plain; charset=ISO-8859-1\r\n" +
+			"Content-Disposition: attachment; filename=\"/a.txt\"\r\n" +
+			"\r\n").getBytes("UTF-8"));
+		multipart.write("\"caf\u00e9\"\n".getBytes("ISO-8859-1"));
+		multipart.write("\r\n--BOUNDARY--\r\n".getBytes("UTF-8"));
+
+		String[] lines = proxy(multipart.toByteArray(), MultipartJsonResponseExtractor.Format.NDJSON);
+		assertEquals("{\"uri\":\"/a.txt\",\"contentType\":\"text/plain;charset=ISO-8859-1\"," +
+			"\"content\":\"\\\"caf\u00e9\\\"\\n\"}", lines[0]);
+	}
+
+	@Test
+	public void emptyJsonIsNull() throws Exception {
+		String multipart = "--BOUNDARY\r\n" +
+			"Content-Type: application/json\r\n" +
+			"Content-Disposition: attachment; filename=\"/empty.json\"\r\n" +
+			"\r\n" +
+			"\r\n" +
+			"--BOUNDARY--\r\n";
+
+		String[] lines = proxy(multipart.getBytes("UTF-8"), MultipartJsonResponseExtractor.Format.NDJSON);
+		assertEquals("{\"uri\":\"/empty.json\",\"contentType\":\"application/json\",\"content\":null}", lines[0]);
+	}
+
+	@Test
+	public void headerPolicyIsApplied() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add("X-Internal", "secret");
+		headers.add("X-Page", "1");
+		headers.add("Vary", "Accept");
+		server.expect(requestTo(URI))
+			.andRespond(withSuccess(MULTIPART.getBytes("UTF-8"), MediaType.parseMediaType("multipart/mixed; boundary=BOUNDARY"))
+				.headers(headers));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MultipartJsonResponseExtractor extractor = new MultipartJsonResponseExtractor(response,
+			MultipartJsonResponseExtractor.Format.NDJSON, "Content-Type", "X-Internal");
+		extractor.setHeaderPolicy(HeaderPolicy.builder()
+			.excludeResponseHeaders("X-Internal")
+			.renameResponseHeader("X-Page", "X-Result-Page")
+			.build());
+		proxy.proxy("/v1/documents", newRequest(), response, new DefaultRequestCallback(newRequest()), extractor);
+		server.verify();
+
+		assertEquals("application/x-ndjson", response.getContentType());
+		assertNull(response.getHeader("X-Internal"));
+		assertNull(response.getHeader("X-Page"));
+		assertEquals("1", response.getHeader("X-Result-Page"));
+		assertEquals("Accept", response.getHeader("Vary"));
+		assertEquals(1, response.getHeaders("Content-Type").size());
+	}
+
+	private String[] proxy(byte[] multipart, MultipartJsonResponseExtractor.Format format) throws Exception {
+		server.expect(requestTo(URI))
+			.andRespond(withSuccess(multipart, MediaType.parseMediaType("multipart/mixed; boundary=BOUNDARY")));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy("/v1/documents", newRequest(), response, new DefaultRequestCallback(newRequest()),
+			new MultipartJsonResponseExtractor(response, format, "Content-Type"));
+		server.verify();
+		return new String(response.getContentAsByteArray(), "UTF-8").split("\n");
+	}
+
+	private MockHttpServletResponse proxy(MultipartJsonResponseExtractor.Format format) throws Exception {
+		server.expect(requestTo(URI))
+			.andRespond(withSuccess(MULTIPART.getBytes("UTF-8"), MediaType.parseMediaType("multipart/mixed; boundary=BOUNDARY")));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy("/v1/documents", newRequest(), response, new DefaultRequestCallback(newRequest()),
+			new MultipartJsonResponseExtractor(response, format, "Content-Type"));
+		server.verify();
+		return response;
+	}
+
+	private MockHttpServletRequest newRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/documents");
+		request.setQueryString("uri=/a.json&uri=/b.xml");
+		return request;
+	}
+}
@@ -0,0 +1,223 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.AuthSchemeDiscovery;
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives HttpProxy, deployed as a servlet in an embedded Jetty, against a MarkLogicStubServer at a fixed concurrency,
+ * and reports throughput and latency percentiles as seen by the clients of the proxy. Run it via "gradle loadTest",
+ * passing settings as project properties - e.g. -Pload.concurrency=64 -Pload.requests=100000 -Pload.latencyMillis=5 -
+ * which the task passes on as system properties; see Options.fromSystemProperties for the full list.
+ * <p>
+ * The harness is meant for comparing changes to the proxy on the same machine, not for absolute numbers - the stub,
+ * Jetty, and the load generator all share the machine's CPUs.
+ */
+public class ProxyLoadHarness {
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.fromSystemProperties();
+		System.out.println("Running load test with " + options);
+		System.out.println(new ProxyLoadHarness().run(options));
+	}
+
+	public LoadReport run(Options options) throws Exception {
+		MarkLogicStubServer stub = new MarkLogicStubServer();
+		stub.setAuthentication(options.authentication);
+		stub.setLatencyMillis(options.latencyMillis);
+		stub.setPayloadSize(options.payloadSize);
+		stub.start();
+
+		AuthSchemeDiscovery discovery = new AuthSchemeDiscovery();
+		DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+		factory.setAuthSchemeDiscovery(discovery);
+		Server jetty = null;
+		try {
+			SimpleRestConfig config = stub.newRestConfig();
+			config.setDigestCachingEnabled(options.digestCaching);
+			config.setMaxConnectionsPerRoute(options.concurrency);
+			config.setMaxConnectionsTotal(options.concurrency);
+			BasicCredentialsProvider provider = new BasicCredentialsProvider();
+			provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+			HttpProxy proxy = new HttpProxy(config, provider, factory);
+			discovery.discover("http", "localhost", stub.getPort()).get(5, TimeUnit.SECONDS);
+
+			jetty = startJetty(proxy, options.concurrency);
+			int port = ((ServerConnector) jetty.getConnectors()[0]).getLocalPort();
+			String url = "http://localhost:" + port + options.path;
+
+			try (CloseableHttpClient client = HttpClients.custom()
+				.setMaxConnPerRoute(options.concurrency)
+				.setMaxConnTotal(options.concurrency)
+				.build()) {
+				generateLoad(client, url, options.concurrency, options.warmupRequests);
+				stub.resetCounts();
+				LoadReport report = generateLoad(client, url, options.concurrency, options.requests);
+				report.challenges = stub.getChallenges();
+				return report;
+			}
+		} finally {
+			if (jetty != null) {
+				jetty.stop();
+			}
+			factory.destroy();
+			discovery.destroy();
+			stub.stop();
+		}
+	}
+
+	protected Server startJetty(HttpProxy proxy, int concurrency) throws Exception {
+		Server server = new Server(new QueuedThreadPool(Math.max(concurrency * 2, 16)));
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.addServlet(new ServletHolder(new HttpServlet() {
+			@Override
+			protected void service(HttpServletRequest request, HttpServletResponse response) {
+				proxy.proxy(request.getRequestURI(), request, response);
+			}
+		}), "/*");
+		server.setHandler(handler);
+		server.start();
+		return server;
+	}
+
+	protected LoadReport generateLoad(CloseableHttpClient client, String url, int concurrency, int requests)
+		throws Exception {
+		long[] latencies = new long[requests];
+		AtomicInteger next = new AtomicInteger();
+		AtomicLong errors = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		List<Future<?>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < concurrency; i++) {
+				futures.add(executor.submit(() -> {
+					for (int index = next.getAndIncrement(); index < requests; index = next.getAndIncrement()) {
+						long requestStart = System.nanoTime();
+						try {
+							HttpResponse response = client.execute(new HttpGet(url));
+							EntityUtils.consume(response.getEntity());
+							if (response.getStatusLine().getStatusCode() >= 400) {
+								errors.incrementAndGet();
+							}
+						} catch (Exception ex) {
+							errors.incrementAndGet();
+						}
+						latencies[index] = System.nanoTime() - requestStart;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return new LoadReport(latencies, errors.get(), System.nanoTime() - start);
+	}
+
+	public static class Options {
+		int concurrency = 16;
+		int requests = 10000;
+		int warmupRequests = 1000;
+		String path = "/v1/search?q=test";
+		long latencyMillis = 0;
+		int payloadSize = 1024;
+		MarkLogicStubServer.Authentication authentication = MarkLogicStubServer.Authentication.DIGEST;
+		boolean digestCaching = true;
+
+		/**
+		 * Reads load.concurrency, load.requests, load.warmupRequests, load.path, load.latencyMillis,
+		 * load.payloadSize, load.authentication, and load.digestCaching.
+		 */
+		public static Options fromSystemProperties() {
+			Options options = new Options();
+			options.concurrency = Integer.getInteger("load.concurrency", options.concurrency);
+			options.requests = Integer.getInteger("load.requests", options.requests);
+			options.warmupRequests = Integer.getInteger("load.warmupRequests", options.warmupRequests);
+			options.path = System.getProperty("load.path", options.path);
+			options.latencyMillis = Long.getLong("load.latencyMillis", options.latencyMillis);
+			options.payloadSize = Integer.getInteger("load.payloadSize", options.payloadSize);
+			options.authentication = MarkLogicStubServer.Authentication.valueOf(
+				System.getProperty("load.authentication", options.authentication.name()).toUpperCase());
+			options.digestCaching = Boolean.parseBoolean(
+				System.getProperty("load.digestCaching", String.valueOf(options.digestCaching)));
+			return options;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("concurrency=%d, requests=%d, warmupRequests=%d, path=%s, latencyMillis=%d, " +
+					"payloadSize=%d, authentication=%s, digestCaching=%s", concurrency, requests, warmupRequests, path,
+				latencyMillis, payloadSize, authentication, digestCaching);
+		}
+	}
+
+	public static class LoadReport {
+		final long requests;
+		final long errors;
+		final long elapsedNanos;
+		final long[] sortedLatencies;
+		long challenges;
+
+		LoadReport(long[] latencies, long errors, long elapsedNanos) {
+			this.requests = latencies.length;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+			this.sortedLatencies = latencies.clone();
+			Arrays.sort(sortedLatencies);
+		}
+
+		public double getThroughput() {
+			return requests / (elapsedNanos / 1e9);
+		}
+
+		/**
+		 * @param percentile e.g. 0.99
+		 * @return the latency in milliseconds that the given fraction of requests completed within
+		 */
+		public double getLatencyMillis(double percentile) {
+			if (sortedLatencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+			return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("requests=%d, errors=%d, challenges=%d, throughput=%.1f/s, p50=%.2fms, p99=%.2fms, " +
+					"p999=%.2fms, max=%.2fms", requests, errors, challenges, getThroughput(), getLatencyMillis(0.5),
+				getLatencyMillis(0.99), getLatencyMillis(0.999), getLatencyMillis(1));
+		}
+	}
+}
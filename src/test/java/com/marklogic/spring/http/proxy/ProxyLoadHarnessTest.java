@@ -0,0 +1,25 @@
+package com.marklogic.spring.http.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs a short load test so that the harness itself doesn't break unnoticed; the numbers aren't checked.
+ */
+public class ProxyLoadHarnessTest extends Assert {
+
+	@Test
+	public void smallLoad() throws Exception {
+		ProxyLoadHarness.Options options = new ProxyLoadHarness.Options();
+		options.concurrency = 4;
+		options.requests = 200;
+		options.warmupRequests = 20;
+
+		ProxyLoadHarness.LoadReport report = new ProxyLoadHarness().run(options);
+		assertEquals(200, report.requests);
+		assertEquals(0, report.errors);
+		assertTrue(report.getThroughput() > 0);
+		assertTrue(report.getLatencyMillis(0.5) <= report.getLatencyMillis(0.99));
+		assertTrue(report.getLatencyMillis(0.99) <= report.getLatencyMillis(0.999));
+	}
+}
@@ -0,0 +1,156 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class ProxyResponseCacheTest extends Assert {
+
+	private final static String URI = "http://localhost:8000/v1/documents?uri=/test.json";
+
+	private MockRestServiceServer server;
+	private HttpProxy proxy;
+	private ProxyResponseCache cache;
+
+	@Before
+	public void setup() {
+		RestTemplate restTemplate = new RestTemplate();
+		server = MockRestServiceServer.bindTo(restTemplate).build();
+		proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		cache = new ProxyResponseCache();
+		proxy.setResponseCache(cache);
+	}
+
+	@Test
+	public void staleResponseIsRevalidated() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		server.expect(requestTo(URI))
+			.andRespond(withSuccess("{\"hello\":\"world\"}", MediaType.APPLICATION_JSON).headers(headers));
+		server.expect(requestTo(URI)).andExpect(header("If-None-Match", "\"v1\""))
+			.andRespond(withStatus(HttpStatus.NOT_MODIFIED).headers(headers));
+
+		MockHttpServletResponse first = get(null, "Content-Type", "ETag");
+		MockHttpServletResponse second = get(null, "Content-Type", "ETag");
+
+		server.verify();
+		assertEquals(200, first.getStatus());
+		assertEquals(200, second.getStatus());
+		assertEquals("{\"hello\":\"world\"}", second.getContentAsString());
+		assertEquals("application/json", second.getHeader("Content-Type"));
+		assertEquals("\"v1\"", second.getHeader("ETag"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getRevalidations());
+	}
+
+	@Test
+	public void validatorsAreOnlySentWhenCopied() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		headers.set(HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+		headers.setCacheControl("max-age=60");
+		server.expect(requestTo(URI)).andRespond(withSuccess("hello", MediaType.TEXT_PLAIN).headers(headers));
+
+		MockHttpServletResponse first = get(null);
+		MockHttpServletResponse cached = get(null);
+		server.verify();
+		assertEquals(1, cache.getHits());
+		assertNull(first.getHeader("ETag"));
+		assertNull("A cached response must not expose headers that the proxied one didn't", cached.getHeader("ETag"));
+		assertNull(cached.getHeader("Last-Modified"));
+
+		cached = get(null, "Content-Type", "Last-Modified");
+		assertNull(cached.getHeader("ETag"));
+		assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", cached.getHeader("Last-Modified"));
+
+		proxy.setHeaderPolicy(HeaderPolicy.builder().includeResponseHeaders("Content-Type", "ETag").build());
+		cached = get(null);
+		assertEquals("\"v1\"", cached.getHeader("ETag"));
+		assertNull(cached.getHeader("Last-Modified"));
+	}
+
+	@Test
+	public void freshResponseIsServedWithoutMarkLogic() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		headers.setCacheControl("max-age=60");
+		server.expect(requestTo(URI)).andRespond(withSuccess("hello", MediaType.TEXT_PLAIN).headers(headers));
+
+		get(null);
+		MockHttpServletResponse cached = get(null);
+		MockHttpServletResponse notModified = get("\"v1\"");
+
+		server.verify();
+		assertEquals("hello", cached.getContentAsString());
+		assertEquals(304, notModified.getStatus());
+		assertEquals(0, notModified.getContentAsByteArray().length);
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	public void noStoreResponseIsNotCached() throws Exception {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		headers.setCacheControl("no-store");
+		server.expect(requestTo(URI)).andRespond(withSuccess("hello", MediaType.TEXT_PLAIN).headers(headers));
+
+		assertEquals("hello", get(null).getContentAsString());
+		server.verify();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedResponsesAreEvicted() {
+		ProxyResponseCache smallCache = new ProxyResponseCache(1000, 1000);
+		smallCache.put("a", new CachedResponse(new HttpHeaders(), new byte[300], false, 0));
+		smallCache.put("b", new CachedResponse(new HttpHeaders(), new byte[300], true, 0));
+		smallCache.get("a");
+		smallCache.put("c", new CachedResponse(new HttpHeaders(), new byte[300], false, 0));
+
+		assertNotNull(smallCache.get("a"));
+		assertNull("b was the least recently used response, so it should have been evicted", smallCache.get("b"));
+		assertNotNull(smallCache.get("c"));
+		assertTrue(smallCache.getTotalBytes() <= 1000);
+	}
+
+	@Test
+	public void keyOnlyVariesOnAcceptEncodingWhenPassedThrough() throws Exception {
+		MockHttpServletRequest gzip = new MockHttpServletRequest("GET", "/v1/documents");
+		gzip.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		MockHttpServletRequest deflate = new MockHttpServletRequest("GET", "/v1/documents");
+		deflate.addHeader(HttpHeaders.ACCEPT_ENCODING, "deflate");
+		java.net.URI uri = new java.net.URI(URI);
+
+		assertEquals(cache.buildKey(gzip, uri, false), cache.buildKey(deflate, uri, false));
+		assertNotEquals(cache.buildKey(gzip, uri, true), cache.buildKey(deflate, uri, true));
+	}
+
+	private MockHttpServletResponse get(String ifNoneMatch) throws Exception {
+		return get(ifNoneMatch, "Content-Type");
+	}
+
+	private MockHttpServletResponse get(String ifNoneMatch, String... headerNamesToCopy) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/documents");
+		request.setServletPath("/v1/documents");
+		request.setQueryString("uri=/test.json");
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response, headerNamesToCopy);
+		return response;
+	}
+}
@@ -0,0 +1,262 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestCoalescerTest extends Assert {
+
+	private HttpProxy proxy;
+	private RequestCoalescer coalescer;
+	private AtomicInteger upstreamRequests = new AtomicInteger();
+	private CountDownLatch release = new CountDownLatch(1);
+	private byte[] upstreamBody = "{\"results\":[]}".getBytes();
+	private long upstreamContentLength = -1;
+	private HttpStatus upstreamStatus = HttpStatus.OK;
+	private List<Throwable> failures = new CopyOnWriteArrayList<>();
+	private CountDownLatch leaderBodyRelease;
+	private Semaphore waiting = new Semaphore(0);
+
+	@Before
+	public void setup() {
+		RestTemplate restTemplate = new RestTemplate((uri, httpMethod) -> new MockClientHttpRequest(httpMethod, uri) {
+			@Override
+			protected ClientHttpResponse executeInternal() throws IOException {
+				boolean leader = upstreamRequests.incrementAndGet() == 1;
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+				InputStream body = leader && leaderBodyRelease != null ?
+					new SlowInputStream(upstreamBody, leaderBodyRelease) : new ByteArrayInputStream(upstreamBody);
+				MockClientHttpResponse response = new MockClientHttpResponse(body, upstreamStatus);
+				response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+				if (upstreamContentLength >= 0) {
+					response.getHeaders().setContentLength(upstreamContentLength);
+				}
+				return response;
+			}
+		});
+		proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		coalescer = new RequestCoalescer() {
+			@Override
+			SharedResponse await(CompletableFuture<SharedResponse> existing) {
+				waiting.release();
+				return super.await(existing);
+			}
+		};
+		proxy.setRequestCoalescer(coalescer);
+	}
+
+	@Test
+	public void concurrentRequestsShareOneUpstreamRequest() throws Exception {
+		List<MockHttpServletResponse> responses = proxyConcurrently(3);
+
+		assertEquals(1, upstreamRequests.get());
+		for (MockHttpServletResponse response : responses) {
+			assertEquals(200, response.getStatus());
+			assertEquals("{\"results\":[]}", response.getContentAsString());
+			assertEquals("application/json", response.getHeader(HttpHeaders.CONTENT_TYPE));
+		}
+		assertEquals(1, coalescer.getLeaders());
+		assertEquals(2, coalescer.getFollowers());
+	}
+
+	@Test
+	public void responseTooLargeToShare() throws Exception {
+		coalescer.setMaxSharedBytes(4);
+
+		List<MockHttpServletResponse> responses = proxyConcurrently(3);
+
+		assertEquals(3, upstreamRequests.get());
+		for (MockHttpServletResponse response : responses) {
+			assertEquals("{\"results\":[]}", response.getContentAsString());
+		}
+		assertEquals(2, coalescer.getFallbacks());
+	}
+
+	@Test
+	public void followersFallBackAsSoonAsResponseIsTooLarge() throws Exception {
+		coalescer.setMaxSharedBytes(4);
+		leaderBodyRelease = new CountDownLatch(1);
+
+		List<MockHttpServletResponse> responses = new ArrayList<>();
+		List<Thread> threads = startConcurrently(3, responses);
+		// The leader is still streaming its body, so the followers must not be waiting for it to finish
+		threads.get(1).join(5000);
+		threads.get(2).join(5000);
+		assertFalse(threads.get(1).isAlive() || threads.get(2).isAlive());
+		assertTrue(threads.get(0).isAlive());
+		assertEquals(2, coalescer.getFallbacks());
+
+		leaderBodyRelease.countDown();
+		threads.get(0).join(5000);
+		assertEquals(3, upstreamRequests.get());
+		for (MockHttpServletResponse response : responses) {
+			assertEquals("{\"results\":[]}", response.getContentAsString());
+		}
+	}
+
+	@Test
+	public void headKeepsUpstreamContentLength() throws Exception {
+		upstreamBody = new byte[0];
+		upstreamContentLength = 12345;
+
+		List<MockHttpServletResponse> responses = new ArrayList<>();
+		for (Thread thread : startConcurrently(3, responses, "HEAD")) {
+			thread.join(10000);
+		}
+
+		assertEquals(1, upstreamRequests.get());
+		for (MockHttpServletResponse response : responses) {
+			assertEquals(200, response.getStatus());
+			assertEquals("12345", response.getHeader(HttpHeaders.CONTENT_LENGTH));
+			assertEquals(0, response.getContentAsByteArray().length);
+		}
+	}
+
+	@Test
+	public void eachFollowerGetsItsOwnException() throws Exception {
+		upstreamStatus = HttpStatus.NOT_FOUND;
+		upstreamBody = "{\"error\":\"missing\"}".getBytes();
+
+		proxyConcurrently(3);
+
+		assertEquals(1, upstreamRequests.get());
+		assertEquals(3, failures.size());
+		Set<Throwable> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		distinct.addAll(failures);
+		assertEquals("No two requests may share an exception instance", 3, distinct.size());
+		int followers = 0;
+		for (Throwable failure : failures) {
+			assertTrue(failure instanceof HttpClientErrorException);
+			HttpClientErrorException ex = (HttpClientErrorException) failure;
+			assertEquals(HttpStatus.NOT_FOUND, ex.getStatusCode());
+			assertEquals("{\"error\":\"missing\"}", ex.getResponseBodyAsString());
+			assertEquals(MediaType.APPLICATION_JSON, ex.getResponseHeaders().getContentType());
+			if (ex.getCause() != null) {
+				assertTrue("A follower's cause is the leader's exception", failures.contains(ex.getCause()));
+				followers++;
+			}
+		}
+		assertEquals(2, followers);
+	}
+
+	@Test
+	public void differentUsersAreNotCoalesced() {
+		MockHttpServletRequest first = newRequest();
+		first.setUserPrincipal(() -> "jane");
+		MockHttpServletRequest second = newRequest();
+		second.setUserPrincipal(() -> "john");
+		URI uri = proxy.buildUri("/v1/search", null);
+		assertNotEquals(coalescer.buildKey(first, uri, null, "Accept"), coalescer.buildKey(second, uri, null, "Accept"));
+	}
+
+	private List<MockHttpServletResponse> proxyConcurrently(int count) throws Exception {
+		List<MockHttpServletResponse> responses = new ArrayList<>();
+		for (Thread thread : startConcurrently(count, responses)) {
+			thread.join(10000);
+		}
+		return responses;
+	}
+
+	private List<Thread> startConcurrently(int count, List<MockHttpServletResponse> responses) throws Exception {
+		return startConcurrently(count, responses, "GET");
+	}
+
+	/**
+	 * Starts the first request, and once it has reached MarkLogic, starts the rest; MarkLogic responds once all of
+	 * them are waiting on the first one.
+	 */
+	private List<Thread> startConcurrently(int count, List<MockHttpServletResponse> responses, String method)
+		throws Exception {
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			responses.add(response);
+			Thread thread = new Thread(() -> {
+				try {
+					proxy.proxy(newRequest(method), response, "Content-Type");
+				} catch (RuntimeException ex) {
+					failures.add(ex);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+			if (i == 0) {
+				while (upstreamRequests.get() == 0) {
+					Thread.sleep(5);
+				}
+			}
+		}
+		assertTrue(waiting.tryAcquire(count - 1, 10, TimeUnit.SECONDS));
+		release.countDown();
+		return threads;
+	}
+
+	private MockHttpServletRequest newRequest() {
+		return newRequest("GET");
+	}
+
+	private MockHttpServletRequest newRequest(String method) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, "/v1/search");
+		request.setServletPath("/v1/search");
+		return request;
+	}
+
+	/**
+	 * Returns the first 8 bytes right away, and the rest once released.
+	 */
+	private static class SlowInputStream extends ByteArrayInputStream {
+
+		private final CountDownLatch latch;
+		private boolean first = true;
+
+		SlowInputStream(byte[] buf, CountDownLatch latch) {
+			super(buf);
+			this.latch = latch;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			if (first) {
+				first = false;
+				return super.read(b, off, Math.min(len, 8));
+			}
+			try {
+				latch.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return super.read(b, off, len);
+		}
+	}
+}
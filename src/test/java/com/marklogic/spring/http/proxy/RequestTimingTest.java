@@ -0,0 +1,202 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.AuthSchemeDiscovery;
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.http.RequestTimeline;
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RequestTimingTest extends Assert {
+
+	private MarkLogicStubServer server;
+	private DefaultRestOperationsFactory factory;
+	private AuthSchemeDiscovery discovery;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		discovery = new AuthSchemeDiscovery();
+		factory = new DefaultRestOperationsFactory();
+		factory.setAuthSchemeDiscovery(discovery);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		factory.destroy();
+		discovery.destroy();
+		server.stop();
+	}
+
+	@Test
+	public void serverTimingHeader() {
+		server.setLatencyMillis(20);
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		HttpProxy proxy = newHttpProxy(config);
+		proxy.setRequestTiming(new RequestTiming());
+
+		MockHttpServletResponse response = proxy(proxy);
+		assertEquals(200, response.getStatus());
+		Map<String, Double> timings = parseServerTiming(response.getHeader(RequestTiming.SERVER_TIMING_HEADER));
+		assertEquals(5, timings.size());
+		assertTrue("The first request opens a connection", timings.get("connect") > 0);
+		assertTrue("Without digest caching, the request is challenged", timings.get("auth") > 0);
+		assertTrue("Only the authenticated request is delayed by the server", timings.get("ttfb") >= 19);
+		assertTrue(timings.get("auth") < timings.get("ttfb"));
+		assertNull("The timeline must be unbound once the request is done", RequestTimeline.current());
+
+		timings = parseServerTiming(proxy(proxy).getHeader(RequestTiming.SERVER_TIMING_HEADER));
+		assertEquals("The pooled connection is reused", 0, timings.get("connect"), 0);
+	}
+
+	@Test
+	public void notTimedUnlessNeeded() {
+		RequestTiming timing = new RequestTiming();
+		timing.setServerTimingHeaderEnabled(false);
+		assertNull(timing.start(System.nanoTime()));
+		assertNull(RequestTimeline.current());
+
+		HttpProxy proxy = newHttpProxy(server.newRestConfig());
+		proxy.setRequestTiming(timing);
+		MockHttpServletResponse response = proxy(proxy);
+		assertEquals(200, response.getStatus());
+		assertNull(response.getHeader(RequestTiming.SERVER_TIMING_HEADER));
+
+		timing.setSlowRequestThresholdMillis(1000);
+		RequestTimeline timeline = timing.start(System.nanoTime());
+		assertNotNull("Requests must be timed to find the slow ones", timeline);
+		assertFalse(timeline.isSampled());
+		timing.finish(timeline, "GET", "/v1/search", 200);
+		assertNull(RequestTimeline.current());
+	}
+
+	@Test
+	public void logLine() {
+		RequestTimeline timeline = new RequestTimeline(0);
+		timeline.add(RequestTimeline.Phase.POOL_LEASE, 4000);
+		timeline.add(RequestTimeline.Phase.AUTH_CHALLENGE, 1500000);
+		timeline.add(RequestTimeline.Phase.SEND, 21000);
+		timeline.add(RequestTimeline.Phase.TTFB, 12310000);
+		timeline.markBodyStart(12500000);
+		timeline.end(13402000);
+
+		RequestTiming timing = new RequestTiming();
+		assertEquals("pool;dur=0.004, connect;dur=0.000, auth;dur=1.500, send;dur=0.021, ttfb;dur=12.310",
+			timing.buildServerTiming(timeline));
+		assertEquals("method=GET path=/v1/search status=200 pool=0.004 connect=0.000 auth=1.500 send=0.021 " +
+			"ttfb=12.310 body=0.902 total=13.402", timing.buildLogLine(timeline, "GET", "/v1/search", 200));
+	}
+
+	@Test
+	public void errorResponse() {
+		server.setPayloadSize(200000);
+		HttpProxy proxy = newHttpProxy(server.newRestConfig());
+		CapturingRequestTiming timing = new CapturingRequestTiming();
+		proxy.setRequestTiming(timing);
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/unknown");
+		request.setServletPath("/v1/unknown");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			proxy.proxy(request, response);
+			fail("The 404 from MarkLogic should have been thrown by the error handler");
+		} catch (HttpStatusCodeException ex) {
+			assertEquals(404, ex.getRawStatusCode());
+		}
+		assertNotNull("The header must be added for error responses too",
+			response.getHeader(RequestTiming.SERVER_TIMING_HEADER));
+		assertTrue(timing.timeline.getBodyStartNanos() > 0);
+		assertTrue(timing.timeline.getNanos(RequestTimeline.Phase.TTFB) > 0);
+	}
+
+	@Test
+	public void rejectedCredentialsAreNotChallenges() {
+		SimpleRestConfig config = server.newRestConfig();
+		config.setDigestCachingEnabled(false);
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "wrong"));
+		HttpProxy proxy = new HttpProxy(config, provider, factory);
+		CapturingRequestTiming timing = new CapturingRequestTiming();
+		proxy.setRequestTiming(timing);
+
+		try {
+			proxy(proxy);
+			fail("The 401 from MarkLogic should have been thrown by the error handler");
+		} catch (HttpStatusCodeException ex) {
+			assertEquals(401, ex.getRawStatusCode());
+		}
+		assertEquals("The challenge and the rejection are both 401s", 2, server.getChallenges());
+		assertTrue(timing.timeline.getNanos(RequestTimeline.Phase.AUTH_CHALLENGE) > 0);
+		assertTrue("The rejection is the response, not a challenge",
+			timing.timeline.getNanos(RequestTimeline.Phase.TTFB) > 0);
+	}
+
+	@Test
+	public void uploadIsNotTimeToFirstByte() {
+		HttpProxy proxy = newHttpProxy(server.newRestConfig());
+		CapturingRequestTiming timing = new CapturingRequestTiming();
+		proxy.setRequestTiming(timing);
+
+		MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/v1/documents");
+		request.setServletPath("/v1/documents");
+		request.setQueryString("uri=/large.json");
+		request.setContentType("application/json");
+		request.setContent(new byte[4 * 1024 * 1024]);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response);
+		assertEquals(201, response.getStatus());
+		assertTrue("Sending the body is timed separately", timing.timeline.getNanos(RequestTimeline.Phase.SEND) > 0);
+	}
+
+	/**
+	 * Keeps the timeline of the last request so that its phases can be checked.
+	 */
+	private static class CapturingRequestTiming extends RequestTiming {
+
+		RequestTimeline timeline;
+
+		@Override
+		public void finish(RequestTimeline timeline, String method, String pathTemplate, int status) {
+			super.finish(timeline, method, pathTemplate, status);
+			this.timeline = timeline;
+		}
+	}
+
+	private HttpProxy newHttpProxy(SimpleRestConfig config) {
+		BasicCredentialsProvider provider = new BasicCredentialsProvider();
+		provider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("admin", "admin"));
+		return new HttpProxy(config, provider, factory);
+	}
+
+	private MockHttpServletResponse proxy(HttpProxy proxy) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+		request.setQueryString("q=test");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response);
+		return response;
+	}
+
+	private Map<String, Double> parseServerTiming(String header) {
+		assertNotNull(header);
+		Map<String, Double> timings = new HashMap<>();
+		for (String metric : header.split(", ")) {
+			String[] parts = metric.split(";dur=");
+			timings.put(parts[0], Double.parseDouble(parts[1]));
+		}
+		return timings;
+	}
+}
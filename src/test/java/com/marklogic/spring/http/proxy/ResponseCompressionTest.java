@@ -0,0 +1,176 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class ResponseCompressionTest extends Assert {
+
+	private final static String URI = "http://localhost:8000/v1/search";
+
+	@Test
+	public void compressedResponseIsPassedThrough() throws Exception {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		config.setCompressionPassThrough(true);
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+		HttpProxy proxy = new HttpProxy(config, restTemplate);
+
+		byte[] gzipped = gzip("{\"total\":0}");
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+		headers.setContentLength(gzipped.length);
+		server.expect(requestTo(URI)).andExpect(header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+			.andRespond(withSuccess(gzipped, MediaType.APPLICATION_JSON).headers(headers));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(newRequest("gzip"), response, "Content-Type");
+
+		server.verify();
+		assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(gzipped.length, response.getContentLength());
+		assertArrayEquals(gzipped, response.getContentAsByteArray());
+	}
+
+	@Test
+	public void headerPolicyCopiesCompressionHeadersWhenPassedThrough() throws Exception {
+		SimpleRestConfig config = new SimpleRestConfig("localhost", 8000);
+		config.setCompressionPassThrough(true);
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+		HttpProxy proxy = new HttpProxy(config, restTemplate);
+		proxy.setHeaderPolicy(HeaderPolicy.builder().includeRequestHeaders("Accept")
+			.includeResponseHeaders("Content-Type").build());
+
+		byte[] gzipped = gzip("{\"total\":0}");
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+		server.expect(requestTo(URI)).andExpect(header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+			.andRespond(withSuccess(gzipped, MediaType.APPLICATION_JSON).headers(headers));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(newRequest("gzip"), response);
+
+		server.verify();
+		assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+		assertArrayEquals(gzipped, response.getContentAsByteArray());
+	}
+
+	@Test
+	public void uncompressedResponseIsCompressed() throws Exception {
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer server = MockRestServiceServer.bindTo(restTemplate).build();
+		HttpProxy proxy = new HttpProxy(new SimpleRestConfig("localhost", 8000), restTemplate);
+		proxy.setResponseCompression(new ResponseCompression());
+
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"uri\":\"/doc").append(i).append(".json\"},");
+		}
+		String body = json.append("{}]").toString();
+		server.expect(requestTo(URI)).andRespond(withSuccess(body, MediaType.APPLICATION_JSON));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(newRequest("deflate, gzip;q=0.8"), response, "Content-Type");
+
+		assertEquals("deflate is preferred by its higher q value", "deflate",
+			response.getHeader(HttpHeaders.CONTENT_ENCODING));
+		assertEquals("Accept-Encoding", response.getHeader(HttpHeaders.VARY));
+		assertTrue(response.getContentAsByteArray().length < body.length());
+		assertEquals(body, inflate(response.getContentAsByteArray()));
+	}
+
+	@Test
+	public void selectEncoding() {
+		ResponseCompression compression = new ResponseCompression();
+		assertNull("Below the minimum size", compression.selectEncoding("gzip", MediaType.APPLICATION_JSON, 100));
+		assertNull("Not compressible", compression.selectEncoding("gzip", MediaType.IMAGE_PNG, -1));
+		assertNull("Not accepted", compression.selectEncoding("gzip;q=0", MediaType.TEXT_PLAIN, -1));
+		assertEquals("deflate", compression.selectEncoding("br, deflate", MediaType.TEXT_XML, 5000));
+		assertEquals("gzip", compression.selectEncoding("gzip", MediaType.parseMediaType("application/vnd.marklogic+json"), -1));
+		assertEquals("deflate", compression.selectEncoding("deflate, gzip;q=0.8", MediaType.TEXT_PLAIN, -1));
+		assertEquals("gzip", compression.selectEncoding("gzip;q=0.5, deflate;q=0.4", MediaType.TEXT_PLAIN, -1));
+		assertEquals("gzip", compression.selectEncoding("*", MediaType.TEXT_PLAIN, -1));
+		assertEquals("deflate", compression.selectEncoding("gzip;q=0.2, *;q=0.9", MediaType.TEXT_PLAIN, -1));
+		assertNull(compression.selectEncoding("br, *;q=0", MediaType.TEXT_PLAIN, -1));
+		assertNull(compression.selectEncoding("identity", MediaType.TEXT_PLAIN, -1));
+	}
+
+	@Test
+	public void compressingStreamIsClosedWhenBodyFails() throws Exception {
+		AtomicBoolean closed = new AtomicBoolean();
+		ResponseCompression compression = new ResponseCompression() {
+			@Override
+			public DeflaterOutputStream wrap(String encoding, OutputStream out) throws IOException {
+				DeflaterOutputStream stream = super.wrap(encoding, out);
+				return new DeflaterOutputStream(stream) {
+					@Override
+					public void close() throws IOException {
+						stream.close();
+						closed.set(true);
+					}
+				};
+			}
+		};
+		DefaultResponseExtractor extractor = new DefaultResponseExtractor(new MockHttpServletResponse());
+		extractor.setResponseCompression(compression, "gzip");
+		MockClientHttpResponse clientResponse = new MockClientHttpResponse(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Connection reset");
+			}
+		}, HttpStatus.OK);
+		clientResponse.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+
+		try {
+			extractor.extractData(clientResponse);
+			fail("Reading the body should have failed");
+		} catch (IOException ex) {
+			assertEquals("Connection reset", ex.getMessage());
+		}
+		assertTrue("The stream must be closed so that its Deflater is ended", closed.get());
+	}
+
+	private MockHttpServletRequest newRequest(String acceptEncoding) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+		request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		return request;
+	}
+
+	private byte[] gzip(String text) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	private String inflate(byte[] bytes) throws Exception {
+		return StreamUtils.copyToString(new InflaterInputStream(new ByteArrayInputStream(bytes)), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,117 @@
+package com.marklogic.spring.http.proxy;
+
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class RoutingHttpProxyTest extends Assert {
+
+	@Test
+	public void mostSpecificRouteWins() {
+		HttpProxy v1 = newProxy(8000);
+		HttpProxy resources = newProxy(8010);
+		HttpProxy documents = newProxy(8020);
+		HttpProxy exact = newProxy(8030);
+		HttpProxy fallback = newProxy(8040);
+		RouteTable table = RouteTable.builder()
+			.route("/v1/**", v1)
+			.route("/LATEST/resources/**", resources)
+			.route("/v1/documents/*", documents)
+			.route("/v1/search", exact)
+			.defaultRoute(fallback)
+			.build();
+
+		assertSame(v1, table.match("/v1"));
+		assertSame(v1, table.match("/v1/values/abc"));
+		assertSame(exact, table.match("/v1/search"));
+		assertSame(exact, table.match("/v1//search/"));
+		assertSame(v1, table.match("/v1/search/more"));
+		assertSame(documents, table.match("/v1/documents/abc"));
+		assertSame("'*' matches exactly one segment", v1, table.match("/v1/documents/abc/def"));
+		assertSame(resources, table.match("/LATEST/resources/my-ext"));
+		assertSame(fallback, table.match("/LATEST/search"));
+		assertSame(fallback, table.match("/"));
+		assertEquals(5, table.getRoutes().size());
+	}
+
+	@Test
+	public void wildcardBacktracksToOtherBranches() {
+		HttpProxy literal = newProxy(8000);
+		HttpProxy wildcard = newProxy(8010);
+		RouteTable table = RouteTable.builder()
+			.route("/v1/a/b", literal)
+			.route("/v1/*/c", wildcard)
+			.build();
+
+		assertSame(literal, table.match("/v1/a/b"));
+		assertSame(wildcard, table.match("/v1/a/c"));
+		assertNull(table.match("/v1/a/d"));
+		assertNull(table.match("/v2"));
+	}
+
+	@Test
+	public void invalidRoutes() {
+		try {
+			RouteTable.builder().route("/v1/**/search", newProxy(8000));
+			fail("Expected '**' in the middle of a pattern to be rejected");
+		} catch (IllegalArgumentException ex) {
+			// Expected
+		}
+		try {
+			RouteTable.builder().route("/v1/**", newProxy(8000)).route("/v1/**", newProxy(8010));
+			fail("Expected a duplicate route to be rejected");
+		} catch (IllegalArgumentException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void requestsAreSentToTheMatchingProxy() throws Exception {
+		RestTemplate primaryTemplate = new RestTemplate();
+		MockRestServiceServer primary = MockRestServiceServer.bindTo(primaryTemplate).build();
+		RestTemplate replicaTemplate = new RestTemplate();
+		MockRestServiceServer replica = MockRestServiceServer.bindTo(replicaTemplate).build();
+
+		RoutingHttpProxy proxy = new RoutingHttpProxy(RouteTable.builder()
+			.route("/v1/**", new HttpProxy(new SimpleRestConfig("primary", 8000), primaryTemplate))
+			.route("/v1/search", new HttpProxy(new SimpleRestConfig("replica", 8000), replicaTemplate))
+			.build());
+
+		primary.expect(requestTo("http://primary:8000/v1/documents?uri=/a.json"))
+			.andRespond(withSuccess("{}", MediaType.APPLICATION_JSON));
+		replica.expect(requestTo("http://replica:8000/v1/search?q=cat"))
+			.andRespond(withSuccess("{}", MediaType.APPLICATION_JSON));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/documents");
+		request.setServletPath("/v1/documents");
+		request.setQueryString("uri=/a.json");
+		proxy.proxy(request, new MockHttpServletResponse());
+
+		request = new MockHttpServletRequest("GET", "/v1/search");
+		request.setServletPath("/v1/search");
+		request.setQueryString("q=cat");
+		proxy.proxy(request, new MockHttpServletResponse());
+
+		primary.verify();
+		replica.verify();
+
+		request = new MockHttpServletRequest("GET", "/other");
+		request.setServletPath("/other");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		proxy.proxy(request, response);
+		assertEquals(404, response.getStatus());
+		proxy.destroy();
+	}
+
+	private HttpProxy newProxy(int port) {
+		return new HttpProxy(new SimpleRestConfig("localhost", port), new RestTemplate());
+	}
+}
@@ -0,0 +1,98 @@
+package com.marklogic.spring.metrics;
+
+import com.marklogic.spring.http.DefaultRestOperationsFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+public class MicrometerMarkLogicMetricsTest extends Assert {
+
+	@Test
+	public void valuesSurviveGarbageCollection() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		MicrometerMarkLogicMetrics metrics = new MicrometerMarkLogicMetrics(registry);
+		AtomicLong value = new AtomicLong(42);
+		metrics.registerGauge("test.gauge", () -> value.get());
+		metrics.registerCounter("test.counter", () -> value.get() * 2);
+
+		forceGc();
+		assertEquals(42, registry.find("test.gauge").gauge().value(), 0);
+		assertEquals(84, registry.find("test.counter").functionCounter().count(), 0);
+
+		value.set(7);
+		assertEquals(7, registry.find("test.gauge").gauge().value(), 0);
+	}
+
+	@Test
+	public void factoryGaugesSurviveGarbageCollection() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+		try {
+			factory.setMetrics(new MicrometerMarkLogicMetrics(registry));
+			forceGc();
+			assertEquals("No pool has been created yet", 0, registry.find("marklogic.pool.max").gauge().value(), 0);
+			assertEquals(0, registry.find("marklogic.auth.challenges").functionCounter().count(), 0);
+		} finally {
+			factory.destroy();
+		}
+	}
+
+	@Test
+	public void registeringAgainReplacesTheValue() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		MicrometerMarkLogicMetrics metrics = new MicrometerMarkLogicMetrics(registry);
+		metrics.registerGauge("test.gauge", () -> 1);
+		metrics.registerGauge("test.gauge", () -> 2);
+		assertEquals(1, registry.find("test.gauge").gauges().size());
+		assertEquals(2, registry.find("test.gauge").gauge().value(), 0);
+	}
+
+	@Test
+	public void settingSameMetricsAgainDoesNotReregister() {
+		List<String> registered = new ArrayList<>();
+		MarkLogicMetrics metrics = new MarkLogicMetrics() {
+			@Override
+			public void registerGauge(String name, DoubleSupplier value) {
+				registered.add(name);
+			}
+
+			@Override
+			public void registerCounter(String name, DoubleSupplier value) {
+				registered.add(name);
+			}
+		};
+		DefaultRestOperationsFactory factory = new DefaultRestOperationsFactory();
+		try {
+			factory.setMetrics(metrics);
+			int count = registered.size();
+			assertTrue(count > 0);
+			factory.setMetrics(metrics);
+			assertEquals(count, registered.size());
+			assertSame(metrics, factory.getMetrics());
+		} finally {
+			factory.destroy();
+		}
+	}
+
+	/**
+	 * Waits until an unreachable object has been collected, which means a collection has run.
+	 */
+	private void forceGc() {
+		WeakReference<Object> ref = new WeakReference<>(new Object());
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		assertNull("Unable to force a garbage collection", ref.get());
+	}
+}
@@ -0,0 +1,40 @@
+package com.marklogic.spring.security.authentication;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CredentialVerificationCacheTest extends Assert {
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() {
+		CredentialVerificationCache cache = new CredentialVerificationCache(2, 60000, 60000);
+		cache.put("a", true);
+		cache.put("b", true);
+		cache.get("a");
+		cache.put("c", false);
+
+		assertEquals(2, cache.size());
+		assertEquals(Boolean.TRUE, cache.get("a"));
+		assertNull("b was the least recently used entry, so it should have been evicted", cache.get("b"));
+		assertEquals(Boolean.FALSE, cache.get("c"));
+	}
+
+	@Test
+	public void rejectedCredentialsExpireSooner() throws Exception {
+		CredentialVerificationCache cache = new CredentialVerificationCache(10, 60000, 1);
+		cache.put("valid", true);
+		cache.put("invalid", false);
+		Thread.sleep(5);
+
+		assertEquals(Boolean.TRUE, cache.get("valid"));
+		assertNull(cache.get("invalid"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void negativeCachingDisabled() {
+		CredentialVerificationCache cache = new CredentialVerificationCache(10, 60000, 0);
+		cache.put("invalid", false);
+		assertNull(cache.get("invalid"));
+	}
+}
@@ -0,0 +1,128 @@
+package com.marklogic.spring.security.authentication;
+
+import com.marklogic.spring.http.MarkLogicStubServer;
+import com.marklogic.spring.http.SimpleRestConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MarkLogicAuthenticationManagerTest extends Assert {
+
+	private MarkLogicStubServer server;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		server = new MarkLogicStubServer().start();
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+		server.stop();
+	}
+
+	@Test
+	public void concurrentLoginsWithSameCredentialsAreVerifiedOnce() throws Exception {
+		server.setLatencyMillis(200);
+		CountingAuthenticationManager manager = new CountingAuthenticationManager(server.newRestConfig());
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(8);
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> {
+					barrier.await();
+					return manager.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin")).isAuthenticated();
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals("Logins that overlap the first one should wait for its result", 1, manager.verifications.get());
+		} finally {
+			manager.destroy();
+		}
+	}
+
+	@Test
+	public void waitForInFlightVerificationIsBounded() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch verifying = new CountDownLatch(1);
+		MarkLogicAuthenticationManager manager = new MarkLogicAuthenticationManager(server.newRestConfig()) {
+			@Override
+			protected boolean verify(String username, String password) {
+				verifying.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+		};
+		manager.setMaxVerificationWaitMillis(200);
+		try {
+			Future<?> first = executor.submit(() ->
+				manager.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin")));
+			assertTrue(verifying.await(5, TimeUnit.SECONDS));
+
+			long start = System.currentTimeMillis();
+			try {
+				manager.authenticate(new UsernamePasswordAuthenticationToken("admin", "admin"));
+				fail("The waiting login should have timed out");
+			} catch (AuthenticationServiceException ex) {
+				long elapsed = System.currentTimeMillis() - start;
+				assertTrue("Waited " + elapsed + "ms", elapsed >= 150 && elapsed < 5000);
+			}
+
+			release.countDown();
+			first.get(5, TimeUnit.SECONDS);
+		} finally {
+			release.countDown();
+			manager.destroy();
+		}
+	}
+
+	@Test
+	public void defaultWaitFollowsRestConfigTimeouts() {
+		SimpleRestConfig config = server.newRestConfig();
+		MarkLogicAuthenticationManager manager = new MarkLogicAuthenticationManager(config);
+		try {
+			assertEquals(60000, manager.getMaxVerificationWaitMillis());
+			config.setSocketTimeoutMillis(3000);
+			config.setConnectTimeoutMillis(1000);
+			assertEquals(4000, manager.getMaxVerificationWaitMillis());
+		} finally {
+			manager.destroy();
+		}
+	}
+
+	private static class CountingAuthenticationManager extends MarkLogicAuthenticationManager {
+
+		private final AtomicInteger verifications = new AtomicInteger();
+
+		CountingAuthenticationManager(SimpleRestConfig config) {
+			super(config);
+		}
+
+		@Override
+		protected boolean verify(String username, String password) {
+			verifications.incrementAndGet();
+			return super.verify(username, password);
+		}
+	}
+}